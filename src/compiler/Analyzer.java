@@ -15,18 +15,36 @@
  */
 package compiler;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import compiler.enums.BinaryOperationType;
+import compiler.enums.EffectType;
 import compiler.enums.LiteralType;
+import compiler.enums.UnaryOperationType;
 import compiler.exceptions.AnalysisException;
+import compiler.exceptions.LexerException;
+import compiler.exceptions.ParseException;
+import compiler.nodes.ArrayAccessExpressionNode;
+import compiler.nodes.ArrayLiteralExpressionNode;
 import compiler.nodes.AssignExpressionNode;
 import compiler.nodes.BinaryOperationNode;
 import compiler.nodes.BooleanExpressionNode;
 import compiler.nodes.CastingExpressionNode;
+import compiler.nodes.DataExpressionNode;
+import compiler.nodes.ExpressionNode;
 import compiler.nodes.FunctionCallExpressionNode;
 import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.GlobalAccessExpressionNode;
 import compiler.nodes.IdentifierExpressionNode;
 import compiler.nodes.IfStatementNode;
 import compiler.nodes.Node;
@@ -34,25 +52,149 @@ import compiler.nodes.NumberExpressionNode;
 import compiler.nodes.ReturnStatementNode;
 import compiler.nodes.StatementBlockNode;
 import compiler.nodes.StatementNode;
+import compiler.nodes.StringExpressionNode;
+import compiler.nodes.SwitchStatementNode;
 import compiler.nodes.UnaryOperationNode;
 import compiler.nodes.VariableDeclarationNode;
 import compiler.nodes.WasmStatementNode;
 import compiler.nodes.WhileStatementNode;
+import compiler.optimizer.Evaluator;
+import compiler.optimizer.OptimizerUtils;
+import compiler.wasm.DataSegment;
 
 public class Analyzer {
 
+	private static final int MAX_MEMO_ARGUMENTS = 3;
+	private static final long MAX_I32_BITS = 0xFFFFFFFFL;
+	private static final long MIN_I32_MAGNITUDE = 1L << 31;
+
 	private Map<String, FunctionStatementNode> funcSymbolTable;
 	private Map<String, Map<String, VariableDeclarationNode>> localSymbolTables;
+	private Map<String, VariableDeclarationNode> globalSymbolTable;
 	private String currentFunctionName;
 
+	// the library functions the program calls by the names it does not declare
+	private Map<String, String> libraryAliases;
+
+	// the effects of the functions including the ones of the functions they call
+	private Map<String, EffectType> functionEffects;
+	private Map<String, Set<String>> callees;
+
+	// the indices of the arrays are checked with the standard library
+	private boolean boundsChecks;
+
+	private DataSegment dataSegment;
+
 	public void analyzeTree(Node node) throws AnalysisException {
 		funcSymbolTable = new HashMap<>();
 		localSymbolTables = new HashMap<>();
+		globalSymbolTable = new LinkedHashMap<>();
+		functionEffects = new HashMap<>();
+		callees = new HashMap<>();
+		dataSegment = new DataSegment();
+
+		libraryAliases = new HashMap<>(StandardLibrary.ALIASES);
+		for (StatementNode statement : ((StatementBlockNode) node).getStatements()) {
+			if (statement instanceof FunctionStatementNode)
+				libraryAliases.remove(((FunctionStatementNode) statement).getName());
+		}
 
 		analyzeNode(node);
+		propagateEffects();
+		removeUncalledLibraryFunctions((StatementBlockNode) node);
+
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			if (functionNode.isMemo())
+				analyzeMemoFunction(functionNode);
+		}
+	}
+
+	// the results are cached by the arguments in entries of i32 values
+	private void analyzeMemoFunction(FunctionStatementNode functionNode) throws AnalysisException {
+		String name = functionNode.getName();
+		if (functionEffects.get(name) != EffectType.PURE)
+			throw new AnalysisException("Function " + name + " cannot be memoized because it is not pure.",
+					functionNode);
+
+		if (functionNode.getArguments().isEmpty() || functionNode.getArguments().size() > MAX_MEMO_ARGUMENTS)
+			throw new AnalysisException(
+					"Function " + name + " must have 1 to " + MAX_MEMO_ARGUMENTS + " arguments to be memoized.",
+					functionNode);
+
+		for (VariableDeclarationNode arg : functionNode.getArguments()) {
+			LiteralType argType = LiteralType.getLiteralTypeFromString(arg.getType());
+			if (argType != LiteralType.i32 && argType != LiteralType.bool)
+				throw new AnalysisException("Argument " + arg.getVarName() + " of type " + arg.getType()
+						+ " cannot be used as the key of a memoized function.", arg);
+		}
+
+		LiteralType type = LiteralType.getLiteralTypeFromString(functionNode.getType());
+		if (type != LiteralType.i32 && type != LiteralType.bool && type != LiteralType.f32)
+			throw new AnalysisException("Function " + name + " of type " + functionNode.getType()
+					+ " cannot be memoized.", functionNode);
+	}
+
+	// a function has the effects of the functions it calls, until none changes
+	private void propagateEffects() {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+
+			for (Map.Entry<String, Set<String>> entry : callees.entrySet()) {
+				EffectType effect = functionEffects.get(entry.getKey());
+				for (String callee : entry.getValue()) {
+					if (functionEffects.get(callee).compareTo(effect) > 0)
+						effect = functionEffects.get(callee);
+				}
+
+				if (effect != functionEffects.get(entry.getKey())) {
+					functionEffects.put(entry.getKey(), effect);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	// the library functions the program does not call are neither optimized nor
+	// emitted
+	private void removeUncalledLibraryFunctions(StatementBlockNode node) {
+		Set<String> called = new HashSet<>();
+		List<String> worklist = new ArrayList<>();
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			if (!functionNode.isLibrary())
+				worklist.add(functionNode.getName());
+		}
+
+		while (!worklist.isEmpty()) {
+			for (String callee : callees.get(worklist.remove(worklist.size() - 1))) {
+				if (called.add(callee))
+					worklist.add(callee);
+			}
+		}
+
+		funcSymbolTable.values()
+				.removeIf(functionNode -> functionNode.isLibrary() && !called.contains(functionNode.getName()));
+		localSymbolTables.keySet().retainAll(funcSymbolTable.keySet());
+		node.getStatements().removeIf(statement -> statement instanceof FunctionStatementNode
+				&& !funcSymbolTable.containsKey(((FunctionStatementNode) statement).getName()));
+	}
+
+	private void addEffect(EffectType effect) {
+		if (effect.compareTo(functionEffects.get(currentFunctionName)) > 0)
+			functionEffects.put(currentFunctionName, effect);
 	}
 
 	private LiteralType analyzeNode(Node node) throws AnalysisException {
+		LiteralType type = analyzeNodeType(node);
+
+		// keep the types of the expressions for the optimizations
+		if (node instanceof ExpressionNode)
+			((ExpressionNode) node).setLiteralType(type);
+
+		return type;
+	}
+
+	private LiteralType analyzeNodeType(Node node) throws AnalysisException {
 		if (node instanceof StatementBlockNode) {
 			StatementBlockNode statementBlock = (StatementBlockNode) node;
 			for (StatementNode statement : statementBlock.getStatements())
@@ -69,10 +211,20 @@ public class Analyzer {
 			IfStatementNode ifNode = (IfStatementNode) node;
 
 			analyzeIfStatementNode(ifNode);
+		} else if (node instanceof SwitchStatementNode) {
+			SwitchStatementNode switchNode = (SwitchStatementNode) node;
+
+			analyzeSwitchNode(switchNode);
 		} else if (node instanceof IdentifierExpressionNode) {
 			IdentifierExpressionNode idNode = (IdentifierExpressionNode) node;
 
 			return analyzeIdentifierNode(idNode);
+		} else if (node instanceof StringExpressionNode) {
+			StringExpressionNode stringNode = (StringExpressionNode) node;
+
+			return analyzeStringNode(stringNode);
+		} else if (node instanceof ArrayLiteralExpressionNode) {
+			throw new AnalysisException("Only a const array can be initialized with elements.", node);
 		} else if (node instanceof NumberExpressionNode) {
 			NumberExpressionNode numberNode = (NumberExpressionNode) node;
 
@@ -80,7 +232,7 @@ public class Analyzer {
 		} else if (node instanceof AssignExpressionNode) {
 			AssignExpressionNode assignNode = (AssignExpressionNode) node;
 
-			analyzeAssignmentNode(assignNode);
+			return analyzeAssignmentNode(assignNode);
 		} else if (node instanceof BinaryOperationNode) {
 			BinaryOperationNode binaryNode = (BinaryOperationNode) node;
 
@@ -93,6 +245,14 @@ public class Analyzer {
 			BooleanExpressionNode booleanNode = (BooleanExpressionNode) node;
 
 			return analyzeBooleanNode(booleanNode);
+		} else if (node instanceof ArrayAccessExpressionNode) {
+			ArrayAccessExpressionNode accessNode = (ArrayAccessExpressionNode) node;
+
+			return analyzeArrayAccessNode(accessNode);
+		} else if (node instanceof GlobalAccessExpressionNode) {
+			GlobalAccessExpressionNode globalNode = (GlobalAccessExpressionNode) node;
+
+			return analyzeGlobalAccessNode(globalNode);
 		} else if (node instanceof ReturnStatementNode) {
 			ReturnStatementNode returnNode = (ReturnStatementNode) node;
 
@@ -121,13 +281,38 @@ public class Analyzer {
 	}
 
 	private LiteralType analyzeCastingNode(CastingExpressionNode castingNode) throws AnalysisException {
-		// TODO: analyze if the casting is legal
-		analyzeNode(castingNode.getExpression());
-		return LiteralType.getLiteralTypeFromString(castingNode.getType());
+		LiteralType castType = LiteralType.getLiteralTypeFromString(castingNode.getType());
+		LiteralType exprType = castingNode.isReinterpret() ? analyzeNode(castingNode.getExpression())
+				: analyzeNode(castingNode.getExpression(), castType);
+
+		if (castType == null || castType == LiteralType._void_ || exprType == LiteralType._void_)
+			throw new AnalysisException("Value of type " + exprType + " cannot be cast to " + castingNode.getType(),
+					castingNode);
+
+		// only the values of the same size can be reinterpreted
+		if (castingNode.isReinterpret() && !(exprType == LiteralType.i32 && castType == LiteralType.f32)
+				&& !(exprType == LiteralType.f32 && castType == LiteralType.i32)
+				&& !(exprType == LiteralType.i64 && castType == LiteralType.f64)
+				&& !(exprType == LiteralType.f64 && castType == LiteralType.i64))
+			throw new AnalysisException("Value of type " + exprType + " cannot be reinterpreted as " + castType,
+					castingNode);
+
+		return castType;
 	}
 
 	private void analyzeWasmNode(WasmStatementNode wasmNode) {
 		// TODO: maybe somewhat analyze the wasm instruction
+		String wasm = wasmNode.getWasmCommand().replace("\"", " ").trim();
+		String opcode = wasm.split(" +")[0];
+
+		// the instructions on the stack and the locals have no effects, the
+		// globals are ordered like the memory
+		if (opcode.contains(".load") || opcode.equals("memory.size") || opcode.equals("global.get"))
+			addEffect(EffectType.READS_MEMORY);
+		else if (opcode.contains(".store") || opcode.startsWith("memory.") || opcode.equals("global.set"))
+			addEffect(EffectType.WRITES_MEMORY);
+		else if (opcode.startsWith("call") || opcode.startsWith("return_call") || opcode.startsWith("table."))
+			addEffect(EffectType.UNKNOWN);
 	}
 
 	private void analyzeWhileNode(WhileStatementNode whileNode) throws AnalysisException {
@@ -142,6 +327,9 @@ public class Analyzer {
 	}
 
 	private LiteralType analyzeFunctionCallNode(FunctionCallExpressionNode functionCallNode) throws AnalysisException {
+		if (libraryAliases.containsKey(functionCallNode.getFunctionName()))
+			functionCallNode.setFunctionName(libraryAliases.get(functionCallNode.getFunctionName()));
+
 		if (funcSymbolTable.get(functionCallNode.getFunctionName()) == null)
 			throw new AnalysisException("Function " + functionCallNode.getFunctionName() + " is not defined.",
 					functionCallNode);
@@ -153,10 +341,14 @@ public class Analyzer {
 
 		// TODO: check if argument types and function type are actual types
 
+		if (currentFunctionName != null)
+			callees.get(currentFunctionName).add(functionCallNode.getFunctionName());
+
 		for (int i = 0; i < funcNode.getArguments().size(); i++) {
-			LiteralType argType = analyzeNode(functionCallNode.getArguments().get(i));
+			LiteralType parameterType = LiteralType.getLiteralTypeFromString(funcNode.getArguments().get(i).getType());
+			LiteralType argType = analyzeNode(functionCallNode.getArguments().get(i), parameterType);
 
-			if (argType != LiteralType.getLiteralTypeFromString(funcNode.getArguments().get(i).getType()))
+			if (argType != parameterType)
 				throw new AnalysisException("Argument of type " + funcNode.getArguments().get(i).getType()
 						+ " cannot accept value of type " + argType, functionCallNode.getArguments().get(i));
 		}
@@ -164,13 +356,119 @@ public class Analyzer {
 		return LiteralType.getLiteralTypeFromString(funcNode.getType());
 	}
 
+	// the access becomes the call of a load or a store at a + (i << log2(size))
+	private LiteralType analyzeArrayAccessNode(ArrayAccessExpressionNode accessNode) throws AnalysisException {
+		VariableDeclarationNode varDeclNode = getVariable(accessNode.getArrayName());
+		if (varDeclNode == null)
+			throw new AnalysisException("Variable " + accessNode.getArrayName() + " is not declared.", accessNode);
+
+		if (varDeclNode.getElementType() == null)
+			throw new AnalysisException("Variable " + accessNode.getArrayName() + " is not an array.", accessNode);
+
+		if (varDeclNode.isConstant() && accessNode.getValue() != null)
+			throw new AnalysisException("Array " + accessNode.getArrayName() + " is constant and cannot be changed.",
+					accessNode);
+
+		if (analyzeNode(accessNode.getIndex(), LiteralType.i32) != LiteralType.i32)
+			throw new AnalysisException("The index of array " + accessNode.getArrayName() + " must be i32.",
+					accessNode.getIndex());
+
+		LiteralType elementType = LiteralType.getLiteralTypeFromString(varDeclNode.getElementType());
+		if (accessNode.getValue() != null) {
+			LiteralType valueType = analyzeNode(accessNode.getValue(), elementType);
+			if (valueType != elementType)
+				throw new AnalysisException("Array " + accessNode.getArrayName() + " of type "
+						+ varDeclNode.getElementType() + "[] cannot be assigned a value of type " + valueType,
+						accessNode);
+		}
+
+		ExpressionNode index = accessNode.getIndex();
+		if (boundsChecks) {
+			List<ExpressionNode> checkArguments = new ArrayList<>();
+			checkArguments.add(newRead(varDeclNode, accessNode));
+			checkArguments.add(index);
+
+			FunctionCallExpressionNode checkNode = new FunctionCallExpressionNode();
+			checkNode.setFunctionName(StandardLibrary.ARRAY_CHECK);
+			checkNode.setArguments(checkArguments);
+			checkNode.setLiteralType(LiteralType.i32);
+			checkNode.setLine(accessNode.getLine());
+			checkNode.setPos(accessNode.getPos());
+			index = checkNode;
+		}
+
+		int shift = elementType == LiteralType.i64 || elementType == LiteralType.f64 ? 3 : 2;
+		ExpressionNode offset = OptimizerUtils.NewBinary(BinaryOperationType.SHIFT_LEFT, index,
+				OptimizerUtils.NewNumber(shift, LiteralType.i32, accessNode), accessNode);
+
+		List<ExpressionNode> arguments = new ArrayList<>();
+		arguments.add(OptimizerUtils.NewBinary(BinaryOperationType.ADDITION, newRead(varDeclNode, accessNode),
+				offset, accessNode));
+		if (accessNode.getValue() != null)
+			arguments.add(accessNode.getValue());
+
+		accessNode.setFunctionName(
+				(accessNode.getValue() != null ? StandardLibrary.ARRAY_STORE : StandardLibrary.ARRAY_LOAD)
+						+ elementType);
+		accessNode.setArguments(arguments);
+		return analyzeFunctionCallNode(accessNode);
+	}
+
+	// the access becomes the call of the getter or the setter of the global
+	private LiteralType analyzeGlobalAccessNode(GlobalAccessExpressionNode globalNode) throws AnalysisException {
+		VariableDeclarationNode varDeclNode = globalSymbolTable.get(globalNode.getGlobalName());
+		if (varDeclNode == null)
+			throw new AnalysisException("Variable " + globalNode.getGlobalName() + " is not declared.", globalNode);
+
+		List<ExpressionNode> arguments = new ArrayList<>();
+		if (globalNode.getValue() != null) {
+			if (varDeclNode.isConstant())
+				throw new AnalysisException(
+						"Variable " + globalNode.getGlobalName() + " is constant and cannot be assigned.", globalNode);
+
+			LiteralType type = LiteralType.getLiteralTypeFromString(varDeclNode.getType());
+			LiteralType valueType = analyzeNode(globalNode.getValue(), type);
+			if (valueType != type)
+				throw new AnalysisException("Variable " + globalNode.getGlobalName() + " of type "
+						+ varDeclNode.getType() + " cannot be assigned a value of type " + valueType, globalNode);
+
+			arguments.add(globalNode.getValue());
+		}
+
+		globalNode.setFunctionName((globalNode.getValue() != null ? StandardLibrary.GLOBAL_SET
+				: StandardLibrary.GLOBAL_GET) + globalNode.getGlobalName());
+		globalNode.setArguments(arguments);
+		return analyzeFunctionCallNode(globalNode);
+	}
+
+	// a local, or else a global
+	private VariableDeclarationNode getVariable(String name) {
+		VariableDeclarationNode varDeclNode = null;
+		if (currentFunctionName != null)
+			varDeclNode = localSymbolTables.get(currentFunctionName).get(name);
+
+		return varDeclNode != null ? varDeclNode : globalSymbolTable.get(name);
+	}
+
+	private ExpressionNode newRead(VariableDeclarationNode varDeclNode, Node position) {
+		if (globalSymbolTable.get(varDeclNode.getVarName()) != varDeclNode)
+			return OptimizerUtils.NewIdentifier(varDeclNode, position);
+
+		GlobalAccessExpressionNode globalNode = new GlobalAccessExpressionNode();
+		globalNode.setGlobalName(varDeclNode.getVarName());
+		globalNode.setLine(position.getLine());
+		globalNode.setPos(position.getPos());
+		return globalNode;
+	}
+
 	private void analyzeReturnNode(ReturnStatementNode returnNode) throws AnalysisException {
 		if (currentFunctionName == null)
 			throw new AnalysisException("Return statement cannot be outside a function body.", returnNode);
 
-		LiteralType exprType = analyzeNode(returnNode.getExpression());
+		LiteralType functionType = LiteralType.getLiteralTypeFromString(funcSymbolTable.get(currentFunctionName).getType());
+		LiteralType exprType = analyzeNode(returnNode.getExpression(), functionType);
 
-		if (exprType != LiteralType.getLiteralTypeFromString(funcSymbolTable.get(currentFunctionName).getType()))
+		if (exprType != functionType)
 			throw new AnalysisException("Cannot return value of type " + exprType + " in function of type "
 					+ funcSymbolTable.get(currentFunctionName).getType(), returnNode);
 	}
@@ -189,6 +487,13 @@ public class Analyzer {
 				throw new AnalysisException(
 						"Operation " + unaryNode.getUnaryOperationType() + " cannot be performed on bool type value.",
 						unaryNode);
+			// -2147483648 is the lowest i32, the lower numbers are i64
+			if (unaryNode.getUnaryOperationType() == UnaryOperationType.MINUS && exprType == LiteralType.i32
+					&& unaryNode.getExpression() instanceof NumberExpressionNode
+					&& ((NumberExpressionNode) unaryNode.getExpression()).getNumber().longValue() > MIN_I32_MAGNITUDE) {
+				exprType = LiteralType.i64;
+				setLiteralType(unaryNode.getExpression(), exprType);
+			}
 			break;
 		case COMPLEMENT:
 			if (exprType != LiteralType.bool)
@@ -196,6 +501,25 @@ public class Analyzer {
 						"Operation " + unaryNode.getUnaryOperationType() + " cannot be performed on type " + exprType,
 						unaryNode);
 			break;
+		case POPCNT:
+		case CLZ:
+		case CTZ:
+			if (exprType != LiteralType.i32 && exprType != LiteralType.i64)
+				throw new AnalysisException(
+						"Operation " + unaryNode.getUnaryOperationType() + " cannot be performed on type " + exprType,
+						unaryNode);
+			break;
+		case SQRT:
+		case ABS:
+		case FLOOR:
+		case CEIL:
+		case TRUNC:
+		case NEAREST:
+			if (exprType != LiteralType.f32 && exprType != LiteralType.f64)
+				throw new AnalysisException(
+						"Operation " + unaryNode.getUnaryOperationType() + " cannot be performed on type " + exprType,
+						unaryNode);
+			break;
 		}
 
 		return exprType;
@@ -203,7 +527,11 @@ public class Analyzer {
 
 	private LiteralType analyzeBinaryOperationNode(BinaryOperationNode binaryNode) throws AnalysisException {
 		LiteralType leftType = analyzeNode(binaryNode.getLeftExpression());
-		LiteralType rightType = analyzeNode(binaryNode.getRightExpression());
+		// a number on the left is widened to the type of the right expression instead
+		LiteralType rightType = isLiteral(binaryNode.getLeftExpression())
+				? widenLiteral(binaryNode.getRightExpression(), analyzeNode(binaryNode.getRightExpression()), leftType)
+				: analyzeNode(binaryNode.getRightExpression(), leftType);
+		leftType = widenLiteral(binaryNode.getLeftExpression(), leftType, rightType);
 
 		if (leftType != rightType)
 			throw new AnalysisException("Left and right expressions are not the same type in "
@@ -222,6 +550,27 @@ public class Analyzer {
 						"Operation " + binaryNode.getBinaryOperationType() + " cannot be performed on bool type value.",
 						binaryNode);
 
+			return leftType;
+		case MODULO:
+		case SHIFT_LEFT:
+		case SHIFT_RIGHT:
+		case SHIFT_RIGHT_UNSIGNED:
+		case ROTATE_LEFT:
+		case ROTATE_RIGHT:
+			if (leftType != LiteralType.i32 && leftType != LiteralType.i64)
+				throw new AnalysisException(
+						"Operation " + binaryNode.getBinaryOperationType() + " cannot be performed on type " + leftType,
+						binaryNode);
+
+			return leftType;
+		case MIN:
+		case MAX:
+		case COPYSIGN:
+			if (leftType != LiteralType.f32 && leftType != LiteralType.f64)
+				throw new AnalysisException(
+						"Operation " + binaryNode.getBinaryOperationType() + " cannot be performed on type " + leftType,
+						binaryNode);
+
 			return leftType;
 		case GREATER_EQUAL:
 		case GREATER_THAN:
@@ -249,7 +598,7 @@ public class Analyzer {
 		return null;
 	}
 
-	private void analyzeAssignmentNode(AssignExpressionNode assignNode) throws AnalysisException {
+	private LiteralType analyzeAssignmentNode(AssignExpressionNode assignNode) throws AnalysisException {
 		if (currentFunctionName == null)
 			throw new AnalysisException("Assignment cannot be outside a function body.", assignNode);
 
@@ -259,21 +608,146 @@ public class Analyzer {
 			throw new AnalysisException("Variable " + assignNode.getVarName() + " is not declared.", assignNode);
 
 		VariableDeclarationNode varDeclNode = localSymbolTable.get(assignNode.getVarName());
-		LiteralType exprType = analyzeNode(assignNode.getRightExpression());
+		if (varDeclNode.isConstant())
+			throw new AnalysisException("Variable " + assignNode.getVarName() + " is constant and cannot be assigned.",
+					assignNode);
+
+		LiteralType exprType = analyzeNode(assignNode.getRightExpression(),
+				LiteralType.getLiteralTypeFromString(varDeclNode.getType()));
 		if (exprType != LiteralType.getLiteralTypeFromString(varDeclNode.getType()))
 			throw new AnalysisException("Variable " + assignNode.getVarName() + " of type " + varDeclNode.getType()
 					+ " cannot be assigned a value of type " + exprType, assignNode);
+
+		return exprType;
 	}
 
+	// the bytes of the string and a zero byte are placed in the data segment
+	private LiteralType analyzeStringNode(StringExpressionNode stringNode) {
+		String value = stringNode.getValue();
+		byte[] bytes = value.substring(1, value.length() - 1).getBytes(StandardCharsets.UTF_8);
+		stringNode.setNumber(dataSegment.add(Arrays.copyOf(bytes, bytes.length + 1)));
+		return LiteralType.i32;
+	}
+
+	// the length and the elements of a const array are placed in the data segment
+	private void analyzeArrayLiteralNode(VariableDeclarationNode varDeclNode, ArrayLiteralExpressionNode arrayNode)
+			throws AnalysisException {
+		if (varDeclNode.getElementType() == null || !varDeclNode.isConstant())
+			throw new AnalysisException("Only a const array can be initialized with elements.", arrayNode);
+
+		LiteralType elementType = LiteralType.getLiteralTypeFromString(varDeclNode.getElementType());
+		int size = elementType == LiteralType.i64 || elementType == LiteralType.f64 ? 8 : 4;
+
+		ByteBuffer buffer = ByteBuffer.allocate(4 + size * arrayNode.getElements().size())
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(arrayNode.getElements().size());
+		for (ExpressionNode element : arrayNode.getElements()) {
+			LiteralType type = analyzeNode(element, elementType);
+			Number value = type == elementType && isLiteral(element) ? evaluateLiteral(element) : null;
+			if (value == null)
+				throw new AnalysisException("The elements of array " + varDeclNode.getVarName()
+						+ " must be constants of type " + varDeclNode.getElementType(), element);
+
+			if (elementType == LiteralType.i64)
+				buffer.putLong(value.longValue());
+			else if (elementType == LiteralType.f32)
+				buffer.putFloat(value.floatValue());
+			else if (elementType == LiteralType.f64)
+				buffer.putDouble(value.doubleValue());
+			else
+				buffer.putInt(value.intValue());
+		}
+
+		arrayNode.setNumber(dataSegment.add(buffer.array()));
+		arrayNode.setLiteralType(LiteralType.i32);
+	}
+
+	// null if an operation traps
+	private Number evaluateLiteral(ExpressionNode node) {
+		if (node instanceof NumberExpressionNode)
+			return Evaluator.ToValue(((NumberExpressionNode) node).getNumber(), node.getLiteralType());
+
+		if (node instanceof UnaryOperationNode) {
+			UnaryOperationNode unaryNode = (UnaryOperationNode) node;
+			Number value = evaluateLiteral(unaryNode.getExpression());
+			return value == null ? null : Evaluator.EvaluateUnary(unaryNode.getUnaryOperationType(), value);
+		}
+
+		BinaryOperationNode binaryNode = (BinaryOperationNode) node;
+		Number left = evaluateLiteral(binaryNode.getLeftExpression());
+		Number right = evaluateLiteral(binaryNode.getRightExpression());
+		if (left == null || right == null)
+			return null;
+
+		return Evaluator.EvaluateBinary(binaryNode.getBinaryOperationType(), left, right);
+	}
+
+	// the integers up to 0xFFFFFFFF are the bits of an i32, the larger ones are
+	// i64
 	private LiteralType analyzeNumberNode(NumberExpressionNode numberNode) {
-		// TODO: maybe handle i64/f64
-		if (!numberNode.isFloat())
-			return LiteralType.i32;
+		if (numberNode.isFloat())
+			return LiteralType.f32;
+
+		long number = numberNode.getNumber().longValue();
+		if (number < Integer.MIN_VALUE || number > MAX_I32_BITS)
+			return LiteralType.i64;
+
+		return LiteralType.i32;
+	}
+
+	private LiteralType analyzeNode(Node node, LiteralType expectedType) throws AnalysisException {
+		LiteralType type = widenLiteral(node, analyzeNode(node), expectedType);
+		if (type == LiteralType.i64 && expectedType == LiteralType.i32 && isLiteral(node))
+			throw new AnalysisException("Number " + evaluateLiteral((ExpressionNode) node) + " is out of the i32 range.",
+					node);
+
+		return type;
+	}
+
+	// the numbers are i32 or f32, unless they are used where an i64 or f64 value
+	// is expected, along with the operations on them
+	private LiteralType widenLiteral(Node node, LiteralType type, LiteralType expectedType) {
+		if ((type == LiteralType.i32 && expectedType == LiteralType.i64
+				|| type == LiteralType.f32 && expectedType == LiteralType.f64) && isLiteral(node)) {
+			setLiteralType(node, expectedType);
+			return expectedType;
+		}
+
+		return type;
+	}
+
+	private boolean isLiteral(Node node) {
+		if (node instanceof NumberExpressionNode)
+			return !(node instanceof DataExpressionNode);
+
+		if (node instanceof UnaryOperationNode)
+			return ((UnaryOperationNode) node).getUnaryOperationType() != UnaryOperationType.COMPLEMENT
+					&& isLiteral(((UnaryOperationNode) node).getExpression());
+
+		if (node instanceof BinaryOperationNode) {
+			BinaryOperationNode binaryNode = (BinaryOperationNode) node;
+			return binaryNode.getLiteralType() != LiteralType.bool && isLiteral(binaryNode.getLeftExpression())
+					&& isLiteral(binaryNode.getRightExpression());
+		}
+
+		return false;
+	}
 
-		return LiteralType.f32;
+	private void setLiteralType(Node node, LiteralType type) {
+		((ExpressionNode) node).setLiteralType(type);
+		if (node instanceof UnaryOperationNode) {
+			setLiteralType(((UnaryOperationNode) node).getExpression(), type);
+		} else if (node instanceof BinaryOperationNode) {
+			setLiteralType(((BinaryOperationNode) node).getLeftExpression(), type);
+			setLiteralType(((BinaryOperationNode) node).getRightExpression(), type);
+		}
 	}
 
 	private LiteralType analyzeIdentifierNode(IdentifierExpressionNode idNode) throws AnalysisException {
+		if (currentFunctionName == null)
+			throw new AnalysisException("Variable " + idNode.getName() + " cannot be used outside a function body.",
+					idNode);
+
 		Map<String, VariableDeclarationNode> localSymbolTable = localSymbolTables.get(currentFunctionName);
 
 		if (localSymbolTable.get(idNode.getName()) == null)
@@ -301,29 +775,146 @@ public class Analyzer {
 		}
 	}
 
-	private void analyzeVariableDeclNode(VariableDeclarationNode varDeclNode) throws AnalysisException {
+	private void analyzeSwitchNode(SwitchStatementNode switchNode) throws AnalysisException {
 		if (currentFunctionName == null)
-			throw new AnalysisException("A variable cannot be declared outside a function body.", varDeclNode);
+			throw new AnalysisException("Switch statement cannot be declared outside a function body.", switchNode);
+
+		LiteralType type = analyzeNode(switchNode.getExpression());
+		if (type != LiteralType.i32 && type != LiteralType.i64)
+			throw new AnalysisException("Switch on a value of type " + type + ", an integer was expected.",
+					switchNode.getExpression());
+
+		// the cases are replaced by their values
+		Set<Long> values = new HashSet<>();
+		for (List<ExpressionNode> caseValues : switchNode.getCases()) {
+			for (int i = 0; i < caseValues.size(); i++) {
+				ExpressionNode caseNode = caseValues.get(i);
+				Number value = evaluateCase(caseNode, type);
+				if (value == null)
+					throw new AnalysisException("Case of type " + type + " must be a constant.", caseNode);
+
+				if (!values.add(value.longValue()))
+					throw new AnalysisException("Case " + value + " is already declared.", caseNode);
+
+				caseValues.set(i, OptimizerUtils.NewNumber(value.longValue(), type, caseNode));
+			}
+		}
 
-		Map<String, VariableDeclarationNode> localSymbolTable = localSymbolTables.get(currentFunctionName);
-		if (localSymbolTable.get(varDeclNode.getVarName()) != null)
+		for (StatementBlockNode statementBlock : switchNode.getStatementBlocks())
+			analyzeNode(statementBlock);
+	}
+
+	// a literal or a const global, null if the case is not a constant
+	private Number evaluateCase(ExpressionNode caseNode, LiteralType type) throws AnalysisException {
+		if (caseNode instanceof GlobalAccessExpressionNode) {
+			VariableDeclarationNode varDeclNode = globalSymbolTable
+					.get(((GlobalAccessExpressionNode) caseNode).getGlobalName());
+			if (varDeclNode == null || !varDeclNode.isConstant() || !varDeclNode.getType().equals(type.toString()))
+				return null;
+
+			return Evaluator.ToValue(((NumberExpressionNode) varDeclNode.getExpression()).getNumber(), type);
+		}
+
+		if (analyzeNode(caseNode, type) != type || !isLiteral(caseNode))
+			return null;
+
+		return evaluateLiteral(caseNode);
+	}
+
+	private void analyzeVariableDeclNode(VariableDeclarationNode varDeclNode) throws AnalysisException {
+		// the variables declared outside the functions are globals
+		Map<String, VariableDeclarationNode> symbolTable = currentFunctionName == null ? globalSymbolTable
+				: localSymbolTables.get(currentFunctionName);
+		if (symbolTable.get(varDeclNode.getVarName()) != null)
 			throw new AnalysisException("Variable " + varDeclNode.getVarName() + " is already declared.", varDeclNode);
 
+		if (currentFunctionName != null)
+			analyzeGlobalName(varDeclNode, funcSymbolTable.get(currentFunctionName));
+
 		if (LiteralType.getLiteralTypeFromString(varDeclNode.getType()) == null)
 			throw new AnalysisException("Unknown value type " + varDeclNode.getType(), varDeclNode);
 
 		if (LiteralType.getLiteralTypeFromString(varDeclNode.getType()) == LiteralType._void_)
 			throw new AnalysisException("Value of type " + varDeclNode.getType() + " cannot be declared.", varDeclNode);
 
-		if (varDeclNode.getExpression() != null) {
-			LiteralType exprType = analyzeNode(varDeclNode.getExpression());
+		analyzeArrayType(varDeclNode);
+
+		if (varDeclNode.isConstant() && varDeclNode.getExpression() == null)
+			throw new AnalysisException("Constant " + varDeclNode.getVarName() + " must be initialized.", varDeclNode);
+
+		if (varDeclNode.getExpression() instanceof ArrayLiteralExpressionNode) {
+			analyzeArrayLiteralNode(varDeclNode, (ArrayLiteralExpressionNode) varDeclNode.getExpression());
+		} else if (varDeclNode.getExpression() != null) {
+			LiteralType exprType = analyzeNode(varDeclNode.getExpression(),
+					LiteralType.getLiteralTypeFromString(varDeclNode.getType()));
 
 			if (LiteralType.getLiteralTypeFromString(varDeclNode.getType()) != exprType)
 				throw new AnalysisException("Variable " + varDeclNode.getVarName() + " of type " + varDeclNode.getType()
 						+ " cannot be assigned a value of type " + exprType, varDeclNode);
 		}
 
-		localSymbolTable.put(varDeclNode.getVarName(), varDeclNode);
+		symbolTable.put(varDeclNode.getVarName(), varDeclNode);
+		if (currentFunctionName == null)
+			analyzeGlobalNode(varDeclNode);
+	}
+
+	// the uses of the name in the function were parsed to global accesses
+	private void analyzeGlobalName(VariableDeclarationNode varDeclNode, FunctionStatementNode functionNode)
+			throws AnalysisException {
+		if (globalSymbolTable.get(varDeclNode.getVarName()) != null && !functionNode.isLibrary())
+			throw new AnalysisException("Variable " + varDeclNode.getVarName() + " is already declared as a global.",
+					varDeclNode);
+	}
+
+	// the value of a global is a constant, which the getter of a constant global
+	// returns
+	private void analyzeGlobalNode(VariableDeclarationNode varDeclNode) throws AnalysisException {
+		LiteralType type = LiteralType.getLiteralTypeFromString(varDeclNode.getType());
+		ExpressionNode expression = varDeclNode.getExpression();
+
+		Number value = 0;
+		if (expression instanceof DataExpressionNode) {
+			value = ((DataExpressionNode) expression).getNumber();
+		} else if (expression instanceof BooleanExpressionNode) {
+			value = ((BooleanExpressionNode) expression).getValue() ? 1 : 0;
+		} else if (expression != null) {
+			Number number = isLiteral(expression) ? evaluateLiteral(expression) : null;
+			if (number == null)
+				throw new AnalysisException(
+						"Global " + varDeclNode.getVarName() + " must be initialized with a constant.", expression);
+
+			value = number;
+		}
+
+		ExpressionNode constant = null;
+		if (varDeclNode.isConstant() && type == LiteralType.bool) {
+			BooleanExpressionNode booleanNode = new BooleanExpressionNode();
+			booleanNode.setValue(value.intValue() != 0);
+			constant = booleanNode;
+		} else if (varDeclNode.isConstant()) {
+			constant = OptimizerUtils.NewNumber(value, type, varDeclNode);
+		}
+
+		// the emitter initializes the global with the number
+		varDeclNode.setExpression(
+				OptimizerUtils.NewNumber(value, type == LiteralType.bool ? LiteralType.i32 : type, varDeclNode));
+
+		try {
+			analyzeNode(StandardLibrary.parseGlobal(varDeclNode.getVarName(), varDeclNode.getType(), constant));
+		} catch (LexerException | ParseException e) {
+			throw new AnalysisException("Global " + varDeclNode.getVarName() + " cannot be declared.", varDeclNode);
+		}
+	}
+
+	private void analyzeArrayType(VariableDeclarationNode varDeclNode) throws AnalysisException {
+		if (varDeclNode.getElementType() == null)
+			return;
+
+		LiteralType elementType = LiteralType.getLiteralTypeFromString(varDeclNode.getElementType());
+		if (elementType != LiteralType.i32 && elementType != LiteralType.i64 && elementType != LiteralType.f32
+				&& elementType != LiteralType.f64)
+			throw new AnalysisException("Array of type " + varDeclNode.getElementType() + " cannot be declared.",
+					varDeclNode);
 	}
 
 	private void analyzeFunctionNode(FunctionStatementNode functionNode) throws AnalysisException {
@@ -346,11 +937,15 @@ public class Analyzer {
 				throw new AnalysisException("A value cannot be assigned to an argument in a function signature.",
 						varDeclNode);
 
+			analyzeArrayType(varDeclNode);
+			analyzeGlobalName(varDeclNode, functionNode);
 			localSymbolTable.put(varDeclNode.getVarName(), varDeclNode);
 		}
 
 		String functionName = functionNode.getName();
 		localSymbolTables.put(functionName, localSymbolTable);
+		functionEffects.put(functionName, EffectType.PURE);
+		callees.put(functionName, new HashSet<>());
 		currentFunctionName = functionName;
 
 		analyzeNode(functionNode.getStatementBlock());
@@ -362,7 +957,39 @@ public class Analyzer {
 		return localSymbolTables;
 	}
 
+	public Map<String, VariableDeclarationNode> getGlobalSymbolTable() {
+		return globalSymbolTable;
+	}
+
 	public Map<String, FunctionStatementNode> getFuncSymbolTable() {
 		return funcSymbolTable;
 	}
+
+	public Map<String, EffectType> getFunctionEffects() {
+		return functionEffects;
+	}
+
+	public DataSegment getDataSegment() {
+		return dataSegment;
+	}
+
+	public void setBoundsChecks(boolean boundsChecks) {
+		this.boundsChecks = boundsChecks;
+	}
+
+	// whether the function can call itself through the functions it calls
+	public boolean isRecursive(String functionName) {
+		Set<String> visited = new HashSet<>();
+		List<String> worklist = new ArrayList<>(callees.get(functionName));
+		while (!worklist.isEmpty()) {
+			String callee = worklist.remove(worklist.size() - 1);
+			if (callee.equals(functionName))
+				return true;
+
+			if (visited.add(callee))
+				worklist.addAll(callees.get(callee));
+		}
+
+		return false;
+	}
 }
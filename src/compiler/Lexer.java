@@ -81,6 +81,16 @@ public class Lexer {
 		patterns.put(Pattern.compile("^else"), TokenType.ELSE);
 		patterns.put(Pattern.compile("^while"), TokenType.WHILE);
 		patterns.put(Pattern.compile("^return"), TokenType.RETURN);
+		patterns.put(Pattern.compile("^memo(?![_a-zA-Z0-9])"), TokenType.MEMO);
+		patterns.put(Pattern.compile("^const(?![_a-zA-Z0-9])"), TokenType.CONST);
+		patterns.put(Pattern.compile("^reinterpret(?![_a-zA-Z0-9])"), TokenType.REINTERPRET);
+		patterns.put(Pattern.compile("^switch(?![_a-zA-Z0-9])"), TokenType.SWITCH);
+		patterns.put(Pattern.compile("^case(?![_a-zA-Z0-9])"), TokenType.CASE);
+		patterns.put(Pattern.compile("^default(?![_a-zA-Z0-9])"), TokenType.DEFAULT);
+		// the builtins are only names of calls, so they can still name variables
+		patterns.put(Pattern.compile(
+				"^(popcnt|clz|ctz|rotl|rotr|sqrt|abs|floor|ceil|trunc|nearest|min|max|copysign|len)(?=[\\s]*\\()"),
+				TokenType.BUILTIN);
 
 		patterns.put(Pattern.compile("^void"), TokenType.TYPE);
 		patterns.put(Pattern.compile("^i32"), TokenType.TYPE);
@@ -103,14 +113,20 @@ public class Lexer {
 		patterns.put(Pattern.compile("^\\}"), TokenType.RIGHT_CURLY_BRACKET);
 		patterns.put(Pattern.compile("^\\("), TokenType.LEFT_PARENTHESIS);
 		patterns.put(Pattern.compile("^\\)"), TokenType.RIGHT_PARENTHESIS);
+		patterns.put(Pattern.compile("^\\["), TokenType.LEFT_SQUARE_BRACKET);
+		patterns.put(Pattern.compile("^\\]"), TokenType.RIGHT_SQUARE_BRACKET);
 		patterns.put(Pattern.compile("^,"), TokenType.COMMA);
 		patterns.put(Pattern.compile("^;"), TokenType.SEMICOLON);
+		patterns.put(Pattern.compile("^:"), TokenType.COLON);
 
 		patterns.put(Pattern.compile("^!="), TokenType.NOT_EQUAL);
 		patterns.put(Pattern.compile("^!"), TokenType.EXCLAMATION);
 		patterns.put(Pattern.compile("^=="), TokenType.DOUBLE_EQUALS);
 		patterns.put(Pattern.compile("^="), TokenType.EQUALS_SIGN);
 
+		patterns.put(Pattern.compile("^<<"), TokenType.SHIFT_LEFT);
+		patterns.put(Pattern.compile("^>>>"), TokenType.SHIFT_RIGHT_UNSIGNED);
+		patterns.put(Pattern.compile("^>>"), TokenType.SHIFT_RIGHT);
 		patterns.put(Pattern.compile("^<="), TokenType.LESS_EQUALS);
 		patterns.put(Pattern.compile("^<"), TokenType.LESS_THAN);
 		patterns.put(Pattern.compile("^>="), TokenType.GREATER_EQUALS);
@@ -128,6 +144,7 @@ public class Lexer {
 		patterns.put(Pattern.compile("^-"), TokenType.MINUS_SIGN);
 
 		patterns.put(Pattern.compile("^/"), TokenType.SLASH_SIGN);
+		patterns.put(Pattern.compile("^%"), TokenType.PERCENT_SIGN);
 		patterns.put(Pattern.compile("^\\*"), TokenType.ASTERISK_SIGN);
 
 		return patterns;
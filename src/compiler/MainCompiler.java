@@ -24,11 +24,34 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import compiler.enums.OptimizationLevel;
 import compiler.exceptions.AnalysisException;
 import compiler.exceptions.LexerException;
 import compiler.exceptions.ParseException;
 import compiler.exceptions.PreprocessException;
-import compiler.nodes.Node;
+import compiler.ir.BoundsCheckElimination;
+import compiler.ir.CallEvaluation;
+import compiler.ir.ConstantPropagation;
+import compiler.ir.CopyPropagation;
+import compiler.ir.DeadCodeElimination;
+import compiler.ir.InductionVariables;
+import compiler.ir.IROptimizer;
+import compiler.ir.LoadStoreElimination;
+import compiler.ir.MemoryAccess;
+import compiler.ir.ValueNumbering;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.optimizer.CommonSubexpressionEliminator;
+import compiler.optimizer.DeadStoreEliminator;
+import compiler.optimizer.Evaluator;
+import compiler.optimizer.LoopInvariantCodeMotion;
+import compiler.optimizer.LoopUnroller;
+import compiler.optimizer.PassManager;
+import compiler.optimizer.Stackifier;
+import compiler.optimizer.StrengthReducer;
+import compiler.optimizer.TailCallOptimizer;
+import compiler.wasm.MemoryLayout;
 import compiler.wasm.WASMEmitter;
 
 public class MainCompiler {
@@ -76,14 +99,39 @@ public class MainCompiler {
 		}
 
 		Parser parser = new Parser(lexer);
-		Node node = parser.parseStatementBlock();
+		StatementBlockNode node = parser.parseStatementBlock();
 
 		if (options.get("showTree") != null)
 			parser.printTree(node);
 
+		// the standard library comes first, so that the program can call it
+		node.getStatements().addAll(0, StandardLibrary.parse().getStatements());
+
 		Analyzer analyzer = new Analyzer();
+		analyzer.setBoundsChecks(options.get("boundsChecks") != null);
 		analyzer.analyzeTree(node);
 
+		MemoryLayout memoryLayout = newMemoryLayout(analyzer, options);
+
+		PassManager passManager = new PassManager(analyzer.getFuncSymbolTable(), analyzer.getLocalSymbolTables(),
+				analyzer.getGlobalSymbolTable(), memoryLayout);
+		passManager.setTimePasses(options.get("timePasses") != null);
+		if (options.get("disabledPasses") != null) {
+			for (String name : options.get("disabledPasses").split(","))
+				passManager.disablePass(name.trim());
+		}
+
+		OptimizationLevel level = OptimizationLevel.O2;
+		if (options.get("level") != null) {
+			level = OptimizationLevel.getOptimizationLevelFromString(options.get("level"));
+			if (level == null)
+				throw new IllegalArgumentException("Unknown optimization level -" + options.get("level")
+						+ ", the levels are -O0, -O1, -O2 and -Os.");
+		}
+
+		addPasses(passManager, level, analyzer, options);
+		passManager.run(node);
+
 		/*
 		 * if (options.get("showWat") != null) { WATEmitter emitter = new
 		 * WATEmitter(node, analyzer.getFuncSymbolTable(),
@@ -93,7 +141,9 @@ public class MainCompiler {
 
 		if ((options.get("output") != null)) {
 			WASMEmitter wasmEmitter = new WASMEmitter(node, analyzer.getFuncSymbolTable(),
-					analyzer.getLocalSymbolTables());
+					analyzer.getLocalSymbolTables(), analyzer.getGlobalSymbolTable(), memoryLayout);
+			wasmEmitter.setCoalesceLocals(passManager.isEnabled("coalesce"));
+			wasmEmitter.setSaturatingCasts(options.get("saturatingCasts") != null);
 			byte[] bin = wasmEmitter.emit();
 			OutputStream out = new FileOutputStream(options.get("output"));
 			out.write(bin);
@@ -101,6 +151,95 @@ public class MainCompiler {
 		}
 	}
 
+	private MemoryLayout newMemoryLayout(Analyzer analyzer, Map<String, String> options) {
+		MemoryLayout memoryLayout = new MemoryLayout(analyzer.getDataSegment());
+		if (options.get("memoryPages") != null)
+			memoryLayout.setInitialPages(parseSize(options.get("memoryPages"), "-memory", MemoryLayout.MAX_PAGES));
+		if (options.get("maxMemoryPages") != null)
+			memoryLayout.setMaxPages(parseSize(options.get("maxMemoryPages"), "-maxmemory", MemoryLayout.MAX_PAGES));
+		if (options.get("stackSize") != null)
+			memoryLayout.setStackSize(parseSize(options.get("stackSize"), "-stack", Integer.MAX_VALUE));
+		if (options.get("heapSize") != null)
+			memoryLayout.setHeapSize(parseSize(options.get("heapSize"), "-heap", Integer.MAX_VALUE));
+		memoryLayout.setImported(options.get("importMemory") != null);
+
+		return memoryLayout;
+	}
+
+	// the value of a size argument, a number from 0 up to the limit
+	private int parseSize(String value, String argument, int limit) {
+		long size;
+		try {
+			size = Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("The value " + value + " of " + argument + " is not a number.");
+		}
+
+		if (size < 0 || size > limit)
+			throw new IllegalArgumentException(
+					"The value " + value + " of " + argument + " is not between 0 and " + limit + ".");
+
+		return (int) size;
+	}
+
+	// the passes of each optimization level, in the order they run
+	private void addPasses(PassManager passManager, OptimizationLevel level, Analyzer analyzer,
+			Map<String, String> options) {
+		Map<String, FunctionStatementNode> funcSymbolTable = analyzer.getFuncSymbolTable();
+		Map<String, Map<String, VariableDeclarationNode>> localSymbolTables = analyzer.getLocalSymbolTables();
+
+		if (level == OptimizationLevel.O0) {
+			passManager.disablePass("coalesce");
+			return;
+		}
+
+		// -Os only unrolls the loops that do not get larger
+		int unrollFactor = 4;
+		if (options.get("unrollFactor") != null)
+			unrollFactor = Integer.parseInt(options.get("unrollFactor"));
+		if (level == OptimizationLevel.O2)
+			passManager.addPass("unroll", new LoopUnroller(funcSymbolTable, localSymbolTables, unrollFactor, 200));
+		else if (level == OptimizationLevel.Os)
+			passManager.addPass("unroll", new LoopUnroller(funcSymbolTable, localSymbolTables, 1, 0));
+
+		IROptimizer irOptimizer = new IROptimizer(funcSymbolTable, localSymbolTables, options.get("showIR") != null);
+		if (passManager.isEnabled("copyprop"))
+			irOptimizer.addPass("copyprop", new CopyPropagation());
+		if (passManager.isEnabled("constprop"))
+			irOptimizer.addPass("constprop", new ConstantPropagation());
+		if (passManager.isEnabled("eval"))
+			irOptimizer.addPass("eval", new CallEvaluation(
+					new Evaluator(funcSymbolTable, localSymbolTables, analyzer.getFunctionEffects(), 1000000)));
+		if (level == OptimizationLevel.O2 && passManager.isEnabled("iv"))
+			irOptimizer.addPass("iv", new InductionVariables());
+		if (passManager.isEnabled("lse"))
+			irOptimizer.addPass("lse",
+					new LoadStoreElimination(MemoryAccess.find(funcSymbolTable), analyzer.getFunctionEffects()));
+		if (passManager.isEnabled("gvn"))
+			irOptimizer.addPass("gvn", new ValueNumbering(analyzer.getFunctionEffects()));
+		if (passManager.isEnabled("bce"))
+			irOptimizer.addPass("bce", new BoundsCheckElimination(analyzer.getFunctionEffects()));
+		if (passManager.isEnabled("dce"))
+			irOptimizer.addPass("dce", new DeadCodeElimination());
+		passManager.addPass("ir", irOptimizer);
+
+		passManager.addPass("tco",
+				new TailCallOptimizer(funcSymbolTable, localSymbolTables, options.get("tailCalls") != null));
+
+		// the magic numbers of the divisions and the hoisted temporaries make the
+		// code larger
+		if (level == OptimizationLevel.O2) {
+			passManager.addPass("licm", new LoopInvariantCodeMotion(funcSymbolTable, localSymbolTables));
+			passManager.addPass("sr", new StrengthReducer(funcSymbolTable, localSymbolTables));
+		}
+
+		if (level != OptimizationLevel.O1)
+			passManager.addPass("cse", new CommonSubexpressionEliminator(funcSymbolTable, localSymbolTables));
+
+		passManager.addPass("dse", new DeadStoreEliminator(funcSymbolTable, localSymbolTables));
+		passManager.addPass("stackify", new Stackifier(funcSymbolTable, localSymbolTables));
+	}
+
 	/*
 	 * private void printInstructions(PrintStream out, List<String> instructions) {
 	 * int depth = 0; for(String instruction: instructions) { if
@@ -135,6 +274,44 @@ public class MainCompiler {
 				options.put("showTokens", "");
 			} else if (arg.equalsIgnoreCase("-wat")) {
 				options.put("showWat", "");
+			} else if (arg.equalsIgnoreCase("-tailcalls")) {
+				options.put("tailCalls", "");
+			} else if (arg.equalsIgnoreCase("-saturate")) {
+				options.put("saturatingCasts", "");
+			} else if (arg.equalsIgnoreCase("-boundschecks")) {
+				options.put("boundsChecks", "");
+			} else if (arg.equalsIgnoreCase("-ir")) {
+				options.put("showIR", "");
+			} else if (arg.startsWith("-O")) {
+				options.put("level", arg.substring(1));
+			} else if (arg.equalsIgnoreCase("-disable")) {
+				String value = args[++i];
+
+				options.put("disabledPasses", value);
+			} else if (arg.equalsIgnoreCase("-unroll")) {
+				String value = args[++i];
+
+				options.put("unrollFactor", value);
+			} else if (arg.equalsIgnoreCase("-time-passes")) {
+				options.put("timePasses", "");
+			} else if (arg.equalsIgnoreCase("-memory")) {
+				String value = args[++i];
+
+				options.put("memoryPages", value);
+			} else if (arg.equalsIgnoreCase("-maxmemory")) {
+				String value = args[++i];
+
+				options.put("maxMemoryPages", value);
+			} else if (arg.equalsIgnoreCase("-stack")) {
+				String value = args[++i];
+
+				options.put("stackSize", value);
+			} else if (arg.equalsIgnoreCase("-heap")) {
+				String value = args[++i];
+
+				options.put("heapSize", value);
+			} else if (arg.equalsIgnoreCase("-importmemory")) {
+				options.put("importMemory", "");
 			}
 		}
 
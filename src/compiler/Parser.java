@@ -16,13 +16,17 @@
 package compiler;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import compiler.enums.BinaryOperationType;
 import compiler.enums.TokenType;
 import compiler.enums.UnaryOperationType;
 import compiler.exceptions.ParseException;
+import compiler.nodes.ArrayAccessExpressionNode;
+import compiler.nodes.ArrayLiteralExpressionNode;
 import compiler.nodes.AssignExpressionNode;
 import compiler.nodes.BinaryOperationNode;
 import compiler.nodes.BooleanExpressionNode;
@@ -30,6 +34,7 @@ import compiler.nodes.CastingExpressionNode;
 import compiler.nodes.ExpressionNode;
 import compiler.nodes.FunctionCallExpressionNode;
 import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.GlobalAccessExpressionNode;
 import compiler.nodes.IdentifierExpressionNode;
 import compiler.nodes.IfStatementNode;
 import compiler.nodes.Node;
@@ -38,6 +43,7 @@ import compiler.nodes.ReturnStatementNode;
 import compiler.nodes.StatementBlockNode;
 import compiler.nodes.StatementNode;
 import compiler.nodes.StringExpressionNode;
+import compiler.nodes.SwitchStatementNode;
 import compiler.nodes.UnaryOperationNode;
 import compiler.nodes.VariableDeclarationNode;
 import compiler.nodes.WasmStatementNode;
@@ -47,6 +53,11 @@ public class Parser {
 
 	private Lexer lexer;
 
+	// the variables declared outside the functions so far, whose uses are
+	// parsed to global accesses
+	private Set<String> globalNames = new HashSet<>();
+	private boolean inFunction;
+
 	public Parser(Lexer lexer) {
 		this.lexer = lexer;
 	}
@@ -121,6 +132,45 @@ public class Parser {
 			ifNode.setLine(token.getLine());
 			ifNode.setPos(token.getPos());
 			return ifNode;
+		case SWITCH:
+			matchToken(TokenType.SWITCH);
+			matchToken(TokenType.LEFT_PARENTHESIS);
+			ExpressionNode switchExpression = parseExpression(0);
+			matchToken(TokenType.RIGHT_PARENTHESIS);
+			matchToken(TokenType.LEFT_CURLY_BRACKET);
+
+			// the statements of a case run until the next case, there is no
+			// fallthrough
+			List<List<ExpressionNode>> cases = new ArrayList<>();
+			List<StatementBlockNode> caseBlocks = new ArrayList<>();
+			while (lexer.peek().getType() == TokenType.CASE) {
+				matchToken(TokenType.CASE);
+				List<ExpressionNode> values = new ArrayList<>();
+				values.add(parseExpression(0));
+				while (lexer.peek().getType() == TokenType.COMMA) {
+					matchToken(TokenType.COMMA);
+					values.add(parseExpression(0));
+				}
+				matchToken(TokenType.COLON);
+
+				cases.add(values);
+				caseBlocks.add(parseStatementBlock());
+			}
+
+			if (lexer.peek().getType() == TokenType.DEFAULT) {
+				matchToken(TokenType.DEFAULT);
+				matchToken(TokenType.COLON);
+				caseBlocks.add(parseStatementBlock());
+			}
+			matchToken(TokenType.RIGHT_CURLY_BRACKET);
+
+			SwitchStatementNode switchNode = new SwitchStatementNode();
+			switchNode.setExpression(switchExpression);
+			switchNode.setCases(cases);
+			switchNode.setStatementBlocks(caseBlocks);
+			switchNode.setLine(token.getLine());
+			switchNode.setPos(token.getPos());
+			return switchNode;
 		case WASM:
 			matchToken(TokenType.WASM);
 			Token wasmCommandToken = matchToken(TokenType.STRING);
@@ -137,6 +187,13 @@ public class Parser {
 
 				ExpressionNode rightExpression = parseExpression(0);
 
+				if (globalNames.contains(token.getToken())) {
+					GlobalAccessExpressionNode globalNode = newGlobalAccess(token);
+					globalNode.setValue(rightExpression);
+					matchToken(TokenType.SEMICOLON);
+					return globalNode;
+				}
+
 				AssignExpressionNode assignNode = new AssignExpressionNode();
 				assignNode.setVarName(token.getToken());
 				assignNode.setRightExpression(rightExpression);
@@ -158,6 +215,12 @@ public class Parser {
 				matchToken(TokenType.RIGHT_PARENTHESIS);
 				matchToken(TokenType.SEMICOLON);
 				return functionCallNode;
+			case LEFT_SQUARE_BRACKET: // store to an array
+				ArrayAccessExpressionNode storeNode = parseArrayAccess(token);
+				matchToken(TokenType.EQUALS_SIGN);
+				storeNode.setValue(parseExpression(0));
+				matchToken(TokenType.SEMICOLON);
+				return storeNode;
 
 			default:
 				throw new ParseException("Bad statement.", token);
@@ -168,6 +231,7 @@ public class Parser {
 				Token functionTypeToken = matchToken(TokenType.TYPE);
 				Token functionNameToken = matchToken(TokenType.IDENTIFIER);
 				matchToken(TokenType.LEFT_PARENTHESIS);
+				inFunction = true;
 				List<VariableDeclarationNode> argumentsList = parseArguments();
 				matchToken(TokenType.RIGHT_PARENTHESIS);
 				matchToken(TokenType.LEFT_CURLY_BRACKET);
@@ -175,6 +239,7 @@ public class Parser {
 				StatementBlockNode functionStatementBlock = parseStatementBlock();
 
 				matchToken(TokenType.RIGHT_CURLY_BRACKET);
+				inFunction = false;
 
 				FunctionStatementNode functionNode = new FunctionStatementNode();
 				functionNode.setName(functionNameToken.getToken());
@@ -191,6 +256,20 @@ public class Parser {
 				return variableDeclNode;
 			}
 
+		case MEMO:
+			matchToken(TokenType.MEMO);
+			StatementNode memoNode = parseStatement();
+			if (!(memoNode instanceof FunctionStatementNode))
+				throw new ParseException("Only functions can be memoized.", token);
+
+			((FunctionStatementNode) memoNode).setMemo(true);
+			return memoNode;
+		case CONST:
+			matchToken(TokenType.CONST);
+			VariableDeclarationNode constantDeclNode = parseVariableDeclaration();
+			constantDeclNode.setConstant(true);
+			matchToken(TokenType.SEMICOLON);
+			return constantDeclNode;
 		case RETURN:
 			matchToken(TokenType.RETURN);
 			ExpressionNode exprNode = parseExpression(0);
@@ -208,13 +287,16 @@ public class Parser {
 	private VariableDeclarationNode parseVariableDeclaration() throws ParseException {
 		Token varTypeToken = matchToken(TokenType.TYPE);
 
+		VariableDeclarationNode variableDeclNode = new VariableDeclarationNode();
+		variableDeclNode.setType(varTypeToken.getToken());
+
+		// an array is held by its address
 		if (lexer.peek().getType() == TokenType.LEFT_SQUARE_BRACKET) {
 			matchToken(TokenType.LEFT_SQUARE_BRACKET);
 			matchToken(TokenType.RIGHT_SQUARE_BRACKET);
+			variableDeclNode.setElementType(varTypeToken.getToken());
+			variableDeclNode.setType("i32");
 		}
-
-		VariableDeclarationNode variableDeclNode = new VariableDeclarationNode();
-		variableDeclNode.setType(varTypeToken.getToken());
 		variableDeclNode.setLine(varTypeToken.getLine());
 		variableDeclNode.setPos(varTypeToken.getPos());
 
@@ -222,13 +304,41 @@ public class Parser {
 
 		if (lexer.peek().getType() == TokenType.EQUALS_SIGN) {
 			matchToken(TokenType.EQUALS_SIGN);
-			variableDeclNode.setExpression(parseExpression(0));
+			if (lexer.peek().getType() == TokenType.LEFT_CURLY_BRACKET)
+				variableDeclNode.setExpression(parseArrayLiteral());
+			else
+				variableDeclNode.setExpression(parseExpression(0));
 		}
 
 		variableDeclNode.setVarName(identifierToken.getToken());
+		if (!inFunction)
+			globalNames.add(identifierToken.getToken());
+
 		return variableDeclNode;
 	}
 
+	// { element, element, ... }
+	private ArrayLiteralExpressionNode parseArrayLiteral() throws ParseException {
+		Token token = matchToken(TokenType.LEFT_CURLY_BRACKET);
+
+		List<ExpressionNode> elements = new ArrayList<>();
+		while (lexer.peek().getType() != TokenType.RIGHT_CURLY_BRACKET) {
+			elements.add(parseExpression(0));
+
+			if (lexer.peek().getType() != TokenType.COMMA)
+				break;
+
+			matchToken(TokenType.COMMA);
+		}
+		matchToken(TokenType.RIGHT_CURLY_BRACKET);
+
+		ArrayLiteralExpressionNode arrayNode = new ArrayLiteralExpressionNode();
+		arrayNode.setElements(elements);
+		arrayNode.setLine(token.getLine());
+		arrayNode.setPos(token.getPos());
+		return arrayNode;
+	}
+
 	private List<ExpressionNode> parseCallArguments() throws ParseException {
 		List<ExpressionNode> arguments = new ArrayList<>();
 
@@ -277,13 +387,21 @@ public class Parser {
 			matchToken(TokenType.NUMBER);
 			Pattern hexPattern = Pattern.compile("^[+-]?0x");
 			Pattern binPattern = Pattern.compile("^[+-]?0b");
-			double num;
-			if (hexPattern.matcher(token.getToken()).find())
-				num = Integer.decode(token.getToken());
-			else if (binPattern.matcher(token.getToken()).find())
-				num = Integer.parseInt(token.getToken().replace("0b", ""), 2);
-			else
-				num = Double.parseDouble(token.getToken());
+			// the integers are kept as longs, the hex and binary ones can set all the
+			// 64 bits
+			Number num;
+			try {
+				if (hexPattern.matcher(token.getToken()).find())
+					num = Long.parseUnsignedLong(token.getToken().replace("0x", ""), 16);
+				else if (binPattern.matcher(token.getToken()).find())
+					num = Long.parseUnsignedLong(token.getToken().replace("0b", ""), 2);
+				else if (token.getToken().contains("."))
+					num = Double.parseDouble(token.getToken());
+				else
+					num = Long.parseLong(token.getToken());
+			} catch (NumberFormatException e) {
+				throw new ParseException("Number " + token.getToken() + " is out of the i64 range.", token);
+			}
 
 			NumberExpressionNode numberNode = new NumberExpressionNode();
 			numberNode.setNumber(num);
@@ -309,6 +427,10 @@ public class Parser {
 
 				matchToken(TokenType.RIGHT_PARENTHESIS);
 				exprNode = functionCallNode;
+			} else if (lexer.peek().getType() == TokenType.LEFT_SQUARE_BRACKET) {
+				exprNode = parseArrayAccess(token);
+			} else if (globalNames.contains(token.getToken())) {
+				exprNode = newGlobalAccess(token);
 			} else {
 				IdentifierExpressionNode identiferNode = new IdentifierExpressionNode();
 				identiferNode.setName(token.getToken());
@@ -316,6 +438,13 @@ public class Parser {
 			}
 			node = exprNode;
 			break;
+		case BUILTIN:
+			matchToken(TokenType.BUILTIN);
+			matchToken(TokenType.LEFT_PARENTHESIS);
+			List<ExpressionNode> builtinArguments = parseCallArguments();
+			matchToken(TokenType.RIGHT_PARENTHESIS);
+			node = parseBuiltin(token, builtinArguments);
+			break;
 		case PLUS_SIGN:
 			Token plusToken = matchToken(TokenType.PLUS_SIGN);
 			UnaryOperationNode plusNode = new UnaryOperationNode();
@@ -325,6 +454,16 @@ public class Parser {
 			break;
 		case MINUS_SIGN:
 			Token minusToken = matchToken(TokenType.MINUS_SIGN);
+			// the lowest i64 does not fit in a long without its sign, so it is read as a
+			// single number
+			if (lexer.peek().getType() == TokenType.NUMBER
+					&& lexer.peek().getToken().equals(Long.toString(Long.MIN_VALUE).substring(1))) {
+				matchToken(TokenType.NUMBER);
+				NumberExpressionNode minNode = new NumberExpressionNode();
+				minNode.setNumber(Long.MIN_VALUE);
+				node = minNode;
+				break;
+			}
 			UnaryOperationNode minusNode = new UnaryOperationNode();
 			minusNode.setUnaryOperationType(UnaryOperationType.MINUS);
 			minusNode.setExpression(parseExpression(getUnaryPrecedence(getUnaryOperationType(minusToken.getType()))));
@@ -343,12 +482,18 @@ public class Parser {
 			ExpressionNode expression = null;
 			switch (lexer.peek().getType()) {
 			case TYPE:
+			case REINTERPRET:
+				// (reinterpret type) keeps the bits of the value
+				boolean isReinterpret = lexer.peek().getType() == TokenType.REINTERPRET;
+				if (isReinterpret)
+					matchToken(TokenType.REINTERPRET);
 				Token castType = matchToken(TokenType.TYPE);
 				matchToken(TokenType.RIGHT_PARENTHESIS);
 
 				CastingExpressionNode castingNode = new CastingExpressionNode();
-				castingNode.setExpression(parseExpression(6));
+				castingNode.setExpression(parseExpression(7));
 				castingNode.setType(castType.getToken());
+				castingNode.setReinterpret(isReinterpret);
 				expression = castingNode;
 
 				break;
@@ -391,6 +536,104 @@ public class Parser {
 		return node;
 	}
 
+	private ArrayAccessExpressionNode parseArrayAccess(Token arrayToken) throws ParseException {
+		matchToken(TokenType.LEFT_SQUARE_BRACKET);
+		ExpressionNode index = parseExpression(0);
+		matchToken(TokenType.RIGHT_SQUARE_BRACKET);
+
+		ArrayAccessExpressionNode accessNode = new ArrayAccessExpressionNode();
+		accessNode.setArrayName(arrayToken.getToken());
+		accessNode.setIndex(index);
+		accessNode.setLine(arrayToken.getLine());
+		accessNode.setPos(arrayToken.getPos());
+		return accessNode;
+	}
+
+	private GlobalAccessExpressionNode newGlobalAccess(Token globalToken) {
+		GlobalAccessExpressionNode globalNode = new GlobalAccessExpressionNode();
+		globalNode.setGlobalName(globalToken.getToken());
+		globalNode.setLine(globalToken.getLine());
+		globalNode.setPos(globalToken.getPos());
+		return globalNode;
+	}
+
+	// the builtins are operations with a single instruction, so they are
+	// parsed to the unary and binary operation nodes
+	private ExpressionNode parseBuiltin(Token token, List<ExpressionNode> arguments) throws ParseException {
+		// the length of an array
+		if (token.getToken().equals("len")) {
+			if (arguments.size() != 1)
+				throw new ParseException("Builtin " + token.getToken() + " takes 1 argument.", token);
+
+			FunctionCallExpressionNode lengthNode = new FunctionCallExpressionNode();
+			lengthNode.setFunctionName(StandardLibrary.ARRAY_LENGTH);
+			lengthNode.setArguments(arguments);
+			return lengthNode;
+		}
+
+		UnaryOperationType unaryType = getBuiltinUnaryOperationType(token.getToken());
+		if (unaryType != null) {
+			if (arguments.size() != 1)
+				throw new ParseException("Builtin " + token.getToken() + " takes 1 argument.", token);
+
+			UnaryOperationNode unaryNode = new UnaryOperationNode();
+			unaryNode.setUnaryOperationType(unaryType);
+			unaryNode.setExpression(arguments.get(0));
+			return unaryNode;
+		}
+
+		if (arguments.size() != 2)
+			throw new ParseException("Builtin " + token.getToken() + " takes 2 arguments.", token);
+
+		BinaryOperationNode binaryNode = new BinaryOperationNode();
+		binaryNode.setBinaryOperationType(getBuiltinBinaryOperationType(token.getToken()));
+		binaryNode.setLeftExpression(arguments.get(0));
+		binaryNode.setRightExpression(arguments.get(1));
+		return binaryNode;
+	}
+
+	private UnaryOperationType getBuiltinUnaryOperationType(String name) {
+		switch (name) {
+		case "popcnt":
+			return UnaryOperationType.POPCNT;
+		case "clz":
+			return UnaryOperationType.CLZ;
+		case "ctz":
+			return UnaryOperationType.CTZ;
+		case "sqrt":
+			return UnaryOperationType.SQRT;
+		case "abs":
+			return UnaryOperationType.ABS;
+		case "floor":
+			return UnaryOperationType.FLOOR;
+		case "ceil":
+			return UnaryOperationType.CEIL;
+		case "trunc":
+			return UnaryOperationType.TRUNC;
+		case "nearest":
+			return UnaryOperationType.NEAREST;
+		default:
+			return null;
+		}
+	}
+
+	private BinaryOperationType getBuiltinBinaryOperationType(String name) {
+		switch (name) {
+		case "rotl":
+			return BinaryOperationType.ROTATE_LEFT;
+		case "rotr":
+			return BinaryOperationType.ROTATE_RIGHT;
+		case "min":
+			return BinaryOperationType.MIN;
+		case "max":
+			return BinaryOperationType.MAX;
+		case "copysign":
+			return BinaryOperationType.COPYSIGN;
+		default:
+			return null;
+		}
+	}
+
 	private UnaryOperationType getUnaryOperationType(TokenType tokenType) {
 		switch (tokenType) {
 		case MINUS_SIGN:
@@ -414,10 +657,20 @@ public class Parser {
 			return BinaryOperationType.MULTIPLICATION;
 		case SLASH_SIGN:
 			return BinaryOperationType.DIVISION;
+		case PERCENT_SIGN:
+			return BinaryOperationType.MODULO;
 		case BIT_AND:
 			return BinaryOperationType.BIT_AND;
 		case BIT_OR:
 			return BinaryOperationType.BIT_OR;
+		case BIT_XOR:
+			return BinaryOperationType.BIT_XOR;
+		case SHIFT_LEFT:
+			return BinaryOperationType.SHIFT_LEFT;
+		case SHIFT_RIGHT:
+			return BinaryOperationType.SHIFT_RIGHT;
+		case SHIFT_RIGHT_UNSIGNED:
+			return BinaryOperationType.SHIFT_RIGHT_UNSIGNED;
 		case AND:
 			return BinaryOperationType.AND;
 		case OR:
@@ -444,7 +697,7 @@ public class Parser {
 		case MINUS:
 		case PLUS:
 		case COMPLEMENT:
-			return 7;
+			return 8;
 		default:
 			return 0;
 		}
@@ -454,9 +707,14 @@ public class Parser {
 		switch (binaryType) {
 		case MULTIPLICATION:
 		case DIVISION:
-			return 5;
+		case MODULO:
+			return 6;
 		case ADDITION:
 		case SUBTRACTION:
+			return 5;
+		case SHIFT_LEFT:
+		case SHIFT_RIGHT:
+		case SHIFT_RIGHT_UNSIGNED:
 			return 4;
 		case LESS_THAN:
 		case GREATER_THAN:
@@ -467,6 +725,7 @@ public class Parser {
 			return 3;
 		case BIT_AND:
 		case BIT_OR:
+		case BIT_XOR:
 			return 2;
 		case AND:
 		case OR:
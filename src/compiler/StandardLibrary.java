@@ -0,0 +1,312 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import compiler.exceptions.LexerException;
+import compiler.exceptions.ParseException;
+import compiler.nodes.ExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.ReturnStatementNode;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.StatementNode;
+
+// The functions the language features are lowered to, written in the language
+// itself. They are analyzed with the program, the ones it does not call are
+// removed then, so only the called ones are optimized. The emitter leaves out
+// the ones that are no longer called and none of them is exported.
+//
+// An array is the address of its i32 length, followed by its elements:
+//
+// a[i]  ->  __array_load_i32(a + (i << 2))
+//
+// The loads and the stores are memory accesses with an offset of 4 bytes, so
+// the emitter replaces their calls by the instructions.
+//
+// A global is read and assigned with its getter and its setter, whose calls
+// are replaced by global.get and global.set. The getter of a constant global
+// returns its value instead, so that the calls are evaluated to the constant.
+//
+// __alloc, __free and __realloc manage the heap, the program calls them as
+// alloc, free and realloc unless it declares functions of these names. The heap
+// starts at __heap_base of the memory layout with the heads of the free lists
+// of the size classes of 16 to 2048 bytes and of the larger blocks, followed by
+// the blocks:
+//
+// | capacity | unused | bytes ... |
+//                     ^ the allocated address, the link of a free block
+//
+// A block of a free list is reused first, or else it is taken from the top of
+// the heap, which grows the memory by 1 MiB at least when it is reached. The
+// addresses are compared as signed values, so the heap ends below 2 GiB.
+//
+// The emitter initializes __heap_base and __stack_pointer with the addresses
+// of the layout, the stack pointer is left to the wasm of the program.
+public class StandardLibrary {
+
+	public static final String ARRAY_LENGTH = "__array_length", ARRAY_CHECK = "__array_check",
+			ARRAY_LOAD = "__array_load_", ARRAY_STORE = "__array_store_";
+
+	public static final String GLOBAL_GET = "__global_get_", GLOBAL_SET = "__global_set_";
+
+	public static final String LOAD = "__load_", STORE = "__store_";
+
+	public static final String HEAP_BASE = "__heap_base", STACK_POINTER = "__stack_pointer";
+
+	public static final String ALLOC = "__alloc", FREE = "__free", REALLOC = "__realloc";
+
+	// the names the program calls the functions with
+	public static final Map<String, String> ALIASES = Map.of("alloc", ALLOC, "free", FREE, "realloc", REALLOC);
+
+	private static final int SIZE_CLASSES = 8, GROW_PAGES = 16;
+	private static final int MAX_HEAP_PAGES = 32768, MAX_HEAP_END = 0x7FFFFFF8;
+
+	public static final String[] ELEMENT_TYPES = { "i32", "i64", "f32", "f64" };
+
+	public static StatementBlockNode parse() throws LexerException, ParseException {
+		return parse(getLines());
+	}
+
+	public static StatementBlockNode parseGlobal(String name, String type, ExpressionNode constant)
+			throws LexerException, ParseException {
+		List<String> lines = new ArrayList<>();
+		if (constant != null) {
+			lines.add(type + " " + GLOBAL_GET + name + "() {");
+			lines.add("	return 0;");
+			lines.add("}");
+		} else {
+			lines.add(type + " " + GLOBAL_GET + name + "() {");
+			lines.add("	" + type + " val;");
+			lines.add("	_wasm \"global.get $" + name + "\";");
+			lines.add("	_wasm \"local.set $val\";");
+			lines.add("	return val;");
+			lines.add("}");
+
+			lines.add("void " + GLOBAL_SET + name + "(" + type + " val) {");
+			lines.add("	_wasm \"local.get $val\";");
+			lines.add("	_wasm \"global.set $" + name + "\";");
+			lines.add("}");
+		}
+
+		StatementBlockNode statementBlock = parse(lines);
+		if (constant != null) {
+			FunctionStatementNode getter = (FunctionStatementNode) statementBlock.getStatements().get(0);
+			((ReturnStatementNode) getter.getStatementBlock().getStatements().get(0)).setExpression(constant);
+		}
+
+		return statementBlock;
+	}
+
+	private static StatementBlockNode parse(List<String> lines) throws LexerException, ParseException {
+		StatementBlockNode statementBlock = new Parser(new Lexer(lines)).parseStatementBlock();
+		for (StatementNode statement : statementBlock.getStatements()) {
+			if (statement instanceof FunctionStatementNode)
+				((FunctionStatementNode) statement).setLibrary(true);
+		}
+
+		return statementBlock;
+	}
+
+	private static List<String> getLines() {
+		List<String> lines = new ArrayList<>();
+
+		lines.add("i32 " + ARRAY_LENGTH + "(i32 array) {");
+		lines.add("	i32 val;");
+		lines.add("	_wasm \"local.get $array\";");
+		lines.add("	_wasm \"i32.load 2 0\";");
+		lines.add("	_wasm \"local.set $val\";");
+		lines.add("	return val;");
+		lines.add("}");
+
+		// traps unless the index is in the array
+		lines.add("i32 " + ARRAY_CHECK + "(i32 array, i32 index) {");
+		lines.add("	if (index < 0 || index >= " + ARRAY_LENGTH + "(array))");
+		lines.add("		_wasm \"unreachable\";");
+		lines.add("	return index;");
+		lines.add("}");
+
+		for (String type : ELEMENT_TYPES) {
+			lines.add(type + " " + ARRAY_LOAD + type + "(i32 address) {");
+			lines.add("	" + type + " val;");
+			lines.add("	_wasm \"local.get $address\";");
+			lines.add("	_wasm \"" + type + ".load 2 4\";");
+			lines.add("	_wasm \"local.set $val\";");
+			lines.add("	return val;");
+			lines.add("}");
+
+			lines.add("void " + ARRAY_STORE + type + "(i32 address, " + type + " val) {");
+			lines.add("	_wasm \"local.get $address\";");
+			lines.add("	_wasm \"local.get $val\";");
+			lines.add("	_wasm \"" + type + ".store 2 4\";");
+			lines.add("}");
+		}
+
+		addAllocator(lines);
+		return lines;
+	}
+
+	private static void addAllocator(List<String> lines) {
+		// the accesses of the heap are aligned to the size of the value
+		for (String type : ELEMENT_TYPES) {
+			int align = type.equals("i64") || type.equals("f64") ? 3 : 2;
+
+			lines.add(type + " " + LOAD + type + "(i32 address) {");
+			lines.add("	" + type + " val;");
+			lines.add("	_wasm \"local.get $address\";");
+			lines.add("	_wasm \"" + type + ".load " + align + " 0\";");
+			lines.add("	_wasm \"local.set $val\";");
+			lines.add("	return val;");
+			lines.add("}");
+
+			lines.add("void " + STORE + type + "(i32 address, " + type + " val) {");
+			lines.add("	_wasm \"local.get $address\";");
+			lines.add("	_wasm \"local.get $val\";");
+			lines.add("	_wasm \"" + type + ".store " + align + " 0\";");
+			lines.add("}");
+		}
+
+		lines.add("i32 " + HEAP_BASE + ";");
+		lines.add("i32 " + STACK_POINTER + ";");
+		lines.add("i32 __heap_top;");
+		lines.add("i32 __heap_end;");
+
+		lines.add("i32 __memory_size() {");
+		lines.add("	i32 val;");
+		lines.add("	_wasm \"memory.size 0\";");
+		lines.add("	_wasm \"local.set $val\";");
+		lines.add("	return val;");
+		lines.add("}");
+
+		lines.add("i32 __memory_grow(i32 pages) {");
+		lines.add("	i32 val;");
+		lines.add("	_wasm \"local.get $pages\";");
+		lines.add("	_wasm \"memory.grow 0\";");
+		lines.add("	_wasm \"local.set $val\";");
+		lines.add("	return val;");
+		lines.add("}");
+
+		lines.add("i32 __memory_end() {");
+		lines.add("	i32 pages = __memory_size();");
+		lines.add("	if (pages >= " + MAX_HEAP_PAGES + ")");
+		lines.add("		return " + MAX_HEAP_END + ";");
+		lines.add("	return pages << 16;");
+		lines.add("}");
+
+		// grows by the pages that are missing when the maximum of the memory
+		// does not allow a larger chunk, the callers check the end again
+		lines.add("void __heap_grow(i32 missing) {");
+		lines.add("	i32 pages = (missing + 65535) >>> 16;");
+		lines.add("	i32 chunk = pages;");
+		lines.add("	if (chunk < " + GROW_PAGES + ")");
+		lines.add("		chunk = " + GROW_PAGES + ";");
+		lines.add("	if (__memory_grow(chunk) < 0)");
+		lines.add("		__memory_grow(pages);");
+		lines.add("	__heap_end = __memory_end();");
+		lines.add("}");
+
+		// the space left is compared, since the top could overflow
+		lines.add("i32 __heap_bump(i32 capacity) {");
+		lines.add("	i32 block = __heap_top;");
+		lines.add("	if (capacity + 8 > __heap_end - block) {");
+		lines.add("		__heap_grow(capacity + 8 - (__heap_end - block));");
+		lines.add("		if (capacity + 8 > __heap_end - block)");
+		lines.add("			return 0;");
+		lines.add("	}");
+		lines.add("	__heap_top = block + 8 + capacity;");
+		lines.add("	" + STORE + "i32(block, capacity);");
+		lines.add("	return block + 8;");
+		lines.add("}");
+
+		int maxClassSize = 16 << (SIZE_CLASSES - 1);
+		lines.add("i32 __size_class(i32 size) {");
+		lines.add("	if (size <= 16)");
+		lines.add("		return 0;");
+		lines.add("	if (size > " + maxClassSize + ")");
+		lines.add("		return " + SIZE_CLASSES + ";");
+		lines.add("	return 28 - clz(size - 1);");
+		lines.add("}");
+
+		// the heap is set up with the first call
+		int blocks = (SIZE_CLASSES + 2) * 4;
+		lines.add("i32 " + ALLOC + "(i32 size) {");
+		lines.add("	if (size < 0 || size > 0x40000000)");
+		lines.add("		return 0;");
+		lines.add("	if (__heap_top == 0) {");
+		lines.add("		__heap_end = __memory_end();");
+		lines.add("		if (" + HEAP_BASE + " + " + blocks + " > __heap_end) {");
+		lines.add("			__heap_grow(" + HEAP_BASE + " + " + blocks + " - __heap_end);");
+		lines.add("			if (" + HEAP_BASE + " + " + blocks + " > __heap_end)");
+		lines.add("				return 0;");
+		lines.add("		}");
+		lines.add("		__heap_top = " + HEAP_BASE + " + " + blocks + ";");
+		lines.add("	}");
+		lines.add("	i32 c = __size_class(size);");
+		lines.add("	i32 head = " + HEAP_BASE + " + (c << 2);");
+		lines.add("	if (c < " + SIZE_CLASSES + ") {");
+		lines.add("		i32 block = " + LOAD + "i32(head);");
+		lines.add("		if (block != 0) {");
+		lines.add("			" + STORE + "i32(head, " + LOAD + "i32(block + 8));");
+		lines.add("			return block + 8;");
+		lines.add("		}");
+		lines.add("		return __heap_bump(16 << c);");
+		lines.add("	}");
+		// the first large block that fits
+		lines.add("	i32 capacity = (size + 7) & -8;");
+		lines.add("	i32 previous = head;");
+		lines.add("	i32 large = " + LOAD + "i32(previous);");
+		lines.add("	while (large != 0) {");
+		lines.add("		if (" + LOAD + "i32(large) >= capacity) {");
+		lines.add("			" + STORE + "i32(previous, " + LOAD + "i32(large + 8));");
+		lines.add("			return large + 8;");
+		lines.add("		}");
+		lines.add("		previous = large + 8;");
+		lines.add("		large = " + LOAD + "i32(previous);");
+		lines.add("	}");
+		lines.add("	return __heap_bump(capacity);");
+		lines.add("}");
+
+		lines.add("void " + FREE + "(i32 address) {");
+		lines.add("	if (address != 0) {");
+		lines.add("		i32 block = address - 8;");
+		lines.add("		i32 head = " + HEAP_BASE + " + (__size_class(" + LOAD + "i32(block)) << 2);");
+		lines.add("		" + STORE + "i32(address, " + LOAD + "i32(head));");
+		lines.add("		" + STORE + "i32(head, block);");
+		lines.add("	}");
+		lines.add("}");
+
+		// the bytes are copied by 8, the capacities are multiples of it
+		lines.add("i32 " + REALLOC + "(i32 address, i32 size) {");
+		lines.add("	if (address == 0)");
+		lines.add("		return " + ALLOC + "(size);");
+		lines.add("	i32 capacity = " + LOAD + "i32(address - 8);");
+		lines.add("	if (size >= 0 && size <= capacity)");
+		lines.add("		return address;");
+		lines.add("	i32 moved = " + ALLOC + "(size);");
+		lines.add("	if (moved != 0) {");
+		lines.add("		i32 k = 0;");
+		lines.add("		while (k < capacity) {");
+		lines.add("			" + STORE + "i64(moved + k, " + LOAD + "i64(address + k));");
+		lines.add("			k = k + 8;");
+		lines.add("		}");
+		lines.add("		" + FREE + "(address);");
+		lines.add("	}");
+		lines.add("	return moved;");
+		lines.add("}");
+	}
+}
@@ -16,7 +16,8 @@
 package compiler.enums;
 
 public enum BinaryOperationType {
-	ADDITION, SUBTRACTION, MULTIPLICATION, DIVISION, BIT_AND, BIT_OR, BIT_XOR,
+	ADDITION, SUBTRACTION, MULTIPLICATION, DIVISION, MODULO, BIT_AND, BIT_OR, BIT_XOR, SHIFT_LEFT, SHIFT_RIGHT,
+	SHIFT_RIGHT_UNSIGNED, ROTATE_LEFT, ROTATE_RIGHT, MIN, MAX, COPYSIGN,
 
 	GREATER_THAN, LESS_THAN, EQUALS, NOT_EQUAL, GREATER_EQUAL, LESS_EQUAL, AND, OR
 }
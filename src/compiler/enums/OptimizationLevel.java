@@ -0,0 +1,33 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.enums;
+
+// O0 - no optimization, the fastest compilation
+// O1 - the SSA passes, tail calls and the stack machine form
+// O2 - every pass
+// Os - every pass that does not make the code larger
+public enum OptimizationLevel {
+	O0, O1, O2, Os;
+
+	public static OptimizationLevel getOptimizationLevelFromString(String level) {
+		for (OptimizationLevel optimizationLevel : values()) {
+			if (optimizationLevel.toString().equalsIgnoreCase(level))
+				return optimizationLevel;
+		}
+
+		return null;
+	}
+}
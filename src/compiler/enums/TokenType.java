@@ -31,6 +31,7 @@ public enum TokenType {
 	MINUS_SIGN, // -
 	ASTERISK_SIGN, // *
 	SLASH_SIGN, // /
+	PERCENT_SIGN, // %
 	PLUSPLUS, // ++
 	MINUSMINUS, // --
 	LESS_THAN, // <
@@ -44,6 +45,9 @@ public enum TokenType {
 	BIT_AND, // &
 	BIT_OR, // |
 	BIT_XOR, // ^
+	SHIFT_LEFT, // <<
+	SHIFT_RIGHT, // >>
+	SHIFT_RIGHT_UNSIGNED, // >>>
 	TRUE, // true
 	FALSE, // false
 	TYPE, IDENTIFIER, NUMBER, STRING, WASM, IF, // if
@@ -51,5 +55,12 @@ public enum TokenType {
 	ELSEIF, // eif
 	WHILE, // while
 	RETURN, // return
+	MEMO, // memo
+	CONST, // const
+	REINTERPRET, // reinterpret
+	SWITCH, // switch
+	CASE, // case
+	DEFAULT, // default
+	BUILTIN, // popcnt, clz, ctz, rotl, rotr, sqrt, abs, floor, ceil, trunc, nearest, min, max, copysign, len
 	COMMENT
 }
@@ -16,5 +16,5 @@
 package compiler.enums;
 
 public enum UnaryOperationType {
-	PLUS, MINUS, COMPLEMENT,
+	PLUS, MINUS, COMPLEMENT, POPCNT, CLZ, CTZ, SQRT, ABS, FLOOR, CEIL, TRUNC, NEAREST
 }
@@ -0,0 +1,92 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// The phi operands are in the same order as the predecessors.
+public class BasicBlock {
+
+	private int id;
+	private List<Instruction> phis = new ArrayList<>();
+	private List<Instruction> instructions = new ArrayList<>();
+	private Instruction terminator;
+
+	private List<BasicBlock> predecessors = new ArrayList<>();
+	private List<BasicBlock> successors = new ArrayList<>();
+
+	public BasicBlock(int id) {
+		this.id = id;
+	}
+
+	public void addInstruction(Instruction instruction) {
+		instruction.setBlock(this);
+		instructions.add(instruction);
+	}
+
+	public void addPhi(Instruction phi) {
+		phi.setBlock(this);
+		phis.add(phi);
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public List<Instruction> getPhis() {
+		return phis;
+	}
+
+	public List<Instruction> getInstructions() {
+		return instructions;
+	}
+
+	public Instruction getTerminator() {
+		return terminator;
+	}
+
+	public void setTerminator(Instruction terminator) {
+		if (terminator != null)
+			terminator.setBlock(this);
+		this.terminator = terminator;
+	}
+
+	public List<BasicBlock> getPredecessors() {
+		return predecessors;
+	}
+
+	public List<BasicBlock> getSuccessors() {
+		return successors;
+	}
+
+	@Override
+	public String toString() {
+		return "block" + id;
+	}
+
+	public void print(PrintStream out) {
+		out.println("\t" + this + ": predecessors " + predecessors);
+
+		for (Instruction phi : phis)
+			out.println("\t\t" + phi.describe());
+		for (Instruction instruction : instructions)
+			out.println("\t\t" + instruction.describe());
+		if (terminator != null)
+			out.println("\t\t" + terminator.describe());
+	}
+}
@@ -0,0 +1,357 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.StandardLibrary;
+import compiler.enums.BinaryOperationType;
+import compiler.enums.EffectType;
+import compiler.enums.InstructionType;
+import compiler.enums.LiteralType;
+import compiler.enums.UnaryOperationType;
+
+// Removes the checks of the array indices that the branches already prove, like
+// the ones of a loop over an array:
+//
+// while (i < len(a)) { s = s + a[i]; i = i + 1; }
+//
+// An index is in the array if a branch that dominates the check compares it, or
+// the value it is a constant from, below the length of the same array and it
+// cannot be negative. A counter that starts at a non-negative value and is only
+// incremented while it is below an i32 cannot overflow, so it stays
+// non-negative. The unrolled loops compare the counter plus a constant as i64,
+// which also bounds the counter plus a smaller constant. Nothing may write the
+// memory between the load of the length and the check.
+public class BoundsCheckElimination implements IRPass {
+
+	private Map<String, EffectType> functionEffects;
+
+	private Map<BasicBlock, BasicBlock> dominators;
+	private Map<BasicBlock, List<Fact>> facts;
+
+	// value + offset < bound for an i32 bound, without overflow, or value >=
+	// offset if there is no bound
+	private static class Fact {
+		private Instruction value, bound;
+		private long offset;
+
+		private Fact(Instruction value, long offset, Instruction bound) {
+			this.value = value;
+			this.offset = offset;
+			this.bound = bound;
+		}
+	}
+
+	public BoundsCheckElimination(Map<String, EffectType> functionEffects) {
+		this.functionEffects = functionEffects;
+	}
+
+	@Override
+	public boolean run(IRFunction function) {
+		dominators = function.getDominators();
+		facts = new HashMap<>();
+
+		boolean changed = false;
+		for (BasicBlock block : function.getBlocks()) {
+			for (Instruction instruction : block.getInstructions()) {
+				if (instruction.getType() == InstructionType.CALL
+						&& instruction.getFunctionName().equals(StandardLibrary.ARRAY_CHECK)
+						&& instruction.getReplacement() == null && isInBounds(instruction)) {
+					instruction.setReplacement(instruction.getOperand(1));
+					changed = true;
+				}
+			}
+		}
+
+		if (changed)
+			function.cleanup();
+		return changed;
+	}
+
+	private boolean isInBounds(Instruction check) {
+		Instruction array = check.getOperand(0);
+		Instruction index = check.getOperand(1);
+
+		Instruction base = index;
+		long constant = 0;
+		while (getAddedConstant(base) != null) {
+			constant += getAddedConstant(base).getNumber().longValue();
+			base = getAddend(base);
+		}
+
+		for (Fact fact : getFacts(check.getBlock())) {
+			Instruction length = fact.bound;
+			if (length == null || length.getType() != InstructionType.CALL
+					|| !length.getFunctionName().equals(StandardLibrary.ARRAY_LENGTH)
+					|| length.getOperand(0) != array)
+				continue;
+
+			boolean bounded = fact.value == index && fact.offset >= 0
+					&& isNonNegative(index, check.getBlock(), new HashSet<>());
+			bounded |= fact.value == base && constant >= 0 && fact.offset >= constant
+					&& isNonNegative(base, check.getBlock(), new HashSet<>());
+
+			if (bounded && !isWrittenBetween(length, check))
+				return true;
+		}
+
+		return false;
+	}
+
+	// the phis are assumed to be non-negative while their operands are proven
+	private boolean isNonNegative(Instruction value, BasicBlock block, Set<Instruction> assumed) {
+		if (value.isConstant())
+			return value.getNumber().longValue() >= 0;
+
+		for (Fact fact : getFacts(block)) {
+			if (fact.bound == null && fact.value == value && fact.offset >= 0)
+				return true;
+		}
+
+		switch (value.getType()) {
+		case PHI:
+			if (!assumed.add(value))
+				return true;
+
+			for (int i = 0; i < value.getOperands().size(); i++) {
+				if (!isNonNegative(value.getOperand(i), value.getBlock().getPredecessors().get(i), assumed)) {
+					assumed.remove(value);
+					return false;
+				}
+			}
+
+			return true;
+		case BINARY:
+			if (value.getLiteralType() != LiteralType.i32)
+				return false;
+
+			Instruction left = value.getOperand(0);
+			Instruction right = value.getOperand(1);
+			switch (value.getBinaryOperationType()) {
+			case ADDITION:
+				Instruction base = value;
+				long constant = 0;
+				while (getAddedConstant(base) != null) {
+					constant += getAddedConstant(base).getNumber().longValue();
+					base = getAddend(base);
+				}
+
+				// the sum is at most the bound of the base, which is an i32
+				if (constant < 0 || !isNonNegative(base, value.getBlock(), assumed))
+					return false;
+
+				for (Fact fact : getFacts(value.getBlock())) {
+					if (fact.bound != null && fact.value == base && fact.offset + 1 >= constant)
+						return true;
+				}
+
+				return false;
+			case BIT_AND:
+				return left.isConstant() && left.getNumber().longValue() >= 0
+						|| right.isConstant() && right.getNumber().longValue() >= 0;
+			case SHIFT_RIGHT_UNSIGNED:
+				return right.isConstant() && (right.getNumber().intValue() & 31) != 0;
+			default:
+				return false;
+			}
+		default:
+			return false;
+		}
+	}
+
+	// the constant of an i32 addition with a constant
+	private Instruction getAddedConstant(Instruction instruction) {
+		if (instruction.getType() != InstructionType.BINARY || instruction.getLiteralType() != LiteralType.i32
+				|| instruction.getBinaryOperationType() != BinaryOperationType.ADDITION)
+			return null;
+
+		if (instruction.getOperand(1).isConstant())
+			return instruction.getOperand(1);
+		if (instruction.getOperand(0).isConstant())
+			return instruction.getOperand(0);
+		return null;
+	}
+
+	private Instruction getAddend(Instruction instruction) {
+		return instruction.getOperand(1).isConstant() ? instruction.getOperand(0) : instruction.getOperand(1);
+	}
+
+	// the conditions of the branches to the dominators that only have the
+	// branch as their predecessor
+	private List<Fact> getFacts(BasicBlock block) {
+		List<Fact> blockFacts = facts.get(block);
+		if (blockFacts != null)
+			return blockFacts;
+
+		blockFacts = new ArrayList<>();
+		BasicBlock dominator = block;
+		while (dominator != null) {
+			if (dominator.getPredecessors().size() == 1) {
+				BasicBlock predecessor = dominator.getPredecessors().get(0);
+				Instruction terminator = predecessor.getTerminator();
+				if (terminator != null && terminator.getType() == InstructionType.BRANCH)
+					addCondition(terminator.getOperand(0), predecessor.getSuccessors().get(0) == dominator,
+							blockFacts);
+			}
+
+			BasicBlock next = dominators.get(dominator);
+			dominator = next == dominator ? null : next;
+		}
+
+		facts.put(block, blockFacts);
+		return blockFacts;
+	}
+
+	private void addCondition(Instruction condition, boolean holds, List<Fact> blockFacts) {
+		if (condition.getType() == InstructionType.UNARY
+				&& condition.getUnaryOperationType() == UnaryOperationType.COMPLEMENT) {
+			addCondition(condition.getOperand(0), !holds, blockFacts);
+			return;
+		}
+
+		if (condition.getType() != InstructionType.BINARY)
+			return;
+
+		Instruction left = condition.getOperand(0);
+		Instruction right = condition.getOperand(1);
+		BinaryOperationType operationType = condition.getBinaryOperationType();
+		if (operationType == BinaryOperationType.AND && holds || operationType == BinaryOperationType.OR && !holds) {
+			addCondition(left, holds, blockFacts);
+			addCondition(right, holds, blockFacts);
+			return;
+		}
+
+		if (left.getLiteralType() != LiteralType.i32 && left.getLiteralType() != LiteralType.i64)
+			return;
+
+		if (!holds) {
+			switch (operationType) {
+			case LESS_THAN:
+				operationType = BinaryOperationType.GREATER_EQUAL;
+				break;
+			case GREATER_THAN:
+				operationType = BinaryOperationType.LESS_EQUAL;
+				break;
+			case LESS_EQUAL:
+				operationType = BinaryOperationType.GREATER_THAN;
+				break;
+			case GREATER_EQUAL:
+				operationType = BinaryOperationType.LESS_THAN;
+				break;
+			default:
+				return;
+			}
+		}
+
+		switch (operationType) {
+		case LESS_THAN:
+			addUpperBound(left, right, blockFacts);
+			addLowerBound(right, left, 1, blockFacts);
+			break;
+		case GREATER_THAN:
+			addUpperBound(right, left, blockFacts);
+			addLowerBound(left, right, 1, blockFacts);
+			break;
+		case LESS_EQUAL:
+			addLowerBound(right, left, 0, blockFacts);
+			break;
+		case GREATER_EQUAL:
+			addLowerBound(left, right, 0, blockFacts);
+			break;
+		default:
+			break;
+		}
+	}
+
+	// value >= minimum + offset for a constant minimum
+	private void addLowerBound(Instruction value, Instruction minimum, int offset, List<Fact> blockFacts) {
+		if (value.getLiteralType() == LiteralType.i32 && minimum.isConstant())
+			blockFacts.add(new Fact(value, minimum.getNumber().longValue() + offset, null));
+	}
+
+	// value < bound, an i64 comparison of i32 values can also add a constant to
+	// the value
+	private void addUpperBound(Instruction value, Instruction bound, List<Fact> blockFacts) {
+		if (value.getLiteralType() == LiteralType.i32) {
+			blockFacts.add(new Fact(value, 0, bound));
+			return;
+		}
+
+		long offset = 0;
+		while (value.getType() == InstructionType.BINARY
+				&& value.getBinaryOperationType() == BinaryOperationType.ADDITION
+				&& value.getOperand(1).isConstant() && Math.abs(value.getOperand(1).getNumber().longValue()) < Integer.MAX_VALUE) {
+			offset += value.getOperand(1).getNumber().longValue();
+			value = value.getOperand(0);
+		}
+
+		if (isExtended(value) && isExtended(bound))
+			blockFacts.add(new Fact(value.getOperand(0), offset, bound.getOperand(0)));
+	}
+
+	private boolean isExtended(Instruction instruction) {
+		return instruction.getType() == InstructionType.CAST && instruction.getLiteralType() == LiteralType.i64
+				&& instruction.getOperand(0).getLiteralType() == LiteralType.i32;
+	}
+
+	// whether an instruction after the load of the length can write the memory
+	// before the check
+	private boolean isWrittenBetween(Instruction length, Instruction check) {
+		BasicBlock lengthBlock = length.getBlock();
+		BasicBlock checkBlock = check.getBlock();
+
+		if (lengthBlock == checkBlock) {
+			List<Instruction> instructions = checkBlock.getInstructions();
+			return writes(instructions.subList(instructions.indexOf(length) + 1, instructions.indexOf(check)));
+		}
+
+		List<Instruction> instructions = lengthBlock.getInstructions();
+		if (writes(instructions.subList(instructions.indexOf(length) + 1, instructions.size())))
+			return true;
+
+		// the blocks on the paths from the load to the check
+		Set<BasicBlock> between = new HashSet<>();
+		List<BasicBlock> worklist = new ArrayList<>(checkBlock.getPredecessors());
+		while (!worklist.isEmpty()) {
+			BasicBlock block = worklist.remove(worklist.size() - 1);
+			if (block == lengthBlock || !between.add(block))
+				continue;
+
+			if (writes(block.getInstructions()))
+				return true;
+			worklist.addAll(block.getPredecessors());
+		}
+
+		instructions = checkBlock.getInstructions();
+		return !between.contains(checkBlock) && writes(instructions.subList(0, instructions.indexOf(check)));
+	}
+
+	private boolean writes(List<Instruction> instructions) {
+		for (Instruction instruction : instructions) {
+			if (instruction.getType() == InstructionType.CALL
+					&& functionEffects.get(instruction.getFunctionName()).compareTo(EffectType.READS_MEMORY) > 0)
+				return true;
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,78 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import compiler.enums.InstructionType;
+import compiler.optimizer.Evaluator;
+
+// Replaces the calls of pure functions whose arguments are constants with their
+// result, which is computed at compile time:
+//
+// x = fib(20); -> x = 6765;
+//
+// The arguments can also become constants after the other passes, and the
+// result is propagated further by them.
+public class CallEvaluation implements IRPass {
+
+	private Evaluator evaluator;
+
+	public CallEvaluation(Evaluator evaluator) {
+		this.evaluator = evaluator;
+	}
+
+	@Override
+	public boolean run(IRFunction function) {
+		boolean changed = false;
+
+		for (BasicBlock block : function.getBlocks()) {
+			for (Instruction instruction : block.getInstructions()) {
+				if (instruction.getType() != InstructionType.CALL)
+					continue;
+
+				List<Number> arguments = getArguments(instruction);
+				if (arguments == null)
+					continue;
+
+				Number result = evaluator.call(instruction.getFunctionName(), arguments);
+				if (result == null)
+					continue;
+
+				instruction.setReplacement(function.newConstant(instruction.getLiteralType(), result));
+				changed = true;
+			}
+		}
+
+		if (changed)
+			function.cleanup();
+		return changed;
+	}
+
+	private List<Number> getArguments(Instruction call) {
+		List<Number> arguments = new ArrayList<>();
+		for (int i = 0; i < call.getOperands().size(); i++) {
+			Instruction operand = call.getOperand(i);
+			if (!operand.isConstant())
+				return null;
+
+			arguments.add(Evaluator.ToValue(operand.getNumber(), operand.getLiteralType()));
+		}
+
+		return arguments;
+	}
+}
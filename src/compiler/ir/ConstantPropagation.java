@@ -0,0 +1,261 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.ArrayList;
+
+import compiler.enums.BinaryOperationType;
+import compiler.enums.InstructionType;
+import compiler.enums.LiteralType;
+import compiler.optimizer.Evaluator;
+
+// Folds the operations on constants and the algebraic identities, and turns the
+// branches on constant conditions into jumps. The operations are evaluated the
+// way wasm does, the identities are only applied to the integers since they do
+// not hold for the NaNs and the signed zeros of the floats.
+public class ConstantPropagation implements IRPass {
+
+	private IRFunction function;
+
+	@Override
+	public boolean run(IRFunction function) {
+		this.function = function;
+		boolean changed = false;
+
+		boolean folded = true;
+		while (folded) {
+			folded = false;
+
+			for (BasicBlock block : function.getReversePostorder()) {
+				for (Instruction instruction : function.getInstructions(block)) {
+					if (instruction.getReplacement() == null && fold(instruction))
+						folded = true;
+				}
+			}
+
+			function.cleanup();
+			if (function.removeUnreachableBlocks())
+				function.cleanup();
+
+			changed |= folded;
+		}
+
+		return changed;
+	}
+
+	private boolean fold(Instruction instruction) {
+		switch (instruction.getType()) {
+		case PHI:
+			return foldPhi(instruction);
+		case BINARY:
+			return foldBinary(instruction);
+		case UNARY:
+			return foldUnary(instruction);
+		case CAST:
+			return foldCast(instruction);
+		case REINTERPRET:
+			return foldReinterpret(instruction);
+		case BRANCH:
+			return foldBranch(instruction);
+		default:
+			return false;
+		}
+	}
+
+	private boolean foldPhi(Instruction phi) {
+		Instruction first = phi.getOperand(0);
+		for (int i = 1; i < phi.getOperands().size(); i++) {
+			if (!CopyPropagation.isSameConstant(first, phi.getOperand(i)))
+				return false;
+		}
+
+		if (!first.isConstant())
+			return false;
+
+		phi.setReplacement(first);
+		return true;
+	}
+
+	private boolean foldBinary(Instruction instruction) {
+		Instruction left = instruction.getOperand(0);
+		Instruction right = instruction.getOperand(1);
+		LiteralType operandType = left.getLiteralType();
+
+		if (left.isConstant() && right.isConstant()) {
+			Number result = Evaluator.EvaluateBinary(instruction.getBinaryOperationType(),
+					Evaluator.ToValue(left.getNumber(), operandType), Evaluator.ToValue(right.getNumber(), operandType));
+			return replaceWithConstant(instruction, result);
+		}
+
+		if (operandType == LiteralType.f32 || operandType == LiteralType.f64)
+			return false;
+
+		// (x + c1) + c2 -> x + (c1 + c2), the steps of unrolled loops
+		if (instruction.getBinaryOperationType() == BinaryOperationType.ADDITION && operandType == LiteralType.i32
+				&& right.isConstant() && left.getType() == InstructionType.BINARY
+				&& left.getBinaryOperationType() == BinaryOperationType.ADDITION && left.getOperand(1).isConstant()) {
+			instruction.getOperands().set(0, left.getOperand(0));
+			instruction.getOperands().set(1, function.newConstant(LiteralType.i32,
+					left.getOperand(1).getNumber().intValue() + right.getNumber().intValue()));
+			return true;
+		}
+
+		Instruction result = simplify(instruction, left, right);
+		if (result == null)
+			return false;
+
+		instruction.setReplacement(result);
+		return true;
+	}
+
+	// the operations that trap are left to trap at runtime
+	private boolean replaceWithConstant(Instruction instruction, Number result) {
+		if (result == null)
+			return false;
+
+		instruction.setReplacement(function.newConstant(instruction.getLiteralType(), result));
+		return true;
+	}
+
+	private Instruction simplify(Instruction instruction, Instruction left, Instruction right) {
+		LiteralType type = instruction.getLiteralType();
+
+		switch (instruction.getBinaryOperationType()) {
+		case ADDITION:
+		case BIT_OR:
+		case BIT_XOR:
+			if (isConstant(right, 0))
+				return left;
+			if (isConstant(left, 0))
+				return right;
+			break;
+		case SUBTRACTION:
+			if (isConstant(right, 0))
+				return left;
+			if (left == right)
+				return function.newConstant(type, 0);
+			break;
+		case MULTIPLICATION:
+			if (isConstant(right, 1))
+				return left;
+			if (isConstant(left, 1))
+				return right;
+			if (isConstant(left, 0) || isConstant(right, 0))
+				return function.newConstant(type, 0);
+			break;
+		case DIVISION:
+			if (isConstant(right, 1))
+				return left;
+			break;
+		case SHIFT_LEFT:
+		case SHIFT_RIGHT:
+		case SHIFT_RIGHT_UNSIGNED:
+		case ROTATE_LEFT:
+		case ROTATE_RIGHT:
+			if (isConstant(right, 0))
+				return left;
+			break;
+		case BIT_AND:
+			if (isConstant(right, -1))
+				return left;
+			if (isConstant(left, -1))
+				return right;
+			if (isConstant(left, 0) || isConstant(right, 0))
+				return function.newConstant(type, 0);
+			break;
+		case AND:
+			if (isConstant(right, 1) || left == right)
+				return left;
+			if (isConstant(left, 1))
+				return right;
+			if (isConstant(left, 0) || isConstant(right, 0))
+				return function.newConstant(type, 0);
+			break;
+		case OR:
+			if (isConstant(right, 0) || left == right)
+				return left;
+			if (isConstant(left, 0))
+				return right;
+			if (isConstant(left, 1) || isConstant(right, 1))
+				return function.newConstant(type, 1);
+			break;
+		case EQUALS:
+		case GREATER_EQUAL:
+		case LESS_EQUAL:
+			if (left == right)
+				return function.newConstant(type, 1);
+			break;
+		case NOT_EQUAL:
+		case GREATER_THAN:
+		case LESS_THAN:
+			if (left == right)
+				return function.newConstant(type, 0);
+			break;
+		default:
+			break;
+		}
+
+		return null;
+	}
+
+	private boolean isConstant(Instruction instruction, int value) {
+		return instruction.isConstant() && instruction.getNumber().doubleValue() == value;
+	}
+
+	private boolean foldUnary(Instruction instruction) {
+		Instruction operand = instruction.getOperand(0);
+		if (!operand.isConstant())
+			return false;
+
+		return replaceWithConstant(instruction, Evaluator.EvaluateUnary(instruction.getUnaryOperationType(),
+				Evaluator.ToValue(operand.getNumber(), operand.getLiteralType())));
+	}
+
+	private boolean foldCast(Instruction instruction) {
+		Instruction operand = instruction.getOperand(0);
+		if (!operand.isConstant())
+			return false;
+
+		return replaceWithConstant(instruction, Evaluator.EvaluateCast(
+				Evaluator.ToValue(operand.getNumber(), operand.getLiteralType()), instruction.getLiteralType()));
+	}
+
+	private boolean foldReinterpret(Instruction instruction) {
+		Instruction operand = instruction.getOperand(0);
+		if (!operand.isConstant())
+			return false;
+
+		return replaceWithConstant(instruction,
+				Evaluator.EvaluateReinterpret(Evaluator.ToValue(operand.getNumber(), operand.getLiteralType())));
+	}
+
+	private boolean foldBranch(Instruction branch) {
+		Instruction condition = branch.getOperand(0);
+		if (!condition.isConstant())
+			return false;
+
+		BasicBlock block = branch.getBlock();
+		BasicBlock target = block.getSuccessors().get(condition.getNumber().intValue() != 0 ? 0 : 1);
+		for (BasicBlock successor : new ArrayList<>(block.getSuccessors())) {
+			if (successor != target)
+				function.removeEdge(block, successor);
+		}
+
+		branch.setType(InstructionType.JUMP);
+		branch.getOperands().clear();
+		return true;
+	}
+}
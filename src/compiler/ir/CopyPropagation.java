@@ -0,0 +1,69 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import compiler.enums.InstructionType;
+
+// Replaces the phis whose operands are all the same value, or the phi itself,
+// with that value. Removing one can make the phis that use it trivial.
+public class CopyPropagation implements IRPass {
+
+	@Override
+	public boolean run(IRFunction function) {
+		boolean changed = false;
+
+		boolean removed = true;
+		while (removed) {
+			removed = false;
+
+			for (BasicBlock block : function.getBlocks()) {
+				for (Instruction phi : block.getPhis()) {
+					if (phi.getReplacement() != null)
+						continue;
+
+					Instruction same = getSameOperand(phi);
+					if (same != null) {
+						phi.setReplacement(same);
+						removed = changed = true;
+					}
+				}
+			}
+		}
+
+		function.cleanup();
+		return changed;
+	}
+
+	private Instruction getSameOperand(Instruction phi) {
+		Instruction same = null;
+		for (int i = 0; i < phi.getOperands().size(); i++) {
+			Instruction operand = phi.getOperand(i);
+			if (operand == same || operand == phi)
+				continue;
+			if (same != null && !isSameConstant(operand, same))
+				return null;
+
+			same = operand;
+		}
+
+		return same;
+	}
+
+	static boolean isSameConstant(Instruction a, Instruction b) {
+		return a.getType() == InstructionType.CONSTANT && b.getType() == InstructionType.CONSTANT
+				&& a.getLiteralType() == b.getLiteralType() && a.getNumber().equals(b.getNumber());
+	}
+}
@@ -0,0 +1,62 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import compiler.enums.InstructionType;
+
+// Removes the instructions whose values are never used. The calls, the
+// instructions that can trap and the terminators are always kept, along with
+// everything they use.
+public class DeadCodeElimination implements IRPass {
+
+	@Override
+	public boolean run(IRFunction function) {
+		Set<Instruction> live = new HashSet<>();
+		List<Instruction> worklist = new ArrayList<>();
+
+		for (BasicBlock block : function.getBlocks()) {
+			for (Instruction instruction : function.getInstructions(block)) {
+				if (instruction.isTerminator() || instruction.getType() == InstructionType.CALL
+						|| instruction.canTrap()) {
+					live.add(instruction);
+					worklist.add(instruction);
+				}
+			}
+		}
+
+		while (!worklist.isEmpty()) {
+			Instruction instruction = worklist.remove(worklist.size() - 1);
+			for (int i = 0; i < instruction.getOperands().size(); i++) {
+				Instruction operand = instruction.getOperand(i);
+				if (live.add(operand))
+					worklist.add(operand);
+			}
+		}
+
+		boolean changed = false;
+		for (BasicBlock block : function.getBlocks()) {
+			changed |= block.getPhis().retainAll(live);
+			changed |= block.getInstructions().retainAll(live);
+		}
+
+		return changed;
+	}
+}
@@ -0,0 +1,408 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.enums.InstructionType;
+import compiler.enums.LiteralType;
+import compiler.enums.RegionType;
+import compiler.enums.UnaryOperationType;
+import compiler.nodes.AssignExpressionNode;
+import compiler.nodes.BinaryOperationNode;
+import compiler.nodes.BooleanExpressionNode;
+import compiler.nodes.CastingExpressionNode;
+import compiler.nodes.ExpressionNode;
+import compiler.nodes.FunctionCallExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IdentifierExpressionNode;
+import compiler.nodes.IfStatementNode;
+import compiler.nodes.Node;
+import compiler.nodes.NumberExpressionNode;
+import compiler.nodes.ReturnStatementNode;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.StatementNode;
+import compiler.nodes.SwitchStatementNode;
+import compiler.nodes.TailCallStatementNode;
+import compiler.nodes.UnaryOperationNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.nodes.WasmStatementNode;
+import compiler.nodes.WhileStatementNode;
+import compiler.optimizer.OptimizerUtils;
+
+// Builds the SSA form of an analyzed function, as described in "Simple and
+// Efficient Construction of Static Single Assignment Form" by Braun et al.
+// The last value assigned to each variable is tracked per block, and phis are
+// only created where a read reaches more than one definition.
+//
+// The locals of a function start as zero, so a variable that is read before
+// it is assigned is the constant zero.
+public class IRBuilder {
+
+	private Map<String, VariableDeclarationNode> localSymbolTable;
+
+	private IRFunction function;
+	private BasicBlock currentBlock;
+	private Region currentSequence;
+
+	private Map<String, Map<BasicBlock, Instruction>> definitions;
+	private Map<BasicBlock, Map<String, Instruction>> incompletePhis;
+	private Set<BasicBlock> sealedBlocks;
+
+	public IRBuilder(Map<String, VariableDeclarationNode> localSymbolTable) {
+		this.localSymbolTable = localSymbolTable;
+	}
+
+	// returns null if the function cannot be represented, inline wasm can use
+	// the wasm stack and the locals directly and the regions have no switch
+	public IRFunction build(FunctionStatementNode functionNode) {
+		if (!isSupported(functionNode))
+			return null;
+
+		function = new IRFunction(functionNode);
+		definitions = new HashMap<>();
+		incompletePhis = new HashMap<>();
+		sealedBlocks = new HashSet<>();
+
+		Region region = new Region(RegionType.SEQUENCE);
+		function.setRegion(region);
+		currentSequence = region;
+
+		BasicBlock entry = function.newBlock();
+		sealBlock(entry);
+		startBlock(entry);
+
+		for (VariableDeclarationNode varDeclNode : localSymbolTable.values()) {
+			LiteralType type = LiteralType.getLiteralTypeFromString(varDeclNode.getType());
+
+			Instruction value;
+			if (functionNode.getArguments().contains(varDeclNode)) {
+				value = function.newInstruction(InstructionType.PARAMETER, type);
+				value.setVariable(varDeclNode);
+				function.getParameters().add(value);
+			} else {
+				value = function.newConstant(type, 0);
+			}
+
+			writeVariable(varDeclNode.getVarName(), entry, value);
+		}
+
+		buildStatement(functionNode.getStatementBlock());
+
+		// the end of the function
+		if (currentBlock != null)
+			terminate(InstructionType.RETURN, null, functionNode);
+
+		return function;
+	}
+
+	private boolean isSupported(Node node) {
+		if (node instanceof WasmStatementNode || node instanceof TailCallStatementNode
+				|| node instanceof SwitchStatementNode)
+			return false;
+
+		for (Node child : OptimizerUtils.GetChildren(node)) {
+			if (!isSupported(child))
+				return false;
+		}
+
+		return true;
+	}
+
+	private void buildStatement(StatementNode statement) {
+		if (statement instanceof StatementBlockNode) {
+			for (StatementNode child : ((StatementBlockNode) statement).getStatements()) {
+				// the rest of the statements cannot be reached
+				if (currentBlock == null)
+					break;
+
+				buildStatement(child);
+			}
+		} else if (statement instanceof VariableDeclarationNode) {
+			VariableDeclarationNode varDeclNode = (VariableDeclarationNode) statement;
+			if (varDeclNode.getExpression() != null)
+				assign(varDeclNode.getVarName(), buildExpression(varDeclNode.getExpression()));
+		} else if (statement instanceof ReturnStatementNode) {
+			Instruction value = buildExpression(((ReturnStatementNode) statement).getExpression());
+			terminate(InstructionType.RETURN, value, statement);
+			currentBlock = null;
+		} else if (statement instanceof IfStatementNode) {
+			buildIf((IfStatementNode) statement, 0);
+		} else if (statement instanceof WhileStatementNode) {
+			buildWhile((WhileStatementNode) statement);
+		} else if (statement instanceof ExpressionNode) {
+			buildExpression((ExpressionNode) statement);
+		}
+	}
+
+	private void buildIf(IfStatementNode ifNode, int index) {
+		Instruction condition = buildExpression(ifNode.getConditions().get(index));
+		BasicBlock conditionBlock = currentBlock;
+
+		boolean hasElse = index + 1 < ifNode.getStatementBlocks().size();
+		BasicBlock thenBlock = function.newBlock();
+		BasicBlock elseBlock = hasElse ? function.newBlock() : null;
+		BasicBlock joinBlock = function.newBlock();
+		terminate(InstructionType.BRANCH, condition, ifNode, thenBlock, hasElse ? elseBlock : joinBlock);
+
+		Region ifRegion = new Region(RegionType.IF);
+		ifRegion.setBlock(conditionBlock);
+		ifRegion.setThenBlock(thenBlock);
+		ifRegion.setElseBlock(elseBlock);
+
+		Region sequence = currentSequence;
+
+		sealBlock(thenBlock);
+		ifRegion.setThenRegion(
+				buildRegion(thenBlock, () -> buildStatement(ifNode.getStatementBlocks().get(index)), joinBlock));
+
+		if (hasElse) {
+			sealBlock(elseBlock);
+
+			// the else ifs are nested in the else region
+			if (index + 1 < ifNode.getConditions().size())
+				ifRegion.setElseRegion(buildRegion(elseBlock, () -> buildIf(ifNode, index + 1), joinBlock));
+			else
+				ifRegion.setElseRegion(buildRegion(elseBlock,
+						() -> buildStatement(ifNode.getStatementBlocks().get(index + 1)), joinBlock));
+		}
+
+		currentSequence = sequence;
+		currentSequence.getChildren().add(ifRegion);
+
+		sealBlock(joinBlock);
+		startBlock(joinBlock);
+	}
+
+	private void buildWhile(WhileStatementNode whileNode) {
+		BasicBlock header = function.newBlock();
+		terminate(InstructionType.JUMP, null, whileNode, header);
+
+		// the header is sealed after the body, when its back edge is known
+		currentBlock = header;
+		Instruction condition = buildExpression(whileNode.getConditionNode());
+
+		BasicBlock body = function.newBlock();
+		BasicBlock exit = function.newBlock();
+		terminate(InstructionType.BRANCH, condition, whileNode, body, exit);
+
+		Region loopRegion = new Region(RegionType.LOOP);
+		loopRegion.setBlock(header);
+		loopRegion.setThenBlock(body);
+
+		Region sequence = currentSequence;
+
+		sealBlock(body);
+		loopRegion.setThenRegion(buildRegion(body, () -> buildStatement(whileNode.getStatementBlock()), header));
+
+		currentSequence = sequence;
+		currentSequence.getChildren().add(loopRegion);
+
+		sealBlock(header);
+		sealBlock(exit);
+		startBlock(exit);
+	}
+
+	// builds a nested sequence that starts at the entry block and continues to
+	// the next block
+	private Region buildRegion(BasicBlock entry, Runnable builder, BasicBlock next) {
+		Region region = new Region(RegionType.SEQUENCE);
+		currentSequence = region;
+		startBlock(entry);
+
+		builder.run();
+
+		if (currentBlock != null)
+			terminate(InstructionType.JUMP, null, null, next);
+
+		return region;
+	}
+
+	private Instruction buildExpression(ExpressionNode expression) {
+		if (expression instanceof NumberExpressionNode) {
+			return function.newConstant(expression.getLiteralType(), ((NumberExpressionNode) expression).getNumber());
+		} else if (expression instanceof BooleanExpressionNode) {
+			return function.newConstant(LiteralType.bool, ((BooleanExpressionNode) expression).getValue() ? 1 : 0);
+		} else if (expression instanceof IdentifierExpressionNode) {
+			return readVariable(((IdentifierExpressionNode) expression).getName(), currentBlock);
+		} else if (expression instanceof AssignExpressionNode) {
+			AssignExpressionNode assignNode = (AssignExpressionNode) expression;
+			Instruction value = buildExpression(assignNode.getRightExpression());
+			assign(assignNode.getVarName(), value);
+			return value;
+		} else if (expression instanceof BinaryOperationNode) {
+			BinaryOperationNode binaryNode = (BinaryOperationNode) expression;
+			Instruction left = buildExpression(binaryNode.getLeftExpression());
+			Instruction right = buildExpression(binaryNode.getRightExpression());
+
+			Instruction instruction = newInstruction(InstructionType.BINARY, expression);
+			instruction.setBinaryOperationType(binaryNode.getBinaryOperationType());
+			instruction.getOperands().add(left);
+			instruction.getOperands().add(right);
+			return instruction;
+		} else if (expression instanceof UnaryOperationNode) {
+			UnaryOperationNode unaryNode = (UnaryOperationNode) expression;
+			Instruction operand = buildExpression(unaryNode.getExpression());
+			if (unaryNode.getUnaryOperationType() == UnaryOperationType.PLUS)
+				return operand;
+
+			Instruction instruction = newInstruction(InstructionType.UNARY, expression);
+			instruction.setUnaryOperationType(unaryNode.getUnaryOperationType());
+			instruction.getOperands().add(operand);
+			return instruction;
+		} else if (expression instanceof CastingExpressionNode) {
+			Instruction operand = buildExpression(((CastingExpressionNode) expression).getExpression());
+			if (operand.getLiteralType() == expression.getLiteralType())
+				return operand;
+
+			Instruction instruction = newInstruction(((CastingExpressionNode) expression).isReinterpret()
+					? InstructionType.REINTERPRET : InstructionType.CAST, expression);
+			instruction.getOperands().add(operand);
+			return instruction;
+		} else if (expression instanceof FunctionCallExpressionNode) {
+			FunctionCallExpressionNode callNode = (FunctionCallExpressionNode) expression;
+
+			// the arguments are evaluated before the call is added to the block
+			Instruction[] arguments = new Instruction[callNode.getArguments().size()];
+			for (int i = 0; i < arguments.length; i++)
+				arguments[i] = buildExpression(callNode.getArguments().get(i));
+
+			Instruction instruction = newInstruction(InstructionType.CALL, expression);
+			instruction.setFunctionName(callNode.getFunctionName());
+			for (Instruction argument : arguments)
+				instruction.getOperands().add(argument);
+			return instruction;
+		}
+
+		throw new IllegalStateException("Unknown expression " + expression);
+	}
+
+	private Instruction newInstruction(InstructionType type, ExpressionNode expression) {
+		Instruction instruction = function.newInstruction(type, expression.getLiteralType());
+		instruction.setLine(expression.getLine());
+		instruction.setPos(expression.getPos());
+		currentBlock.addInstruction(instruction);
+		return instruction;
+	}
+
+	private void terminate(InstructionType type, Instruction operand, Node position, BasicBlock... successors) {
+		Instruction terminator = function.newInstruction(type, null);
+		if (operand != null)
+			terminator.getOperands().add(operand);
+		if (position != null) {
+			terminator.setLine(position.getLine());
+			terminator.setPos(position.getPos());
+		}
+
+		currentBlock.setTerminator(terminator);
+		for (BasicBlock successor : successors)
+			function.addEdge(currentBlock, successor);
+	}
+
+	private void startBlock(BasicBlock block) {
+		currentBlock = block;
+
+		Region blockRegion = new Region(RegionType.BLOCK);
+		blockRegion.setBlock(block);
+		currentSequence.getChildren().add(blockRegion);
+	}
+
+	private void assign(String varName, Instruction value) {
+		// the name of the variable is kept for the local the value is lowered to
+		if (value.getVariable() == null && value.getBlock() != null)
+			value.setVariable(localSymbolTable.get(varName));
+
+		writeVariable(varName, currentBlock, value);
+	}
+
+	private void writeVariable(String varName, BasicBlock block, Instruction value) {
+		definitions.computeIfAbsent(varName, k -> new HashMap<>()).put(block, value);
+	}
+
+	private Instruction readVariable(String varName, BasicBlock block) {
+		Instruction value = definitions.computeIfAbsent(varName, k -> new HashMap<>()).get(block);
+		if (value != null)
+			return value.find();
+
+		if (!sealedBlocks.contains(block)) {
+			// the operands are added when all the predecessors are known
+			value = newPhi(varName, block);
+			incompletePhis.computeIfAbsent(block, k -> new LinkedHashMap<>()).put(varName, value);
+		} else if (block.getPredecessors().size() == 1) {
+			value = readVariable(varName, block.getPredecessors().get(0));
+		} else {
+			// written first to break the cycles of loops
+			Instruction phi = newPhi(varName, block);
+			writeVariable(varName, block, phi);
+			value = addPhiOperands(varName, phi);
+		}
+
+		writeVariable(varName, block, value);
+		return value;
+	}
+
+	private Instruction newPhi(String varName, BasicBlock block) {
+		VariableDeclarationNode varDeclNode = localSymbolTable.get(varName);
+
+		Instruction phi = function.newInstruction(InstructionType.PHI,
+				LiteralType.getLiteralTypeFromString(varDeclNode.getType()));
+		phi.setVariable(varDeclNode);
+		block.addPhi(phi);
+		return phi;
+	}
+
+	private Instruction addPhiOperands(String varName, Instruction phi) {
+		for (BasicBlock predecessor : phi.getBlock().getPredecessors())
+			phi.getOperands().add(readVariable(varName, predecessor));
+
+		return removeTrivialPhi(phi);
+	}
+
+	// a phi whose operands are all the same value or the phi itself is that value
+	private Instruction removeTrivialPhi(Instruction phi) {
+		Instruction same = null;
+		for (Instruction operand : phi.getOperands()) {
+			operand = operand.find();
+			if (operand == same || operand == phi)
+				continue;
+			if (same != null)
+				return phi;
+
+			same = operand;
+		}
+
+		// the block cannot be reached
+		if (same == null)
+			same = function.newConstant(phi.getLiteralType(), 0);
+
+		phi.setReplacement(same);
+		return same;
+	}
+
+	private void sealBlock(BasicBlock block) {
+		Map<String, Instruction> phis = incompletePhis.remove(block);
+		if (phis != null) {
+			for (Map.Entry<String, Instruction> entry : phis.entrySet())
+				addPhiOperands(entry.getKey(), entry.getValue());
+		}
+
+		sealedBlocks.add(block);
+	}
+}
@@ -0,0 +1,226 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.enums.InstructionType;
+import compiler.enums.LiteralType;
+import compiler.nodes.FunctionStatementNode;
+import compiler.optimizer.Evaluator;
+
+public class IRFunction {
+
+	private FunctionStatementNode functionNode;
+	private List<BasicBlock> blocks = new ArrayList<>();
+	private List<Instruction> parameters = new ArrayList<>();
+	private Region region;
+
+	private int nextInstructionId, nextBlockId;
+
+	public IRFunction(FunctionStatementNode functionNode) {
+		this.functionNode = functionNode;
+	}
+
+	public Instruction newInstruction(InstructionType type, LiteralType literalType) {
+		return new Instruction(nextInstructionId++, type, literalType);
+	}
+
+	public Instruction newConstant(LiteralType literalType, Number number) {
+		Instruction constant = newInstruction(InstructionType.CONSTANT, literalType);
+		constant.setNumber(Evaluator.ToValue(number, literalType));
+		return constant;
+	}
+
+	public BasicBlock newBlock() {
+		BasicBlock block = new BasicBlock(nextBlockId++);
+		blocks.add(block);
+		return block;
+	}
+
+	public void addEdge(BasicBlock from, BasicBlock to) {
+		from.getSuccessors().add(to);
+		to.getPredecessors().add(from);
+	}
+
+	// removes the edge and the phi operands that came from it
+	public void removeEdge(BasicBlock from, BasicBlock to) {
+		int index = to.getPredecessors().indexOf(from);
+		to.getPredecessors().remove(index);
+		for (Instruction phi : to.getPhis())
+			phi.getOperands().remove(index);
+
+		from.getSuccessors().remove(to);
+	}
+
+	public boolean removeUnreachableBlocks() {
+		Set<BasicBlock> reachable = new HashSet<>(getReversePostorder());
+		if (reachable.size() == blocks.size())
+			return false;
+
+		for (BasicBlock block : blocks) {
+			if (reachable.contains(block))
+				continue;
+
+			for (BasicBlock successor : new ArrayList<>(block.getSuccessors())) {
+				if (reachable.contains(successor))
+					removeEdge(block, successor);
+			}
+		}
+
+		blocks.retainAll(reachable);
+		return true;
+	}
+
+	// drops the replaced instructions and redirects their uses
+	public void cleanup() {
+		for (BasicBlock block : blocks) {
+			block.getPhis().removeIf(phi -> phi.getReplacement() != null);
+			block.getInstructions().removeIf(instruction -> instruction.getReplacement() != null);
+
+			for (Instruction instruction : getInstructions(block))
+				instruction.getOperands().replaceAll(Instruction::find);
+		}
+	}
+
+	// the phis, the instructions and the terminator of a block
+	public List<Instruction> getInstructions(BasicBlock block) {
+		List<Instruction> instructions = new ArrayList<>(block.getPhis());
+		instructions.addAll(block.getInstructions());
+		if (block.getTerminator() != null)
+			instructions.add(block.getTerminator());
+
+		return instructions;
+	}
+
+	public List<BasicBlock> getReversePostorder() {
+		List<BasicBlock> postorder = new ArrayList<>();
+		Set<BasicBlock> visited = new HashSet<>();
+		List<BasicBlock> stack = new ArrayList<>();
+		List<Integer> nextSuccessor = new ArrayList<>();
+
+		stack.add(getEntry());
+		nextSuccessor.add(0);
+		visited.add(getEntry());
+
+		while (!stack.isEmpty()) {
+			int top = stack.size() - 1;
+			BasicBlock block = stack.get(top);
+			int next = nextSuccessor.get(top);
+
+			if (next < block.getSuccessors().size()) {
+				nextSuccessor.set(top, next + 1);
+				BasicBlock successor = block.getSuccessors().get(next);
+				if (visited.add(successor)) {
+					stack.add(successor);
+					nextSuccessor.add(0);
+				}
+			} else {
+				postorder.add(block);
+				stack.remove(top);
+				nextSuccessor.remove(top);
+			}
+		}
+
+		Collections.reverse(postorder);
+		return postorder;
+	}
+
+	// the immediate dominator of every reachable block, as described in "A Simple,
+	// Fast Dominance Algorithm" by Cooper, Harvey and Kennedy
+	public Map<BasicBlock, BasicBlock> getDominators() {
+		List<BasicBlock> order = getReversePostorder();
+		Map<BasicBlock, Integer> indices = new HashMap<>();
+		for (int i = 0; i < order.size(); i++)
+			indices.put(order.get(i), i);
+
+		Map<BasicBlock, BasicBlock> dominators = new HashMap<>();
+		dominators.put(getEntry(), getEntry());
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+
+			for (int i = 1; i < order.size(); i++) {
+				BasicBlock block = order.get(i);
+				BasicBlock dominator = null;
+				for (BasicBlock predecessor : block.getPredecessors()) {
+					if (!dominators.containsKey(predecessor))
+						continue;
+
+					dominator = dominator == null ? predecessor
+							: intersect(predecessor, dominator, dominators, indices);
+				}
+
+				if (dominators.get(block) != dominator) {
+					dominators.put(block, dominator);
+					changed = true;
+				}
+			}
+		}
+
+		return dominators;
+	}
+
+	private BasicBlock intersect(BasicBlock a, BasicBlock b, Map<BasicBlock, BasicBlock> dominators,
+			Map<BasicBlock, Integer> indices) {
+		while (a != b) {
+			while (indices.get(a) > indices.get(b))
+				a = dominators.get(a);
+			while (indices.get(b) > indices.get(a))
+				b = dominators.get(b);
+		}
+
+		return a;
+	}
+
+	public FunctionStatementNode getFunctionNode() {
+		return functionNode;
+	}
+
+	public BasicBlock getEntry() {
+		return blocks.get(0);
+	}
+
+	public List<BasicBlock> getBlocks() {
+		return blocks;
+	}
+
+	public List<Instruction> getParameters() {
+		return parameters;
+	}
+
+	public Region getRegion() {
+		return region;
+	}
+
+	public void setRegion(Region region) {
+		this.region = region;
+	}
+
+	public void print(PrintStream out) {
+		out.println("function " + functionNode.getName() + " " + parameters);
+		for (BasicBlock block : blocks)
+			block.print(out);
+	}
+}
@@ -0,0 +1,485 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.enums.InstructionType;
+import compiler.enums.LiteralType;
+import compiler.nodes.BinaryOperationNode;
+import compiler.nodes.BooleanExpressionNode;
+import compiler.nodes.CastingExpressionNode;
+import compiler.nodes.ExpressionNode;
+import compiler.nodes.FunctionCallExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IdentifierExpressionNode;
+import compiler.nodes.IfStatementNode;
+import compiler.nodes.Node;
+import compiler.nodes.ReturnStatementNode;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.StatementNode;
+import compiler.nodes.UnaryOperationNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.nodes.WhileStatementNode;
+import compiler.optimizer.OptimizerUtils;
+
+// Turns the SSA form back into the statements of the function, following its
+// regions. Every phi and every value that is used in another block, or more
+// than once, gets its own local. The rest of the values are emitted inside the
+// expression that uses them, as long as the calls and the instructions that can
+// trap stay in their order.
+//
+// The phis are assigned at the end of their predecessors, before the condition
+// for the false edge of a branch. The header of a loop is emitted before the
+// loop and again at the end of its body, the condition is the last value.
+public class IRLowering {
+
+	private IRFunction function;
+	private Map<String, VariableDeclarationNode> localSymbolTable;
+	private FunctionStatementNode functionNode;
+
+	private Set<BasicBlock> blocks;
+	private Map<Instruction, Integer> useCounts;
+	private Map<Instruction, BasicBlock> useBlocks;
+	private Set<Instruction> inlined;
+	private Map<Instruction, VariableDeclarationNode> locals;
+	private Map<BasicBlock, ExpressionNode> conditions;
+
+	public IRLowering(IRFunction function, Map<String, VariableDeclarationNode> localSymbolTable) {
+		this.function = function;
+		this.localSymbolTable = localSymbolTable;
+		this.functionNode = function.getFunctionNode();
+	}
+
+	public void lower() {
+		blocks = new HashSet<>(function.getBlocks());
+		useCounts = new HashMap<>();
+		useBlocks = new HashMap<>();
+		inlined = new HashSet<>();
+		locals = new HashMap<>();
+		conditions = new HashMap<>();
+
+		countUses();
+		for (BasicBlock block : function.getBlocks())
+			chooseInlined(block);
+
+		// the variables of the source are replaced by the locals of the values
+		localSymbolTable.values().removeIf(varDeclNode -> !functionNode.getArguments().contains(varDeclNode));
+
+		List<StatementNode> statements = new ArrayList<>();
+		lowerRegion(function.getRegion(), statements);
+		functionNode.setStatementBlock(newBlock(statements));
+	}
+
+	private void countUses() {
+		for (BasicBlock block : function.getBlocks()) {
+			for (Instruction phi : block.getPhis()) {
+				for (int i = 0; i < phi.getOperands().size(); i++)
+					addUse(phi.getOperand(i), block.getPredecessors().get(i));
+			}
+
+			List<Instruction> instructions = new ArrayList<>(block.getInstructions());
+			instructions.add(block.getTerminator());
+			for (Instruction instruction : instructions) {
+				for (int i = 0; i < instruction.getOperands().size(); i++)
+					addUse(instruction.getOperand(i), block);
+			}
+		}
+	}
+
+	private void addUse(Instruction instruction, BasicBlock block) {
+		useCounts.merge(instruction, 1, Integer::sum);
+		useBlocks.put(instruction, block);
+	}
+
+	// a value that is only used once, later in its own block, is emitted where
+	// it is used unless that changes the order of the calls and the traps
+	private void chooseInlined(BasicBlock block) {
+		List<Instruction> expected = new ArrayList<>();
+		for (Instruction instruction : block.getInstructions()) {
+			if (useCounts.getOrDefault(instruction, 0) == 1 && useBlocks.get(instruction) == block)
+				inlined.add(instruction);
+			if (instruction.isOrdered())
+				expected.add(instruction);
+		}
+
+		while (true) {
+			List<Instruction> emitted = new ArrayList<>();
+			for (Instruction instruction : block.getInstructions()) {
+				if (!inlined.contains(instruction))
+					collectOrdered(instruction, emitted);
+			}
+
+			BasicBlock successor = getCopySuccessor(block);
+			if (successor != null) {
+				int index = successor.getPredecessors().indexOf(block);
+				for (Instruction phi : successor.getPhis())
+					collectOperand(phi.getOperand(index), emitted);
+			}
+
+			for (int i = 0; i < block.getTerminator().getOperands().size(); i++)
+				collectOperand(block.getTerminator().getOperand(i), emitted);
+
+			int i = 0;
+			while (i < expected.size() && i < emitted.size() && emitted.get(i) == expected.get(i))
+				i++;
+
+			if (i == expected.size())
+				break;
+
+			// the first instruction out of order gets its own local
+			inlined.remove(inlined.contains(expected.get(i)) ? expected.get(i) : emitted.get(i));
+		}
+	}
+
+	private void collectOperand(Instruction operand, List<Instruction> emitted) {
+		if (inlined.contains(operand))
+			collectOrdered(operand, emitted);
+	}
+
+	private void collectOrdered(Instruction instruction, List<Instruction> emitted) {
+		for (int i = 0; i < instruction.getOperands().size(); i++)
+			collectOperand(instruction.getOperand(i), emitted);
+
+		if (instruction.isOrdered())
+			emitted.add(instruction);
+	}
+
+	// the successor whose phis are assigned at the end of the block
+	private BasicBlock getCopySuccessor(BasicBlock block) {
+		switch (block.getTerminator().getType()) {
+		case JUMP:
+			return block.getSuccessors().get(0);
+		case BRANCH:
+			return block.getSuccessors().get(1);
+		default:
+			return null;
+		}
+	}
+
+	private void lowerRegion(Region region, List<StatementNode> statements) {
+		switch (region.getType()) {
+		case SEQUENCE:
+			for (Region child : region.getChildren())
+				lowerRegion(child, statements);
+			break;
+		case BLOCK:
+			if (blocks.contains(region.getBlock()))
+				lowerBlock(region.getBlock(), statements);
+			break;
+		case IF:
+			lowerIf(region, statements);
+			break;
+		case LOOP:
+			lowerLoop(region, statements);
+			break;
+		}
+	}
+
+	private void lowerIf(Region region, List<StatementNode> statements) {
+		BasicBlock block = region.getBlock();
+		if (!blocks.contains(block))
+			return;
+
+		Instruction terminator = block.getTerminator();
+		if (terminator.getType() == InstructionType.JUMP) {
+			// the condition was constant, only one of the branches is left
+			if (block.getSuccessors().get(0) == region.getThenBlock())
+				lowerRegion(region.getThenRegion(), statements);
+			else if (region.getElseRegion() != null)
+				lowerRegion(region.getElseRegion(), statements);
+			return;
+		}
+
+		List<ExpressionNode> ifConditions = new ArrayList<>();
+		ifConditions.add(conditions.get(block));
+
+		List<StatementNode> statementBlocks = new ArrayList<>();
+		statementBlocks.add(lowerNested(region.getThenRegion()));
+		if (region.getElseRegion() != null)
+			statementBlocks.add(lowerNested(region.getElseRegion()));
+
+		IfStatementNode ifNode = new IfStatementNode();
+		ifNode.setConditions(ifConditions);
+		ifNode.setStatementBlocks(statementBlocks);
+		setPosition(ifNode, terminator);
+		statements.add(ifNode);
+	}
+
+	private void lowerLoop(Region region, List<StatementNode> statements) {
+		BasicBlock header = region.getBlock();
+		if (!blocks.contains(header))
+			return;
+
+		lowerBlock(header, statements);
+
+		Instruction terminator = header.getTerminator();
+		ExpressionNode condition;
+		if (terminator.getType() == InstructionType.BRANCH) {
+			condition = conditions.get(header);
+		} else if (header.getSuccessors().get(0) == region.getThenBlock()) {
+			BooleanExpressionNode trueNode = new BooleanExpressionNode();
+			trueNode.setValue(true);
+			trueNode.setLiteralType(LiteralType.bool);
+			setPosition(trueNode, terminator);
+			condition = trueNode;
+		} else {
+			// the loop is never entered
+			return;
+		}
+
+		List<StatementNode> body = new ArrayList<>();
+		lowerRegion(region.getThenRegion(), body);
+
+		// the body jumps back to the header, which computes the condition again
+		if (header.getPredecessors().size() > 1)
+			lowerBlock(header, body);
+
+		WhileStatementNode whileNode = new WhileStatementNode();
+		whileNode.setConditionNode(condition);
+		whileNode.setStatementBlock(newBlock(body));
+		setPosition(whileNode, terminator);
+		statements.add(whileNode);
+	}
+
+	private StatementBlockNode lowerNested(Region region) {
+		List<StatementNode> statements = new ArrayList<>();
+		lowerRegion(region, statements);
+		return newBlock(statements);
+	}
+
+	private void lowerBlock(BasicBlock block, List<StatementNode> statements) {
+		for (Instruction instruction : block.getInstructions()) {
+			if (inlined.contains(instruction))
+				continue;
+
+			ExpressionNode expression = lowerInstruction(instruction);
+			if (useCounts.getOrDefault(instruction, 0) == 0)
+				statements.add(expression);
+			else
+				statements.add(OptimizerUtils.NewAssignment(getLocal(instruction), expression, expression));
+		}
+
+		BasicBlock successor = getCopySuccessor(block);
+		if (successor != null)
+			lowerCopies(block, successor, statements);
+
+		Instruction terminator = block.getTerminator();
+		if (terminator.getType() == InstructionType.BRANCH) {
+			conditions.put(block, lowerOperand(terminator.getOperand(0)));
+		} else if (terminator.getType() == InstructionType.RETURN && !terminator.getOperands().isEmpty()) {
+			ReturnStatementNode returnNode = new ReturnStatementNode();
+			returnNode.setExpression(lowerOperand(terminator.getOperand(0)));
+			setPosition(returnNode, terminator);
+			statements.add(returnNode);
+		}
+	}
+
+	// the phis are assigned all at once. A phi is assigned when no other value
+	// still reads it, and a cycle of phis is broken with a temporary local. The
+	// values with calls or traps keep their order, they are all computed into
+	// temporary locals first if one of them would be overwritten.
+	private void lowerCopies(BasicBlock block, BasicBlock successor, List<StatementNode> statements) {
+		int index = successor.getPredecessors().indexOf(block);
+
+		List<VariableDeclarationNode> targets = new ArrayList<>();
+		List<ExpressionNode> values = new ArrayList<>();
+		for (Instruction phi : successor.getPhis()) {
+			Instruction operand = phi.getOperand(index);
+			if (operand == phi)
+				continue;
+
+			targets.add(getLocal(phi));
+			values.add(lowerOperand(operand));
+		}
+
+		boolean overlapping = false, ordered = false;
+		for (int j = 0; j < values.size(); j++) {
+			for (int i = 0; i < j; i++)
+				overlapping |= reads(values.get(j), targets.get(i).getVarName());
+
+			ordered |= !OptimizerUtils.IsPure(values.get(j)) || OptimizerUtils.CanTrap(values.get(j));
+		}
+
+		if (!overlapping) {
+			for (int i = 0; i < values.size(); i++)
+				statements.add(OptimizerUtils.NewAssignment(targets.get(i), values.get(i), values.get(i)));
+			return;
+		}
+
+		if (!ordered) {
+			sequentialize(targets, values, statements);
+			return;
+		}
+
+		List<VariableDeclarationNode> temporaries = new ArrayList<>();
+		for (int i = 0; i < values.size(); i++) {
+			VariableDeclarationNode temporary = OptimizerUtils.NewLocal(localSymbolTable, "phi",
+					targets.get(i).getType());
+			temporaries.add(temporary);
+			statements.add(OptimizerUtils.NewAssignment(temporary, values.get(i), values.get(i)));
+		}
+
+		for (int i = 0; i < values.size(); i++) {
+			statements.add(OptimizerUtils.NewAssignment(targets.get(i),
+					OptimizerUtils.NewIdentifier(temporaries.get(i), values.get(i)), values.get(i)));
+		}
+	}
+
+	private void sequentialize(List<VariableDeclarationNode> targets, List<ExpressionNode> values,
+			List<StatementNode> statements) {
+		while (!targets.isEmpty()) {
+			int free = -1;
+			for (int i = 0; i < targets.size() && free == -1; i++) {
+				free = i;
+				for (int j = 0; j < values.size(); j++) {
+					if (j != i && reads(values.get(j), targets.get(i).getVarName()))
+						free = -1;
+				}
+			}
+
+			if (free != -1) {
+				statements.add(OptimizerUtils.NewAssignment(targets.get(free), values.get(free), values.get(free)));
+				targets.remove(free);
+				values.remove(free);
+				continue;
+			}
+
+			// every phi left is still read, the first one is saved
+			VariableDeclarationNode target = targets.get(0);
+			VariableDeclarationNode temporary = OptimizerUtils.NewLocal(localSymbolTable, "phi", target.getType());
+			statements.add(OptimizerUtils.NewAssignment(temporary, OptimizerUtils.NewIdentifier(target, functionNode),
+					functionNode));
+
+			for (int j = 1; j < values.size(); j++)
+				rename(values.get(j), target.getVarName(), temporary.getVarName());
+		}
+	}
+
+	private void rename(Node node, String varName, String newName) {
+		if (node instanceof IdentifierExpressionNode && ((IdentifierExpressionNode) node).getName().equals(varName))
+			((IdentifierExpressionNode) node).setName(newName);
+
+		for (Node child : OptimizerUtils.GetChildren(node))
+			rename(child, varName, newName);
+	}
+
+	private boolean reads(Node node, String varName) {
+		if (node instanceof IdentifierExpressionNode && ((IdentifierExpressionNode) node).getName().equals(varName))
+			return true;
+
+		for (Node child : OptimizerUtils.GetChildren(node)) {
+			if (reads(child, varName))
+				return true;
+		}
+
+		return false;
+	}
+
+	private ExpressionNode lowerOperand(Instruction operand) {
+		switch (operand.getType()) {
+		case CONSTANT:
+			if (operand.getLiteralType() == LiteralType.bool) {
+				BooleanExpressionNode booleanNode = new BooleanExpressionNode();
+				booleanNode.setValue(operand.getNumber().intValue() != 0);
+				booleanNode.setLiteralType(LiteralType.bool);
+				setPosition(booleanNode, operand);
+				return booleanNode;
+			}
+
+			return OptimizerUtils.NewNumber(operand.getNumber(), operand.getLiteralType(), functionNode);
+		case PARAMETER:
+			return OptimizerUtils.NewIdentifier(operand.getVariable(), functionNode);
+		default:
+			if (inlined.contains(operand))
+				return lowerInstruction(operand);
+
+			ExpressionNode identifier = OptimizerUtils.NewIdentifier(getLocal(operand), functionNode);
+			setPosition(identifier, operand);
+			return identifier;
+		}
+	}
+
+	private ExpressionNode lowerInstruction(Instruction instruction) {
+		ExpressionNode expression;
+
+		switch (instruction.getType()) {
+		case BINARY:
+			BinaryOperationNode binaryNode = new BinaryOperationNode();
+			binaryNode.setBinaryOperationType(instruction.getBinaryOperationType());
+			binaryNode.setLeftExpression(lowerOperand(instruction.getOperand(0)));
+			binaryNode.setRightExpression(lowerOperand(instruction.getOperand(1)));
+			expression = binaryNode;
+			break;
+		case UNARY:
+			UnaryOperationNode unaryNode = new UnaryOperationNode();
+			unaryNode.setUnaryOperationType(instruction.getUnaryOperationType());
+			unaryNode.setExpression(lowerOperand(instruction.getOperand(0)));
+			expression = unaryNode;
+			break;
+		case CAST:
+			expression = OptimizerUtils.NewCast(lowerOperand(instruction.getOperand(0)),
+					instruction.getLiteralType(), functionNode);
+			break;
+		case REINTERPRET:
+			CastingExpressionNode castingNode = OptimizerUtils.NewCast(lowerOperand(instruction.getOperand(0)),
+					instruction.getLiteralType(), functionNode);
+			castingNode.setReinterpret(true);
+			expression = castingNode;
+			break;
+		case CALL:
+			List<ExpressionNode> arguments = new ArrayList<>();
+			for (int i = 0; i < instruction.getOperands().size(); i++)
+				arguments.add(lowerOperand(instruction.getOperand(i)));
+
+			FunctionCallExpressionNode callNode = new FunctionCallExpressionNode();
+			callNode.setFunctionName(instruction.getFunctionName());
+			callNode.setArguments(arguments);
+			expression = callNode;
+			break;
+		default:
+			throw new IllegalStateException("Cannot lower " + instruction.describe());
+		}
+
+		expression.setLiteralType(instruction.getLiteralType());
+		setPosition(expression, instruction);
+		return expression;
+	}
+
+	private VariableDeclarationNode getLocal(Instruction instruction) {
+		return locals.computeIfAbsent(instruction, k -> OptimizerUtils.NewLocal(localSymbolTable,
+				instruction.getVariable() != null ? instruction.getVariable().getVarName() : "ssa",
+				instruction.getLiteralType().toString()));
+	}
+
+	private StatementBlockNode newBlock(List<StatementNode> statements) {
+		StatementBlockNode statementBlock = new StatementBlockNode();
+		statementBlock.setStatements(statements);
+		statementBlock.setLine(functionNode.getLine());
+		statementBlock.setPos(functionNode.getPos());
+		return statementBlock;
+	}
+
+	private void setPosition(Node node, Instruction instruction) {
+		node.setLine(instruction.getLine());
+		node.setPos(instruction.getPos());
+	}
+}
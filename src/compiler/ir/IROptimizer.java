@@ -0,0 +1,157 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.Node;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.optimizer.OptimizationPass;
+
+// Builds the SSA form of every function, runs the passes on it until none of
+// them changes anything and lowers it back to statements. Without passes the
+// function is only rebuilt, which already removes its unreachable code.
+//
+// When the passes are timed the time of each pass is summed over the functions
+// and the rounds, along with the number of instructions it removed.
+public class IROptimizer implements OptimizationPass {
+
+	// the passes usually settle after two or three rounds
+	private static final int MAX_ROUNDS = 10;
+
+	private Map<String, FunctionStatementNode> funcSymbolTable;
+	private Map<String, Map<String, VariableDeclarationNode>> localSymbolTables;
+	private boolean showIR;
+
+	private List<String> names = new ArrayList<>();
+	private List<IRPass> passes = new ArrayList<>();
+
+	private boolean timePasses;
+	private long[] times;
+	private int[] removedInstructions;
+	private long buildTime, lowerTime;
+	private int builtInstructions;
+
+	public IROptimizer(Map<String, FunctionStatementNode> funcSymbolTable,
+			Map<String, Map<String, VariableDeclarationNode>> localSymbolTables, boolean showIR) {
+		this.funcSymbolTable = funcSymbolTable;
+		this.localSymbolTables = localSymbolTables;
+		this.showIR = showIR;
+	}
+
+	public void addPass(String name, IRPass pass) {
+		names.add(name);
+		passes.add(pass);
+	}
+
+	@Override
+	public void optimize(Node node) {
+		times = new long[passes.size()];
+		removedInstructions = new int[passes.size()];
+		buildTime = lowerTime = 0;
+		builtInstructions = 0;
+
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			Map<String, VariableDeclarationNode> localSymbolTable = localSymbolTables.get(functionNode.getName());
+
+			long start = System.nanoTime();
+			IRFunction function = new IRBuilder(localSymbolTable).build(functionNode);
+			if (function == null)
+				continue;
+
+			function.removeUnreachableBlocks();
+			function.cleanup();
+			buildTime += System.nanoTime() - start;
+			if (timePasses)
+				builtInstructions += getInstructionCount(function);
+
+			for (int i = 0; i < MAX_ROUNDS; i++) {
+				boolean changed = false;
+				for (int j = 0; j < passes.size(); j++)
+					changed |= runPass(j, function);
+
+				if (!changed)
+					break;
+			}
+
+			if (showIR && !functionNode.isLibrary())
+				function.print(System.out);
+
+			start = System.nanoTime();
+			new IRLowering(function, localSymbolTable).lower();
+			lowerTime += System.nanoTime() - start;
+		}
+	}
+
+	private boolean runPass(int index, IRFunction function) {
+		if (!timePasses)
+			return passes.get(index).run(function);
+
+		int count = getInstructionCount(function);
+		long start = System.nanoTime();
+		boolean changed = passes.get(index).run(function);
+		times[index] += System.nanoTime() - start;
+		removedInstructions[index] += count - getInstructionCount(function);
+
+		return changed;
+	}
+
+	// the replaced instructions are not counted, some passes leave them to the
+	// next cleanup
+	private int getInstructionCount(IRFunction function) {
+		int count = 0;
+		for (BasicBlock block : function.getBlocks()) {
+			for (Instruction instruction : function.getInstructions(block)) {
+				if (instruction.getReplacement() == null)
+					count++;
+			}
+		}
+
+		return count;
+	}
+
+	public void setTimePasses(boolean timePasses) {
+		this.timePasses = timePasses;
+	}
+
+	public List<String> getPassNames() {
+		return names;
+	}
+
+	// the nanoseconds the pass took in the last run
+	public long getTime(int index) {
+		return times[index];
+	}
+
+	public int getRemovedInstructions(int index) {
+		return removedInstructions[index];
+	}
+
+	public long getBuildTime() {
+		return buildTime;
+	}
+
+	public long getLowerTime() {
+		return lowerTime;
+	}
+
+	public int getBuiltInstructions() {
+		return builtInstructions;
+	}
+}
@@ -0,0 +1,423 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.enums.BinaryOperationType;
+import compiler.enums.InstructionType;
+import compiler.enums.LiteralType;
+
+// Finds the basic induction variables of the loops, the i32 phis of a header
+// that are incremented by a constant on the back edge, and the values derived
+// from them as a * i + b. A derived value with a multiplication is replaced by
+// a new phi that starts at a * init + b and is incremented by a * step:
+//
+// while (i < n) { f(p + i * 4); i = i + 1; }  ->  while (i < n) { f(q); i = i + 1; q = q + 4; }
+//
+// The arithmetic wraps around the same way on both sides, so the new phi is
+// always equal to the value it replaces. If the start and the bound of the
+// counter are constants and the derived values cannot overflow, the exit test
+// is rewritten against the new phi and the counter is left to be removed.
+public class InductionVariables implements IRPass {
+
+	private IRFunction function;
+	private Map<Instruction, List<Instruction>> users;
+
+	private BasicBlock header, preheader, latch;
+	private Set<BasicBlock> loopBlocks;
+	private int preheaderIndex, latchIndex;
+
+	// a * i + b + invariant
+	private static class Affine {
+		private int scale, offset;
+		private Instruction invariant;
+
+		private Affine(int scale, int offset, Instruction invariant) {
+			this.scale = scale;
+			this.offset = offset;
+			this.invariant = invariant;
+		}
+	}
+
+	@Override
+	public boolean run(IRFunction function) {
+		this.function = function;
+		boolean changed = false;
+
+		Map<BasicBlock, BasicBlock> dominators = function.getDominators();
+		for (BasicBlock block : new ArrayList<>(function.getBlocks())) {
+			if (block.getPredecessors().size() != 2)
+				continue;
+
+			header = block;
+			latch = null;
+			preheader = null;
+			for (BasicBlock predecessor : block.getPredecessors()) {
+				if (dominates(block, predecessor, dominators))
+					latch = predecessor;
+				else
+					preheader = predecessor;
+			}
+
+			if (latch == null || preheader == null)
+				continue;
+
+			preheaderIndex = header.getPredecessors().indexOf(preheader);
+			latchIndex = header.getPredecessors().indexOf(latch);
+			loopBlocks = getLoopBlocks();
+
+			for (Instruction phi : new ArrayList<>(header.getPhis()))
+				changed |= reduce(phi);
+		}
+
+		if (changed)
+			function.cleanup();
+		return changed;
+	}
+
+	private boolean dominates(BasicBlock dominator, BasicBlock block, Map<BasicBlock, BasicBlock> dominators) {
+		while (block != dominator) {
+			BasicBlock next = dominators.get(block);
+			if (next == null || next == block)
+				return false;
+			block = next;
+		}
+
+		return true;
+	}
+
+	// the blocks that reach the latch without going through the header
+	private Set<BasicBlock> getLoopBlocks() {
+		Set<BasicBlock> blocks = new HashSet<>();
+		blocks.add(header);
+
+		List<BasicBlock> worklist = new ArrayList<>();
+		if (blocks.add(latch))
+			worklist.add(latch);
+
+		while (!worklist.isEmpty()) {
+			BasicBlock block = worklist.remove(worklist.size() - 1);
+			for (BasicBlock predecessor : block.getPredecessors()) {
+				if (blocks.add(predecessor))
+					worklist.add(predecessor);
+			}
+		}
+
+		return blocks;
+	}
+
+	private boolean reduce(Instruction phi) {
+		Integer step = getStep(phi);
+		if (step == null)
+			return false;
+
+		computeUsers();
+
+		Map<Instruction, Affine> forms = new LinkedHashMap<>();
+		forms.put(phi, new Affine(1, 0, null));
+		for (BasicBlock block : function.getReversePostorder()) {
+			if (!loopBlocks.contains(block))
+				continue;
+
+			for (Instruction instruction : block.getInstructions()) {
+				Affine form = getAffine(instruction, forms);
+				if (form != null)
+					forms.put(instruction, form);
+			}
+		}
+
+		// only the largest derived values are reduced, the values they are
+		// computed from are left unused
+		Map<Instruction, Affine> reduced = new LinkedHashMap<>();
+		for (Map.Entry<Instruction, Affine> entry : forms.entrySet()) {
+			Instruction instruction = entry.getKey();
+			if (entry.getValue().scale == 1)
+				continue;
+
+			for (Instruction user : users.getOrDefault(instruction, new ArrayList<>())) {
+				if (!forms.containsKey(user) || user.getType() == InstructionType.PHI) {
+					reduced.put(instruction, entry.getValue());
+					break;
+				}
+			}
+		}
+
+		if (reduced.isEmpty())
+			return false;
+
+		Instruction init = phi.getOperand(preheaderIndex);
+		Instruction replacement = null;
+		Affine replacementForm = null;
+		for (Map.Entry<Instruction, Affine> entry : reduced.entrySet()) {
+			Affine form = entry.getValue();
+
+			Instruction start = init;
+			if (form.scale != 1)
+				start = newBinary(BinaryOperationType.MULTIPLICATION, start, constant(form.scale), preheader);
+			if (form.offset != 0)
+				start = newBinary(BinaryOperationType.ADDITION, start, constant(form.offset), preheader);
+			if (form.invariant != null)
+				start = newBinary(BinaryOperationType.ADDITION, start, form.invariant, preheader);
+
+			Instruction newPhi = function.newInstruction(InstructionType.PHI, LiteralType.i32);
+			newPhi.setVariable(entry.getKey().getVariable());
+			header.addPhi(newPhi);
+
+			Instruction next = newBinary(BinaryOperationType.ADDITION, newPhi, constant(form.scale * step), latch);
+			newPhi.getOperands().add(null);
+			newPhi.getOperands().add(null);
+			newPhi.getOperands().set(preheaderIndex, start);
+			newPhi.getOperands().set(latchIndex, next);
+
+			entry.getKey().setReplacement(newPhi);
+
+			if (replacement == null && form.invariant == null && form.scale != 0) {
+				replacement = newPhi;
+				replacementForm = form;
+			}
+		}
+
+		if (replacement != null)
+			replaceExitTest(phi, step, replacement, replacementForm);
+
+		return true;
+	}
+
+	// the constant step of a phi that is incremented on the back edge
+	private Integer getStep(Instruction phi) {
+		if (phi.getLiteralType() != LiteralType.i32 || phi.getOperands().size() != 2)
+			return null;
+
+		Instruction next = phi.getOperand(latchIndex);
+		if (next.getType() != InstructionType.BINARY)
+			return null;
+
+		Instruction left = next.getOperand(0);
+		Instruction right = next.getOperand(1);
+		if (next.getBinaryOperationType() == BinaryOperationType.ADDITION) {
+			if (left == phi && right.isConstant())
+				return right.getNumber().intValue();
+			if (right == phi && left.isConstant())
+				return left.getNumber().intValue();
+		} else if (next.getBinaryOperationType() == BinaryOperationType.SUBTRACTION) {
+			if (left == phi && right.isConstant())
+				return -right.getNumber().intValue();
+		}
+
+		return null;
+	}
+
+	private Affine getAffine(Instruction instruction, Map<Instruction, Affine> forms) {
+		if (instruction.getType() != InstructionType.BINARY || instruction.getLiteralType() != LiteralType.i32)
+			return null;
+
+		Instruction left = instruction.getOperand(0);
+		Instruction right = instruction.getOperand(1);
+		Affine leftForm = forms.get(left);
+		Affine rightForm = forms.get(right);
+
+		switch (instruction.getBinaryOperationType()) {
+		case ADDITION:
+			if (leftForm != null && rightForm == null)
+				return add(leftForm, right);
+			if (rightForm != null && leftForm == null)
+				return add(rightForm, left);
+			break;
+		case SUBTRACTION:
+			if (leftForm != null && right.isConstant())
+				return new Affine(leftForm.scale, leftForm.offset - right.getNumber().intValue(), leftForm.invariant);
+			break;
+		case MULTIPLICATION:
+			if (leftForm != null && right.isConstant())
+				return multiply(leftForm, right.getNumber().intValue());
+			if (rightForm != null && left.isConstant())
+				return multiply(rightForm, left.getNumber().intValue());
+			break;
+		case SHIFT_LEFT:
+			if (leftForm != null && right.isConstant())
+				return multiply(leftForm, 1 << right.getNumber().intValue());
+			break;
+		default:
+			break;
+		}
+
+		return null;
+	}
+
+	private Affine add(Affine form, Instruction value) {
+		if (value.isConstant())
+			return new Affine(form.scale, form.offset + value.getNumber().intValue(), form.invariant);
+
+		// only one value that is computed before the loop
+		boolean invariant = value.getType() == InstructionType.PARAMETER
+				|| (value.getBlock() != null && !loopBlocks.contains(value.getBlock()));
+		if (!invariant || form.invariant != null)
+			return null;
+
+		return new Affine(form.scale, form.offset, value);
+	}
+
+	private Affine multiply(Affine form, int factor) {
+		if (form.invariant != null)
+			return null;
+
+		return new Affine(form.scale * factor, form.offset * factor, null);
+	}
+
+	// i < n -> a * i + b < a * n + b, when neither side can overflow
+	private void replaceExitTest(Instruction phi, int step, Instruction replacement, Affine form) {
+		Instruction terminator = header.getTerminator();
+		if (terminator.getType() != InstructionType.BRANCH)
+			return;
+
+		Instruction condition = terminator.getOperand(0);
+		if (condition.getType() != InstructionType.BINARY || condition.getOperand(0) != phi
+				|| !condition.getOperand(1).isConstant() || getLiveUsers(condition).size() != 1)
+			return;
+
+		// the counter can only be used by its step and the exit test
+		Instruction next = phi.getOperand(latchIndex);
+		for (Instruction user : getLiveUsers(phi)) {
+			if (user != next && user != condition)
+				return;
+		}
+		for (Instruction user : getLiveUsers(next)) {
+			if (user != phi)
+				return;
+		}
+
+		Instruction init = phi.getOperand(preheaderIndex);
+		if (!init.isConstant())
+			return;
+
+		long start = init.getNumber().intValue();
+		long bound = condition.getOperand(1).getNumber().intValue();
+		BinaryOperationType operationType = condition.getBinaryOperationType();
+
+		// the value of the counter when the loop exits
+		long end;
+		switch (operationType) {
+		case LESS_THAN:
+			if (step <= 0)
+				return;
+			end = start >= bound ? start : start + (bound - start + step - 1) / step * step;
+			break;
+		case LESS_EQUAL:
+			if (step <= 0)
+				return;
+			end = start > bound ? start : start + ((bound - start) / step + 1) * step;
+			break;
+		case GREATER_THAN:
+			if (step >= 0)
+				return;
+			end = start <= bound ? start : start - (start - bound - step - 1) / -step * -step;
+			break;
+		case GREATER_EQUAL:
+			if (step >= 0)
+				return;
+			end = start < bound ? start : start - ((start - bound) / -step + 1) * -step;
+			break;
+		default:
+			return;
+		}
+
+		if (!fits(end) || !fits(start * form.scale + form.offset) || !fits(end * form.scale + form.offset)
+				|| !fits(bound * form.scale + form.offset))
+			return;
+
+		if (form.scale < 0)
+			operationType = flip(operationType);
+
+		condition.getOperands().set(0, replacement);
+		condition.getOperands().set(1, constant((int) (bound * form.scale + form.offset)));
+		condition.setBinaryOperationType(operationType);
+	}
+
+	private boolean fits(long value) {
+		return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+	}
+
+	private BinaryOperationType flip(BinaryOperationType operationType) {
+		switch (operationType) {
+		case LESS_THAN:
+			return BinaryOperationType.GREATER_THAN;
+		case LESS_EQUAL:
+			return BinaryOperationType.GREATER_EQUAL;
+		case GREATER_THAN:
+			return BinaryOperationType.LESS_THAN;
+		default:
+			return BinaryOperationType.LESS_EQUAL;
+		}
+	}
+
+	private void computeUsers() {
+		users = new HashMap<>();
+		for (BasicBlock block : function.getBlocks()) {
+			for (Instruction instruction : function.getInstructions(block)) {
+				for (int i = 0; i < instruction.getOperands().size(); i++)
+					users.computeIfAbsent(instruction.getOperand(i), k -> new ArrayList<>()).add(instruction);
+			}
+		}
+	}
+
+	// the users that are not replaced and still used themselves
+	private List<Instruction> getLiveUsers(Instruction instruction) {
+		List<Instruction> liveUsers = new ArrayList<>();
+		for (Instruction user : users.getOrDefault(instruction, new ArrayList<>())) {
+			if (!isDead(user, new HashSet<>()))
+				liveUsers.add(user);
+		}
+
+		return liveUsers;
+	}
+
+	private boolean isDead(Instruction instruction, Set<Instruction> visited) {
+		if (instruction.getReplacement() != null)
+			return true;
+		if (instruction.isTerminator() || instruction.isOrdered() || instruction.getType() == InstructionType.PHI
+				|| !visited.add(instruction))
+			return false;
+
+		for (Instruction user : users.getOrDefault(instruction, new ArrayList<>())) {
+			if (!isDead(user, visited))
+				return false;
+		}
+
+		return true;
+	}
+
+	private Instruction constant(int value) {
+		return function.newConstant(LiteralType.i32, value);
+	}
+
+	// added at the end of the block, before its terminator
+	private Instruction newBinary(BinaryOperationType operationType, Instruction left, Instruction right,
+			BasicBlock block) {
+		Instruction instruction = function.newInstruction(InstructionType.BINARY, LiteralType.i32);
+		instruction.setBinaryOperationType(operationType);
+		instruction.getOperands().add(left);
+		instruction.getOperands().add(right);
+		block.addInstruction(instruction);
+		return instruction;
+	}
+}
@@ -0,0 +1,230 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import compiler.enums.BinaryOperationType;
+import compiler.enums.InstructionType;
+import compiler.enums.LiteralType;
+import compiler.enums.UnaryOperationType;
+import compiler.nodes.VariableDeclarationNode;
+
+// An instruction is also the SSA value it computes. Constants and parameters
+// do not belong to a block, they are emitted again wherever they are used.
+public class Instruction {
+
+	private int id;
+	private InstructionType type;
+	private LiteralType literalType;
+	private List<Instruction> operands = new ArrayList<>();
+	private BasicBlock block;
+
+	private BinaryOperationType binaryOperationType;
+	private UnaryOperationType unaryOperationType;
+	private String functionName;
+	private Number number;
+
+	// the parameter, or the variable the value was assigned to
+	private VariableDeclarationNode variable;
+
+	// set when the instruction is removed and its uses have to be redirected
+	private Instruction replacement;
+
+	private int line, pos;
+
+	public Instruction(int id, InstructionType type, LiteralType literalType) {
+		this.id = id;
+		this.type = type;
+		this.literalType = literalType;
+	}
+
+	public Instruction find() {
+		Instruction instruction = this;
+		while (instruction.replacement != null)
+			instruction = instruction.replacement;
+
+		return instruction;
+	}
+
+	public boolean isConstant() {
+		return type == InstructionType.CONSTANT;
+	}
+
+	public boolean isTerminator() {
+		return type == InstructionType.JUMP || type == InstructionType.BRANCH || type == InstructionType.RETURN;
+	}
+
+	// integer division and modulo trap on zero and float to integer conversions
+	// on values out of range
+	public boolean canTrap() {
+		if (type == InstructionType.BINARY) {
+			LiteralType operandType = operands.get(0).getLiteralType();
+			return (binaryOperationType == BinaryOperationType.DIVISION
+					|| binaryOperationType == BinaryOperationType.MODULO)
+					&& (operandType == LiteralType.i32 || operandType == LiteralType.i64);
+		} else if (type == InstructionType.CAST) {
+			LiteralType operandType = operands.get(0).getLiteralType();
+			return (operandType == LiteralType.f32 || operandType == LiteralType.f64)
+					&& (literalType == LiteralType.i32 || literalType == LiteralType.i64);
+		}
+
+		return false;
+	}
+
+	// whether the instruction has to be executed in its original order
+	public boolean isOrdered() {
+		return type == InstructionType.CALL || canTrap();
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public InstructionType getType() {
+		return type;
+	}
+
+	public void setType(InstructionType type) {
+		this.type = type;
+	}
+
+	public LiteralType getLiteralType() {
+		return literalType;
+	}
+
+	public List<Instruction> getOperands() {
+		return operands;
+	}
+
+	public Instruction getOperand(int index) {
+		return operands.get(index).find();
+	}
+
+	public BasicBlock getBlock() {
+		return block;
+	}
+
+	public void setBlock(BasicBlock block) {
+		this.block = block;
+	}
+
+	public BinaryOperationType getBinaryOperationType() {
+		return binaryOperationType;
+	}
+
+	public void setBinaryOperationType(BinaryOperationType binaryOperationType) {
+		this.binaryOperationType = binaryOperationType;
+	}
+
+	public UnaryOperationType getUnaryOperationType() {
+		return unaryOperationType;
+	}
+
+	public void setUnaryOperationType(UnaryOperationType unaryOperationType) {
+		this.unaryOperationType = unaryOperationType;
+	}
+
+	public String getFunctionName() {
+		return functionName;
+	}
+
+	public void setFunctionName(String functionName) {
+		this.functionName = functionName;
+	}
+
+	public Number getNumber() {
+		return number;
+	}
+
+	public void setNumber(Number number) {
+		this.number = number;
+	}
+
+	public VariableDeclarationNode getVariable() {
+		return variable;
+	}
+
+	public void setVariable(VariableDeclarationNode variable) {
+		this.variable = variable;
+	}
+
+	public Instruction getReplacement() {
+		return replacement;
+	}
+
+	public void setReplacement(Instruction replacement) {
+		this.replacement = replacement;
+	}
+
+	public int getLine() {
+		return line;
+	}
+
+	public void setLine(int line) {
+		this.line = line;
+	}
+
+	public int getPos() {
+		return pos;
+	}
+
+	public void setPos(int pos) {
+		this.pos = pos;
+	}
+
+	@Override
+	public String toString() {
+		if (type == InstructionType.CONSTANT)
+			return literalType + " " + (literalType == LiteralType.bool ? String.valueOf(number.intValue() != 0) : number);
+
+		return "v" + id;
+	}
+
+	public String describe() {
+		String description = type.toString();
+		if (literalType != null)
+			description = literalType + " " + description;
+
+		switch (type) {
+		case PARAMETER:
+			description += " " + variable.getVarName();
+			break;
+		case BINARY:
+			description += " " + binaryOperationType;
+			break;
+		case UNARY:
+			description += " " + unaryOperationType;
+			break;
+		case CALL:
+			description += " " + functionName;
+			break;
+		default:
+			break;
+		}
+
+		for (Instruction operand : operands)
+			description += " " + operand.find();
+
+		if (type == InstructionType.JUMP || type == InstructionType.BRANCH) {
+			for (BasicBlock successor : block.getSuccessors())
+				description += " " + successor;
+		}
+
+		return isTerminator() ? description : this + " = " + description;
+	}
+}
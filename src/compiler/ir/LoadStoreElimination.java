@@ -0,0 +1,498 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import compiler.enums.BinaryOperationType;
+import compiler.enums.EffectType;
+import compiler.enums.InstructionType;
+import compiler.enums.LiteralType;
+
+// Removes the calls of the memory access functions whose value is already known,
+// from an earlier load of the same address or a store to it:
+//
+// store_i32(p, x); y = load_i32(p);         -> store_i32(p, x); y = x;
+// a = load_i32(p + 4); b = load_i32(p + 4); -> a = load_i32(p + 4); b = a;
+//
+// The known values are intersected where the blocks join. Two addresses do not
+// overlap if they are the same value plus constants that are far enough apart.
+// A store forgets the values it may overlap and a call of a function that may
+// write to memory forgets all of them.
+//
+// The cell of a loop that is only accessed through the same invariant address
+// and whose value is known before the loop is promoted to a phi, and stored
+// once when the loop exits.
+public class LoadStoreElimination implements IRPass {
+
+	private Map<String, MemoryAccess> accesses;
+	private Map<String, EffectType> functionEffects;
+
+	private IRFunction function;
+	private Map<BasicBlock, Set<Cell>> known;
+	private boolean changed;
+
+	// the accesses of the promoted cell and its value at the start of the blocks
+	private Set<Instruction> group;
+	private Map<BasicBlock, Instruction> entryValues;
+	private LiteralType promotedType;
+
+	// a value that is known to be in memory at the address base + displacement
+	private static class Cell {
+		private Instruction base;
+		private int displacement;
+		private MemoryAccess access;
+		private Instruction value;
+
+		private Cell(Instruction base, int displacement, MemoryAccess access, Instruction value) {
+			this.base = base;
+			this.displacement = displacement;
+			this.access = access;
+			this.value = value;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Cell))
+				return false;
+
+			Cell cell = (Cell) object;
+			return base == cell.base && displacement == cell.displacement && access == cell.access
+					&& value == cell.value;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(System.identityHashCode(base), displacement, System.identityHashCode(access),
+					System.identityHashCode(value));
+		}
+	}
+
+	public LoadStoreElimination(Map<String, MemoryAccess> accesses, Map<String, EffectType> functionEffects) {
+		this.accesses = accesses;
+		this.functionEffects = functionEffects;
+	}
+
+	@Override
+	public boolean run(IRFunction function) {
+		this.function = function;
+		changed = false;
+
+		analyze();
+		for (BasicBlock block : function.getBlocks())
+			transfer(block, getKnownBefore(block), true);
+
+		if (changed) {
+			function.cleanup();
+			analyze();
+		}
+
+		if (promote())
+			changed = true;
+
+		if (changed)
+			function.cleanup();
+		return changed;
+	}
+
+	// the values known at the end of each block, until they do not change
+	private void analyze() {
+		known = new HashMap<>();
+		List<BasicBlock> order = function.getReversePostorder();
+
+		boolean changedKnown = true;
+		while (changedKnown) {
+			changedKnown = false;
+
+			for (BasicBlock block : order) {
+				Set<Cell> cells = transfer(block, getKnownBefore(block), false);
+				if (!cells.equals(known.get(block))) {
+					known.put(block, cells);
+					changedKnown = true;
+				}
+			}
+		}
+	}
+
+	// the predecessors that have not been visited yet are ignored
+	private Set<Cell> getKnownBefore(BasicBlock block) {
+		Set<Cell> cells = null;
+		if (block == function.getEntry())
+			return new HashSet<>();
+
+		for (BasicBlock predecessor : block.getPredecessors()) {
+			Set<Cell> predecessorCells = known.get(predecessor);
+			if (predecessorCells == null)
+				continue;
+
+			if (cells == null)
+				cells = new HashSet<>(predecessorCells);
+			else
+				cells.retainAll(predecessorCells);
+		}
+
+		return cells == null ? new HashSet<>() : cells;
+	}
+
+	private Set<Cell> transfer(BasicBlock block, Set<Cell> cells, boolean replace) {
+		for (Instruction instruction : block.getInstructions()) {
+			if (instruction.getType() != InstructionType.CALL || instruction.getReplacement() != null)
+				continue;
+
+			MemoryAccess access = accesses.get(instruction.getFunctionName());
+			if (access == null) {
+				if (functionEffects.get(instruction.getFunctionName()).compareTo(EffectType.READS_MEMORY) > 0)
+					cells.clear();
+				continue;
+			}
+
+			Instruction address = instruction.getOperand(0);
+			Instruction base = getBase(address);
+			int displacement = getDisplacement(address);
+
+			if (access.isStore()) {
+				cells.removeIf(cell -> mayOverlap(cell.base, cell.displacement, cell.access, base, displacement, access));
+				cells.add(new Cell(base, displacement, access, instruction.getOperand(1)));
+				continue;
+			}
+
+			Cell match = null;
+			for (Cell cell : cells) {
+				if (isLoadOf(cell, base, displacement, access, instruction.getLiteralType()))
+					match = cell;
+			}
+
+			if (match == null) {
+				cells.add(new Cell(base, displacement, access, instruction));
+			} else if (replace) {
+				instruction.setReplacement(match.value);
+				changed = true;
+			}
+		}
+
+		return cells;
+	}
+
+	// whether the load reads the value of the cell
+	private boolean isLoadOf(Cell cell, Instruction base, int displacement, MemoryAccess load, LiteralType type) {
+		if (cell.base != base || cell.displacement != displacement || cell.access.getOffset() != load.getOffset()
+				|| cell.value.getLiteralType() != type)
+			return false;
+
+		if (!cell.access.isStore())
+			return cell.access.getOpcode().equals(load.getOpcode());
+
+		return cell.access.isFullWidth() && load.isFullWidth() && cell.access.getValueType() == load.getValueType();
+	}
+
+	private boolean mayOverlap(Instruction base, int displacement, MemoryAccess access, Instruction otherBase,
+			int otherDisplacement, MemoryAccess otherAccess) {
+		long start, otherStart;
+		if (base == null && otherBase == null) {
+			// the addresses are constants
+			start = (displacement & 0xFFFFFFFFL) + access.getOffset();
+			otherStart = (otherDisplacement & 0xFFFFFFFFL) + otherAccess.getOffset();
+		} else if (base != otherBase) {
+			return true;
+		} else if (displacement == otherDisplacement) {
+			start = access.getOffset();
+			otherStart = otherAccess.getOffset();
+		} else if (access.getOffset() == 0 && otherAccess.getOffset() == 0 && Math.abs(displacement) < 1 << 30
+				&& Math.abs(otherDisplacement) < 1 << 30) {
+			// the sums wrap around the same way
+			start = displacement;
+			otherStart = otherDisplacement;
+		} else {
+			return true;
+		}
+
+		return start < otherStart + otherAccess.getSize() && otherStart < start + access.getSize();
+	}
+
+	// an address is split into a value plus a constant, null if it is a constant
+	private Instruction getBase(Instruction address) {
+		if (address.isConstant())
+			return null;
+
+		if (getConstantOperand(address) != null)
+			return address.getOperand(address.getOperand(1).isConstant() ? 0 : 1);
+
+		return address;
+	}
+
+	private int getDisplacement(Instruction address) {
+		if (address.isConstant())
+			return address.getNumber().intValue();
+
+		Instruction constant = getConstantOperand(address);
+		if (constant == null)
+			return 0;
+
+		return address.getBinaryOperationType() == BinaryOperationType.SUBTRACTION ? -constant.getNumber().intValue()
+				: constant.getNumber().intValue();
+	}
+
+	private Instruction getConstantOperand(Instruction address) {
+		if (address.getType() != InstructionType.BINARY || address.getLiteralType() != LiteralType.i32)
+			return null;
+
+		if (address.getBinaryOperationType() == BinaryOperationType.ADDITION) {
+			if (address.getOperand(1).isConstant())
+				return address.getOperand(1);
+			if (address.getOperand(0).isConstant())
+				return address.getOperand(0);
+		} else if (address.getBinaryOperationType() == BinaryOperationType.SUBTRACTION
+				&& address.getOperand(1).isConstant()) {
+			return address.getOperand(1);
+		}
+
+		return null;
+	}
+
+	// promotes the cell of one loop, the blocks change after it
+	private boolean promote() {
+		Map<BasicBlock, BasicBlock> dominators = function.getDominators();
+		for (BasicBlock header : function.getBlocks()) {
+			if (header.getPredecessors().size() != 2 || header.getTerminator() == null
+					|| header.getTerminator().getType() != InstructionType.BRANCH)
+				continue;
+
+			BasicBlock preheader = null, latch = null;
+			for (BasicBlock predecessor : header.getPredecessors()) {
+				if (dominates(header, predecessor, dominators))
+					latch = predecessor;
+				else
+					preheader = predecessor;
+			}
+
+			if (latch == null || preheader == null || known.get(preheader) == null)
+				continue;
+
+			Set<BasicBlock> loopBlocks = getLoopBlocks(header, latch);
+			BasicBlock exit = null;
+			for (BasicBlock successor : header.getSuccessors()) {
+				if (!loopBlocks.contains(successor))
+					exit = successor;
+			}
+
+			if (exit == null || exit.getPredecessors().size() != 1)
+				continue;
+
+			List<Instruction> calls = getCalls(loopBlocks);
+			if (calls == null)
+				continue;
+
+			for (Instruction store : calls) {
+				if (accesses.get(store.getFunctionName()).isStore()
+						&& promote(store, calls, header, preheader, latch, exit, loopBlocks))
+					return true;
+			}
+		}
+
+		return false;
+	}
+
+	// the memory accesses of the loop, null if it returns or calls a function
+	// that is not pure
+	private List<Instruction> getCalls(Set<BasicBlock> loopBlocks) {
+		List<Instruction> calls = new ArrayList<>();
+		for (BasicBlock block : loopBlocks) {
+			if (block.getTerminator() == null || block.getTerminator().getType() == InstructionType.RETURN)
+				return null;
+
+			for (Instruction instruction : block.getInstructions()) {
+				if (instruction.getType() != InstructionType.CALL
+						|| functionEffects.get(instruction.getFunctionName()) == EffectType.PURE)
+					continue;
+				if (!accesses.containsKey(instruction.getFunctionName()))
+					return null;
+
+				calls.add(instruction);
+			}
+		}
+
+		return calls;
+	}
+
+	private boolean promote(Instruction store, List<Instruction> calls, BasicBlock header, BasicBlock preheader,
+			BasicBlock latch, BasicBlock exit, Set<BasicBlock> loopBlocks) {
+		MemoryAccess access = accesses.get(store.getFunctionName());
+		Instruction base = getBase(store.getOperand(0));
+		int displacement = getDisplacement(store.getOperand(0));
+		LiteralType type = access.getValueType();
+
+		if (!access.isFullWidth() || store.getOperand(1).getLiteralType() != type
+				|| base != null && base.getBlock() != null && loopBlocks.contains(base.getBlock()))
+			return false;
+
+		// the other accesses have to be of the same cell or not overlap it
+		group = new HashSet<>();
+		for (Instruction call : calls) {
+			MemoryAccess callAccess = accesses.get(call.getFunctionName());
+			Instruction callBase = getBase(call.getOperand(0));
+			int callDisplacement = getDisplacement(call.getOperand(0));
+
+			if (callBase == base && callDisplacement == displacement && callAccess.getOffset() == access.getOffset()
+					&& callAccess.isFullWidth() && callAccess.getValueType() == type
+					&& (callAccess.isStore() || call.getLiteralType() == type))
+				group.add(call);
+			else if (mayOverlap(base, displacement, access, callBase, callDisplacement, callAccess))
+				return false;
+		}
+
+		// the value before the loop also shows that the address can be accessed
+		Instruction initial = null;
+		for (Cell cell : known.get(preheader)) {
+			if (cell.base == base && cell.displacement == displacement && cell.access.getOffset() == access.getOffset()
+					&& cell.value.getLiteralType() == type && cell.access.isFullWidth()
+					&& cell.access.getValueType() == type)
+				initial = cell.value;
+		}
+
+		if (initial == null)
+			return false;
+
+		Instruction phi = function.newInstruction(InstructionType.PHI, type);
+		header.addPhi(phi);
+
+		promotedType = type;
+		entryValues = new HashMap<>();
+		entryValues.put(header, phi);
+
+		Map<Instruction, Instruction> loads = new HashMap<>();
+		for (Instruction call : group) {
+			if (!accesses.get(call.getFunctionName()).isStore())
+				loads.put(call, getValueBefore(call));
+		}
+
+		for (BasicBlock predecessor : header.getPredecessors())
+			phi.getOperands().add(predecessor == preheader ? initial : getValueAfter(latch));
+		Instruction last = getValueAfter(header);
+
+		for (Instruction call : group) {
+			if (loads.containsKey(call))
+				call.setReplacement(loads.get(call));
+			else
+				call.getBlock().getInstructions().remove(call);
+		}
+
+		// the cell is stored when the loop exits
+		Instruction address = base == null ? function.newConstant(LiteralType.i32, displacement) : base;
+		List<Instruction> instructions = new ArrayList<>();
+		if (base != null && displacement != 0) {
+			address = function.newInstruction(InstructionType.BINARY, LiteralType.i32);
+			address.setBinaryOperationType(BinaryOperationType.ADDITION);
+			address.getOperands().add(base);
+			address.getOperands().add(function.newConstant(LiteralType.i32, displacement));
+			instructions.add(address);
+		}
+
+		Instruction exitStore = function.newInstruction(InstructionType.CALL, store.getLiteralType());
+		exitStore.setFunctionName(store.getFunctionName());
+		exitStore.setLine(store.getLine());
+		exitStore.setPos(store.getPos());
+		exitStore.getOperands().add(address);
+		exitStore.getOperands().add(last);
+		instructions.add(exitStore);
+
+		for (Instruction instruction : instructions)
+			instruction.setBlock(exit);
+		exit.getInstructions().addAll(0, instructions);
+
+		return true;
+	}
+
+	private Instruction getValueBefore(Instruction load) {
+		List<Instruction> instructions = load.getBlock().getInstructions();
+		for (int i = instructions.indexOf(load) - 1; i >= 0; i--) {
+			Instruction instruction = instructions.get(i);
+			if (group.contains(instruction) && accesses.get(instruction.getFunctionName()).isStore())
+				return instruction.getOperand(1);
+		}
+
+		return getValueAtEntry(load.getBlock());
+	}
+
+	private Instruction getValueAfter(BasicBlock block) {
+		List<Instruction> instructions = block.getInstructions();
+		for (int i = instructions.size() - 1; i >= 0; i--) {
+			Instruction instruction = instructions.get(i);
+			if (group.contains(instruction) && accesses.get(instruction.getFunctionName()).isStore())
+				return instruction.getOperand(1);
+		}
+
+		return getValueAtEntry(block);
+	}
+
+	// the blocks that join stores get a phi, the loop can only be entered at the
+	// header which already has one
+	private Instruction getValueAtEntry(BasicBlock block) {
+		Instruction value = entryValues.get(block);
+		if (value != null)
+			return value;
+
+		if (block.getPredecessors().size() == 1) {
+			value = getValueAfter(block.getPredecessors().get(0));
+			entryValues.put(block, value);
+			return value;
+		}
+
+		Instruction phi = function.newInstruction(InstructionType.PHI, promotedType);
+		block.addPhi(phi);
+		entryValues.put(block, phi);
+		for (BasicBlock predecessor : block.getPredecessors())
+			phi.getOperands().add(getValueAfter(predecessor));
+
+		return phi;
+	}
+
+	private boolean dominates(BasicBlock dominator, BasicBlock block, Map<BasicBlock, BasicBlock> dominators) {
+		while (block != dominator) {
+			BasicBlock next = dominators.get(block);
+			if (next == null || next == block)
+				return false;
+			block = next;
+		}
+
+		return true;
+	}
+
+	// the blocks that reach the latch without going through the header
+	private Set<BasicBlock> getLoopBlocks(BasicBlock header, BasicBlock latch) {
+		Set<BasicBlock> blocks = new HashSet<>();
+		blocks.add(header);
+
+		List<BasicBlock> worklist = new ArrayList<>();
+		if (blocks.add(latch))
+			worklist.add(latch);
+
+		while (!worklist.isEmpty()) {
+			BasicBlock block = worklist.remove(worklist.size() - 1);
+			for (BasicBlock predecessor : block.getPredecessors()) {
+				if (blocks.add(predecessor))
+					worklist.add(predecessor);
+			}
+		}
+
+		return blocks;
+	}
+}
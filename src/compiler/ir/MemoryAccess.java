@@ -0,0 +1,168 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.enums.LiteralType;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IdentifierExpressionNode;
+import compiler.nodes.ReturnStatementNode;
+import compiler.nodes.StatementNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.nodes.WasmStatementNode;
+
+// A function that only loads a value from memory or stores one, written with
+// inline wasm like the functions of lib/wasm.txt:
+//
+// i32 load_i32(i32 offset) {       void store_i32(i32 offset, i32 val) {
+//     i32 val;                         _wasm "local.get $offset";
+//     _wasm "local.get $offset";       _wasm "local.get $val";
+//     _wasm "i32.load 0 0";            _wasm "i32.store 0 0";
+//     _wasm "local.set $val";      }
+//     return val;
+// }
+//
+// A call to one of them accesses the bytes from the address argument plus the
+// offset of the instruction, up to the size of the value.
+public class MemoryAccess {
+
+	private String opcode;
+	private boolean store;
+	private int align, offset, size;
+	private LiteralType valueType;
+
+	private MemoryAccess(String opcode, int align, int offset) {
+		this.opcode = opcode;
+		this.align = align;
+		this.offset = offset;
+
+		store = opcode.contains(".store");
+		valueType = LiteralType.getLiteralTypeFromString(opcode.substring(0, 3));
+		if (opcode.contains("8"))
+			size = 1;
+		else if (opcode.contains("16"))
+			size = 2;
+		else if (opcode.contains("32_") || opcode.endsWith("store32"))
+			size = 4;
+		else
+			size = valueType == LiteralType.i64 || valueType == LiteralType.f64 ? 8 : 4;
+	}
+
+	// the functions of the program that are memory accesses
+	public static Map<String, MemoryAccess> find(Map<String, FunctionStatementNode> funcSymbolTable) {
+		Map<String, MemoryAccess> accesses = new HashMap<>();
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			MemoryAccess access = classify(functionNode);
+			if (access != null)
+				accesses.put(functionNode.getName(), access);
+		}
+
+		return accesses;
+	}
+
+	private static MemoryAccess classify(FunctionStatementNode functionNode) {
+		List<String[]> wasm = new ArrayList<>();
+		String returned = null;
+		for (StatementNode statement : functionNode.getStatementBlock().getStatements()) {
+			if (returned != null)
+				return null;
+
+			if (statement instanceof WasmStatementNode)
+				wasm.add(((WasmStatementNode) statement).getWasmCommand().replace("\"", " ").trim().split(" +"));
+			else if (statement instanceof ReturnStatementNode
+					&& ((ReturnStatementNode) statement).getExpression() instanceof IdentifierExpressionNode)
+				returned = ((IdentifierExpressionNode) ((ReturnStatementNode) statement).getExpression()).getName();
+			else if (!(statement instanceof VariableDeclarationNode)
+					|| ((VariableDeclarationNode) statement).getExpression() != null)
+				return null;
+		}
+
+		List<VariableDeclarationNode> arguments = functionNode.getArguments();
+		if (arguments.isEmpty() || !arguments.get(0).getType().equals("i32") || wasm.size() < 2
+				|| !isGet(wasm.get(0), arguments.get(0)))
+			return null;
+
+		// the address and the value are pushed before the store
+		if (arguments.size() == 2 && wasm.size() == 3 && returned == null && isGet(wasm.get(1), arguments.get(1))
+				&& functionNode.getType().equals("void"))
+			return newAccess(wasm.get(2), ".store", arguments.get(1).getType());
+
+		if (arguments.size() != 1)
+			return null;
+
+		// the loaded value is returned with a local or left on the stack
+		String[] instruction = wasm.get(1);
+		if (wasm.size() == 2 && returned == null)
+			return newAccess(instruction, ".load", functionNode.getType());
+		if (wasm.size() == 3 && wasm.get(2).length == 1 && wasm.get(2)[0].equals("return") && returned == null)
+			return newAccess(instruction, ".load", functionNode.getType());
+		if (wasm.size() == 3 && wasm.get(2).length == 2 && wasm.get(2)[0].equals("local.set")
+				&& returned != null && wasm.get(2)[1].equals("$" + returned))
+			return newAccess(instruction, ".load", functionNode.getType());
+
+		return null;
+	}
+
+	private static boolean isGet(String[] instruction, VariableDeclarationNode argument) {
+		return instruction.length == 2 && instruction[0].equals("local.get")
+				&& instruction[1].equals("$" + argument.getVarName());
+	}
+
+	private static MemoryAccess newAccess(String[] instruction, String kind, String type) {
+		if (instruction.length != 3 || !instruction[0].contains(kind) || !instruction[0].startsWith(type + "."))
+			return null;
+
+		try {
+			return new MemoryAccess(instruction[0], Integer.parseInt(instruction[1]), Integer.parseInt(instruction[2]));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public String getOpcode() {
+		return opcode;
+	}
+
+	public boolean isStore() {
+		return store;
+	}
+
+	// the alignment hint of the instruction, as the log2 of the bytes
+	public int getAlign() {
+		return align;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public LiteralType getValueType() {
+		return valueType;
+	}
+
+	// whether a load reads back exactly the value of the store
+	public boolean isFullWidth() {
+		return opcode.equals(valueType + ".load") || opcode.equals(valueType + ".store");
+	}
+}
@@ -0,0 +1,95 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import compiler.enums.RegionType;
+
+// The structured control flow the blocks were built from, so that they can be
+// lowered back to if and while statements:
+//
+// SEQUENCE - the regions are executed one after the other
+// BLOCK    - the instructions of a block
+// IF       - branches on the terminator of a block to the then or the else region
+// LOOP     - the header block is the condition of the loop and the body region
+//            jumps back to it
+public class Region {
+
+	private RegionType type;
+	private BasicBlock block;
+	private List<Region> children = new ArrayList<>();
+
+	private Region thenRegion, elseRegion;
+	private BasicBlock thenBlock, elseBlock;
+
+	public Region(RegionType type) {
+		this.type = type;
+	}
+
+	public RegionType getType() {
+		return type;
+	}
+
+	// the block of a BLOCK region, the block that branches for an IF, the
+	// header of a LOOP
+	public BasicBlock getBlock() {
+		return block;
+	}
+
+	public void setBlock(BasicBlock block) {
+		this.block = block;
+	}
+
+	public List<Region> getChildren() {
+		return children;
+	}
+
+	// the body of a LOOP
+	public Region getThenRegion() {
+		return thenRegion;
+	}
+
+	public void setThenRegion(Region thenRegion) {
+		this.thenRegion = thenRegion;
+	}
+
+	public Region getElseRegion() {
+		return elseRegion;
+	}
+
+	public void setElseRegion(Region elseRegion) {
+		this.elseRegion = elseRegion;
+	}
+
+	// the first block of the then region
+	public BasicBlock getThenBlock() {
+		return thenBlock;
+	}
+
+	public void setThenBlock(BasicBlock thenBlock) {
+		this.thenBlock = thenBlock;
+	}
+
+	public BasicBlock getElseBlock() {
+		return elseBlock;
+	}
+
+	public void setElseBlock(BasicBlock elseBlock) {
+		this.elseBlock = elseBlock;
+	}
+}
@@ -0,0 +1,140 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.enums.BinaryOperationType;
+import compiler.enums.EffectType;
+import compiler.enums.InstructionType;
+
+// Replaces an instruction with an identical one that dominates it. The blocks
+// are visited in the dominator tree, so the table only holds the values of the
+// dominating blocks. Only the calls of pure functions are numbered, the others
+// can have side effects or read memory that has changed.
+public class ValueNumbering implements IRPass {
+
+	private Map<String, EffectType> functionEffects;
+
+	private Map<BasicBlock, List<BasicBlock>> dominatorTree;
+	private Map<String, Instruction> values;
+	private boolean changed;
+
+	public ValueNumbering(Map<String, EffectType> functionEffects) {
+		this.functionEffects = functionEffects;
+	}
+
+	@Override
+	public boolean run(IRFunction function) {
+		dominatorTree = new HashMap<>();
+		for (Map.Entry<BasicBlock, BasicBlock> entry : function.getDominators().entrySet()) {
+			if (entry.getKey() != entry.getValue())
+				dominatorTree.computeIfAbsent(entry.getValue(), k -> new ArrayList<>()).add(entry.getKey());
+		}
+
+		values = new HashMap<>();
+		changed = false;
+		visit(function.getEntry());
+
+		function.cleanup();
+		return changed;
+	}
+
+	private void visit(BasicBlock block) {
+		List<String> keys = new ArrayList<>();
+
+		List<Instruction> instructions = new ArrayList<>(block.getPhis());
+		instructions.addAll(block.getInstructions());
+		for (Instruction instruction : instructions) {
+			if (instruction.getType() == InstructionType.CALL
+					&& functionEffects.get(instruction.getFunctionName()) != EffectType.PURE)
+				continue;
+
+			String key = getKey(instruction);
+			Instruction value = values.get(key);
+			if (value != null) {
+				instruction.setReplacement(value);
+				changed = true;
+			} else {
+				values.put(key, instruction);
+				keys.add(key);
+			}
+		}
+
+		for (BasicBlock child : dominatorTree.getOrDefault(block, new ArrayList<>()))
+			visit(child);
+
+		for (String key : keys)
+			values.remove(key);
+	}
+
+	private String getKey(Instruction instruction) {
+		String[] operands = new String[instruction.getOperands().size()];
+		for (int i = 0; i < operands.length; i++) {
+			Instruction operand = instruction.getOperand(i);
+			operands[i] = operand.isConstant() ? "(" + operand + ")" : operand.toString();
+		}
+
+		String key = instruction.getLiteralType() + " " + instruction.getType();
+		switch (instruction.getType()) {
+		case PHI:
+			// only the phis of the same block can be the same
+			key += " " + instruction.getBlock();
+			break;
+		case BINARY:
+			key += " " + instruction.getBinaryOperationType();
+			if (isCommutative(instruction.getBinaryOperationType()))
+				Arrays.sort(operands);
+			break;
+		case UNARY:
+			key += " " + instruction.getUnaryOperationType();
+			break;
+		case CAST:
+			key += " " + instruction.getOperand(0).getLiteralType();
+			break;
+		case CALL:
+			key += " " + instruction.getFunctionName();
+			break;
+		default:
+			break;
+		}
+
+		return key + " " + String.join(" ", operands);
+	}
+
+	private boolean isCommutative(BinaryOperationType operationType) {
+		switch (operationType) {
+		case ADDITION:
+		case MULTIPLICATION:
+		case BIT_AND:
+		case BIT_OR:
+		case BIT_XOR:
+		case MIN:
+		case MAX:
+		case EQUALS:
+		case NOT_EQUAL:
+		case AND:
+		case OR:
+			return true;
+		default:
+			return false;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.nodes;
+
+import java.io.PrintStream;
+
+// a[i] loads an element and a[i] = value stores one. The analyzer turns the
+// access into the call of the load or the store of the standard library, so
+// that the rest of the compiler only sees a function call.
+public class ArrayAccessExpressionNode extends FunctionCallExpressionNode {
+
+	private String arrayName;
+	private ExpressionNode index, value;
+
+	public String getArrayName() {
+		return arrayName;
+	}
+
+	public void setArrayName(String arrayName) {
+		this.arrayName = arrayName;
+	}
+
+	public ExpressionNode getIndex() {
+		return index;
+	}
+
+	public void setIndex(ExpressionNode index) {
+		this.index = index;
+	}
+
+	// the stored value, null for a load
+	public ExpressionNode getValue() {
+		return value;
+	}
+
+	public void setValue(ExpressionNode value) {
+		this.value = value;
+	}
+
+	@Override
+	public void print(PrintStream out, int depth) {
+		if (getArguments() != null) {
+			super.print(out, depth);
+			return;
+		}
+
+		String tabs = "";
+		for (int i = 0; i < depth; i++)
+			tabs += "\t";
+
+		out.println(tabs + this + " (" + arrayName + "[])");
+
+		index.print(out, depth + 1);
+		if (value != null)
+			value.print(out, depth + 1);
+	}
+}
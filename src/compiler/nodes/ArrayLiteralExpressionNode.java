@@ -0,0 +1,41 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.nodes;
+
+import java.io.PrintStream;
+import java.util.List;
+
+// The elements of a const array, e.g. const i32[] a = { 1, 2, 3 };
+public class ArrayLiteralExpressionNode extends DataExpressionNode {
+
+	private List<ExpressionNode> elements;
+
+	public List<ExpressionNode> getElements() {
+		return elements;
+	}
+
+	public void setElements(List<ExpressionNode> elements) {
+		this.elements = elements;
+	}
+
+	@Override
+	public void print(PrintStream out, int depth) {
+		super.print(out, depth);
+
+		for (ExpressionNode element : elements)
+			element.print(out, depth + 1);
+	}
+}
@@ -21,6 +21,7 @@ public class CastingExpressionNode extends ExpressionNode {
 
 	private ExpressionNode expression;
 	private String type;
+	private boolean reinterpret;
 
 	public ExpressionNode getExpression() {
 		return expression;
@@ -38,8 +39,16 @@ public class CastingExpressionNode extends ExpressionNode {
 		this.type = type;
 	}
 
+	public boolean isReinterpret() {
+		return reinterpret;
+	}
+
+	public void setReinterpret(boolean reinterpret) {
+		this.reinterpret = reinterpret;
+	}
+
 	public String toString() {
-		return super.toString() + " (" + type + ")";
+		return super.toString() + " (" + (reinterpret ? "reinterpret " : "") + type + ")";
 	}
 
 	@Override
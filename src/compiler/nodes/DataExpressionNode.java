@@ -0,0 +1,22 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.nodes;
+
+// An expression whose value is the address of its data in the data segment.
+// The analyzer places the data and sets the number of the node to the address,
+// so that the rest of the compiler only sees an i32 constant.
+public abstract class DataExpressionNode extends NumberExpressionNode {
+}
@@ -15,5 +15,18 @@
  */
 package compiler.nodes;
 
+import compiler.enums.LiteralType;
+
 public abstract class ExpressionNode extends StatementNode {
+
+	// the type of the value, set during the analysis
+	private LiteralType literalType;
+
+	public LiteralType getLiteralType() {
+		return literalType;
+	}
+
+	public void setLiteralType(LiteralType literalType) {
+		this.literalType = literalType;
+	}
 }
@@ -23,6 +23,7 @@ public class FunctionStatementNode extends StatementNode {
 	private String name, type;
 	private StatementBlockNode statementBlock;
 	private List<VariableDeclarationNode> arguments;
+	private boolean memo, library;
 
 	public String getName() {
 		return name;
@@ -56,13 +57,31 @@ public class FunctionStatementNode extends StatementNode {
 		this.type = type;
 	}
 
+	// the results of the function are cached in the memory
+	public boolean isMemo() {
+		return memo;
+	}
+
+	public void setMemo(boolean memo) {
+		this.memo = memo;
+	}
+
+	// a function of the standard library, only emitted when it is called
+	public boolean isLibrary() {
+		return library;
+	}
+
+	public void setLibrary(boolean library) {
+		this.library = library;
+	}
+
 	@Override
 	public void print(PrintStream out, int depth) {
 		String tabs = "";
 		for (int i = 0; i < depth; i++)
 			tabs += "\t";
 
-		out.println(tabs + this + " (" + name + " " + type + ")");
+		out.println(tabs + this + " (" + (memo ? "memo " : "") + name + " " + type + ")");
 
 		for (VariableDeclarationNode arg : arguments)
 			arg.print(out, depth + 1);
@@ -0,0 +1,61 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.nodes;
+
+import java.io.PrintStream;
+
+// Reads or assigns a variable declared outside the functions. Like an array
+// access, the analyzer turns it into the call of the getter or the setter of
+// the global, which the emitter replaces by global.get or global.set.
+public class GlobalAccessExpressionNode extends FunctionCallExpressionNode {
+
+	private String globalName;
+	private ExpressionNode value;
+
+	public String getGlobalName() {
+		return globalName;
+	}
+
+	public void setGlobalName(String globalName) {
+		this.globalName = globalName;
+	}
+
+	// the assigned value, null for a read
+	public ExpressionNode getValue() {
+		return value;
+	}
+
+	public void setValue(ExpressionNode value) {
+		this.value = value;
+	}
+
+	@Override
+	public void print(PrintStream out, int depth) {
+		if (getArguments() != null) {
+			super.print(out, depth);
+			return;
+		}
+
+		String tabs = "";
+		for (int i = 0; i < depth; i++)
+			tabs += "\t";
+
+		out.println(tabs + this + " (" + globalName + ")");
+
+		if (value != null)
+			value.print(out, depth + 1);
+	}
+}
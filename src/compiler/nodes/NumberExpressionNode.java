@@ -17,17 +17,19 @@ package compiler.nodes;
 
 import java.io.PrintStream;
 
+// The integers are kept as a Long and the floats as a Double, the value of the
+// literal type is taken from them.
 public class NumberExpressionNode extends ExpressionNode {
 
-	private double number;
+	private Number number;
 
 	private boolean isFloat;
 
-	public double getNumber() {
+	public Number getNumber() {
 		return number;
 	}
 
-	public void setNumber(double number) {
+	public void setNumber(Number number) {
 		this.number = number;
 	}
 
@@ -17,7 +17,8 @@ package compiler.nodes;
 
 import java.io.PrintStream;
 
-public class StringExpressionNode extends ExpressionNode {
+// A string literal, the address of its bytes followed by a zero byte.
+public class StringExpressionNode extends DataExpressionNode {
 
 	private String value;
 
@@ -0,0 +1,76 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.nodes;
+
+import java.io.PrintStream;
+import java.util.List;
+
+// The values of each case are constants after the analysis, and the block
+// after the last case, if there is one, is the default. Only the block of the
+// matching case is executed.
+public class SwitchStatementNode extends StatementNode {
+
+	private ExpressionNode expression;
+	private List<List<ExpressionNode>> cases;
+	private List<StatementBlockNode> statementBlocks;
+
+	public ExpressionNode getExpression() {
+		return expression;
+	}
+
+	public void setExpression(ExpressionNode expression) {
+		this.expression = expression;
+	}
+
+	public List<List<ExpressionNode>> getCases() {
+		return cases;
+	}
+
+	public void setCases(List<List<ExpressionNode>> cases) {
+		this.cases = cases;
+	}
+
+	public List<StatementBlockNode> getStatementBlocks() {
+		return statementBlocks;
+	}
+
+	public void setStatementBlocks(List<StatementBlockNode> statementBlocks) {
+		this.statementBlocks = statementBlocks;
+	}
+
+	public boolean hasDefault() {
+		return statementBlocks.size() > cases.size();
+	}
+
+	@Override
+	public void print(PrintStream out, int depth) {
+		String tabs = "";
+		for (int i = 0; i < depth; i++)
+			tabs += "\t";
+
+		out.println(tabs + this);
+
+		expression.print(out, depth + 1);
+		for (int i = 0; i < statementBlocks.size(); i++) {
+			if (i != cases.size()) {
+				for (ExpressionNode value : cases.get(i))
+					value.print(out, depth + 1);
+			}
+
+			statementBlocks.get(i).print(out, depth + 1);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.nodes;
+
+import java.io.PrintStream;
+import java.util.List;
+
+// a call in tail position. If targetLoop is set, the call is to the function
+// itself and is compiled to a jump to the start of targetLoop, otherwise it is
+// compiled to a return_call.
+public class TailCallStatementNode extends StatementNode {
+
+	private FunctionCallExpressionNode call;
+	private WhileStatementNode targetLoop;
+	private List<VariableDeclarationNode> clearedVariables;
+
+	public FunctionCallExpressionNode getCall() {
+		return call;
+	}
+
+	public void setCall(FunctionCallExpressionNode call) {
+		this.call = call;
+	}
+
+	public WhileStatementNode getTargetLoop() {
+		return targetLoop;
+	}
+
+	public void setTargetLoop(WhileStatementNode targetLoop) {
+		this.targetLoop = targetLoop;
+	}
+
+	// locals that have to be zeroed before jumping, as they would be in a new call
+	public List<VariableDeclarationNode> getClearedVariables() {
+		return clearedVariables;
+	}
+
+	public void setClearedVariables(List<VariableDeclarationNode> clearedVariables) {
+		this.clearedVariables = clearedVariables;
+	}
+
+	public boolean isSelfCall() {
+		return targetLoop != null;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + (isSelfCall() ? " (loop)" : " (return_call)");
+	}
+
+	@Override
+	public void print(PrintStream out, int depth) {
+		String tabs = "";
+		for (int i = 0; i < depth; i++)
+			tabs += "\t";
+
+		out.println(tabs + this);
+
+		call.print(out, depth + 1);
+	}
+}
@@ -23,6 +23,13 @@ public class VariableDeclarationNode extends StatementNode {
 	private String type;
 	private ExpressionNode expression;
 
+	// the type of the elements of an array, the variable itself is its i32
+	// address
+	private String elementType;
+
+	// a const variable cannot be assigned after its declaration
+	private boolean constant;
+
 	public String getType() {
 		return type;
 	}
@@ -31,8 +38,25 @@ public class VariableDeclarationNode extends StatementNode {
 		this.type = type;
 	}
 
+	public String getElementType() {
+		return elementType;
+	}
+
+	public void setElementType(String elementType) {
+		this.elementType = elementType;
+	}
+
+	public boolean isConstant() {
+		return constant;
+	}
+
+	public void setConstant(boolean constant) {
+		this.constant = constant;
+	}
+
 	public String toString() {
-		return super.toString() + " (" + varName + " " + type + ")";
+		return super.toString() + " (" + (constant ? "const " : "") + varName + " "
+				+ (elementType != null ? elementType + "[]" : type) + ")";
 	}
 
 	public String getVarName() {
@@ -0,0 +1,195 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.nodes.AssignExpressionNode;
+import compiler.nodes.ExpressionNode;
+import compiler.nodes.FunctionCallExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IfStatementNode;
+import compiler.nodes.Node;
+import compiler.nodes.ReturnStatementNode;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.StatementNode;
+import compiler.nodes.SwitchStatementNode;
+import compiler.nodes.TailCallStatementNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.nodes.WhileStatementNode;
+
+// Finds identical expressions without side effects inside a basic block,
+// computes the first one into a temporary local with a local.tee and replaces
+// the rest with a read of that local:
+//
+// (a+b)*(a+b) -> (t = a+b)*t
+//
+// An assignment to a variable changes the keys of the expressions that read
+// it, so expressions before and after the assignment are never merged.
+public class CommonSubexpressionEliminator implements OptimizationPass {
+
+	// smaller expressions are cheaper to compute again than a local.tee and a local.get
+	private static final int MIN_SIZE = 3;
+
+	private Map<String, FunctionStatementNode> funcSymbolTable;
+	private Map<String, Map<String, VariableDeclarationNode>> localSymbolTables;
+
+	private Map<String, VariableDeclarationNode> localSymbolTable;
+	private Map<String, Integer> versions;
+	private Map<String, List<Node[]>> occurrences;
+
+	public CommonSubexpressionEliminator(Map<String, FunctionStatementNode> funcSymbolTable,
+			Map<String, Map<String, VariableDeclarationNode>> localSymbolTables) {
+		this.funcSymbolTable = funcSymbolTable;
+		this.localSymbolTables = localSymbolTables;
+	}
+
+	@Override
+	public void optimize(Node node) {
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			localSymbolTable = localSymbolTables.get(functionNode.getName());
+			optimizeStatement(functionNode.getStatementBlock());
+		}
+	}
+
+	// splits the statements into basic blocks
+	private void optimizeStatement(StatementNode statement) {
+		if (statement instanceof IfStatementNode) {
+			for (StatementNode statementBlock : ((IfStatementNode) statement).getStatementBlocks())
+				optimizeStatement(statementBlock);
+		} else if (statement instanceof SwitchStatementNode) {
+			for (StatementNode statementBlock : ((SwitchStatementNode) statement).getStatementBlocks())
+				optimizeStatement(statementBlock);
+		} else if (statement instanceof WhileStatementNode) {
+			List<StatementNode> condition = new ArrayList<>();
+			condition.add(statement);
+			eliminate(condition);
+
+			optimizeStatement(((WhileStatementNode) statement).getStatementBlock());
+		} else if (statement instanceof StatementBlockNode) {
+			List<StatementNode> basicBlock = new ArrayList<>();
+
+			for (StatementNode child : new ArrayList<>(((StatementBlockNode) statement).getStatements())) {
+				if (child instanceof VariableDeclarationNode || child instanceof AssignExpressionNode
+						|| child instanceof FunctionCallExpressionNode) {
+					basicBlock.add(child);
+					continue;
+				}
+
+				// the first condition of an if and the value of a switch are
+				// evaluated before branching
+				if (child instanceof ReturnStatementNode || child instanceof TailCallStatementNode
+						|| child instanceof IfStatementNode || child instanceof SwitchStatementNode)
+					basicBlock.add(child);
+
+				eliminate(basicBlock);
+				basicBlock.clear();
+
+				optimizeStatement(child);
+			}
+
+			eliminate(basicBlock);
+		} else {
+			List<StatementNode> basicBlock = new ArrayList<>();
+			basicBlock.add(statement);
+			eliminate(basicBlock);
+		}
+	}
+
+	private void eliminate(List<StatementNode> basicBlock) {
+		while (true) {
+			versions = new HashMap<>();
+			occurrences = new LinkedHashMap<>();
+			for (StatementNode statement : basicBlock)
+				collectStatement(statement);
+
+			// the largest expressions first, their subexpressions are counted again
+			// after they are replaced
+			List<Node[]> best = null;
+			int bestSize = 0;
+			for (List<Node[]> nodes : occurrences.values()) {
+				int size = OptimizerUtils.GetSize(nodes.get(0)[1]);
+				if (nodes.size() > 1 && size > bestSize) {
+					best = nodes;
+					bestSize = size;
+				}
+			}
+
+			if (best == null)
+				return;
+
+			ExpressionNode first = (ExpressionNode) best.get(0)[1];
+			VariableDeclarationNode temp = OptimizerUtils.NewLocal(localSymbolTable, "cse",
+					first.getLiteralType().toString());
+
+			OptimizerUtils.ReplaceChild(best.get(0)[0], first, OptimizerUtils.NewAssignment(temp, first, first));
+			for (int i = 1; i < best.size(); i++)
+				OptimizerUtils.ReplaceChild(best.get(i)[0], best.get(i)[1], OptimizerUtils.NewIdentifier(temp, first));
+		}
+	}
+
+	private void collectStatement(StatementNode statement) {
+		if (statement instanceof VariableDeclarationNode) {
+			VariableDeclarationNode varDeclNode = (VariableDeclarationNode) statement;
+			if (varDeclNode.getExpression() != null) {
+				collectExpression(varDeclNode, varDeclNode.getExpression());
+				assigned(varDeclNode.getVarName());
+			}
+		} else if (statement instanceof IfStatementNode) {
+			IfStatementNode ifNode = (IfStatementNode) statement;
+			collectExpression(ifNode, ifNode.getConditions().get(0));
+		} else if (statement instanceof SwitchStatementNode) {
+			SwitchStatementNode switchNode = (SwitchStatementNode) statement;
+			collectExpression(switchNode, switchNode.getExpression());
+		} else if (statement instanceof WhileStatementNode) {
+			WhileStatementNode whileNode = (WhileStatementNode) statement;
+			collectExpression(whileNode, whileNode.getConditionNode());
+		} else if (statement instanceof ReturnStatementNode) {
+			ReturnStatementNode returnNode = (ReturnStatementNode) statement;
+			collectExpression(returnNode, returnNode.getExpression());
+		} else if (statement instanceof TailCallStatementNode) {
+			TailCallStatementNode tailCallNode = (TailCallStatementNode) statement;
+			collectExpression(tailCallNode, tailCallNode.getCall());
+		} else if (statement instanceof ExpressionNode) {
+			collectExpression(null, (ExpressionNode) statement);
+		}
+	}
+
+	private void collectExpression(Node parent, ExpressionNode expression) {
+		if (expression instanceof AssignExpressionNode) {
+			AssignExpressionNode assignNode = (AssignExpressionNode) expression;
+			collectExpression(assignNode, assignNode.getRightExpression());
+			assigned(assignNode.getVarName());
+			return;
+		}
+
+		String key = OptimizerUtils.GetKey(expression, versions);
+		if (key != null && parent != null && expression.getLiteralType() != null
+				&& OptimizerUtils.GetSize(expression) >= MIN_SIZE)
+			occurrences.computeIfAbsent(key, k -> new ArrayList<>()).add(new Node[] { parent, expression });
+
+		for (Node child : OptimizerUtils.GetChildren(expression))
+			collectExpression(expression, (ExpressionNode) child);
+	}
+
+	private void assigned(String varName) {
+		versions.put(varName, versions.getOrDefault(varName, 0) + 1);
+	}
+}
@@ -0,0 +1,492 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.optimizer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.nodes.AssignExpressionNode;
+import compiler.nodes.ExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IdentifierExpressionNode;
+import compiler.nodes.IfStatementNode;
+import compiler.nodes.Node;
+import compiler.nodes.ReturnStatementNode;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.StatementNode;
+import compiler.nodes.SwitchStatementNode;
+import compiler.nodes.TailCallStatementNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.nodes.WasmStatementNode;
+import compiler.nodes.WhileStatementNode;
+
+// Removes the traffic between the wasm stack and the locals that is left by the
+// other passes and by hand written wasm:
+//
+// x = y; return x + 1;            -> return y + 1;  the copy is propagated
+// x = e; x = f; return x;         -> x = f; return x;  the first store is never read
+// _wasm "local.set $x"; return x; -> _wasm "return";  the value stays on the stack
+//
+// A store is dead when the variable is not live after it. The expression of a
+// dead store is kept if it has side effects or can trap. The locals that are
+// never read afterwards are removed from the function.
+public class DeadStoreEliminator implements OptimizationPass {
+
+	private Map<String, FunctionStatementNode> funcSymbolTable;
+	private Map<String, Map<String, VariableDeclarationNode>> localSymbolTables;
+
+	private FunctionStatementNode currentFunction;
+	private Map<String, VariableDeclarationNode> locals;
+	private boolean changed;
+
+	public DeadStoreEliminator(Map<String, FunctionStatementNode> funcSymbolTable,
+			Map<String, Map<String, VariableDeclarationNode>> localSymbolTables) {
+		this.funcSymbolTable = funcSymbolTable;
+		this.localSymbolTables = localSymbolTables;
+	}
+
+	@Override
+	public void optimize(Node node) {
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			currentFunction = functionNode;
+			locals = localSymbolTables.get(functionNode.getName());
+
+			do {
+				changed = false;
+				keepOnStack(functionNode.getStatementBlock());
+				propagateCopies(functionNode.getStatementBlock(), new HashMap<>());
+				eliminateStores(functionNode.getStatementBlock(), new HashSet<>(), true);
+			} while (changed);
+
+			removeUnusedLocals();
+		}
+	}
+
+	// _wasm "local.set $x"; return x; returns the value that is on the stack
+	private void keepOnStack(StatementNode statement) {
+		if (statement instanceof IfStatementNode) {
+			for (StatementNode statementBlock : ((IfStatementNode) statement).getStatementBlocks())
+				keepOnStack(statementBlock);
+		} else if (statement instanceof SwitchStatementNode) {
+			for (StatementNode statementBlock : ((SwitchStatementNode) statement).getStatementBlocks())
+				keepOnStack(statementBlock);
+		} else if (statement instanceof WhileStatementNode) {
+			keepOnStack(((WhileStatementNode) statement).getStatementBlock());
+		} else if (statement instanceof StatementBlockNode) {
+			List<StatementNode> statements = ((StatementBlockNode) statement).getStatements();
+			for (int i = 0; i < statements.size(); i++) {
+				keepOnStack(statements.get(i));
+
+				if (i + 1 >= statements.size() || !isReturnOfSet(statements.get(i), statements.get(i + 1)))
+					continue;
+
+				// the value is left on the stack at the end of the function
+				statements.remove(i + 1);
+				if (statement == currentFunction.getStatementBlock() && i + 1 == statements.size()) {
+					statements.remove(i);
+				} else {
+					WasmStatementNode returnNode = new WasmStatementNode();
+					returnNode.setWasmCommand("\"return\"");
+					returnNode.setLine(statements.get(i).getLine());
+					returnNode.setPos(statements.get(i).getPos());
+					statements.set(i, returnNode);
+				}
+
+				changed = true;
+			}
+		}
+	}
+
+	private boolean isReturnOfSet(StatementNode statement, StatementNode next) {
+		if (!(statement instanceof WasmStatementNode) || !(next instanceof ReturnStatementNode)
+				|| !(((ReturnStatementNode) next).getExpression() instanceof IdentifierExpressionNode))
+			return false;
+
+		String[] wasm = getWasm((WasmStatementNode) statement);
+		String varName = ((IdentifierExpressionNode) ((ReturnStatementNode) next).getExpression()).getName();
+
+		return wasm.length == 2 && wasm[0].equals("local.set") && wasm[1].equals("$" + varName)
+				&& locals.get(varName).getType().equals(currentFunction.getType());
+	}
+
+	// replaces the reads of variables that hold a copy of another variable. The
+	// copies map a variable to the variable it was copied from, null is returned
+	// when the statement does not complete normally.
+	private Map<String, String> propagateCopies(StatementNode statement, Map<String, String> copies) {
+		if (statement instanceof StatementBlockNode) {
+			boolean completes = true;
+			for (StatementNode child : ((StatementBlockNode) statement).getStatements()) {
+				copies = propagateCopies(child, copies);
+				if (copies == null) {
+					completes = false;
+					copies = new HashMap<>();
+				}
+			}
+
+			return completes ? copies : null;
+		} else if (statement instanceof IfStatementNode) {
+			IfStatementNode ifNode = (IfStatementNode) statement;
+			List<ExpressionNode> conditions = ifNode.getConditions();
+			List<StatementNode> statementBlocks = ifNode.getStatementBlocks();
+
+			Map<String, String> result = null;
+			for (int i = 0; i < conditions.size(); i++) {
+				propagateExpression(ifNode, conditions.get(i), copies);
+				result = intersect(result, propagateCopies(statementBlocks.get(i), new HashMap<>(copies)));
+			}
+
+			if (statementBlocks.size() > conditions.size())
+				return intersect(result, propagateCopies(statementBlocks.get(conditions.size()), copies));
+
+			return intersect(result, copies);
+		} else if (statement instanceof SwitchStatementNode) {
+			SwitchStatementNode switchNode = (SwitchStatementNode) statement;
+			propagateExpression(switchNode, switchNode.getExpression(), copies);
+
+			Map<String, String> result = null;
+			for (StatementNode statementBlock : switchNode.getStatementBlocks())
+				result = intersect(result, propagateCopies(statementBlock, new HashMap<>(copies)));
+
+			// no case can match without a default
+			return switchNode.hasDefault() ? result : intersect(result, copies);
+		} else if (statement instanceof WhileStatementNode) {
+			WhileStatementNode whileNode = (WhileStatementNode) statement;
+
+			Set<String> assigned = new HashSet<>();
+			collectAssigned(whileNode, assigned);
+			copies.entrySet().removeIf(copy -> assigned.contains(copy.getKey()) || assigned.contains(copy.getValue()));
+
+			propagateExpression(whileNode, whileNode.getConditionNode(), copies);
+			propagateCopies(whileNode.getStatementBlock(), new HashMap<>(copies));
+			return copies;
+		} else if (statement instanceof VariableDeclarationNode) {
+			VariableDeclarationNode varDeclNode = (VariableDeclarationNode) statement;
+			if (varDeclNode.getExpression() != null) {
+				propagateExpression(varDeclNode, varDeclNode.getExpression(), copies);
+				addCopy(varDeclNode.getVarName(), varDeclNode.getExpression(), copies);
+			}
+		} else if (statement instanceof ReturnStatementNode) {
+			propagateExpression(statement, ((ReturnStatementNode) statement).getExpression(), copies);
+			return null;
+		} else if (statement instanceof TailCallStatementNode) {
+			propagateExpression(statement, ((TailCallStatementNode) statement).getCall(), copies);
+			return null;
+		} else if (statement instanceof WasmStatementNode) {
+			String[] wasm = getWasm((WasmStatementNode) statement);
+			for (int i = 1; i < wasm.length; i++) {
+				if (wasm[i].startsWith("$") && isSet(wasm[0]))
+					kill(wasm[i].substring(1), copies);
+			}
+		} else if (statement instanceof ExpressionNode) {
+			propagateExpression(null, (ExpressionNode) statement, copies);
+		}
+
+		return copies;
+	}
+
+	private void propagateExpression(Node parent, ExpressionNode expression, Map<String, String> copies) {
+		if (expression instanceof IdentifierExpressionNode) {
+			String source = copies.get(((IdentifierExpressionNode) expression).getName());
+			if (source != null && parent != null) {
+				OptimizerUtils.ReplaceChild(parent, expression, OptimizerUtils.NewIdentifier(locals.get(source), expression));
+				changed = true;
+			}
+		} else if (expression instanceof AssignExpressionNode) {
+			AssignExpressionNode assignNode = (AssignExpressionNode) expression;
+			propagateExpression(assignNode, assignNode.getRightExpression(), copies);
+			addCopy(assignNode.getVarName(), assignNode.getRightExpression(), copies);
+		} else {
+			for (Node child : OptimizerUtils.GetChildren(expression))
+				propagateExpression(expression, (ExpressionNode) child, copies);
+		}
+	}
+
+	private void addCopy(String varName, ExpressionNode expression, Map<String, String> copies) {
+		kill(varName, copies);
+
+		if (expression instanceof IdentifierExpressionNode) {
+			String source = ((IdentifierExpressionNode) expression).getName();
+			if (!source.equals(varName) && locals.get(source).getType().equals(locals.get(varName).getType()))
+				copies.put(varName, source);
+		}
+	}
+
+	private void kill(String varName, Map<String, String> copies) {
+		copies.remove(varName);
+		copies.values().removeIf(varName::equals);
+	}
+
+	private Map<String, String> intersect(Map<String, String> a, Map<String, String> b) {
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+
+		a.entrySet().removeIf(copy -> !copy.getValue().equals(b.get(copy.getKey())));
+		return a;
+	}
+
+	private void collectAssigned(Node node, Set<String> assigned) {
+		if (node instanceof AssignExpressionNode) {
+			assigned.add(((AssignExpressionNode) node).getVarName());
+		} else if (node instanceof VariableDeclarationNode) {
+			if (((VariableDeclarationNode) node).getExpression() != null)
+				assigned.add(((VariableDeclarationNode) node).getVarName());
+		} else if (node instanceof TailCallStatementNode && ((TailCallStatementNode) node).isSelfCall()) {
+			for (VariableDeclarationNode arg : currentFunction.getArguments())
+				assigned.add(arg.getVarName());
+			for (VariableDeclarationNode varDeclNode : ((TailCallStatementNode) node).getClearedVariables())
+				assigned.add(varDeclNode.getVarName());
+		} else if (node instanceof WasmStatementNode) {
+			String[] wasm = getWasm((WasmStatementNode) node);
+			for (int i = 1; i < wasm.length; i++) {
+				if (wasm[i].startsWith("$") && isSet(wasm[0]))
+					assigned.add(wasm[i].substring(1));
+			}
+		}
+
+		for (Node child : OptimizerUtils.GetChildren(node))
+			collectAssigned(child, assigned);
+	}
+
+	// returns the variables that are live before the statement, given the ones
+	// that are live after it. The dead stores are removed if transform is set,
+	// loops are analyzed without it until their live variables do not change.
+	private Set<String> eliminateStores(StatementNode statement, Set<String> live, boolean transform) {
+		if (statement instanceof StatementBlockNode) {
+			List<StatementNode> statements = ((StatementBlockNode) statement).getStatements();
+			for (int i = statements.size() - 1; i >= 0; i--) {
+				StatementNode child = statements.get(i);
+				if (transform && isDeadStore(child, live)) {
+					ExpressionNode expression = getStoreExpression(child);
+					boolean keepExpression = !OptimizerUtils.IsPure(expression) || OptimizerUtils.CanTrap(expression);
+
+					if (child instanceof VariableDeclarationNode) {
+						((VariableDeclarationNode) child).setExpression(null);
+						if (keepExpression)
+							statements.add(i + 1, expression);
+					} else if (keepExpression) {
+						statements.set(i, expression);
+					} else {
+						statements.remove(i);
+					}
+
+					changed = true;
+					if (keepExpression)
+						live = liveBefore(statement, expression, live, transform);
+					continue;
+				}
+
+				live = eliminateStores(child, live, transform);
+			}
+
+			return live;
+		} else if (statement instanceof IfStatementNode) {
+			IfStatementNode ifNode = (IfStatementNode) statement;
+			List<ExpressionNode> conditions = ifNode.getConditions();
+			List<StatementNode> statementBlocks = ifNode.getStatementBlocks();
+
+			Set<String> next = statementBlocks.size() > conditions.size()
+					? eliminateStores(statementBlocks.get(conditions.size()), live, transform)
+					: live;
+			for (int i = conditions.size() - 1; i >= 0; i--) {
+				Set<String> branch = new HashSet<>(eliminateStores(statementBlocks.get(i), live, transform));
+				branch.addAll(next);
+				next = liveBefore(ifNode, conditions.get(i), branch, transform);
+			}
+
+			return next;
+		} else if (statement instanceof SwitchStatementNode) {
+			SwitchStatementNode switchNode = (SwitchStatementNode) statement;
+
+			Set<String> cases = switchNode.hasDefault() ? new HashSet<>() : new HashSet<>(live);
+			for (StatementNode statementBlock : switchNode.getStatementBlocks())
+				cases.addAll(eliminateStores(statementBlock, live, transform));
+
+			return liveBefore(switchNode, switchNode.getExpression(), cases, transform);
+		} else if (statement instanceof WhileStatementNode) {
+			WhileStatementNode whileNode = (WhileStatementNode) statement;
+
+			// the variables that are live when the condition is evaluated
+			Set<String> head = new HashSet<>();
+			while (true) {
+				Set<String> body = new HashSet<>(eliminateStores(whileNode.getStatementBlock(), head, false));
+				body.addAll(live);
+				Set<String> newHead = liveBefore(whileNode, whileNode.getConditionNode(), body, false);
+				if (newHead.equals(head))
+					break;
+
+				head = newHead;
+			}
+
+			if (transform) {
+				Set<String> body = new HashSet<>(eliminateStores(whileNode.getStatementBlock(), head, true));
+				body.addAll(live);
+				liveBefore(whileNode, whileNode.getConditionNode(), body, true);
+			}
+
+			return head;
+		} else if (statement instanceof AssignExpressionNode || statement instanceof VariableDeclarationNode) {
+			ExpressionNode expression = getStoreExpression(statement);
+			if (expression == null)
+				return live;
+
+			Set<String> after = new HashSet<>(live);
+			after.remove(getStoreName(statement));
+			return liveBefore(statement, expression, after, transform);
+		} else if (statement instanceof ReturnStatementNode) {
+			return liveBefore(statement, ((ReturnStatementNode) statement).getExpression(), new HashSet<>(), transform);
+		} else if (statement instanceof TailCallStatementNode) {
+			// a call to the same function jumps back with the new arguments
+			TailCallStatementNode tailCallNode = (TailCallStatementNode) statement;
+			Set<String> after = tailCallNode.isSelfCall() ? new HashSet<>(locals.keySet()) : new HashSet<>();
+			return liveBefore(statement, tailCallNode.getCall(), after, transform);
+		} else if (statement instanceof WasmStatementNode) {
+			Set<String> before = new HashSet<>(live);
+			String[] wasm = getWasm((WasmStatementNode) statement);
+			for (int i = 1; i < wasm.length; i++) {
+				if (!wasm[i].startsWith("$"))
+					continue;
+
+				if (isSet(wasm[0]))
+					before.remove(wasm[i].substring(1));
+				else
+					before.add(wasm[i].substring(1));
+			}
+
+			return before;
+		} else if (statement instanceof ExpressionNode) {
+			return liveBefore(null, (ExpressionNode) statement, live, transform);
+		}
+
+		return live;
+	}
+
+	private Set<String> liveBefore(Node parent, ExpressionNode expression, Set<String> live, boolean transform) {
+		Set<String> before = new HashSet<>(live);
+		markLive(parent, expression, before, transform);
+		return before;
+	}
+
+	// the children are visited in reverse, since they are evaluated in order
+	private void markLive(Node parent, ExpressionNode expression, Set<String> live, boolean transform) {
+		if (expression instanceof IdentifierExpressionNode) {
+			live.add(((IdentifierExpressionNode) expression).getName());
+		} else if (expression instanceof AssignExpressionNode) {
+			AssignExpressionNode assignNode = (AssignExpressionNode) expression;
+			if (transform && parent != null && !live.contains(assignNode.getVarName())) {
+				OptimizerUtils.ReplaceChild(parent, assignNode, assignNode.getRightExpression());
+				changed = true;
+				markLive(parent, assignNode.getRightExpression(), live, transform);
+				return;
+			}
+
+			live.remove(assignNode.getVarName());
+			markLive(assignNode, assignNode.getRightExpression(), live, transform);
+		} else {
+			List<Node> children = OptimizerUtils.GetChildren(expression);
+			for (int i = children.size() - 1; i >= 0; i--)
+				markLive(expression, (ExpressionNode) children.get(i), live, transform);
+		}
+	}
+
+	// a variable that is assigned to itself is also a dead store
+	private boolean isDeadStore(StatementNode statement, Set<String> live) {
+		ExpressionNode expression = getStoreExpression(statement);
+		if (expression == null)
+			return false;
+
+		return !live.contains(getStoreName(statement)) || expression instanceof IdentifierExpressionNode
+				&& ((IdentifierExpressionNode) expression).getName().equals(getStoreName(statement));
+	}
+
+	private ExpressionNode getStoreExpression(StatementNode statement) {
+		if (statement instanceof AssignExpressionNode)
+			return ((AssignExpressionNode) statement).getRightExpression();
+		if (statement instanceof VariableDeclarationNode)
+			return ((VariableDeclarationNode) statement).getExpression();
+
+		return null;
+	}
+
+	private String getStoreName(StatementNode statement) {
+		if (statement instanceof AssignExpressionNode)
+			return ((AssignExpressionNode) statement).getVarName();
+
+		return ((VariableDeclarationNode) statement).getVarName();
+	}
+
+	private void removeUnusedLocals() {
+		Set<String> used = new HashSet<>();
+		for (VariableDeclarationNode arg : currentFunction.getArguments())
+			used.add(arg.getVarName());
+		collectUsed(currentFunction.getStatementBlock(), used);
+
+		Set<String> unused = new HashSet<>(locals.keySet());
+		unused.removeAll(used);
+		if (unused.isEmpty())
+			return;
+
+		locals.keySet().removeAll(unused);
+		removeDeclarations(currentFunction.getStatementBlock(), unused);
+	}
+
+	private void collectUsed(Node node, Set<String> used) {
+		if (node instanceof IdentifierExpressionNode) {
+			used.add(((IdentifierExpressionNode) node).getName());
+		} else if (node instanceof AssignExpressionNode) {
+			used.add(((AssignExpressionNode) node).getVarName());
+		} else if (node instanceof VariableDeclarationNode) {
+			if (((VariableDeclarationNode) node).getExpression() != null)
+				used.add(((VariableDeclarationNode) node).getVarName());
+		} else if (node instanceof TailCallStatementNode && ((TailCallStatementNode) node).isSelfCall()) {
+			for (VariableDeclarationNode varDeclNode : ((TailCallStatementNode) node).getClearedVariables())
+				used.add(varDeclNode.getVarName());
+		} else if (node instanceof WasmStatementNode) {
+			for (String param : getWasm((WasmStatementNode) node)) {
+				if (param.startsWith("$"))
+					used.add(param.substring(1));
+			}
+		}
+
+		for (Node child : OptimizerUtils.GetChildren(node))
+			collectUsed(child, used);
+	}
+
+	private void removeDeclarations(Node node, Set<String> varNames) {
+		if (node instanceof StatementBlockNode) {
+			((StatementBlockNode) node).getStatements().removeIf(statement -> statement instanceof VariableDeclarationNode
+					&& varNames.contains(((VariableDeclarationNode) statement).getVarName()));
+		}
+
+		if (node instanceof ExpressionNode)
+			return;
+
+		for (Node child : OptimizerUtils.GetChildren(node))
+			removeDeclarations(child, varNames);
+	}
+
+	private String[] getWasm(WasmStatementNode wasmNode) {
+		return wasmNode.getWasmCommand().replace("\"", " ").trim().split(" +");
+	}
+
+	private boolean isSet(String opcode) {
+		return opcode.equals("local.set") || opcode.equals("local.tee");
+	}
+}
@@ -0,0 +1,478 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.optimizer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.enums.BinaryOperationType;
+import compiler.enums.EffectType;
+import compiler.enums.LiteralType;
+import compiler.enums.UnaryOperationType;
+import compiler.nodes.AssignExpressionNode;
+import compiler.nodes.BinaryOperationNode;
+import compiler.nodes.BooleanExpressionNode;
+import compiler.nodes.CastingExpressionNode;
+import compiler.nodes.ExpressionNode;
+import compiler.nodes.FunctionCallExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IdentifierExpressionNode;
+import compiler.nodes.IfStatementNode;
+import compiler.nodes.NumberExpressionNode;
+import compiler.nodes.ReturnStatementNode;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.StatementNode;
+import compiler.nodes.SwitchStatementNode;
+import compiler.nodes.UnaryOperationNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.nodes.WhileStatementNode;
+
+// Runs the pure functions at compile time. The inline wasm of a pure function
+// cannot be evaluated, it only uses the stack and the locals though.
+//
+// The values are Integer for i32 and bool, Long for i64, Float for f32 and
+// Double for f64, so that they wrap around and round like the wasm ones. A
+// call cannot be evaluated if it takes more steps than the budget, recurses
+// too deep or traps, the trap is left to happen at runtime then.
+public class Evaluator {
+
+	private static final int MAX_DEPTH = 500;
+
+	private Map<String, FunctionStatementNode> funcSymbolTable;
+	private Map<String, Map<String, VariableDeclarationNode>> localSymbolTables;
+	private Map<String, EffectType> functionEffects;
+	private int budget;
+
+	private Map<String, Number> results = new HashMap<>();
+	private Set<String> failed = new HashSet<>();
+
+	private int steps, depth;
+
+	private static class EvaluationException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	public Evaluator(Map<String, FunctionStatementNode> funcSymbolTable,
+			Map<String, Map<String, VariableDeclarationNode>> localSymbolTables, Map<String, EffectType> functionEffects,
+			int budget) {
+		this.funcSymbolTable = funcSymbolTable;
+		this.localSymbolTables = localSymbolTables;
+		this.functionEffects = functionEffects;
+		this.budget = budget;
+	}
+
+	public boolean isPure(String functionName) {
+		return functionEffects.get(functionName) == EffectType.PURE;
+	}
+
+	// returns the result of a pure function or null if it cannot be evaluated
+	public Number call(String functionName, List<Number> arguments) {
+		if (!isPure(functionName))
+			return null;
+
+		String key = functionName + arguments;
+		if (results.containsKey(key))
+			return results.get(key);
+		if (failed.contains(key))
+			return null;
+
+		steps = 0;
+		depth = 0;
+		try {
+			Number result = invoke(funcSymbolTable.get(functionName), arguments);
+			results.put(key, result);
+			return result;
+		} catch (EvaluationException e) {
+			failed.add(key);
+			return null;
+		}
+	}
+
+	private Number invoke(FunctionStatementNode functionNode, List<Number> arguments) {
+		if (++depth > MAX_DEPTH)
+			throw new EvaluationException();
+
+		// the locals start as zero
+		Map<String, Number> locals = new HashMap<>();
+		for (VariableDeclarationNode varDeclNode : localSymbolTables.get(functionNode.getName()).values())
+			locals.put(varDeclNode.getVarName(), ToValue(0, LiteralType.getLiteralTypeFromString(varDeclNode.getType())));
+		for (int i = 0; i < arguments.size(); i++)
+			locals.put(functionNode.getArguments().get(i).getVarName(), arguments.get(i));
+
+		Number[] result = new Number[1];
+		execute(functionNode.getStatementBlock(), locals, result);
+
+		// the end of a function that returns a value cannot be reached
+		if (result[0] == null && !functionNode.getType().equals("void"))
+			throw new EvaluationException();
+
+		depth--;
+		return result[0];
+	}
+
+	// returns true if a return statement was executed
+	private boolean execute(StatementNode statement, Map<String, Number> locals, Number[] result) {
+		step();
+
+		if (statement instanceof StatementBlockNode) {
+			for (StatementNode child : ((StatementBlockNode) statement).getStatements()) {
+				if (execute(child, locals, result))
+					return true;
+			}
+		} else if (statement instanceof VariableDeclarationNode) {
+			VariableDeclarationNode varDeclNode = (VariableDeclarationNode) statement;
+			if (varDeclNode.getExpression() != null)
+				locals.put(varDeclNode.getVarName(), evaluate(varDeclNode.getExpression(), locals));
+		} else if (statement instanceof IfStatementNode) {
+			IfStatementNode ifNode = (IfStatementNode) statement;
+			List<ExpressionNode> conditions = ifNode.getConditions();
+			for (int i = 0; i < conditions.size(); i++) {
+				if (evaluate(conditions.get(i), locals).intValue() != 0)
+					return execute(ifNode.getStatementBlocks().get(i), locals, result);
+			}
+
+			if (ifNode.getStatementBlocks().size() > conditions.size())
+				return execute(ifNode.getStatementBlocks().get(conditions.size()), locals, result);
+		} else if (statement instanceof SwitchStatementNode) {
+			SwitchStatementNode switchNode = (SwitchStatementNode) statement;
+			long value = evaluate(switchNode.getExpression(), locals).longValue();
+			for (int i = 0; i < switchNode.getCases().size(); i++) {
+				for (ExpressionNode caseNode : switchNode.getCases().get(i)) {
+					if (((NumberExpressionNode) caseNode).getNumber().longValue() == value)
+						return execute(switchNode.getStatementBlocks().get(i), locals, result);
+				}
+			}
+
+			if (switchNode.hasDefault())
+				return execute(switchNode.getStatementBlocks().get(switchNode.getCases().size()), locals, result);
+		} else if (statement instanceof WhileStatementNode) {
+			WhileStatementNode whileNode = (WhileStatementNode) statement;
+			while (evaluate(whileNode.getConditionNode(), locals).intValue() != 0) {
+				if (execute(whileNode.getStatementBlock(), locals, result))
+					return true;
+			}
+		} else if (statement instanceof ReturnStatementNode) {
+			result[0] = evaluate(((ReturnStatementNode) statement).getExpression(), locals);
+			return true;
+		} else if (statement instanceof ExpressionNode) {
+			evaluate((ExpressionNode) statement, locals);
+		} else {
+			throw new EvaluationException();
+		}
+
+		return false;
+	}
+
+	private Number evaluate(ExpressionNode expression, Map<String, Number> locals) {
+		step();
+
+		if (expression instanceof NumberExpressionNode) {
+			NumberExpressionNode numberNode = (NumberExpressionNode) expression;
+			return ToValue(numberNode.getNumber(), numberNode.getLiteralType());
+		} else if (expression instanceof BooleanExpressionNode) {
+			return ((BooleanExpressionNode) expression).getValue() ? 1 : 0;
+		} else if (expression instanceof IdentifierExpressionNode) {
+			return locals.get(((IdentifierExpressionNode) expression).getName());
+		} else if (expression instanceof AssignExpressionNode) {
+			AssignExpressionNode assignNode = (AssignExpressionNode) expression;
+			Number value = evaluate(assignNode.getRightExpression(), locals);
+			locals.put(assignNode.getVarName(), value);
+			return value;
+		} else if (expression instanceof BinaryOperationNode) {
+			BinaryOperationNode binaryNode = (BinaryOperationNode) expression;
+			Number left = evaluate(binaryNode.getLeftExpression(), locals);
+			Number right = evaluate(binaryNode.getRightExpression(), locals);
+			return check(EvaluateBinary(binaryNode.getBinaryOperationType(), left, right));
+		} else if (expression instanceof UnaryOperationNode) {
+			UnaryOperationNode unaryNode = (UnaryOperationNode) expression;
+			return check(EvaluateUnary(unaryNode.getUnaryOperationType(), evaluate(unaryNode.getExpression(), locals)));
+		} else if (expression instanceof CastingExpressionNode) {
+			CastingExpressionNode castingNode = (CastingExpressionNode) expression;
+			Number value = evaluate(castingNode.getExpression(), locals);
+			LiteralType type = LiteralType.getLiteralTypeFromString(castingNode.getType());
+			return check(castingNode.isReinterpret() ? EvaluateReinterpret(value) : EvaluateCast(value, type));
+		} else if (expression instanceof FunctionCallExpressionNode) {
+			FunctionCallExpressionNode callNode = (FunctionCallExpressionNode) expression;
+			Number[] arguments = new Number[callNode.getArguments().size()];
+			for (int i = 0; i < arguments.length; i++)
+				arguments[i] = evaluate(callNode.getArguments().get(i), locals);
+
+			return invoke(funcSymbolTable.get(callNode.getFunctionName()), List.of(arguments));
+		}
+
+		throw new EvaluationException();
+	}
+
+	private void step() {
+		if (++steps > budget)
+			throw new EvaluationException();
+	}
+
+	private Number check(Number value) {
+		if (value == null)
+			throw new EvaluationException();
+
+		return value;
+	}
+
+	// returns null if the operation traps or there is no instruction for it
+	public static Number EvaluateBinary(BinaryOperationType operationType, Number left, Number right) {
+		if (left instanceof Integer) {
+			int a = left.intValue(), b = right.intValue();
+			switch (operationType) {
+			case ADDITION:
+				return a + b;
+			case SUBTRACTION:
+				return a - b;
+			case MULTIPLICATION:
+				return a * b;
+			case DIVISION:
+				if (b == 0 || (a == Integer.MIN_VALUE && b == -1))
+					return null;
+				return a / b;
+			case MODULO:
+				if (b == 0)
+					return null;
+				return a % b;
+			case BIT_AND:
+			case AND:
+				return a & b;
+			case BIT_OR:
+			case OR:
+				return a | b;
+			case BIT_XOR:
+				return a ^ b;
+			case SHIFT_LEFT:
+				return a << b;
+			case SHIFT_RIGHT:
+				return a >> b;
+			case SHIFT_RIGHT_UNSIGNED:
+				return a >>> b;
+			case ROTATE_LEFT:
+				return Integer.rotateLeft(a, b);
+			case ROTATE_RIGHT:
+				return Integer.rotateRight(a, b);
+			default:
+				return Compare(operationType, Integer.compare(a, b));
+			}
+		} else if (left instanceof Long) {
+			long a = left.longValue(), b = right.longValue();
+			switch (operationType) {
+			case ADDITION:
+				return a + b;
+			case SUBTRACTION:
+				return a - b;
+			case MULTIPLICATION:
+				return a * b;
+			case DIVISION:
+				if (b == 0 || (a == Long.MIN_VALUE && b == -1))
+					return null;
+				return a / b;
+			case MODULO:
+				if (b == 0)
+					return null;
+				return a % b;
+			case BIT_AND:
+				return a & b;
+			case BIT_OR:
+				return a | b;
+			case BIT_XOR:
+				return a ^ b;
+			case SHIFT_LEFT:
+				return a << b;
+			case SHIFT_RIGHT:
+				return a >> b;
+			case SHIFT_RIGHT_UNSIGNED:
+				return a >>> b;
+			case ROTATE_LEFT:
+				return Long.rotateLeft(a, (int) b);
+			case ROTATE_RIGHT:
+				return Long.rotateRight(a, (int) b);
+			default:
+				return Compare(operationType, Long.compare(a, b));
+			}
+		}
+
+		// the comparisons of floats are false if one of them is NaN
+		double a = left.doubleValue(), b = right.doubleValue();
+		boolean isFloat = left instanceof Float;
+		switch (operationType) {
+		case ADDITION:
+			return isFloat ? (Number) (left.floatValue() + right.floatValue()) : a + b;
+		case SUBTRACTION:
+			return isFloat ? (Number) (left.floatValue() - right.floatValue()) : a - b;
+		case MULTIPLICATION:
+			return isFloat ? (Number) (left.floatValue() * right.floatValue()) : a * b;
+		case DIVISION:
+			return isFloat ? (Number) (left.floatValue() / right.floatValue()) : a / b;
+		case MIN:
+			return isFloat ? (Number) Math.min(left.floatValue(), right.floatValue()) : Math.min(a, b);
+		case MAX:
+			return isFloat ? (Number) Math.max(left.floatValue(), right.floatValue()) : Math.max(a, b);
+		case COPYSIGN:
+			return isFloat ? (Number) Math.copySign(left.floatValue(), right.floatValue()) : Math.copySign(a, b);
+		case GREATER_THAN:
+			return a > b ? 1 : 0;
+		case LESS_THAN:
+			return a < b ? 1 : 0;
+		case EQUALS:
+			return a == b ? 1 : 0;
+		case NOT_EQUAL:
+			return a != b ? 1 : 0;
+		case GREATER_EQUAL:
+			return a >= b ? 1 : 0;
+		case LESS_EQUAL:
+			return a <= b ? 1 : 0;
+		default:
+			return null;
+		}
+	}
+
+	private static Number Compare(BinaryOperationType operationType, int comparison) {
+		switch (operationType) {
+		case GREATER_THAN:
+			return comparison > 0 ? 1 : 0;
+		case LESS_THAN:
+			return comparison < 0 ? 1 : 0;
+		case EQUALS:
+			return comparison == 0 ? 1 : 0;
+		case NOT_EQUAL:
+			return comparison != 0 ? 1 : 0;
+		case GREATER_EQUAL:
+			return comparison >= 0 ? 1 : 0;
+		case LESS_EQUAL:
+			return comparison <= 0 ? 1 : 0;
+		default:
+			return null;
+		}
+	}
+
+	public static Number EvaluateUnary(UnaryOperationType operationType, Number value) {
+		switch (operationType) {
+		case PLUS:
+			return value;
+		case MINUS:
+			if (value instanceof Integer)
+				return -value.intValue();
+			if (value instanceof Long)
+				return -value.longValue();
+			if (value instanceof Float)
+				return -value.floatValue();
+			return -value.doubleValue();
+		case COMPLEMENT:
+			return value.intValue() ^ 1;
+		case POPCNT:
+			if (value instanceof Long)
+				return (long) Long.bitCount(value.longValue());
+			return Integer.bitCount(value.intValue());
+		case CLZ:
+			if (value instanceof Long)
+				return (long) Long.numberOfLeadingZeros(value.longValue());
+			return Integer.numberOfLeadingZeros(value.intValue());
+		case CTZ:
+			if (value instanceof Long)
+				return (long) Long.numberOfTrailingZeros(value.longValue());
+			return Integer.numberOfTrailingZeros(value.intValue());
+		case SQRT:
+			return RoundFloat(Math.sqrt(value.doubleValue()), value);
+		case ABS:
+			return RoundFloat(Math.abs(value.doubleValue()), value);
+		case FLOOR:
+			return RoundFloat(Math.floor(value.doubleValue()), value);
+		case CEIL:
+			return RoundFloat(Math.ceil(value.doubleValue()), value);
+		case TRUNC:
+			return RoundFloat(value.doubleValue() < 0 ? Math.ceil(value.doubleValue()) : Math.floor(value.doubleValue()),
+					value);
+		case NEAREST:
+			// rounds the halves to the even number, like the wasm instruction
+			return RoundFloat(Math.rint(value.doubleValue()), value);
+		default:
+			return null;
+		}
+	}
+
+	// the java conversions round like the wasm ones. The conversions of floats
+	// out of range are left to trap, or to saturate, at runtime.
+	public static Number EvaluateCast(Number value, LiteralType type) {
+		boolean isInteger = value instanceof Integer || value instanceof Long;
+
+		switch (type) {
+		case bool:
+			return (isInteger ? value.longValue() != 0 : value.doubleValue() != 0) ? 1 : 0;
+		case i32:
+			if (value instanceof Long)
+				return value.intValue();
+			if (!isInteger && !(value.doubleValue() > -2147483649.0 && value.doubleValue() < 2147483648.0))
+				return null;
+			return value.intValue();
+		case i64:
+			if (!isInteger && !(value.doubleValue() >= -9223372036854775808.0
+					&& value.doubleValue() < 9223372036854775808.0))
+				return null;
+			return value.longValue();
+		case f32:
+			return value.floatValue();
+		case f64:
+			return value.doubleValue();
+		default:
+			return null;
+		}
+	}
+
+	// the NaNs are not evaluated since their bits may change
+	public static Number EvaluateReinterpret(Number value) {
+		Number result;
+		if (value instanceof Float)
+			result = Float.floatToRawIntBits(value.floatValue());
+		else if (value instanceof Double)
+			result = Double.doubleToRawLongBits(value.doubleValue());
+		else if (value instanceof Integer)
+			result = Float.intBitsToFloat(value.intValue());
+		else
+			result = Double.longBitsToDouble(value.longValue());
+
+		if (Double.isNaN(value.doubleValue()) || Double.isNaN(result.doubleValue()))
+			return null;
+
+		return result;
+	}
+
+	// the double result of an f32 operation is exact, or correctly rounded for
+	// sqrt, so it is rounded back to f32
+	private static Number RoundFloat(double result, Number value) {
+		if (value instanceof Float)
+			return (float) result;
+
+		return result;
+	}
+
+	public static Number ToValue(Number number, LiteralType type) {
+		switch (type) {
+		case i64:
+			return number.longValue();
+		case f32:
+			return number.floatValue();
+		case f64:
+			return number.doubleValue();
+		default:
+			return number.intValue();
+		}
+	}
+}
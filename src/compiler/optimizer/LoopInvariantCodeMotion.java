@@ -0,0 +1,197 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.nodes.AssignExpressionNode;
+import compiler.nodes.ExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IdentifierExpressionNode;
+import compiler.nodes.IfStatementNode;
+import compiler.nodes.Node;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.StatementNode;
+import compiler.nodes.SwitchStatementNode;
+import compiler.nodes.TailCallStatementNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.nodes.WasmStatementNode;
+import compiler.nodes.WhileStatementNode;
+
+// Moves the expressions of a loop that read only variables that are not
+// assigned inside the loop into temporary locals that are computed once before
+// the loop:
+//
+// while (i < n * 2) { ... }  ->  i32 t = n * 2; while (i < t) { ... }
+//
+// The expression is computed even if the loop is never entered, so only
+// expressions without side effects that cannot trap are moved. The loops are
+// optimized from the innermost outwards, and the temporaries of an inner loop
+// are moved again if they are invariant in the outer loop as well.
+public class LoopInvariantCodeMotion implements OptimizationPass {
+
+	// smaller expressions are cheaper to compute again than a local.get
+	private static final int MIN_SIZE = 3;
+
+	private Map<String, FunctionStatementNode> funcSymbolTable;
+	private Map<String, Map<String, VariableDeclarationNode>> localSymbolTables;
+
+	private FunctionStatementNode currentFunction;
+	private Set<VariableDeclarationNode> temps;
+
+	public LoopInvariantCodeMotion(Map<String, FunctionStatementNode> funcSymbolTable,
+			Map<String, Map<String, VariableDeclarationNode>> localSymbolTables) {
+		this.funcSymbolTable = funcSymbolTable;
+		this.localSymbolTables = localSymbolTables;
+	}
+
+	@Override
+	public void optimize(Node node) {
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			currentFunction = functionNode;
+			temps = new HashSet<>();
+			optimizeStatement(functionNode.getStatementBlock());
+		}
+	}
+
+	private void optimizeStatement(StatementNode statement) {
+		if (statement instanceof IfStatementNode) {
+			List<StatementNode> statementBlocks = ((IfStatementNode) statement).getStatementBlocks();
+			for (int i = 0; i < statementBlocks.size(); i++) {
+				// the loop needs a block to put its preheader in
+				if (statementBlocks.get(i) instanceof WhileStatementNode)
+					statementBlocks.set(i, OptimizerUtils.ToBlock(statementBlocks.get(i)));
+
+				optimizeStatement(statementBlocks.get(i));
+			}
+		} else if (statement instanceof SwitchStatementNode) {
+			for (StatementNode statementBlock : ((SwitchStatementNode) statement).getStatementBlocks())
+				optimizeStatement(statementBlock);
+		} else if (statement instanceof WhileStatementNode) {
+			optimizeStatement(((WhileStatementNode) statement).getStatementBlock());
+		} else if (statement instanceof StatementBlockNode) {
+			List<StatementNode> statements = ((StatementBlockNode) statement).getStatements();
+			for (int i = 0; i < statements.size(); i++) {
+				optimizeStatement(statements.get(i));
+
+				if (statements.get(i) instanceof WhileStatementNode) {
+					List<StatementNode> preheader = hoist((WhileStatementNode) statements.get(i));
+					statements.addAll(i, preheader);
+					i += preheader.size();
+				}
+			}
+		}
+	}
+
+	private List<StatementNode> hoist(WhileStatementNode whileNode) {
+		List<StatementNode> preheader = new ArrayList<>();
+		Set<String> assigned = new HashSet<>();
+		collectAssigned(whileNode, assigned);
+
+		// the temporaries of inner loops at the top level of the body
+		List<StatementNode> statements = whileNode.getStatementBlock().getStatements();
+		for (int i = 0; i < statements.size(); i++) {
+			if (temps.contains(statements.get(i))
+					&& isInvariant(((VariableDeclarationNode) statements.get(i)).getExpression(), assigned)) {
+				preheader.add(statements.remove(i--));
+
+				assigned.clear();
+				collectAssigned(whileNode, assigned);
+			}
+		}
+
+		Map<String, List<Node[]>> invariants = new LinkedHashMap<>();
+		collectInvariants(whileNode, whileNode.getConditionNode(), assigned, invariants);
+		collectInvariants(whileNode, whileNode.getStatementBlock(), assigned, invariants);
+
+		for (List<Node[]> occurrences : invariants.values()) {
+			ExpressionNode first = (ExpressionNode) occurrences.get(0)[1];
+			VariableDeclarationNode temp = OptimizerUtils.NewLocal(localSymbolTables.get(currentFunction.getName()),
+					"licm", first.getLiteralType().toString());
+			temp.setExpression(first);
+			temp.setLine(whileNode.getLine());
+			temp.setPos(whileNode.getPos());
+			preheader.add(temp);
+			temps.add(temp);
+
+			for (Node[] occurrence : occurrences)
+				OptimizerUtils.ReplaceChild(occurrence[0], occurrence[1], OptimizerUtils.NewIdentifier(temp, first));
+		}
+
+		return preheader;
+	}
+
+	// collects the largest invariant expressions, grouped by their key
+	private void collectInvariants(Node parent, Node node, Set<String> assigned, Map<String, List<Node[]>> invariants) {
+		if (node instanceof ExpressionNode && OptimizerUtils.GetSize(node) >= MIN_SIZE
+				&& isInvariant((ExpressionNode) node, assigned)) {
+			String key = OptimizerUtils.GetKey((ExpressionNode) node, new HashMap<>());
+			invariants.computeIfAbsent(key, k -> new ArrayList<>()).add(new Node[] { parent, node });
+			return;
+		}
+
+		for (Node child : OptimizerUtils.GetChildren(node))
+			collectInvariants(node, child, assigned, invariants);
+	}
+
+	private boolean isInvariant(ExpressionNode expression, Set<String> assigned) {
+		if (expression == null || expression.getLiteralType() == null
+				|| OptimizerUtils.GetKey(expression, new HashMap<>()) == null || !OptimizerUtils.IsPure(expression)
+				|| OptimizerUtils.CanTrap(expression))
+			return false;
+
+		return !readsAny(expression, assigned);
+	}
+
+	private boolean readsAny(Node node, Set<String> varNames) {
+		if (node instanceof IdentifierExpressionNode && varNames.contains(((IdentifierExpressionNode) node).getName()))
+			return true;
+
+		for (Node child : OptimizerUtils.GetChildren(node)) {
+			if (readsAny(child, varNames))
+				return true;
+		}
+
+		return false;
+	}
+
+	private void collectAssigned(Node node, Set<String> assigned) {
+		if (node instanceof AssignExpressionNode) {
+			assigned.add(((AssignExpressionNode) node).getVarName());
+		} else if (node instanceof VariableDeclarationNode) {
+			assigned.add(((VariableDeclarationNode) node).getVarName());
+		} else if (node instanceof TailCallStatementNode && ((TailCallStatementNode) node).isSelfCall()) {
+			for (VariableDeclarationNode arg : currentFunction.getArguments())
+				assigned.add(arg.getVarName());
+			for (VariableDeclarationNode varDeclNode : ((TailCallStatementNode) node).getClearedVariables())
+				assigned.add(varDeclNode.getVarName());
+		} else if (node instanceof WasmStatementNode) {
+			for (String param : ((WasmStatementNode) node).getWasmCommand().replace("\"", " ").split(" ")) {
+				if (param.startsWith("$"))
+					assigned.add(param.substring(1));
+			}
+		}
+
+		for (Node child : OptimizerUtils.GetChildren(node))
+			collectAssigned(child, assigned);
+	}
+}
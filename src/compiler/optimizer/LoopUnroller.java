@@ -0,0 +1,369 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.enums.BinaryOperationType;
+import compiler.enums.LiteralType;
+import compiler.nodes.AssignExpressionNode;
+import compiler.nodes.BinaryOperationNode;
+import compiler.nodes.ExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IdentifierExpressionNode;
+import compiler.nodes.IfStatementNode;
+import compiler.nodes.Node;
+import compiler.nodes.NumberExpressionNode;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.StatementNode;
+import compiler.nodes.SwitchStatementNode;
+import compiler.nodes.TailCallStatementNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.nodes.WasmStatementNode;
+import compiler.nodes.WhileStatementNode;
+
+// Unrolls the loops that count an i32 variable towards a bound that does not
+// change inside the loop, with the step as the last statement of the body:
+//
+// while (i < n) { ...; i = i + 1; }
+//
+// If the value of the variable before the loop and the bound are constants the
+// loop is replaced by a copy of the body for every iteration. Otherwise the body
+// is repeated in a loop that only runs while all of its iterations would run,
+// and the original loop runs the remaining ones:
+//
+// while ((i64) i + 3 < (i64) n) { ...; i = i + 1; ...; i = i + 1; ... }
+// while (i < n) { ...; i = i + 1; }
+//
+// The condition is compared as i64 so that the counter cannot overflow in it.
+// The size budget is the number of nodes the loop is allowed to grow by.
+public class LoopUnroller implements OptimizationPass {
+
+	private static final int MAX_TRIP_COUNT = 64;
+
+	private Map<String, FunctionStatementNode> funcSymbolTable;
+	private Map<String, Map<String, VariableDeclarationNode>> localSymbolTables;
+
+	private int unrollFactor, sizeBudget;
+
+	private Map<String, VariableDeclarationNode> localSymbolTable;
+
+	public LoopUnroller(Map<String, FunctionStatementNode> funcSymbolTable,
+			Map<String, Map<String, VariableDeclarationNode>> localSymbolTables, int unrollFactor, int sizeBudget) {
+		this.funcSymbolTable = funcSymbolTable;
+		this.localSymbolTables = localSymbolTables;
+		this.unrollFactor = unrollFactor;
+		this.sizeBudget = sizeBudget;
+	}
+
+	@Override
+	public void optimize(Node node) {
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			localSymbolTable = localSymbolTables.get(functionNode.getName());
+			optimizeStatement(functionNode.getStatementBlock());
+		}
+	}
+
+	private void optimizeStatement(StatementNode statement) {
+		if (statement instanceof IfStatementNode) {
+			List<StatementNode> statementBlocks = ((IfStatementNode) statement).getStatementBlocks();
+			for (int i = 0; i < statementBlocks.size(); i++) {
+				// the unrolled loop is replaced by more than one statement
+				if (statementBlocks.get(i) instanceof WhileStatementNode)
+					statementBlocks.set(i, OptimizerUtils.ToBlock(statementBlocks.get(i)));
+
+				optimizeStatement(statementBlocks.get(i));
+			}
+		} else if (statement instanceof SwitchStatementNode) {
+			for (StatementNode statementBlock : ((SwitchStatementNode) statement).getStatementBlocks())
+				optimizeStatement(statementBlock);
+		} else if (statement instanceof WhileStatementNode) {
+			optimizeStatement(((WhileStatementNode) statement).getStatementBlock());
+		} else if (statement instanceof StatementBlockNode) {
+			List<StatementNode> statements = ((StatementBlockNode) statement).getStatements();
+			for (int i = 0; i < statements.size(); i++) {
+				optimizeStatement(statements.get(i));
+
+				if (statements.get(i) instanceof WhileStatementNode) {
+					List<StatementNode> unrolled = unroll((WhileStatementNode) statements.get(i),
+							statements.subList(0, i));
+					if (unrolled != null) {
+						statements.remove(i);
+						statements.addAll(i, unrolled);
+						i += unrolled.size() - 1;
+					}
+				}
+			}
+		}
+	}
+
+	// returns the statements that replace the loop, or null if it is not unrolled
+	private List<StatementNode> unroll(WhileStatementNode whileNode, List<StatementNode> previous) {
+		Loop loop = getLoop(whileNode);
+		if (loop == null)
+			return null;
+
+		int bodySize = OptimizerUtils.GetSize(whileNode.getStatementBlock());
+		int loopSize = bodySize + OptimizerUtils.GetSize(whileNode.getConditionNode());
+
+		Integer start = getStartValue(loop.counter, previous);
+		if (start != null && loop.bound instanceof NumberExpressionNode) {
+			int tripCount = getTripCount(loop, start, ((NumberExpressionNode) loop.bound).getNumber().intValue());
+			if (tripCount >= 0 && tripCount * bodySize - loopSize <= sizeBudget) {
+				List<StatementNode> unrolled = new ArrayList<>();
+				for (int i = 0; i < tripCount; i++)
+					unrolled.addAll(copyBody(whileNode, i == 0));
+				return unrolled;
+			}
+		}
+
+		int factor = unrollFactor;
+		while (factor > 1 && (factor - 1) * bodySize + loopSize > sizeBudget)
+			factor /= 2;
+
+		if (factor <= 1)
+			return null;
+
+		List<StatementNode> body = new ArrayList<>();
+		for (int i = 0; i < factor; i++)
+			body.addAll(copyBody(whileNode, i == 0));
+
+		StatementBlockNode statementBlock = OptimizerUtils.ToBlock(whileNode.getStatementBlock());
+		StatementBlockNode unrolledBlock = new StatementBlockNode();
+		unrolledBlock.setStatements(body);
+		unrolledBlock.setLine(statementBlock.getLine());
+		unrolledBlock.setPos(statementBlock.getPos());
+
+		// the counter after the last iteration of the unrolled body
+		ExpressionNode last = OptimizerUtils.NewBinary(BinaryOperationType.ADDITION,
+				OptimizerUtils.NewCast(OptimizerUtils.NewIdentifier(loop.counter, whileNode), LiteralType.i64,
+						whileNode),
+				OptimizerUtils.NewNumber((long) (factor - 1) * loop.step, LiteralType.i64, whileNode),
+				whileNode);
+		BinaryOperationNode condition = OptimizerUtils.NewBinary(loop.operationType, last,
+				OptimizerUtils.NewCast((ExpressionNode) OptimizerUtils.Copy(loop.bound), LiteralType.i64, whileNode),
+				whileNode);
+		condition.setLiteralType(LiteralType.bool);
+
+		WhileStatementNode unrolledLoop = new WhileStatementNode();
+		unrolledLoop.setConditionNode(condition);
+		unrolledLoop.setStatementBlock(unrolledBlock);
+		unrolledLoop.setLine(whileNode.getLine());
+		unrolledLoop.setPos(whileNode.getPos());
+
+		// the original loop is the remainder, its body was copied
+		WhileStatementNode remainder = new WhileStatementNode();
+		remainder.setConditionNode(whileNode.getConditionNode());
+		remainder.setStatementBlock((StatementBlockNode) OptimizerUtils.Copy(whileNode.getStatementBlock()));
+		remainder.setLine(whileNode.getLine());
+		remainder.setPos(whileNode.getPos());
+
+		List<StatementNode> unrolled = new ArrayList<>();
+		unrolled.add(unrolledLoop);
+		unrolled.add(remainder);
+		return unrolled;
+	}
+
+	// the first copy keeps the original statements, with their declarations
+	private List<StatementNode> copyBody(WhileStatementNode whileNode, boolean first) {
+		StatementBlockNode statementBlock = whileNode.getStatementBlock();
+		if (!first)
+			statementBlock = (StatementBlockNode) OptimizerUtils.Copy(statementBlock);
+
+		return statementBlock.getStatements();
+	}
+
+	private static class Loop {
+		private VariableDeclarationNode counter;
+		private BinaryOperationType operationType;
+		private ExpressionNode bound;
+		private int step;
+	}
+
+	private Loop getLoop(WhileStatementNode whileNode) {
+		if (!(whileNode.getConditionNode() instanceof BinaryOperationNode))
+			return null;
+
+		BinaryOperationNode condition = (BinaryOperationNode) whileNode.getConditionNode();
+		if (!(condition.getLeftExpression() instanceof IdentifierExpressionNode))
+			return null;
+
+		Loop loop = new Loop();
+		loop.counter = localSymbolTable.get(((IdentifierExpressionNode) condition.getLeftExpression()).getName());
+		loop.operationType = condition.getBinaryOperationType();
+		loop.bound = condition.getRightExpression();
+		if (loop.counter == null || !loop.counter.getType().equals("i32"))
+			return null;
+
+		List<StatementNode> statements = whileNode.getStatementBlock().getStatements();
+		if (statements.isEmpty())
+			return null;
+
+		Integer step = getStep(statements.get(statements.size() - 1), loop.counter.getVarName());
+		if (step == null || step == 0)
+			return null;
+		loop.step = step;
+
+		switch (loop.operationType) {
+		case LESS_THAN:
+		case LESS_EQUAL:
+			if (step < 0)
+				return null;
+			break;
+		case GREATER_THAN:
+		case GREATER_EQUAL:
+			if (step > 0)
+				return null;
+			break;
+		default:
+			return null;
+		}
+
+		// the counter is only changed by the step and the bound not at all
+		Set<String> assigned = new HashSet<>();
+		for (int i = 0; i < statements.size() - 1; i++) {
+			if (!collectAssigned(statements.get(i), assigned))
+				return null;
+		}
+
+		if (assigned.contains(loop.counter.getVarName()) || !OptimizerUtils.IsPure(loop.bound)
+				|| OptimizerUtils.CanTrap(loop.bound) || readsAny(loop.bound, assigned)
+				|| readsAny(loop.bound, Set.of(loop.counter.getVarName())))
+			return null;
+
+		return loop;
+	}
+
+	// the step of the statement i = i + c, i = c + i or i = i - c
+	private Integer getStep(StatementNode statement, String varName) {
+		if (!(statement instanceof AssignExpressionNode)
+				|| !((AssignExpressionNode) statement).getVarName().equals(varName)
+				|| !(((AssignExpressionNode) statement).getRightExpression() instanceof BinaryOperationNode))
+			return null;
+
+		BinaryOperationNode binaryNode = (BinaryOperationNode) ((AssignExpressionNode) statement)
+				.getRightExpression();
+		ExpressionNode left = binaryNode.getLeftExpression();
+		ExpressionNode right = binaryNode.getRightExpression();
+
+		if (binaryNode.getBinaryOperationType() == BinaryOperationType.ADDITION) {
+			if (isVariable(left, varName) && right instanceof NumberExpressionNode)
+				return ((NumberExpressionNode) right).getNumber().intValue();
+			if (isVariable(right, varName) && left instanceof NumberExpressionNode)
+				return ((NumberExpressionNode) left).getNumber().intValue();
+		} else if (binaryNode.getBinaryOperationType() == BinaryOperationType.SUBTRACTION) {
+			if (isVariable(left, varName) && right instanceof NumberExpressionNode
+					&& ((NumberExpressionNode) right).getNumber().intValue() != Integer.MIN_VALUE)
+				return -((NumberExpressionNode) right).getNumber().intValue();
+		}
+
+		return null;
+	}
+
+	// the constant the counter is set to by the statements before the loop
+	private Integer getStartValue(VariableDeclarationNode counter, List<StatementNode> previous) {
+		for (int i = previous.size() - 1; i >= 0; i--) {
+			StatementNode statement = previous.get(i);
+
+			ExpressionNode value = null;
+			if (statement instanceof VariableDeclarationNode
+					&& ((VariableDeclarationNode) statement).getVarName().equals(counter.getVarName()))
+				value = ((VariableDeclarationNode) statement).getExpression();
+			else if (statement instanceof AssignExpressionNode
+					&& ((AssignExpressionNode) statement).getVarName().equals(counter.getVarName()))
+				value = ((AssignExpressionNode) statement).getRightExpression();
+
+			if (value instanceof NumberExpressionNode)
+				return ((NumberExpressionNode) value).getNumber().intValue();
+
+			Set<String> assigned = new HashSet<>();
+			if (value != null || !collectAssigned(statement, assigned)
+					|| assigned.contains(counter.getVarName()))
+				return null;
+		}
+
+		return null;
+	}
+
+	// the number of iterations, or -1 if there are too many to unroll
+	private int getTripCount(Loop loop, int start, int bound) {
+		int counter = start;
+		for (int i = 0; i <= MAX_TRIP_COUNT; i++) {
+			boolean condition;
+			switch (loop.operationType) {
+			case LESS_THAN:
+				condition = counter < bound;
+				break;
+			case LESS_EQUAL:
+				condition = counter <= bound;
+				break;
+			case GREATER_THAN:
+				condition = counter > bound;
+				break;
+			default:
+				condition = counter >= bound;
+				break;
+			}
+
+			if (!condition)
+				return i;
+
+			counter += loop.step;
+		}
+
+		return -1;
+	}
+
+	// returns false if the statement can change locals in ways that are not
+	// visible in the tree
+	private boolean collectAssigned(Node node, Set<String> assigned) {
+		if (node instanceof WasmStatementNode || node instanceof TailCallStatementNode)
+			return false;
+
+		if (node instanceof AssignExpressionNode)
+			assigned.add(((AssignExpressionNode) node).getVarName());
+		else if (node instanceof VariableDeclarationNode)
+			assigned.add(((VariableDeclarationNode) node).getVarName());
+
+		for (Node child : OptimizerUtils.GetChildren(node)) {
+			if (!collectAssigned(child, assigned))
+				return false;
+		}
+
+		return true;
+	}
+
+	private boolean readsAny(Node node, Set<String> varNames) {
+		if (node instanceof IdentifierExpressionNode && varNames.contains(((IdentifierExpressionNode) node).getName()))
+			return true;
+
+		for (Node child : OptimizerUtils.GetChildren(node)) {
+			if (readsAny(child, varNames))
+				return true;
+		}
+
+		return false;
+	}
+
+	private boolean isVariable(ExpressionNode expression, String varName) {
+		return expression instanceof IdentifierExpressionNode
+				&& ((IdentifierExpressionNode) expression).getName().equals(varName);
+	}
+}
@@ -0,0 +1,461 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import compiler.enums.BinaryOperationType;
+import compiler.enums.LiteralType;
+import compiler.nodes.AssignExpressionNode;
+import compiler.nodes.BinaryOperationNode;
+import compiler.nodes.BooleanExpressionNode;
+import compiler.nodes.CastingExpressionNode;
+import compiler.nodes.ExpressionNode;
+import compiler.nodes.FunctionCallExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IdentifierExpressionNode;
+import compiler.nodes.IfStatementNode;
+import compiler.nodes.Node;
+import compiler.nodes.NumberExpressionNode;
+import compiler.nodes.ReturnStatementNode;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.StatementNode;
+import compiler.nodes.SwitchStatementNode;
+import compiler.nodes.TailCallStatementNode;
+import compiler.nodes.UnaryOperationNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.nodes.WasmStatementNode;
+import compiler.nodes.WhileStatementNode;
+
+public class OptimizerUtils {
+
+	// returns the direct children of a node in the order they are evaluated
+	public static List<Node> GetChildren(Node node) {
+		List<Node> children = new ArrayList<>();
+
+		if (node instanceof StatementBlockNode) {
+			children.addAll(((StatementBlockNode) node).getStatements());
+		} else if (node instanceof FunctionStatementNode) {
+			children.add(((FunctionStatementNode) node).getStatementBlock());
+		} else if (node instanceof VariableDeclarationNode) {
+			VariableDeclarationNode varDeclNode = (VariableDeclarationNode) node;
+			if (varDeclNode.getExpression() != null)
+				children.add(varDeclNode.getExpression());
+		} else if (node instanceof AssignExpressionNode) {
+			children.add(((AssignExpressionNode) node).getRightExpression());
+		} else if (node instanceof IfStatementNode) {
+			IfStatementNode ifNode = (IfStatementNode) node;
+			for (int i = 0; i < ifNode.getStatementBlocks().size(); i++) {
+				if (i != ifNode.getConditions().size())
+					children.add(ifNode.getConditions().get(i));
+				children.add(ifNode.getStatementBlocks().get(i));
+			}
+		} else if (node instanceof SwitchStatementNode) {
+			// the values of the cases are constants
+			SwitchStatementNode switchNode = (SwitchStatementNode) node;
+			children.add(switchNode.getExpression());
+			children.addAll(switchNode.getStatementBlocks());
+		} else if (node instanceof WhileStatementNode) {
+			WhileStatementNode whileNode = (WhileStatementNode) node;
+			children.add(whileNode.getConditionNode());
+			children.add(whileNode.getStatementBlock());
+		} else if (node instanceof ReturnStatementNode) {
+			children.add(((ReturnStatementNode) node).getExpression());
+		} else if (node instanceof TailCallStatementNode) {
+			children.add(((TailCallStatementNode) node).getCall());
+		} else if (node instanceof FunctionCallExpressionNode) {
+			children.addAll(((FunctionCallExpressionNode) node).getArguments());
+		} else if (node instanceof BinaryOperationNode) {
+			BinaryOperationNode binaryNode = (BinaryOperationNode) node;
+			children.add(binaryNode.getLeftExpression());
+			children.add(binaryNode.getRightExpression());
+		} else if (node instanceof UnaryOperationNode) {
+			children.add(((UnaryOperationNode) node).getExpression());
+		} else if (node instanceof CastingExpressionNode) {
+			children.add(((CastingExpressionNode) node).getExpression());
+		}
+
+		return children;
+	}
+
+	public static void ReplaceChild(Node parent, Node oldChild, Node newChild) {
+		if (parent instanceof StatementBlockNode) {
+			List<StatementNode> statements = ((StatementBlockNode) parent).getStatements();
+			statements.set(statements.indexOf(oldChild), (StatementNode) newChild);
+		} else if (parent instanceof FunctionStatementNode) {
+			((FunctionStatementNode) parent).setStatementBlock((StatementBlockNode) newChild);
+		} else if (parent instanceof VariableDeclarationNode) {
+			((VariableDeclarationNode) parent).setExpression((ExpressionNode) newChild);
+		} else if (parent instanceof AssignExpressionNode) {
+			((AssignExpressionNode) parent).setRightExpression((ExpressionNode) newChild);
+		} else if (parent instanceof IfStatementNode) {
+			IfStatementNode ifNode = (IfStatementNode) parent;
+			if (ifNode.getConditions().contains(oldChild))
+				ifNode.getConditions().set(ifNode.getConditions().indexOf(oldChild), (ExpressionNode) newChild);
+			else
+				ifNode.getStatementBlocks().set(ifNode.getStatementBlocks().indexOf(oldChild), (StatementNode) newChild);
+		} else if (parent instanceof SwitchStatementNode) {
+			SwitchStatementNode switchNode = (SwitchStatementNode) parent;
+			if (switchNode.getExpression() == oldChild)
+				switchNode.setExpression((ExpressionNode) newChild);
+			else
+				switchNode.getStatementBlocks().set(switchNode.getStatementBlocks().indexOf(oldChild),
+						(StatementBlockNode) newChild);
+		} else if (parent instanceof WhileStatementNode) {
+			WhileStatementNode whileNode = (WhileStatementNode) parent;
+			if (whileNode.getConditionNode() == oldChild)
+				whileNode.setConditionNode((ExpressionNode) newChild);
+			else
+				whileNode.setStatementBlock((StatementBlockNode) newChild);
+		} else if (parent instanceof ReturnStatementNode) {
+			((ReturnStatementNode) parent).setExpression((ExpressionNode) newChild);
+		} else if (parent instanceof TailCallStatementNode) {
+			((TailCallStatementNode) parent).setCall((FunctionCallExpressionNode) newChild);
+		} else if (parent instanceof FunctionCallExpressionNode) {
+			List<ExpressionNode> arguments = ((FunctionCallExpressionNode) parent).getArguments();
+			arguments.set(arguments.indexOf(oldChild), (ExpressionNode) newChild);
+		} else if (parent instanceof BinaryOperationNode) {
+			BinaryOperationNode binaryNode = (BinaryOperationNode) parent;
+			if (binaryNode.getLeftExpression() == oldChild)
+				binaryNode.setLeftExpression((ExpressionNode) newChild);
+			else
+				binaryNode.setRightExpression((ExpressionNode) newChild);
+		} else if (parent instanceof UnaryOperationNode) {
+			((UnaryOperationNode) parent).setExpression((ExpressionNode) newChild);
+		} else if (parent instanceof CastingExpressionNode) {
+			((CastingExpressionNode) parent).setExpression((ExpressionNode) newChild);
+		}
+	}
+
+	// returns a key that is equal for expressions that compute the same value,
+	// or null if the expression has side effects. The versions of the variables
+	// are counted by the caller, so that the key changes when one is assigned.
+	public static String GetKey(ExpressionNode node, Map<String, Integer> versions) {
+		if (node instanceof IdentifierExpressionNode) {
+			String name = ((IdentifierExpressionNode) node).getName();
+			return name + "#" + versions.getOrDefault(name, 0);
+		} else if (node instanceof NumberExpressionNode) {
+			return node.getLiteralType() + ":"
+					+ Evaluator.ToValue(((NumberExpressionNode) node).getNumber(), node.getLiteralType());
+		} else if (node instanceof BooleanExpressionNode) {
+			return String.valueOf(((BooleanExpressionNode) node).getValue());
+		} else if (node instanceof BinaryOperationNode) {
+			BinaryOperationNode binaryNode = (BinaryOperationNode) node;
+			String left = GetKey(binaryNode.getLeftExpression(), versions);
+			String right = GetKey(binaryNode.getRightExpression(), versions);
+			if (left == null || right == null)
+				return null;
+
+			return "(" + binaryNode.getBinaryOperationType() + " " + left + " " + right + ")";
+		} else if (node instanceof UnaryOperationNode) {
+			UnaryOperationNode unaryNode = (UnaryOperationNode) node;
+			String expression = GetKey(unaryNode.getExpression(), versions);
+			if (expression == null)
+				return null;
+
+			return "(" + unaryNode.getUnaryOperationType() + " " + expression + ")";
+		} else if (node instanceof CastingExpressionNode) {
+			CastingExpressionNode castingNode = (CastingExpressionNode) node;
+			String expression = GetKey(castingNode.getExpression(), versions);
+			if (expression == null)
+				return null;
+
+			return "(" + (castingNode.isReinterpret() ? "reinterpret " : "") + castingNode.getType() + " "
+					+ expression + ")";
+		}
+
+		return null;
+	}
+
+	public static int GetSize(Node node) {
+		int size = 1;
+		for (Node child : GetChildren(node))
+			size += GetSize(child);
+
+		return size;
+	}
+
+	// whether the expression has no side effects. It can still trap.
+	public static boolean IsPure(Node node) {
+		if (node instanceof FunctionCallExpressionNode || node instanceof AssignExpressionNode)
+			return false;
+
+		for (Node child : GetChildren(node)) {
+			if (!IsPure(child))
+				return false;
+		}
+
+		return true;
+	}
+
+	// integer division and modulo trap on zero and float to integer conversions on values
+	// out of range, so such expressions cannot be evaluated where they were not before
+	public static boolean CanTrap(Node node) {
+		if (node instanceof BinaryOperationNode) {
+			BinaryOperationNode binaryNode = (BinaryOperationNode) node;
+			LiteralType type = binaryNode.getLeftExpression().getLiteralType();
+			if ((binaryNode.getBinaryOperationType() == BinaryOperationType.DIVISION
+					|| binaryNode.getBinaryOperationType() == BinaryOperationType.MODULO) && type != LiteralType.f32
+					&& type != LiteralType.f64)
+				return true;
+		} else if (node instanceof CastingExpressionNode) {
+			CastingExpressionNode castingNode = (CastingExpressionNode) node;
+			LiteralType type = castingNode.getExpression().getLiteralType();
+			if ((type == LiteralType.f32 || type == LiteralType.f64) && !castingNode.isReinterpret()
+					&& castingNode.getLiteralType() != LiteralType.f32
+					&& castingNode.getLiteralType() != LiteralType.f64)
+				return true;
+		}
+
+		for (Node child : GetChildren(node)) {
+			if (CanTrap(child))
+				return true;
+		}
+
+		return false;
+	}
+
+	public static boolean ContainsCall(Node node, String functionName) {
+		if (node instanceof FunctionCallExpressionNode
+				&& (functionName == null || ((FunctionCallExpressionNode) node).getFunctionName().equals(functionName)))
+			return true;
+
+		for (Node child : GetChildren(node)) {
+			if (ContainsCall(child, functionName))
+				return true;
+		}
+
+		return false;
+	}
+
+	public static boolean ContainsCall(Node node) {
+		return ContainsCall(node, null);
+	}
+
+	// declares a new local in the function, its name cannot clash with the
+	// identifiers of the source since the lexer does not accept '$'
+	public static VariableDeclarationNode NewLocal(Map<String, VariableDeclarationNode> localSymbolTable,
+			String prefix, String type) {
+		int i = localSymbolTable.size();
+		while (localSymbolTable.containsKey(prefix + "$" + i))
+			i++;
+
+		VariableDeclarationNode varDeclNode = new VariableDeclarationNode();
+		varDeclNode.setVarName(prefix + "$" + i);
+		varDeclNode.setType(type);
+		localSymbolTable.put(varDeclNode.getVarName(), varDeclNode);
+
+		return varDeclNode;
+	}
+
+	public static IdentifierExpressionNode NewIdentifier(VariableDeclarationNode varDeclNode, Node position) {
+		IdentifierExpressionNode idNode = new IdentifierExpressionNode();
+		idNode.setName(varDeclNode.getVarName());
+		idNode.setLiteralType(LiteralType.getLiteralTypeFromString(varDeclNode.getType()));
+		idNode.setLine(position.getLine());
+		idNode.setPos(position.getPos());
+		return idNode;
+	}
+
+	public static AssignExpressionNode NewAssignment(VariableDeclarationNode varDeclNode, ExpressionNode expression,
+			Node position) {
+		AssignExpressionNode assignNode = new AssignExpressionNode();
+		assignNode.setVarName(varDeclNode.getVarName());
+		assignNode.setRightExpression(expression);
+		assignNode.setLiteralType(LiteralType.getLiteralTypeFromString(varDeclNode.getType()));
+		assignNode.setLine(position.getLine());
+		assignNode.setPos(position.getPos());
+		return assignNode;
+	}
+
+	public static NumberExpressionNode NewNumber(Number number, LiteralType type, Node position) {
+		NumberExpressionNode numberNode = new NumberExpressionNode();
+		numberNode.setNumber(Evaluator.ToValue(number, type));
+		numberNode.setFloat(type == LiteralType.f32 || type == LiteralType.f64);
+		numberNode.setLiteralType(type);
+		numberNode.setLine(position.getLine());
+		numberNode.setPos(position.getPos());
+		return numberNode;
+	}
+
+	public static BinaryOperationNode NewBinary(BinaryOperationType operationType, ExpressionNode left,
+			ExpressionNode right, Node position) {
+		BinaryOperationNode binaryNode = new BinaryOperationNode();
+		binaryNode.setBinaryOperationType(operationType);
+		binaryNode.setLeftExpression(left);
+		binaryNode.setRightExpression(right);
+		binaryNode.setLiteralType(left.getLiteralType());
+		binaryNode.setLine(position.getLine());
+		binaryNode.setPos(position.getPos());
+		return binaryNode;
+	}
+
+	public static CastingExpressionNode NewCast(ExpressionNode expression, LiteralType type, Node position) {
+		CastingExpressionNode castingNode = new CastingExpressionNode();
+		castingNode.setExpression(expression);
+		castingNode.setType(type.toString());
+		castingNode.setLiteralType(type);
+		castingNode.setLine(position.getLine());
+		castingNode.setPos(position.getPos());
+		return castingNode;
+	}
+
+	// a deep copy of a statement or an expression. The declarations of the copy
+	// become assignments, the symbol table keeps the original ones.
+	public static Node Copy(Node node) {
+		Node copy;
+
+		if (node instanceof StatementBlockNode) {
+			List<StatementNode> statements = new ArrayList<>();
+			for (StatementNode statement : ((StatementBlockNode) node).getStatements()) {
+				if (!(statement instanceof VariableDeclarationNode)
+						|| ((VariableDeclarationNode) statement).getExpression() != null)
+					statements.add((StatementNode) Copy(statement));
+			}
+
+			StatementBlockNode statementBlock = new StatementBlockNode();
+			statementBlock.setStatements(statements);
+			copy = statementBlock;
+		} else if (node instanceof VariableDeclarationNode) {
+			VariableDeclarationNode varDeclNode = (VariableDeclarationNode) node;
+			return NewAssignment(varDeclNode, (ExpressionNode) Copy(varDeclNode.getExpression()), varDeclNode);
+		} else if (node instanceof AssignExpressionNode) {
+			AssignExpressionNode assignNode = (AssignExpressionNode) node;
+			AssignExpressionNode assignCopy = new AssignExpressionNode();
+			assignCopy.setVarName(assignNode.getVarName());
+			assignCopy.setRightExpression((ExpressionNode) Copy(assignNode.getRightExpression()));
+			copy = assignCopy;
+		} else if (node instanceof IfStatementNode) {
+			IfStatementNode ifNode = (IfStatementNode) node;
+			List<ExpressionNode> conditions = new ArrayList<>();
+			for (ExpressionNode condition : ifNode.getConditions())
+				conditions.add((ExpressionNode) Copy(condition));
+
+			// a declaration can be the whole branch
+			List<StatementNode> statementBlocks = new ArrayList<>();
+			for (StatementNode statementBlock : ifNode.getStatementBlocks())
+				statementBlocks.add((StatementNode) Copy(ToBlock(statementBlock)));
+
+			IfStatementNode ifCopy = new IfStatementNode();
+			ifCopy.setConditions(conditions);
+			ifCopy.setStatementBlocks(statementBlocks);
+			copy = ifCopy;
+		} else if (node instanceof SwitchStatementNode) {
+			SwitchStatementNode switchNode = (SwitchStatementNode) node;
+			List<List<ExpressionNode>> cases = new ArrayList<>();
+			for (List<ExpressionNode> values : switchNode.getCases()) {
+				List<ExpressionNode> valuesCopy = new ArrayList<>();
+				for (ExpressionNode value : values)
+					valuesCopy.add((ExpressionNode) Copy(value));
+				cases.add(valuesCopy);
+			}
+
+			List<StatementBlockNode> statementBlocks = new ArrayList<>();
+			for (StatementBlockNode statementBlock : switchNode.getStatementBlocks())
+				statementBlocks.add((StatementBlockNode) Copy(statementBlock));
+
+			SwitchStatementNode switchCopy = new SwitchStatementNode();
+			switchCopy.setExpression((ExpressionNode) Copy(switchNode.getExpression()));
+			switchCopy.setCases(cases);
+			switchCopy.setStatementBlocks(statementBlocks);
+			copy = switchCopy;
+		} else if (node instanceof WhileStatementNode) {
+			WhileStatementNode whileNode = (WhileStatementNode) node;
+			WhileStatementNode whileCopy = new WhileStatementNode();
+			whileCopy.setConditionNode((ExpressionNode) Copy(whileNode.getConditionNode()));
+			whileCopy.setStatementBlock((StatementBlockNode) Copy(whileNode.getStatementBlock()));
+			copy = whileCopy;
+		} else if (node instanceof ReturnStatementNode) {
+			ReturnStatementNode returnCopy = new ReturnStatementNode();
+			returnCopy.setExpression((ExpressionNode) Copy(((ReturnStatementNode) node).getExpression()));
+			copy = returnCopy;
+		} else if (node instanceof FunctionCallExpressionNode) {
+			FunctionCallExpressionNode callNode = (FunctionCallExpressionNode) node;
+			List<ExpressionNode> arguments = new ArrayList<>();
+			for (ExpressionNode argument : callNode.getArguments())
+				arguments.add((ExpressionNode) Copy(argument));
+
+			FunctionCallExpressionNode callCopy = new FunctionCallExpressionNode();
+			callCopy.setFunctionName(callNode.getFunctionName());
+			callCopy.setArguments(arguments);
+			copy = callCopy;
+		} else if (node instanceof BinaryOperationNode) {
+			BinaryOperationNode binaryNode = (BinaryOperationNode) node;
+			BinaryOperationNode binaryCopy = new BinaryOperationNode();
+			binaryCopy.setBinaryOperationType(binaryNode.getBinaryOperationType());
+			binaryCopy.setLeftExpression((ExpressionNode) Copy(binaryNode.getLeftExpression()));
+			binaryCopy.setRightExpression((ExpressionNode) Copy(binaryNode.getRightExpression()));
+			copy = binaryCopy;
+		} else if (node instanceof UnaryOperationNode) {
+			UnaryOperationNode unaryNode = (UnaryOperationNode) node;
+			UnaryOperationNode unaryCopy = new UnaryOperationNode();
+			unaryCopy.setUnaryOperationType(unaryNode.getUnaryOperationType());
+			unaryCopy.setExpression((ExpressionNode) Copy(unaryNode.getExpression()));
+			copy = unaryCopy;
+		} else if (node instanceof CastingExpressionNode) {
+			CastingExpressionNode castingNode = (CastingExpressionNode) node;
+			CastingExpressionNode castingCopy = new CastingExpressionNode();
+			castingCopy.setType(castingNode.getType());
+			castingCopy.setReinterpret(castingNode.isReinterpret());
+			castingCopy.setExpression((ExpressionNode) Copy(castingNode.getExpression()));
+			copy = castingCopy;
+		} else if (node instanceof NumberExpressionNode) {
+			// the data of a string or an array is copied as its address
+			NumberExpressionNode numberNode = (NumberExpressionNode) node;
+			NumberExpressionNode numberCopy = new NumberExpressionNode();
+			numberCopy.setNumber(numberNode.getNumber());
+			numberCopy.setFloat(numberNode.isFloat());
+			copy = numberCopy;
+		} else if (node instanceof BooleanExpressionNode) {
+			BooleanExpressionNode booleanCopy = new BooleanExpressionNode();
+			booleanCopy.setValue(((BooleanExpressionNode) node).getValue());
+			copy = booleanCopy;
+		} else if (node instanceof IdentifierExpressionNode) {
+			IdentifierExpressionNode idCopy = new IdentifierExpressionNode();
+			idCopy.setName(((IdentifierExpressionNode) node).getName());
+			copy = idCopy;
+		} else if (node instanceof WasmStatementNode) {
+			WasmStatementNode wasmCopy = new WasmStatementNode();
+			wasmCopy.setWasmCommand(((WasmStatementNode) node).getWasmCommand());
+			copy = wasmCopy;
+		} else {
+			throw new IllegalArgumentException("Cannot copy " + node);
+		}
+
+		if (node instanceof ExpressionNode)
+			((ExpressionNode) copy).setLiteralType(((ExpressionNode) node).getLiteralType());
+		copy.setLine(node.getLine());
+		copy.setPos(node.getPos());
+		return copy;
+	}
+
+	// wraps a statement in a block so that statements can be inserted next to it
+	public static StatementBlockNode ToBlock(StatementNode statement) {
+		if (statement instanceof StatementBlockNode)
+			return (StatementBlockNode) statement;
+
+		List<StatementNode> statements = new ArrayList<>();
+		statements.add(statement);
+
+		StatementBlockNode statementBlock = new StatementBlockNode();
+		statementBlock.setStatements(statements);
+		statementBlock.setLine(statement.getLine());
+		statementBlock.setPos(statement.getPos());
+		return statementBlock;
+	}
+}
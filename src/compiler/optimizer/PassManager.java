@@ -0,0 +1,137 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.optimizer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.ir.IROptimizer;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.Node;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.wasm.MemoryLayout;
+import compiler.wasm.WASMEmitter;
+
+// Runs the passes of the pipeline in the order they were added. A disabled pass
+// is never added. When the passes are timed the size of the module is
+// measured after each pass, by emitting the whole module. The SSA passes run
+// inside the ir pass, they are listed below it with the number of instructions
+// of the SSA form they removed.
+public class PassManager {
+
+	public static final List<String> PASS_NAMES = List.of("unroll", "ir", "copyprop", "constprop", "eval", "iv",
+			"lse", "gvn", "bce", "dce", "tco", "licm", "sr", "cse", "dse", "stackify", "coalesce");
+
+	private Map<String, FunctionStatementNode> funcSymbolTable;
+	private Map<String, Map<String, VariableDeclarationNode>> localSymbolTables;
+	private Map<String, VariableDeclarationNode> globalSymbolTable;
+	private MemoryLayout memoryLayout;
+
+	private List<String> names = new ArrayList<>();
+	private List<OptimizationPass> passes = new ArrayList<>();
+	private Set<String> disabledPasses = new HashSet<>();
+	private boolean timePasses;
+
+	public PassManager(Map<String, FunctionStatementNode> funcSymbolTable,
+			Map<String, Map<String, VariableDeclarationNode>> localSymbolTables,
+			Map<String, VariableDeclarationNode> globalSymbolTable, MemoryLayout memoryLayout) {
+		this.funcSymbolTable = funcSymbolTable;
+		this.localSymbolTables = localSymbolTables;
+		this.globalSymbolTable = globalSymbolTable;
+		this.memoryLayout = memoryLayout;
+	}
+
+	public void addPass(String name, OptimizationPass pass) {
+		if (!isEnabled(name))
+			return;
+
+		names.add(name);
+		passes.add(pass);
+	}
+
+	public void disablePass(String name) {
+		if (!PASS_NAMES.contains(name))
+			throw new IllegalArgumentException(
+					"Unknown pass " + name + ", the passes are " + String.join(", ", PASS_NAMES) + ".");
+
+		disabledPasses.add(name);
+	}
+
+	public boolean isEnabled(String name) {
+		return !disabledPasses.contains(name);
+	}
+
+	public void setTimePasses(boolean timePasses) {
+		this.timePasses = timePasses;
+	}
+
+	public void run(Node node) throws IOException {
+		PrintStream out = System.out;
+		int size = 0;
+		long totalTime = 0;
+
+		if (timePasses) {
+			size = getCodeSize(node);
+			out.println(String.format("%-12s %10s %12s %8s", "pass", "time (ms)", "size (bytes)", "delta"));
+			out.println(String.format("%-12s %10s %12d %8s", "input", "", size, ""));
+		}
+
+		for (int i = 0; i < passes.size(); i++) {
+			OptimizationPass pass = passes.get(i);
+			if (pass instanceof IROptimizer)
+				((IROptimizer) pass).setTimePasses(timePasses);
+
+			long start = System.nanoTime();
+			pass.optimize(node);
+			long time = System.nanoTime() - start;
+
+			if (timePasses) {
+				int newSize = getCodeSize(node);
+				out.println(String.format("%-12s %10.3f %12d %+8d", names.get(i), time / 1e6, newSize, newSize - size));
+				if (pass instanceof IROptimizer)
+					printIRPasses(out, (IROptimizer) pass);
+
+				size = newSize;
+				totalTime += time;
+			}
+		}
+
+		if (timePasses)
+			out.println(String.format("%-12s %10.3f %12d %8s", "total", totalTime / 1e6, size, ""));
+	}
+
+	private void printIRPasses(PrintStream out, IROptimizer irOptimizer) {
+		out.println(String.format("  %-10s %10.3f %12s", "build", irOptimizer.getBuildTime() / 1e6,
+				irOptimizer.getBuiltInstructions() + " instr"));
+		for (int i = 0; i < irOptimizer.getPassNames().size(); i++)
+			out.println(String.format("  %-10s %10.3f %12s %+8d", irOptimizer.getPassNames().get(i),
+					irOptimizer.getTime(i) / 1e6, "", -irOptimizer.getRemovedInstructions(i)));
+		out.println(String.format("  %-10s %10.3f", "lower", irOptimizer.getLowerTime() / 1e6));
+	}
+
+	// the size of the module as it would be emitted now
+	private int getCodeSize(Node node) throws IOException {
+		WASMEmitter emitter = new WASMEmitter(node, funcSymbolTable, localSymbolTables, globalSymbolTable,
+				memoryLayout);
+		emitter.setCoalesceLocals(isEnabled("coalesce"));
+		return emitter.emit().length;
+	}
+}
@@ -0,0 +1,231 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.optimizer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.nodes.AssignExpressionNode;
+import compiler.nodes.ExpressionNode;
+import compiler.nodes.FunctionCallExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IdentifierExpressionNode;
+import compiler.nodes.IfStatementNode;
+import compiler.nodes.Node;
+import compiler.nodes.ReturnStatementNode;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.StatementNode;
+import compiler.nodes.SwitchStatementNode;
+import compiler.nodes.TailCallStatementNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.nodes.WasmStatementNode;
+import compiler.nodes.WhileStatementNode;
+
+// Keeps values on the wasm stack instead of storing them in locals, by moving
+// the assignment of a variable into the statement that follows it:
+//
+// x = e; return x + 1; -> return e + 1; if x is not used anywhere else
+// x = e; return x + x; -> return (x = e) + x; the first read becomes a local.tee
+//
+// The value can only be moved to the first read if nothing is evaluated
+// before that read, unless it has no side effects and cannot trap.
+public class Stackifier implements OptimizationPass {
+
+	private Map<String, FunctionStatementNode> funcSymbolTable;
+	private Map<String, Map<String, VariableDeclarationNode>> localSymbolTables;
+
+	private FunctionStatementNode currentFunction;
+	private Map<String, Integer> occurrences;
+
+	public Stackifier(Map<String, FunctionStatementNode> funcSymbolTable,
+			Map<String, Map<String, VariableDeclarationNode>> localSymbolTables) {
+		this.funcSymbolTable = funcSymbolTable;
+		this.localSymbolTables = localSymbolTables;
+	}
+
+	@Override
+	public void optimize(Node node) {
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			currentFunction = functionNode;
+
+			do {
+				occurrences = new HashMap<>();
+				countOccurrences(functionNode.getStatementBlock());
+			} while (stackify(functionNode.getStatementBlock()));
+		}
+	}
+
+	private boolean stackify(StatementNode statement) {
+		if (statement instanceof IfStatementNode) {
+			for (StatementNode statementBlock : ((IfStatementNode) statement).getStatementBlocks()) {
+				if (stackify(statementBlock))
+					return true;
+			}
+		} else if (statement instanceof SwitchStatementNode) {
+			for (StatementNode statementBlock : ((SwitchStatementNode) statement).getStatementBlocks()) {
+				if (stackify(statementBlock))
+					return true;
+			}
+		} else if (statement instanceof WhileStatementNode) {
+			return stackify(((WhileStatementNode) statement).getStatementBlock());
+		} else if (statement instanceof StatementBlockNode) {
+			List<StatementNode> statements = ((StatementBlockNode) statement).getStatements();
+			for (int i = 0; i < statements.size(); i++) {
+				StatementNode child = statements.get(i);
+				if (stackify(child))
+					return true;
+
+				// the declaration may have already been removed with the variable
+				if (i + 1 < statements.size() && stackifyPair(child, statements.get(i + 1))) {
+					statements.remove(child);
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private boolean stackifyPair(StatementNode statement, StatementNode next) {
+		String varName;
+		ExpressionNode expression;
+		if (statement instanceof AssignExpressionNode) {
+			varName = ((AssignExpressionNode) statement).getVarName();
+			expression = ((AssignExpressionNode) statement).getRightExpression();
+		} else if (statement instanceof VariableDeclarationNode
+				&& ((VariableDeclarationNode) statement).getExpression() != null) {
+			varName = ((VariableDeclarationNode) statement).getVarName();
+			expression = ((VariableDeclarationNode) statement).getExpression();
+		} else {
+			return false;
+		}
+
+		boolean singleUse = occurrences.get(varName) == 2;
+
+		// find the first leaf that is evaluated in the next statement
+		Node parent = null, first = next;
+		while (!(first instanceof WhileStatementNode)) {
+			List<Node> children = OptimizerUtils.GetChildren(first);
+			if (children.isEmpty())
+				break;
+
+			parent = first;
+			first = children.get(0);
+		}
+
+		if (first instanceof IdentifierExpressionNode && ((IdentifierExpressionNode) first).getName().equals(varName)) {
+			if (singleUse) {
+				OptimizerUtils.ReplaceChild(parent, first, expression);
+				removeVariable(varName);
+			} else {
+				VariableDeclarationNode varDeclNode = localSymbolTables.get(currentFunction.getName()).get(varName);
+				OptimizerUtils.ReplaceChild(parent, first, OptimizerUtils.NewAssignment(varDeclNode, expression, first));
+			}
+
+			return true;
+		}
+
+		if (!singleUse || !OptimizerUtils.IsPure(expression) || OptimizerUtils.CanTrap(expression))
+			return false;
+
+		// the read has to be evaluated exactly once, right after the statement
+		Node root = next;
+		if (next instanceof IfStatementNode)
+			root = ((IfStatementNode) next).getConditions().get(0);
+		else if (next instanceof SwitchStatementNode)
+			root = ((SwitchStatementNode) next).getExpression();
+		else if (!(next instanceof VariableDeclarationNode || next instanceof AssignExpressionNode
+				|| next instanceof FunctionCallExpressionNode || next instanceof ReturnStatementNode
+				|| next instanceof TailCallStatementNode))
+			return false;
+
+		Node[] read = findRead(root != next ? next : null, root, varName);
+		if (read == null || read[1] == null)
+			return false;
+
+		OptimizerUtils.ReplaceChild(read[0], read[1], expression);
+		removeVariable(varName);
+		return true;
+	}
+
+	// returns the read of the variable with its parent, or an empty result if an
+	// assignment is evaluated before it, since it could change the moved value
+	private Node[] findRead(Node parent, Node node, String varName) {
+		if (node instanceof IdentifierExpressionNode && ((IdentifierExpressionNode) node).getName().equals(varName))
+			return new Node[] { parent, node };
+
+		if (node instanceof AssignExpressionNode && parent != null)
+			return new Node[] { null, null };
+
+		for (Node child : OptimizerUtils.GetChildren(node)) {
+			Node[] read = findRead(node, child, varName);
+			if (read != null)
+				return read;
+		}
+
+		return null;
+	}
+
+	private void removeVariable(String varName) {
+		if (currentFunction.getArguments().contains(localSymbolTables.get(currentFunction.getName()).get(varName)))
+			return;
+
+		localSymbolTables.get(currentFunction.getName()).remove(varName);
+		removeDeclaration(currentFunction.getStatementBlock(), varName);
+	}
+
+	private void removeDeclaration(Node node, String varName) {
+		if (node instanceof StatementBlockNode) {
+			((StatementBlockNode) node).getStatements().removeIf(statement -> statement instanceof VariableDeclarationNode
+					&& ((VariableDeclarationNode) statement).getVarName().equals(varName));
+		}
+
+		if (node instanceof ExpressionNode)
+			return;
+
+		for (Node child : OptimizerUtils.GetChildren(node))
+			removeDeclaration(child, varName);
+	}
+
+	private void countOccurrences(Node node) {
+		if (node instanceof IdentifierExpressionNode) {
+			addOccurrence(((IdentifierExpressionNode) node).getName());
+		} else if (node instanceof AssignExpressionNode) {
+			addOccurrence(((AssignExpressionNode) node).getVarName());
+		} else if (node instanceof VariableDeclarationNode) {
+			if (((VariableDeclarationNode) node).getExpression() != null)
+				addOccurrence(((VariableDeclarationNode) node).getVarName());
+		} else if (node instanceof TailCallStatementNode && ((TailCallStatementNode) node).isSelfCall()) {
+			for (VariableDeclarationNode arg : currentFunction.getArguments())
+				addOccurrence(arg.getVarName());
+			for (VariableDeclarationNode varDeclNode : ((TailCallStatementNode) node).getClearedVariables())
+				addOccurrence(varDeclNode.getVarName());
+		} else if (node instanceof WasmStatementNode) {
+			for (String param : ((WasmStatementNode) node).getWasmCommand().replace("\"", " ").split(" ")) {
+				if (param.startsWith("$"))
+					addOccurrence(param.substring(1));
+			}
+		}
+
+		for (Node child : OptimizerUtils.GetChildren(node))
+			countOccurrences(child);
+	}
+
+	private void addOccurrence(String varName) {
+		occurrences.put(varName, occurrences.getOrDefault(varName, 0) + 1);
+	}
+}
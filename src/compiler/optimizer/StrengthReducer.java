@@ -0,0 +1,277 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.optimizer;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import compiler.enums.BinaryOperationType;
+import compiler.enums.LiteralType;
+import compiler.enums.UnaryOperationType;
+import compiler.nodes.BinaryOperationNode;
+import compiler.nodes.ExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IdentifierExpressionNode;
+import compiler.nodes.Node;
+import compiler.nodes.NumberExpressionNode;
+import compiler.nodes.UnaryOperationNode;
+import compiler.nodes.VariableDeclarationNode;
+
+// Replaces i32 multiplications, divisions and modulos by constants with
+// cheaper instructions:
+//
+// x * 8 -> x << 3
+// x / 8 -> (x + (x >> 31 >>> 29)) >> 3, the bias rounds negative values towards zero
+// x / 7 -> the high half of x * magic, shifted and corrected for negative values
+// x % d -> x - x / d * d
+//
+// The high half of the 32 bit product is computed with an i64 multiplication,
+// since wasm has no multiply-high instruction.
+public class StrengthReducer implements OptimizationPass {
+
+	private Map<String, FunctionStatementNode> funcSymbolTable;
+	private Map<String, Map<String, VariableDeclarationNode>> localSymbolTables;
+
+	private Map<String, VariableDeclarationNode> localSymbolTable;
+
+	public StrengthReducer(Map<String, FunctionStatementNode> funcSymbolTable,
+			Map<String, Map<String, VariableDeclarationNode>> localSymbolTables) {
+		this.funcSymbolTable = funcSymbolTable;
+		this.localSymbolTables = localSymbolTables;
+	}
+
+	@Override
+	public void optimize(Node node) {
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			localSymbolTable = localSymbolTables.get(functionNode.getName());
+			reduce(functionNode, functionNode.getStatementBlock());
+		}
+	}
+
+	private void reduce(Node parent, Node node) {
+		for (Node child : new ArrayList<>(OptimizerUtils.GetChildren(node)))
+			reduce(node, child);
+
+		ExpressionNode reduced = null;
+		if (node instanceof UnaryOperationNode)
+			reduced = reduceUnary((UnaryOperationNode) node);
+		else if (node instanceof BinaryOperationNode)
+			reduced = reduceBinary((BinaryOperationNode) node);
+
+		if (reduced != null)
+			OptimizerUtils.ReplaceChild(parent, node, reduced);
+	}
+
+	// a negative literal is parsed as the negation of a positive one
+	private ExpressionNode reduceUnary(UnaryOperationNode unaryNode) {
+		if (unaryNode.getUnaryOperationType() != UnaryOperationType.MINUS
+				|| !(unaryNode.getExpression() instanceof NumberExpressionNode))
+			return null;
+
+		NumberExpressionNode numberNode = (NumberExpressionNode) unaryNode.getExpression();
+		return OptimizerUtils.NewNumber(Evaluator.EvaluateUnary(UnaryOperationType.MINUS, numberNode.getNumber()),
+				numberNode.getLiteralType(), unaryNode);
+	}
+
+	private ExpressionNode reduceBinary(BinaryOperationNode binaryNode) {
+		if (binaryNode.getLiteralType() != LiteralType.i32)
+			return null;
+
+		ExpressionNode left = binaryNode.getLeftExpression();
+		Integer constant = getConstant(binaryNode.getRightExpression());
+
+		// a constant has no side effects, so the operands can be swapped
+		if (constant == null && binaryNode.getBinaryOperationType() == BinaryOperationType.MULTIPLICATION) {
+			left = binaryNode.getRightExpression();
+			constant = getConstant(binaryNode.getLeftExpression());
+		}
+
+		if (constant == null)
+			return null;
+
+		switch (binaryNode.getBinaryOperationType()) {
+		case MULTIPLICATION:
+			if (constant == 1)
+				return left;
+
+			if (constant > 0 && isPowerOfTwo(constant))
+				return newBinary(BinaryOperationType.SHIFT_LEFT, left, log2(constant), binaryNode);
+			return null;
+		case DIVISION:
+			// division by -1 traps on the smallest value and by 0 on every value
+			if (constant == 0 || constant == -1 || constant == Integer.MIN_VALUE)
+				return null;
+
+			if (constant == 1)
+				return left;
+
+			Operand dividend = new Operand(left);
+			ExpressionNode quotient = divide(dividend, Math.abs(constant), binaryNode);
+			if (constant < 0)
+				quotient = newBinary(BinaryOperationType.SUBTRACTION, 0, quotient, binaryNode);
+			return quotient;
+		case MODULO:
+			if (constant == 0 || constant == -1 || constant == 1 || constant == Integer.MIN_VALUE)
+				return null;
+
+			// the sign of the result only depends on the dividend
+			int divisor = Math.abs(constant);
+			Operand operand = new Operand(left);
+			ExpressionNode first = operand.get(binaryNode);
+
+			ExpressionNode product;
+			if (isPowerOfTwo(divisor)) {
+				// x - ((x + bias) & -d), the division without its final shift
+				ExpressionNode biased = OptimizerUtils.NewBinary(BinaryOperationType.ADDITION,
+						operand.get(binaryNode), getBias(operand, divisor, binaryNode), binaryNode);
+				product = newBinary(BinaryOperationType.BIT_AND, biased, -divisor, binaryNode);
+			} else {
+				product = newBinary(BinaryOperationType.MULTIPLICATION, divide(operand, divisor, binaryNode), divisor,
+						binaryNode);
+			}
+
+			return OptimizerUtils.NewBinary(BinaryOperationType.SUBTRACTION, first, product, binaryNode);
+		default:
+			return null;
+		}
+	}
+
+	// divides by a positive divisor, rounding towards zero
+	private ExpressionNode divide(Operand dividend, int divisor, Node position) {
+		if (isPowerOfTwo(divisor)) {
+			ExpressionNode x = dividend.get(position);
+			ExpressionNode biased = OptimizerUtils.NewBinary(BinaryOperationType.ADDITION, x,
+					getBias(dividend, divisor, position), position);
+			return newBinary(BinaryOperationType.SHIFT_RIGHT, biased, log2(divisor), position);
+		}
+
+		long[] magic = getMagic(divisor);
+		int multiplier = (int) magic[0];
+		int shift = (int) magic[1];
+
+		// (i32) (((i64) x * (i64) multiplier) >> 32)
+		ExpressionNode x = dividend.get(position);
+		ExpressionNode product = OptimizerUtils.NewBinary(BinaryOperationType.MULTIPLICATION,
+				OptimizerUtils.NewCast(x, LiteralType.i64, position),
+				OptimizerUtils.NewCast(OptimizerUtils.NewNumber(multiplier, LiteralType.i32, position), LiteralType.i64,
+						position),
+				position);
+		ExpressionNode high = OptimizerUtils.NewCast(OptimizerUtils.NewBinary(BinaryOperationType.SHIFT_RIGHT, product,
+				OptimizerUtils.NewCast(OptimizerUtils.NewNumber(32, LiteralType.i32, position), LiteralType.i64,
+						position),
+				position), LiteralType.i32, position);
+
+		// the multiplier does not fit in a signed i32, the product was computed with multiplier - 2^32
+		if (multiplier < 0)
+			high = OptimizerUtils.NewBinary(BinaryOperationType.ADDITION, high, dividend.get(position), position);
+
+		if (shift > 0)
+			high = newBinary(BinaryOperationType.SHIFT_RIGHT, high, shift, position);
+
+		// add one for negative dividends to round towards zero
+		ExpressionNode sign = newBinary(BinaryOperationType.SHIFT_RIGHT_UNSIGNED, dividend.get(position), 31, position);
+		return OptimizerUtils.NewBinary(BinaryOperationType.ADDITION, high, sign, position);
+	}
+
+	// d - 1 for negative values and 0 otherwise: (x >> 31) >>> (32 - log2(d))
+	private ExpressionNode getBias(Operand operand, int divisor, Node position) {
+		ExpressionNode sign = newBinary(BinaryOperationType.SHIFT_RIGHT, operand.get(position), 31, position);
+		return newBinary(BinaryOperationType.SHIFT_RIGHT_UNSIGNED, sign, 32 - log2(divisor), position);
+	}
+
+	// the magic number and shift of a divisor greater than 1, as described in
+	// Hacker's Delight 10-1. All the values are unsigned 32 bit integers.
+	private long[] getMagic(int divisor) {
+		long two31 = 0x80000000L;
+		long anc = two31 - 1 - two31 % divisor;
+		int p = 31;
+		long q1 = two31 / anc, r1 = two31 - q1 * anc;
+		long q2 = two31 / divisor, r2 = two31 - q2 * divisor;
+		long delta;
+
+		do {
+			p++;
+			q1 *= 2;
+			r1 *= 2;
+			if (r1 >= anc) {
+				q1++;
+				r1 -= anc;
+			}
+
+			q2 *= 2;
+			r2 *= 2;
+			if (r2 >= divisor) {
+				q2++;
+				r2 -= divisor;
+			}
+
+			delta = divisor - r2;
+		} while (q1 < delta || (q1 == delta && r1 == 0));
+
+		return new long[] { (q2 + 1) & 0xFFFFFFFFL, p - 32 };
+	}
+
+	private Integer getConstant(ExpressionNode expression) {
+		if (!(expression instanceof NumberExpressionNode) || ((NumberExpressionNode) expression).isFloat())
+			return null;
+
+		return ((NumberExpressionNode) expression).getNumber().intValue();
+	}
+
+	private boolean isPowerOfTwo(int value) {
+		return (value & (value - 1)) == 0;
+	}
+
+	private int log2(int value) {
+		return Integer.numberOfTrailingZeros(value);
+	}
+
+	private BinaryOperationNode newBinary(BinaryOperationType operationType, ExpressionNode left, int right,
+			Node position) {
+		return OptimizerUtils.NewBinary(operationType, left, OptimizerUtils.NewNumber(right, LiteralType.i32, position),
+				position);
+	}
+
+	private BinaryOperationNode newBinary(BinaryOperationType operationType, int left, ExpressionNode right,
+			Node position) {
+		return OptimizerUtils.NewBinary(operationType, OptimizerUtils.NewNumber(left, LiteralType.i32, position),
+				right, position);
+	}
+
+	// an operand that is read more than once. Unless it is a variable, the first
+	// read computes it into a temporary local with a local.tee.
+	private class Operand {
+
+		private ExpressionNode expression;
+		private VariableDeclarationNode temp;
+
+		Operand(ExpressionNode expression) {
+			this.expression = expression;
+		}
+
+		ExpressionNode get(Node position) {
+			if (expression instanceof IdentifierExpressionNode)
+				return OptimizerUtils.NewIdentifier(
+						localSymbolTable.get(((IdentifierExpressionNode) expression).getName()), position);
+
+			if (temp != null)
+				return OptimizerUtils.NewIdentifier(temp, position);
+
+			temp = OptimizerUtils.NewLocal(localSymbolTable, "sr", LiteralType.i32.toString());
+			return OptimizerUtils.NewAssignment(temp, expression, position);
+		}
+	}
+}
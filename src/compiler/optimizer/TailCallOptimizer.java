@@ -0,0 +1,297 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import compiler.enums.BinaryOperationType;
+import compiler.enums.LiteralType;
+import compiler.nodes.AssignExpressionNode;
+import compiler.nodes.BinaryOperationNode;
+import compiler.nodes.BooleanExpressionNode;
+import compiler.nodes.ExpressionNode;
+import compiler.nodes.FunctionCallExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IfStatementNode;
+import compiler.nodes.Node;
+import compiler.nodes.ReturnStatementNode;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.StatementNode;
+import compiler.nodes.SwitchStatementNode;
+import compiler.nodes.TailCallStatementNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.nodes.WhileStatementNode;
+
+// Turns self tail calls into loops and, if enabled, other tail calls into
+// return_call instructions.
+//
+// Returns of the form "return a op f(...)" where op is associative and
+// commutative (e.g. "return n * fact(n-1)") are turned into tail calls too by
+// keeping the pending operations in an accumulator local:
+//
+// i32 acc = 1;
+// while (true) {
+//     if (n==0)
+//         return acc * 1;
+//     acc = acc * n;
+//     <tail call fact(n-1)>
+// }
+public class TailCallOptimizer implements OptimizationPass {
+
+	private Map<String, FunctionStatementNode> funcSymbolTable;
+	private Map<String, Map<String, VariableDeclarationNode>> localSymbolTables;
+	private boolean returnCallsEnabled;
+
+	private FunctionStatementNode currentFunction;
+	private BinaryOperationType accumulatorOperation;
+	private VariableDeclarationNode accumulator;
+	private WhileStatementNode loop;
+
+	public TailCallOptimizer(Map<String, FunctionStatementNode> funcSymbolTable,
+			Map<String, Map<String, VariableDeclarationNode>> localSymbolTables, boolean returnCallsEnabled) {
+		this.funcSymbolTable = funcSymbolTable;
+		this.localSymbolTables = localSymbolTables;
+		this.returnCallsEnabled = returnCallsEnabled;
+	}
+
+	@Override
+	public void optimize(Node node) {
+		for (FunctionStatementNode functionNode : funcSymbolTable.values())
+			optimizeFunction(functionNode);
+	}
+
+	private void optimizeFunction(FunctionStatementNode functionNode) {
+		currentFunction = functionNode;
+		accumulator = null;
+		accumulatorOperation = null;
+		loop = null;
+
+		List<ReturnStatementNode> returns = new ArrayList<>();
+		collectReturns(functionNode.getStatementBlock(), returns);
+
+		boolean hasSelfTailCalls = false;
+		Set<BinaryOperationType> operations = new HashSet<>();
+		for (ReturnStatementNode returnNode : returns) {
+			if (isSelfCall(returnNode.getExpression()))
+				hasSelfTailCalls = true;
+			else if (getAccumulatedCall(returnNode.getExpression()) != null)
+				operations.add(((BinaryOperationNode) returnNode.getExpression()).getBinaryOperationType());
+		}
+
+		if (operations.size() == 1) {
+			accumulatorOperation = operations.iterator().next();
+			hasSelfTailCalls = true;
+		}
+
+		// the loop would otherwise be entered again when the end of the body is reached
+		List<StatementNode> statements = functionNode.getStatementBlock().getStatements();
+		boolean endsWithReturn = !statements.isEmpty()
+				&& statements.get(statements.size() - 1) instanceof ReturnStatementNode;
+
+		if (hasSelfTailCalls && endsWithReturn) {
+			loop = new WhileStatementNode();
+			BooleanExpressionNode trueNode = new BooleanExpressionNode();
+			trueNode.setValue(true);
+			trueNode.setLiteralType(LiteralType.bool);
+			loop.setConditionNode(trueNode);
+			loop.setStatementBlock(functionNode.getStatementBlock());
+			loop.setLine(functionNode.getLine());
+			loop.setPos(functionNode.getPos());
+
+			List<StatementNode> newStatements = new ArrayList<>();
+			if (accumulatorOperation != null) {
+				accumulator = OptimizerUtils.NewLocal(localSymbolTables.get(functionNode.getName()), "acc",
+						functionNode.getType());
+				accumulator.setExpression(
+						OptimizerUtils.NewNumber(getIdentity(accumulatorOperation),
+								LiteralType.getLiteralTypeFromString(functionNode.getType()), functionNode));
+				newStatements.add(accumulator);
+			}
+			newStatements.add(loop);
+
+			StatementBlockNode newStatementBlock = new StatementBlockNode();
+			newStatementBlock.setStatements(newStatements);
+			functionNode.setStatementBlock(newStatementBlock);
+		} else if (!returnCallsEnabled) {
+			return;
+		}
+
+		rewriteReturns(loop != null ? loop.getStatementBlock() : functionNode.getStatementBlock());
+	}
+
+	private void collectReturns(Node node, List<ReturnStatementNode> returns) {
+		if (node instanceof ReturnStatementNode) {
+			returns.add((ReturnStatementNode) node);
+			return;
+		}
+
+		if (node instanceof ExpressionNode)
+			return;
+
+		for (Node child : OptimizerUtils.GetChildren(node))
+			collectReturns(child, returns);
+	}
+
+	private void rewriteReturns(StatementNode statement) {
+		if (statement instanceof StatementBlockNode) {
+			List<StatementNode> statements = ((StatementBlockNode) statement).getStatements();
+			for (int i = 0; i < statements.size(); i++)
+				statements.set(i, rewriteStatement(statements.get(i)));
+		} else if (statement instanceof IfStatementNode) {
+			List<StatementNode> statementBlocks = ((IfStatementNode) statement).getStatementBlocks();
+			for (int i = 0; i < statementBlocks.size(); i++)
+				statementBlocks.set(i, rewriteStatement(statementBlocks.get(i)));
+		} else if (statement instanceof SwitchStatementNode) {
+			for (StatementNode statementBlock : ((SwitchStatementNode) statement).getStatementBlocks())
+				rewriteReturns(statementBlock);
+		} else if (statement instanceof WhileStatementNode) {
+			rewriteReturns(((WhileStatementNode) statement).getStatementBlock());
+		}
+	}
+
+	private StatementNode rewriteStatement(StatementNode statement) {
+		if (!(statement instanceof ReturnStatementNode)) {
+			rewriteReturns(statement);
+			return statement;
+		}
+
+		ReturnStatementNode returnNode = (ReturnStatementNode) statement;
+		ExpressionNode expression = returnNode.getExpression();
+
+		if (loop != null && isSelfCall(expression))
+			return newTailCall(returnNode, (FunctionCallExpressionNode) expression);
+
+		if (accumulator != null) {
+			FunctionCallExpressionNode call = getAccumulatedCall(expression);
+			if (call != null) {
+				BinaryOperationNode binaryNode = (BinaryOperationNode) expression;
+				ExpressionNode operand = binaryNode.getRightExpression() == call ? binaryNode.getLeftExpression()
+						: binaryNode.getRightExpression();
+
+				AssignExpressionNode assignNode = OptimizerUtils.NewAssignment(accumulator,
+						accumulate(operand, binaryNode), returnNode);
+
+				StatementBlockNode statementBlock = OptimizerUtils.ToBlock(assignNode);
+				statementBlock.getStatements().add(newTailCall(returnNode, call));
+				return statementBlock;
+			}
+
+			returnNode.setExpression(accumulate(expression, returnNode));
+			return returnNode;
+		}
+
+		// the calls of the standard library are mostly replaced by instructions
+		if (returnCallsEnabled && expression instanceof FunctionCallExpressionNode
+				&& !funcSymbolTable.get(((FunctionCallExpressionNode) expression).getFunctionName()).isLibrary())
+			return newTailCall(returnNode, (FunctionCallExpressionNode) expression);
+
+		return returnNode;
+	}
+
+	private TailCallStatementNode newTailCall(ReturnStatementNode returnNode, FunctionCallExpressionNode call) {
+		TailCallStatementNode tailCallNode = new TailCallStatementNode();
+		tailCallNode.setCall(call);
+		tailCallNode.setLine(returnNode.getLine());
+		tailCallNode.setPos(returnNode.getPos());
+
+		if (isSelfCall(call)) {
+			tailCallNode.setTargetLoop(loop);
+			tailCallNode.setClearedVariables(getClearedVariables());
+		}
+
+		return tailCallNode;
+	}
+
+	// a new call would start with all the locals zeroed. The ones that are
+	// initialized at the top level of the body are set again before they can be
+	// read, so they can keep their values.
+	private List<VariableDeclarationNode> getClearedVariables() {
+		Set<VariableDeclarationNode> initialized = new HashSet<>(currentFunction.getArguments());
+		for (StatementNode statement : loop.getStatementBlock().getStatements()) {
+			if (statement instanceof VariableDeclarationNode
+					&& ((VariableDeclarationNode) statement).getExpression() != null)
+				initialized.add((VariableDeclarationNode) statement);
+		}
+
+		List<VariableDeclarationNode> clearedVariables = new ArrayList<>();
+		for (VariableDeclarationNode varDeclNode : localSymbolTables.get(currentFunction.getName()).values()) {
+			if (varDeclNode != accumulator && !initialized.contains(varDeclNode))
+				clearedVariables.add(varDeclNode);
+		}
+
+		return clearedVariables;
+	}
+
+	private ExpressionNode accumulate(ExpressionNode expression, Node position) {
+		BinaryOperationNode binaryNode = new BinaryOperationNode();
+		binaryNode.setBinaryOperationType(accumulatorOperation);
+		binaryNode.setLeftExpression(OptimizerUtils.NewIdentifier(accumulator, position));
+		binaryNode.setRightExpression(expression);
+		binaryNode.setLiteralType(LiteralType.getLiteralTypeFromString(currentFunction.getType()));
+		binaryNode.setLine(position.getLine());
+		binaryNode.setPos(position.getPos());
+		return binaryNode;
+	}
+
+	private boolean isSelfCall(ExpressionNode expression) {
+		return expression instanceof FunctionCallExpressionNode
+				&& ((FunctionCallExpressionNode) expression).getFunctionName().equals(currentFunction.getName());
+	}
+
+	// returns the self call of "a op f(...)" or "f(...) op a" if the expression
+	// can be accumulated. The operand is evaluated before the call after the
+	// rewrite, so in the second form it must not contain any calls.
+	private FunctionCallExpressionNode getAccumulatedCall(ExpressionNode expression) {
+		// the float operations are not associative
+		LiteralType type = LiteralType.getLiteralTypeFromString(currentFunction.getType());
+		if (type != LiteralType.i32 && type != LiteralType.i64)
+			return null;
+
+		if (!(expression instanceof BinaryOperationNode))
+			return null;
+
+		BinaryOperationNode binaryNode = (BinaryOperationNode) expression;
+		if (getIdentity(binaryNode.getBinaryOperationType()) == null)
+			return null;
+
+		if (isSelfCall(binaryNode.getRightExpression()))
+			return (FunctionCallExpressionNode) binaryNode.getRightExpression();
+
+		if (isSelfCall(binaryNode.getLeftExpression()) && !OptimizerUtils.ContainsCall(binaryNode.getRightExpression()))
+			return (FunctionCallExpressionNode) binaryNode.getLeftExpression();
+
+		return null;
+	}
+
+	private Integer getIdentity(BinaryOperationType operationType) {
+		switch (operationType) {
+		case ADDITION:
+		case BIT_OR:
+		case BIT_XOR:
+			return 0;
+		case MULTIPLICATION:
+			return 1;
+		case BIT_AND:
+			return -1;
+		default:
+			return null;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.wasm;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// The static data of the program, the string literals and the initializers of
+// the const arrays, which is placed in the memory by the data section when the
+// module is instantiated. The data starts after the first page, which is left
+// to the program, and the same bytes are only placed once.
+public class DataSegment {
+
+	public static final int BASE = 65536;
+
+	private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private Map<String, Integer> addresses = new HashMap<>();
+
+	// returns the address of the data, aligned to 8 bytes
+	public int add(byte[] data) {
+		String key = new String(data, StandardCharsets.ISO_8859_1);
+		Integer address = addresses.get(key);
+		if (address != null)
+			return address;
+
+		while (bytes.size() % 8 != 0)
+			bytes.write(0);
+
+		address = BASE + bytes.size();
+		bytes.write(data, 0, data.length);
+		addresses.put(key, address);
+		return address;
+	}
+
+	public byte[] getBytes() {
+		return bytes.toByteArray();
+	}
+
+	public int getSize() {
+		return bytes.size();
+	}
+
+	// the first address after the data
+	public int getEnd() {
+		return BASE + bytes.size();
+	}
+}
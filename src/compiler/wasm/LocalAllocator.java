@@ -0,0 +1,374 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.wasm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import compiler.nodes.AssignExpressionNode;
+import compiler.nodes.FunctionStatementNode;
+import compiler.nodes.IdentifierExpressionNode;
+import compiler.nodes.IfStatementNode;
+import compiler.nodes.Node;
+import compiler.nodes.StatementBlockNode;
+import compiler.nodes.SwitchStatementNode;
+import compiler.nodes.TailCallStatementNode;
+import compiler.nodes.VariableDeclarationNode;
+import compiler.nodes.WasmStatementNode;
+import compiler.nodes.WhileStatementNode;
+import compiler.optimizer.OptimizerUtils;
+
+// Assigns the variables of a function to wasm locals. Variables whose live
+// ranges do not overlap share the same local, and the locals are grouped by
+// type so that they are declared with one (count, type) entry per type.
+//
+// The live range of a variable spans from its first to its last occurrence in
+// the order the code is emitted, extended over every loop it is live across.
+// A variable can only take over a local that was used before if it is
+// assigned before it is read, since otherwise it would observe the previous
+// value instead of zero.
+public class LocalAllocator {
+
+	private static final byte[] VAL_TYPES = { 0x7F, 0x7E, 0x7D, 0x7C };
+
+	private FunctionStatementNode functionNode;
+	private Map<String, VariableDeclarationNode> localSymbolTable;
+
+	private Map<String, List<Occurrence>> occurrences;
+	private List<Loop> loops;
+	private Region currentRegion;
+	private int position;
+
+	private Map<String, Integer> slots;
+	private List<Byte> slotTypes;
+
+	// locals that only the emitter uses, they get their own slots
+	private List<VariableDeclarationNode> temporaries = new ArrayList<>();
+
+	public LocalAllocator(FunctionStatementNode functionNode, Map<String, VariableDeclarationNode> localSymbolTable) {
+		this.functionNode = functionNode;
+		this.localSymbolTable = localSymbolTable;
+	}
+
+	public void addTemporary(String name, String type) {
+		VariableDeclarationNode varDeclNode = new VariableDeclarationNode();
+		varDeclNode.setVarName(name);
+		varDeclNode.setType(type);
+		temporaries.add(varDeclNode);
+	}
+
+	public void allocate(boolean coalesce) {
+		slots = new HashMap<>();
+		slotTypes = new ArrayList<>();
+
+		if (!coalesce) {
+			for (VariableDeclarationNode varDeclNode : localSymbolTable.values())
+				newSlot(varDeclNode);
+			for (VariableDeclarationNode varDeclNode : temporaries)
+				newSlot(varDeclNode);
+
+			numberSlots();
+			return;
+		}
+
+		occurrences = new LinkedHashMap<>();
+		loops = new ArrayList<>();
+		currentRegion = new Region(null);
+		position = 0;
+		visit(functionNode.getStatementBlock());
+
+		List<Interval> intervals = new ArrayList<>();
+		for (VariableDeclarationNode varDeclNode : localSymbolTable.values()) {
+			boolean isArgument = functionNode.getArguments().contains(varDeclNode);
+			if (!isArgument && !occurrences.containsKey(varDeclNode.getVarName()))
+				continue;
+
+			Interval interval = getInterval(varDeclNode, isArgument);
+			if (isArgument) {
+				newSlot(varDeclNode);
+				interval.slot = slots.get(varDeclNode.getVarName());
+			}
+
+			intervals.add(interval);
+		}
+
+		// linear scan over the intervals ordered by their start
+		intervals.sort((a, b) -> Integer.compare(a.start, b.start));
+		List<Integer> freeAfter = new ArrayList<>();
+		for (Interval interval : intervals) {
+			if (interval.slot == -1) {
+				byte valType = WASMUtils.GetValType(interval.varDeclNode.getType());
+
+				if (interval.assignedFirst) {
+					for (int i = 0; i < slotTypes.size(); i++) {
+						if (slotTypes.get(i) == valType && freeAfter.get(i) < interval.start) {
+							interval.slot = i;
+							break;
+						}
+					}
+				}
+
+				if (interval.slot == -1) {
+					newSlot(interval.varDeclNode);
+					interval.slot = slotTypes.size() - 1;
+				}
+
+				slots.put(interval.varDeclNode.getVarName(), interval.slot);
+			}
+
+			if (interval.slot == freeAfter.size())
+				freeAfter.add(interval.end);
+			else
+				freeAfter.set(interval.slot, Math.max(freeAfter.get(interval.slot), interval.end));
+		}
+
+		for (VariableDeclarationNode varDeclNode : temporaries)
+			newSlot(varDeclNode);
+
+		numberSlots();
+	}
+
+	private Interval getInterval(VariableDeclarationNode varDeclNode, boolean isArgument) {
+		Interval interval = new Interval();
+		interval.varDeclNode = varDeclNode;
+		interval.start = isArgument ? -1 : Integer.MAX_VALUE;
+		interval.end = -1;
+
+		List<Occurrence> varOccurrences = occurrences.getOrDefault(varDeclNode.getVarName(), new ArrayList<>());
+		if (varOccurrences.isEmpty())
+			return interval;
+
+		Occurrence first = varOccurrences.get(0);
+		interval.assignedFirst = !isArgument && first.isAssignment;
+		for (Occurrence occurrence : varOccurrences) {
+			interval.start = Math.min(interval.start, occurrence.position);
+			interval.end = Math.max(interval.end, occurrence.position);
+
+			if (!first.region.isAncestorOf(occurrence.region))
+				interval.assignedFirst = false;
+		}
+
+		// a variable is live across the iterations of a loop, unless it is
+		// assigned before it is read in each iteration and not used outside the loop
+		for (Loop loop : loops) {
+			boolean occursInside = false, occursOutside = false;
+			for (Occurrence occurrence : varOccurrences) {
+				if (occurrence.loops.contains(loop))
+					occursInside = true;
+				else
+					occursOutside = true;
+			}
+
+			if (occursInside && (occursOutside || !interval.assignedFirst)) {
+				interval.start = Math.min(interval.start, loop.start);
+				interval.end = Math.max(interval.end, loop.end);
+			}
+		}
+
+		return interval;
+	}
+
+	private void visit(Node node) {
+		if (node instanceof IdentifierExpressionNode) {
+			addOccurrence(((IdentifierExpressionNode) node).getName(), false);
+		} else if (node instanceof AssignExpressionNode) {
+			AssignExpressionNode assignNode = (AssignExpressionNode) node;
+			visit(assignNode.getRightExpression());
+			addOccurrence(assignNode.getVarName(), true);
+		} else if (node instanceof VariableDeclarationNode) {
+			VariableDeclarationNode varDeclNode = (VariableDeclarationNode) node;
+			if (varDeclNode.getExpression() != null) {
+				visit(varDeclNode.getExpression());
+				addOccurrence(varDeclNode.getVarName(), true);
+			}
+		} else if (node instanceof IfStatementNode) {
+			IfStatementNode ifNode = (IfStatementNode) node;
+			for (int i = 0; i < ifNode.getStatementBlocks().size(); i++) {
+				// only the first condition is always evaluated
+				if (i == 0) {
+					visit(ifNode.getConditions().get(i));
+				} else if (i != ifNode.getConditions().size()) {
+					currentRegion = new Region(currentRegion);
+					visit(ifNode.getConditions().get(i));
+					currentRegion = currentRegion.parent;
+				}
+
+				currentRegion = new Region(currentRegion);
+				visit(ifNode.getStatementBlocks().get(i));
+				currentRegion = currentRegion.parent;
+			}
+		} else if (node instanceof SwitchStatementNode) {
+			SwitchStatementNode switchNode = (SwitchStatementNode) node;
+			visit(switchNode.getExpression());
+
+			for (StatementBlockNode statementBlock : switchNode.getStatementBlocks()) {
+				currentRegion = new Region(currentRegion);
+				visit(statementBlock);
+				currentRegion = currentRegion.parent;
+			}
+		} else if (node instanceof WhileStatementNode) {
+			WhileStatementNode whileNode = (WhileStatementNode) node;
+			Loop loop = new Loop();
+			loop.start = position++;
+			loops.add(loop);
+
+			currentRegion = new Region(currentRegion);
+			currentRegion.loop = loop;
+			visit(whileNode.getConditionNode());
+			visit(whileNode.getStatementBlock());
+			currentRegion = currentRegion.parent;
+
+			loop.end = position++;
+		} else if (node instanceof TailCallStatementNode) {
+			TailCallStatementNode tailCallNode = (TailCallStatementNode) node;
+			visit(tailCallNode.getCall());
+
+			if (tailCallNode.isSelfCall()) {
+				for (VariableDeclarationNode arg : functionNode.getArguments())
+					addOccurrence(arg.getVarName(), true);
+				for (VariableDeclarationNode varDeclNode : tailCallNode.getClearedVariables())
+					addOccurrence(varDeclNode.getVarName(), true);
+			}
+		} else if (node instanceof WasmStatementNode) {
+			// the inline wasm can both read and write the locals it refers to
+			for (String param : ((WasmStatementNode) node).getWasmCommand().replace("\"", " ").split(" ")) {
+				if (param.startsWith("$"))
+					addOccurrence(param.substring(1), false);
+			}
+		} else {
+			for (Node child : OptimizerUtils.GetChildren(node))
+				visit(child);
+		}
+	}
+
+	private void addOccurrence(String varName, boolean isAssignment) {
+		Occurrence occurrence = new Occurrence();
+		occurrence.position = position++;
+		occurrence.isAssignment = isAssignment;
+		occurrence.region = currentRegion;
+		occurrence.loops = currentRegion.getLoops();
+
+		occurrences.computeIfAbsent(varName, k -> new ArrayList<>()).add(occurrence);
+	}
+
+	private void newSlot(VariableDeclarationNode varDeclNode) {
+		slots.put(varDeclNode.getVarName(), slotTypes.size());
+		slotTypes.add(WASMUtils.GetValType(varDeclNode.getType()));
+	}
+
+	// the arguments keep their indices and the rest of the locals are ordered
+	// by type
+	private void numberSlots() {
+		int argumentsSize = functionNode.getArguments().size();
+
+		int[] indices = new int[slotTypes.size()];
+		int index = argumentsSize;
+		for (byte valType : VAL_TYPES) {
+			for (int i = argumentsSize; i < slotTypes.size(); i++) {
+				if (slotTypes.get(i) == valType)
+					indices[i] = index++;
+			}
+		}
+
+		for (int i = 0; i < argumentsSize; i++)
+			indices[i] = i;
+
+		for (Map.Entry<String, Integer> entry : slots.entrySet())
+			entry.setValue(indices[entry.getValue()]);
+	}
+
+	public Map<String, Integer> getSlots() {
+		return slots;
+	}
+
+	public WASMVector getLocalsVector() throws IOException {
+		int argumentsSize = functionNode.getArguments().size();
+
+		List<Byte> types = new ArrayList<>();
+		List<Integer> counts = new ArrayList<>();
+		for (byte valType : VAL_TYPES) {
+			int count = 0;
+			for (int i = argumentsSize; i < slotTypes.size(); i++) {
+				if (slotTypes.get(i) == valType)
+					count++;
+			}
+
+			if (count > 0) {
+				types.add(valType);
+				counts.add(count);
+			}
+		}
+
+		WASMVector localsVector = new WASMVector(types.size());
+		for (int i = 0; i < types.size(); i++) {
+			WASMUtils.WriteUnsignedLeb128(localsVector.getStream(), counts.get(i));
+			localsVector.addByte(types.get(i));
+		}
+
+		return localsVector;
+	}
+
+	private static class Interval {
+		VariableDeclarationNode varDeclNode;
+		int start, end;
+		boolean assignedFirst;
+		int slot = -1;
+	}
+
+	private static class Occurrence {
+		int position;
+		boolean isAssignment;
+		Region region;
+		List<Loop> loops;
+	}
+
+	private static class Loop {
+		int start, end;
+	}
+
+	// a part of the function whose code is either fully executed or not at all
+	private static class Region {
+		Region parent;
+		Loop loop;
+
+		Region(Region parent) {
+			this.parent = parent;
+		}
+
+		boolean isAncestorOf(Region region) {
+			for (Region r = region; r != null; r = r.parent) {
+				if (r == this)
+					return true;
+			}
+
+			return false;
+		}
+
+		List<Loop> getLoops() {
+			List<Loop> loops = new ArrayList<>();
+			for (Region r = this; r != null; r = r.parent) {
+				if (r.loop != null)
+					loops.add(r.loop);
+			}
+
+			return loops;
+		}
+	}
+}
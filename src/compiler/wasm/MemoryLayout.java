@@ -0,0 +1,135 @@
+/*   
+ * Copyright 2022 pavlos4265
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package compiler.wasm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import compiler.StandardLibrary;
+
+// The static layout of the memory, planned before the module is emitted:
+//
+// | first page | data | memo caches | stack | heap ...
+//                                           ^ __stack_pointer, __heap_base
+//
+// The first page is left to the program, the stack grows down from its end
+// and the allocator of the standard library takes the blocks of the heap from
+// its base. The module starts with the pages up to the initial size of the
+// heap, so that the allocations only grow the memory after it.
+public class MemoryLayout {
+
+	public static final int PAGE_SIZE = 65536;
+	// the most pages a memory of wasm can have
+	public static final int MAX_PAGES = 65536;
+	private static final int DEFAULT_MAX_PAGES = 10;
+
+	private DataSegment dataSegment;
+	// the maximum pages are -1 when they are not set
+	private int stackSize, heapSize, initialPages, maxPages = -1;
+	private boolean imported;
+
+	private Map<String, Integer> memoCaches = new HashMap<>();
+	private int heapBase, pages;
+
+	public MemoryLayout(DataSegment dataSegment) {
+		this.dataSegment = dataSegment;
+	}
+
+	// places the regions after the data, the memo caches have the given sizes
+	public void plan(Map<String, Integer> memoCacheSizes) {
+		int address = (int) align(dataSegment.getEnd(), 8);
+		memoCaches.clear();
+		for (Map.Entry<String, Integer> entry : memoCacheSizes.entrySet()) {
+			memoCaches.put(entry.getKey(), address);
+			address += entry.getValue();
+		}
+
+		// the heap has to begin below 2 GiB, where the allocator ends it
+		long base = align(address, 16) + align(stackSize, 16);
+		if (base > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The stack of " + stackSize + " bytes ends above 2 GiB.");
+		heapBase = (int) base;
+
+		long layoutPages = Math.max(initialPages, (base + heapSize + PAGE_SIZE - 1) / PAGE_SIZE);
+		if (layoutPages > MAX_PAGES)
+			throw new IllegalArgumentException(
+					"The memory needs " + layoutPages + " pages, more than the " + MAX_PAGES + " pages of wasm.");
+		pages = (int) layoutPages;
+
+		if (maxPages >= 0 && maxPages < pages)
+			throw new IllegalArgumentException(
+					"The maximum of " + maxPages + " pages is below the " + pages + " initial pages of the memory.");
+	}
+
+	private static long align(long address, int alignment) {
+		return (address + alignment - 1) / alignment * alignment;
+	}
+
+	public DataSegment getDataSegment() {
+		return dataSegment;
+	}
+
+	public int getMemoCache(String functionName) {
+		return memoCaches.get(functionName);
+	}
+
+	// the value of a global of the standard library that holds an address of
+	// the layout, null for the other globals
+	public Integer getSymbol(String globalName) {
+		if (globalName.equals(StandardLibrary.HEAP_BASE) || globalName.equals(StandardLibrary.STACK_POINTER))
+			return heapBase;
+
+		return null;
+	}
+
+	public int getHeapBase() {
+		return heapBase;
+	}
+
+	// the initial pages of the memory, at least the ones of the layout
+	public int getPages() {
+		return pages;
+	}
+
+	public int getMaxPages() {
+		return maxPages >= 0 ? maxPages : Math.max(pages, DEFAULT_MAX_PAGES);
+	}
+
+	public void setStackSize(int stackSize) {
+		this.stackSize = stackSize;
+	}
+
+	public void setHeapSize(int heapSize) {
+		this.heapSize = heapSize;
+	}
+
+	public void setInitialPages(int initialPages) {
+		this.initialPages = initialPages;
+	}
+
+	public void setMaxPages(int maxPages) {
+		this.maxPages = maxPages;
+	}
+
+	// the memory is imported from env.memory instead of being exported
+	public boolean isImported() {
+		return imported;
+	}
+
+	public void setImported(boolean imported) {
+		this.imported = imported;
+	}
+}
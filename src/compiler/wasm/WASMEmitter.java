@@ -18,11 +18,20 @@ package compiler.wasm;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
+import compiler.StandardLibrary;
 import compiler.enums.LiteralType;
+import compiler.enums.UnaryOperationType;
+import compiler.ir.MemoryAccess;
 import compiler.nodes.AssignExpressionNode;
 import compiler.nodes.BinaryOperationNode;
 import compiler.nodes.BooleanExpressionNode;
@@ -37,13 +46,30 @@ import compiler.nodes.NumberExpressionNode;
 import compiler.nodes.ReturnStatementNode;
 import compiler.nodes.StatementBlockNode;
 import compiler.nodes.StatementNode;
+import compiler.nodes.SwitchStatementNode;
+import compiler.nodes.TailCallStatementNode;
 import compiler.nodes.UnaryOperationNode;
 import compiler.nodes.VariableDeclarationNode;
 import compiler.nodes.WasmStatementNode;
 import compiler.nodes.WhileStatementNode;
+import compiler.optimizer.OptimizerUtils;
 
 public class WASMEmitter {
+	// the results of the memo functions are cached in direct mapped tables of
+	// the memory layout. An entry holds a valid flag, the arguments and the
+	// result.
+	private static final int MEMO_CACHE_ENTRIES = 1024;
+	private static final String MEMO_ENTRY = "memo$entry", MEMO_KEY = "memo$key", MEMO_RESULT = "memo$result";
+
+	// a switch branches with a br_table when its values fill at least a third
+	// of the table, or else with a binary search that compares the last few
+	// values one by one
+	private static final int MIN_TABLE_VALUES = 4, TABLE_FILL = 3, LINEAR_SEARCH_VALUES = 3;
+	private static final String SWITCH_VALUE = "switch$value";
+
 	private Map<String, Integer> OPCODES;
+	// the opcodes that follow the 0xFC prefix
+	private Map<String, Integer> PREFIXED_OPCODES;
 
 	private DataOutputStream output;
 	private ByteArrayOutputStream baos;
@@ -51,6 +77,19 @@ public class WASMEmitter {
 	private Map<String, FunctionStatementNode> funcSymbolTable;
 	private Map<String, Map<String, VariableDeclarationNode>> localSymbolTables;
 
+	// the calls of the memory accesses are emitted as their instructions, so the
+	// functions of the standard library are only emitted if they are still called
+	private Map<String, MemoryAccess> memoryAccesses;
+	private List<FunctionStatementNode> functions;
+
+	// the calls of the getters and the setters of the globals are replaced by
+	// the instructions, only the accessed globals are emitted
+	private Map<String, VariableDeclarationNode> globalSymbolTable;
+	private List<VariableDeclarationNode> globals;
+	private Map<String, Integer> orderedGlobals;
+
+	private MemoryLayout memoryLayout;
+
 	private WASMVector currentVector;
 	private String currentFunctioName;
 
@@ -58,15 +97,111 @@ public class WASMEmitter {
 	// binary
 	private Map<String, Integer> orderedFunctions;
 	private Map<String, Integer> orderedLocalVars;
+	private boolean coalesceLocals = true;
+	private boolean saturatingCasts;
+
+	// number of blocks opened in the current function and the depth of each loop,
+	// used to find the label of a loop from inside nested blocks
+	private int blockDepth;
+	private Map<WhileStatementNode, Integer> loopDepths;
+
+	// the depth of the block the returns of the current memo function branch
+	// out of
+	private int memoBlockDepth;
 
 	public WASMEmitter(Node node, Map<String, FunctionStatementNode> funcSymbolTable,
-			Map<String, Map<String, VariableDeclarationNode>> localSymbolTables) {
+			Map<String, Map<String, VariableDeclarationNode>> localSymbolTables,
+			Map<String, VariableDeclarationNode> globalSymbolTable, MemoryLayout memoryLayout) {
 		loadOPCodes();
 
 		this.funcSymbolTable = Collections.unmodifiableMap(funcSymbolTable);
 		this.localSymbolTables = Collections.unmodifiableMap(localSymbolTables);
 
+		this.globalSymbolTable = Collections.unmodifiableMap(globalSymbolTable);
+
 		this.orderedFunctions = new HashMap<>();
+		this.memoryAccesses = MemoryAccess.find(funcSymbolTable);
+
+		Set<String> accessedGlobals = new HashSet<>();
+		this.functions = getEmittedFunctions(accessedGlobals);
+		this.memoryLayout = memoryLayout;
+
+		this.globals = new ArrayList<>();
+		this.orderedGlobals = new HashMap<>();
+		for (VariableDeclarationNode global : globalSymbolTable.values()) {
+			if (accessedGlobals.contains(global.getVarName())) {
+				orderedGlobals.put(global.getVarName(), globals.size());
+				globals.add(global);
+			}
+		}
+
+		Map<String, Integer> memoCacheSizes = new LinkedHashMap<>();
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			if (functionNode.isMemo())
+				memoCacheSizes.put(functionNode.getName(), MEMO_CACHE_ENTRIES * getMemoEntrySize(functionNode));
+		}
+		memoryLayout.plan(memoCacheSizes);
+	}
+
+	private List<FunctionStatementNode> getEmittedFunctions(Set<String> accessedGlobals) {
+		Set<String> called = new HashSet<>();
+		List<Node> worklist = new ArrayList<>();
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			if (!functionNode.isLibrary())
+				worklist.add(functionNode);
+		}
+
+		while (!worklist.isEmpty()) {
+			Node node = worklist.remove(worklist.size() - 1);
+
+			String calledName = null;
+			if (node instanceof TailCallStatementNode)
+				calledName = ((TailCallStatementNode) node).getCall().getFunctionName();
+			else if (node instanceof FunctionCallExpressionNode
+					&& !memoryAccesses.containsKey(((FunctionCallExpressionNode) node).getFunctionName()))
+				calledName = ((FunctionCallExpressionNode) node).getFunctionName();
+
+			String globalName = calledName != null ? getAccessedGlobal(calledName) : null;
+			if (node instanceof WasmStatementNode) {
+				String[] wasm = ((WasmStatementNode) node).getWasmCommand().replace("\"", " ").trim().split(" +");
+				if (wasm[0].startsWith("global.") && wasm.length > 1)
+					globalName = wasm[1].substring(1);
+			}
+
+			if (globalName != null) {
+				accessedGlobals.add(globalName);
+				if (node instanceof FunctionCallExpressionNode)
+					calledName = null;
+			}
+
+			if (calledName != null && called.add(calledName))
+				worklist.add(funcSymbolTable.get(calledName));
+
+			worklist.addAll(OptimizerUtils.GetChildren(node));
+		}
+
+		List<FunctionStatementNode> emitted = new ArrayList<>();
+		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+			if (!functionNode.isLibrary() || called.contains(functionNode.getName()))
+				emitted.add(functionNode);
+		}
+
+		return emitted;
+	}
+
+	// the global of a getter or a setter, null for the other functions
+	private String getAccessedGlobal(String functionName) {
+		FunctionStatementNode functionNode = funcSymbolTable.get(functionName);
+		if (functionNode == null || !functionNode.isLibrary())
+			return null;
+
+		String globalName = null;
+		if (functionName.startsWith(StandardLibrary.GLOBAL_GET))
+			globalName = functionName.substring(StandardLibrary.GLOBAL_GET.length());
+		else if (functionName.startsWith(StandardLibrary.GLOBAL_SET))
+			globalName = functionName.substring(StandardLibrary.GLOBAL_SET.length());
+
+		return globalSymbolTable.containsKey(globalName) ? globalName : null;
 	}
 
 	public byte[] emit() throws IOException {
@@ -86,6 +221,7 @@ public class WASMEmitter {
 
 		writeBinaryHeader();
 		writeCodeSection();
+		writeDataSection();
 
 		return baos.toByteArray();
 	}
@@ -95,8 +231,8 @@ public class WASMEmitter {
 
 		// type section
 		output.write(0x01); // type section id - 1
-		WASMVector typeVector = new WASMVector(funcSymbolTable.size());
-		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+		WASMVector typeVector = new WASMVector(functions.size());
+		for (FunctionStatementNode functionNode : functions) {
 			WASMVector funcTypeVector = new WASMVector();
 			funcTypeVector.addByte(0x60); // funcType id
 
@@ -119,11 +255,25 @@ public class WASMEmitter {
 		output.write(typeVector.getBytes());
 		// end of type section
 
+		// import section
+		if (memoryLayout.isImported()) {
+			output.write(0x02);
+			WASMVector importVector = new WASMVector(1);
+			importVector.addVector(newName("env"));
+			importVector.addVector(newName("memory"));
+			importVector.addByte(0x02); // memory import
+			writeMemoryLimits(importVector);
+
+			WASMUtils.WriteUnsignedLeb128(output, importVector.getBytes().length);
+			output.write(importVector.getBytes());
+		}
+		// end of import section
+
 		// function section
 		output.write(0x03);
-		WASMVector functionVector = new WASMVector(funcSymbolTable.size());
+		WASMVector functionVector = new WASMVector(functions.size());
 		int i = 0;
-		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+		for (FunctionStatementNode functionNode : functions) {
 			WASMUtils.WriteUnsignedLeb128(functionVector.getStream(), i);
 			orderedFunctions.put(functionNode.getName(), i);
 			i++;
@@ -134,23 +284,56 @@ public class WASMEmitter {
 		// end of function section
 
 		// memory section
-		output.write(0x05);
-		// TODO: setup the memory through compiler options
-		WASMVector memoryVector = new WASMVector(1);
-		memoryVector.addByte(0x01);
-		WASMUtils.WriteUnsignedLeb128(memoryVector.getStream(), 1);
-		WASMUtils.WriteUnsignedLeb128(memoryVector.getStream(), 10);
-
-		WASMUtils.WriteUnsignedLeb128(output, memoryVector.getBytes().length);
-		output.write(memoryVector.getBytes());
+		if (!memoryLayout.isImported()) {
+			output.write(0x05);
+			WASMVector memoryVector = new WASMVector(1);
+			writeMemoryLimits(memoryVector);
+
+			WASMUtils.WriteUnsignedLeb128(output, memoryVector.getBytes().length);
+			output.write(memoryVector.getBytes());
+		}
 		// end of memory section
 
+		// global section
+		if (!globals.isEmpty()) {
+			output.write(0x06);
+			WASMVector globalVector = new WASMVector(globals.size());
+			currentVector = globalVector;
+			for (VariableDeclarationNode global : globals) {
+				globalVector.addByte(WASMUtils.GetValType(global.getType()));
+				globalVector.addByte(global.isConstant() ? 0x00 : 0x01); // mutability
+
+				Integer symbol = memoryLayout.getSymbol(global.getVarName());
+				if (symbol != null)
+					emitI32Const(symbol);
+				else
+					emitNumberNode((NumberExpressionNode) global.getExpression());
+				globalVector.addByte(0x0B);
+			}
+
+			WASMUtils.WriteUnsignedLeb128(output, globalVector.getBytes().length);
+			output.write(globalVector.getBytes());
+		}
+		// end of global section
+
 		// export section
 		output.write(0x07);
-		WASMVector exportVector = new WASMVector(funcSymbolTable.size() + 1); // +1 for the memory export
+		int exports = 0;
+		for (FunctionStatementNode functionNode : functions) {
+			if (!functionNode.isLibrary())
+				exports++;
+		}
+		if (!memoryLayout.isImported())
+			exports++;
+		WASMVector exportVector = new WASMVector(exports);
 
 		i = 0;
-		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+		for (FunctionStatementNode functionNode : functions) {
+			if (functionNode.isLibrary()) {
+				i++;
+				continue;
+			}
+
 			byte[] funcName = functionNode.getName().getBytes();
 			WASMVector nameVector = new WASMVector(funcName.length);
 			nameVector.getStream().write(funcName);
@@ -161,25 +344,39 @@ public class WASMEmitter {
 			i++;
 		}
 
-		// TODO: setup the memory through compiler options
-		String memoryName = "memory";
-		WASMVector memNameVector = new WASMVector(memoryName.length());
-		memNameVector.getStream().write(memoryName.getBytes());
-		exportVector.addVector(memNameVector);
-		exportVector.addByte(0x02); // memory export
-		WASMUtils.WriteSignedLeb128(exportVector.getStream(), 0);
+		if (!memoryLayout.isImported()) {
+			exportVector.addVector(newName("memory"));
+			exportVector.addByte(0x02); // memory export
+			WASMUtils.WriteSignedLeb128(exportVector.getStream(), 0);
+		}
 
 		WASMUtils.WriteUnsignedLeb128(output, exportVector.getBytes().length);
 		output.write(exportVector.getBytes());
 		// end of exports section
 	}
 
+	private WASMVector newName(String name) throws IOException {
+		byte[] bytes = name.getBytes();
+		WASMVector nameVector = new WASMVector(bytes.length);
+		nameVector.getStream().write(bytes);
+		return nameVector;
+	}
+
+	// the pages of the layout and the maximum
+	private void writeMemoryLimits(WASMVector vector) throws IOException {
+		vector.addByte(0x01);
+		WASMUtils.WriteUnsignedLeb128(vector.getStream(), memoryLayout.getPages());
+		WASMUtils.WriteUnsignedLeb128(vector.getStream(), memoryLayout.getMaxPages());
+	}
+
 	private void writeCodeSection() throws IOException {
 		// code section
 		output.write(0x0A);
-		WASMVector codeVector = new WASMVector(funcSymbolTable.size());
-		for (FunctionStatementNode functionNode : funcSymbolTable.values()) {
+		WASMVector codeVector = new WASMVector(functions.size());
+		for (FunctionStatementNode functionNode : functions) {
 			orderedLocalVars = new HashMap<>();
+			blockDepth = 0;
+			loopDepths = new HashMap<>();
 			WASMVector codeData = new WASMVector();
 
 			currentVector = codeData;
@@ -195,12 +392,33 @@ public class WASMEmitter {
 		output.write(codeVector.getBytes());
 	}
 
+	// the static data is a single active segment of the memory
+	private void writeDataSection() throws IOException {
+		DataSegment dataSegment = memoryLayout.getDataSegment();
+		if (dataSegment.getSize() == 0)
+			return;
+
+		output.write(0x0B);
+		WASMVector dataVector = new WASMVector(1);
+		dataVector.addByte(0x00); // active segment of memory 0
+		dataVector.addByte(OPCODES.get("i32.const"));
+		WASMUtils.WriteSignedLeb128(dataVector.getStream(), DataSegment.BASE);
+		dataVector.addByte(0x0B);
+
+		WASMVector bytesVector = new WASMVector(dataSegment.getSize());
+		bytesVector.getStream().write(dataSegment.getBytes());
+		dataVector.addVector(bytesVector);
+
+		WASMUtils.WriteUnsignedLeb128(output, dataVector.getBytes().length);
+		output.write(dataVector.getBytes());
+	}
+
 	private LiteralType emitNode(Node node) throws IOException {
 		if (node instanceof StatementBlockNode) {
 			StatementBlockNode statementBlock = (StatementBlockNode) node;
 
 			for (StatementNode statement : statementBlock.getStatements()) {
-				emitNode(statement);
+				emitStatement(statement);
 			}
 		} else if (node instanceof FunctionStatementNode) {
 			FunctionStatementNode functionNode = (FunctionStatementNode) node;
@@ -213,7 +431,7 @@ public class WASMEmitter {
 		} else if (node instanceof AssignExpressionNode) {
 			AssignExpressionNode assignNode = (AssignExpressionNode) node;
 
-			emitAssignmentNode(assignNode);
+			return emitTeeNode(assignNode);
 		} else if (node instanceof NumberExpressionNode) {
 			NumberExpressionNode numberNode = (NumberExpressionNode) node;
 
@@ -226,6 +444,10 @@ public class WASMEmitter {
 			IfStatementNode ifNode = (IfStatementNode) node;
 
 			emitIfNode(ifNode);
+		} else if (node instanceof SwitchStatementNode) {
+			SwitchStatementNode switchNode = (SwitchStatementNode) node;
+
+			emitSwitchNode(switchNode);
 		} else if (node instanceof FunctionCallExpressionNode) {
 			FunctionCallExpressionNode funcCallNode = (FunctionCallExpressionNode) node;
 
@@ -258,6 +480,10 @@ public class WASMEmitter {
 			CastingExpressionNode castingNode = (CastingExpressionNode) node;
 
 			return emitCastingNode(castingNode);
+		} else if (node instanceof TailCallStatementNode) {
+			TailCallStatementNode tailCallNode = (TailCallStatementNode) node;
+
+			emitTailCallNode(tailCallNode);
 		} else {
 			System.out.println("Unknown node " + node.getClass().getName());
 		}
@@ -265,23 +491,70 @@ public class WASMEmitter {
 		return null;
 	}
 
+	// emits a node whose value, if any, is not used
+	private void emitStatement(StatementNode statement) throws IOException {
+		if (statement instanceof AssignExpressionNode) {
+			emitAssignmentNode((AssignExpressionNode) statement);
+			return;
+		}
+
+		LiteralType type = emitNode(statement);
+		if (statement instanceof ExpressionNode && type != null && type != LiteralType._void_)
+			currentVector.addByte(OPCODES.get("drop"));
+	}
+
 	private LiteralType emitCastingNode(CastingExpressionNode castingNode) throws IOException {
 		LiteralType exprType = emitNode(castingNode.getExpression());
 		LiteralType castType = LiteralType.getLiteralTypeFromString(castingNode.getType());
+		if (castingNode.getExpression().getLiteralType() == LiteralType.bool)
+			exprType = LiteralType.bool;
+
+		if (castingNode.isReinterpret()) {
+			currentVector.addByte(OPCODES.get(castType + ".reinterpret_" + exprType));
+		} else if (castType == LiteralType.bool && exprType != LiteralType.bool) {
+			// any value other than zero is true
+			emitZero(exprType);
+			currentVector.addByte(OPCODES.get(exprType + ".ne"));
+		} else if (castType != exprType) {
+			String conversion = getConversion(exprType, castType);
+			if (conversion != null)
+				emitOpcode(conversion);
+		}
 
-		if (exprType == castType)
-			return castType;
+		return getEmittedLiteralType(castingNode.getType());
+	}
 
-		if (castType == LiteralType.i64 && exprType == LiteralType.i32)
-			currentVector.addByte(OPCODES.get("i64.extend_i32_s"));
-		else if (castType == LiteralType.i32 && exprType == LiteralType.i64)
-			currentVector.addByte(OPCODES.get("i32.wrap_i64"));
-		else if (castType == LiteralType.f32 && exprType == LiteralType.i32)
-			currentVector.addByte(OPCODES.get("f32.convert_i32_s"));
-		else if (castType == LiteralType.i32 && exprType == LiteralType.f32)
-			currentVector.addByte(OPCODES.get("i32.trunc_f32_s"));
+	// the instruction that converts a value to another type, the bools are
+	// converted as unsigned
+	private String getConversion(LiteralType from, LiteralType to) {
+		boolean isFromInteger = from == LiteralType.i32 || from == LiteralType.i64 || from == LiteralType.bool;
+		boolean isToInteger = to == LiteralType.i32 || to == LiteralType.i64;
+		String sign = from == LiteralType.bool ? "_u" : "_s";
+		String source = from == LiteralType.bool ? "i32" : from.toString();
+
+		if (isFromInteger && isToInteger) {
+			if (to == LiteralType.i64)
+				return "i64.extend_i32" + sign;
+			return from == LiteralType.i64 ? "i32.wrap_i64" : null;
+		}
+
+		if (isFromInteger)
+			return to + ".convert_" + source + sign;
 
-		return castType;
+		if (isToInteger)
+			return to + (saturatingCasts ? ".trunc_sat_" : ".trunc_") + from + "_s";
+
+		return to == LiteralType.f64 ? "f64.promote_f32" : "f32.demote_f64";
+	}
+
+	private void emitOpcode(String opcode) throws IOException {
+		if (PREFIXED_OPCODES.containsKey(opcode)) {
+			currentVector.addByte(0xFC);
+			WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), PREFIXED_OPCODES.get(opcode));
+			return;
+		}
+
+		currentVector.addByte(OPCODES.get(opcode));
 	}
 
 	private void emitWasmNode(WasmStatementNode wasmNode) throws IOException {
@@ -300,7 +573,8 @@ public class WASMEmitter {
 					int val = Integer.parseInt(param);
 					WASMUtils.WriteSignedLeb128(currentVector.getStream(), val);
 				} catch (Exception e) {
-					WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), orderedLocalVars.get(param.substring(1)));
+					Map<String, Integer> ordered = cmd.startsWith("global.") ? orderedGlobals : orderedLocalVars;
+					WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), ordered.get(param.substring(1)));
 				}
 			}
 		}
@@ -316,27 +590,154 @@ public class WASMEmitter {
 	private void emitReturnNode(ReturnStatementNode returnNode) throws IOException {
 		emitNode(returnNode.getExpression());
 
+		if (memoBlockDepth > 0) {
+			currentVector.addByte(OPCODES.get("br"));
+			WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), blockDepth - memoBlockDepth);
+			return;
+		}
+
 		currentVector.addByte(OPCODES.get("return"));
 	}
 
 	private void emitFunctionNode(FunctionStatementNode functionNode) throws IOException {
-		WASMVector varsVector = new WASMVector(
-				localSymbolTables.get(functionNode.getName()).size() - functionNode.getArguments().size());
-		int i = 0;
-		for (VariableDeclarationNode localVar : localSymbolTables.get(functionNode.getName()).values()) {
-			orderedLocalVars.put(localVar.getVarName(), i);
+		LocalAllocator localAllocator = new LocalAllocator(functionNode,
+				localSymbolTables.get(functionNode.getName()));
+		if (functionNode.isMemo()) {
+			localAllocator.addTemporary(MEMO_ENTRY, "i32");
+			for (int i = 0; i < functionNode.getArguments().size(); i++)
+				localAllocator.addTemporary(MEMO_KEY + i, "i32");
+			localAllocator.addTemporary(MEMO_RESULT, functionNode.getType());
+		}
+		for (LiteralType type : getSwitchTemporaries(functionNode, new HashSet<>()))
+			localAllocator.addTemporary(SWITCH_VALUE + type, type.toString());
+		localAllocator.allocate(coalesceLocals);
 
-			if (i >= functionNode.getArguments().size()) {
-				WASMUtils.WriteUnsignedLeb128(varsVector.getStream(), 1);
-				varsVector.addByte(WASMUtils.GetValType(localVar.getType()));
-			}
+		orderedLocalVars = localAllocator.getSlots();
+		currentVector.addVector(localAllocator.getLocalsVector());
 
-			i++;
-		}
+		// the body of a memo function is emitted in a block that its returns
+		// branch out of with the result, which is then inserted in the cache
+		if (functionNode.isMemo()) {
+			emitMemoLookup(functionNode);
 
-		currentVector.addVector(varsVector);
+			currentVector.addByte(OPCODES.get("block"));
+			currentVector.addByte(WASMUtils.GetValType(functionNode.getType()));
+			memoBlockDepth = ++blockDepth;
+		}
 
 		emitNode(functionNode.getStatementBlock());
+
+		// the optimizer removes the code after statements that always return, the
+		// end of the function cannot be reached then. Wasm statements may leave the
+		// result on the stack.
+		List<StatementNode> statements = functionNode.getStatementBlock().getStatements();
+		StatementNode last = statements.isEmpty() ? null : statements.get(statements.size() - 1);
+		if (LiteralType.getLiteralTypeFromString(functionNode.getType()) != LiteralType._void_
+				&& !(last instanceof ReturnStatementNode) && !(last instanceof TailCallStatementNode)
+				&& !(last instanceof WasmStatementNode))
+			currentVector.addByte(OPCODES.get("unreachable"));
+
+		if (functionNode.isMemo()) {
+			currentVector.addByte(OPCODES.get("end"));
+			blockDepth--;
+			memoBlockDepth = 0;
+
+			emitMemoInsert(functionNode);
+		}
+	}
+
+	// finds the entry of the arguments and returns its result if it holds them.
+	// The arguments are kept since the body can assign to them.
+	private void emitMemoLookup(FunctionStatementNode functionNode) throws IOException {
+		List<VariableDeclarationNode> arguments = functionNode.getArguments();
+
+		emitLocal("local.get", arguments.get(0).getVarName());
+		for (int i = 1; i < arguments.size(); i++) {
+			emitI32Const(31);
+			currentVector.addByte(OPCODES.get("i32.mul"));
+			emitLocal("local.get", arguments.get(i).getVarName());
+			currentVector.addByte(OPCODES.get("i32.add"));
+		}
+
+		emitI32Const(MEMO_CACHE_ENTRIES - 1);
+		currentVector.addByte(OPCODES.get("i32.and"));
+		emitI32Const(getMemoEntrySize(functionNode));
+		currentVector.addByte(OPCODES.get("i32.mul"));
+		emitI32Const(memoryLayout.getMemoCache(functionNode.getName()));
+		currentVector.addByte(OPCODES.get("i32.add"));
+		emitLocal("local.set", MEMO_ENTRY);
+
+		for (int i = 0; i < arguments.size(); i++) {
+			emitLocal("local.get", arguments.get(i).getVarName());
+			emitLocal("local.set", MEMO_KEY + i);
+		}
+
+		emitLocal("local.get", MEMO_ENTRY);
+		emitMemoryAccess("i32.load", 0);
+		for (int i = 0; i < arguments.size(); i++) {
+			emitLocal("local.get", MEMO_ENTRY);
+			emitMemoryAccess("i32.load", 4 * (i + 1));
+			emitLocal("local.get", MEMO_KEY + i);
+			currentVector.addByte(OPCODES.get("i32.eq"));
+			currentVector.addByte(OPCODES.get("i32.and"));
+		}
+
+		currentVector.addByte(OPCODES.get("if"));
+		currentVector.addByte(0x40);
+		emitLocal("local.get", MEMO_ENTRY);
+		emitMemoryAccess(getMemoValueType(functionNode) + ".load", 4 * (arguments.size() + 1));
+		currentVector.addByte(OPCODES.get("return"));
+		currentVector.addByte(OPCODES.get("end"));
+	}
+
+	// the result of the body is on the stack
+	private void emitMemoInsert(FunctionStatementNode functionNode) throws IOException {
+		int argumentsSize = functionNode.getArguments().size();
+		emitLocal("local.set", MEMO_RESULT);
+
+		emitLocal("local.get", MEMO_ENTRY);
+		emitI32Const(1);
+		emitMemoryAccess("i32.store", 0);
+		for (int i = 0; i < argumentsSize; i++) {
+			emitLocal("local.get", MEMO_ENTRY);
+			emitLocal("local.get", MEMO_KEY + i);
+			emitMemoryAccess("i32.store", 4 * (i + 1));
+		}
+
+		emitLocal("local.get", MEMO_ENTRY);
+		emitLocal("local.get", MEMO_RESULT);
+		emitMemoryAccess(getMemoValueType(functionNode) + ".store", 4 * (argumentsSize + 1));
+
+		emitLocal("local.get", MEMO_RESULT);
+	}
+
+	private int getMemoEntrySize(FunctionStatementNode functionNode) {
+		return 4 * (functionNode.getArguments().size() + 2);
+	}
+
+	private String getMemoValueType(FunctionStatementNode functionNode) {
+		return getEmittedLiteralType(functionNode.getType()).toString();
+	}
+
+	private void emitLocal(String opcode, String varName) throws IOException {
+		currentVector.addByte(OPCODES.get(opcode));
+		WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), orderedLocalVars.get(varName));
+	}
+
+	private void emitI32Const(int value) throws IOException {
+		currentVector.addByte(OPCODES.get("i32.const"));
+		WASMUtils.WriteSignedLeb128(currentVector.getStream(), value);
+	}
+
+	// the accesses of the memo caches are aligned to 4 bytes
+	private void emitMemoryAccess(String opcode, int offset) throws IOException {
+		emitMemoryAccess(opcode, 2, offset);
+	}
+
+	private void emitMemoryAccess(String opcode, int align, int offset) throws IOException {
+		currentVector.addByte(OPCODES.get(opcode));
+		WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), align);
+		WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), offset);
 	}
 
 	private void emitVariableDeclarationNode(VariableDeclarationNode varNode) throws IOException {
@@ -349,35 +750,119 @@ public class WASMEmitter {
 	}
 
 	private void emitAssignmentNode(AssignExpressionNode assignNode) throws IOException {
+		// the variables can share a local after the coalescing
+		if (assignNode.getRightExpression() instanceof IdentifierExpressionNode
+				&& orderedLocalVars.get(((IdentifierExpressionNode) assignNode.getRightExpression()).getName())
+						.equals(orderedLocalVars.get(assignNode.getVarName())))
+			return;
+
 		emitNode(assignNode.getRightExpression());
 
 		currentVector.addByte(OPCODES.get("local.set"));
 		WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), orderedLocalVars.get(assignNode.getVarName()));
 	}
 
+	// an assignment inside an expression also leaves the value on the stack
+	private LiteralType emitTeeNode(AssignExpressionNode assignNode) throws IOException {
+		emitNode(assignNode.getRightExpression());
+
+		currentVector.addByte(OPCODES.get("local.tee"));
+		WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), orderedLocalVars.get(assignNode.getVarName()));
+
+		return getEmittedLiteralType(localSymbolTables.get(currentFunctioName).get(assignNode.getVarName()).getType());
+	}
+
 	private LiteralType emitNumberNode(NumberExpressionNode numberNode) throws IOException {
-		if (!numberNode.isFloat()) {
-			currentVector.addByte(OPCODES.get("i32.const"));
-			WASMUtils.WriteSignedLeb128(currentVector.getStream(), (int) numberNode.getNumber());
-			return LiteralType.i32;
+		LiteralType type = numberNode.getLiteralType();
+		currentVector.addByte(OPCODES.get(type + ".const"));
+
+		switch (type) {
+		case i64:
+			WASMUtils.WriteSignedLeb128(currentVector.getStream(), numberNode.getNumber().longValue());
+			break;
+		case f32:
+			WASMUtils.WriteFloat(currentVector.getStream(), numberNode.getNumber().floatValue());
+			break;
+		case f64:
+			WASMUtils.WriteDouble(currentVector.getStream(), numberNode.getNumber().doubleValue());
+			break;
+		default:
+			WASMUtils.WriteSignedLeb128(currentVector.getStream(), numberNode.getNumber().intValue());
+			break;
 		}
 
-		currentVector.addByte(OPCODES.get("f32.const"));
-		output.writeFloat((float) numberNode.getNumber());
-		return LiteralType.f32;
+		return type;
 	}
 
 	private void emitWhileNode(WhileStatementNode whileNode) throws IOException {
 		currentVector.addByte(OPCODES.get("loop"));
 		currentVector.addByte(0x40);
+		loopDepths.put(whileNode, ++blockDepth);
+
+		// while (true) loops can only be left with a return
+		if (whileNode.getConditionNode() instanceof BooleanExpressionNode
+				&& ((BooleanExpressionNode) whileNode.getConditionNode()).getValue()) {
+			emitNode(whileNode.getStatementBlock());
+			currentVector.addByte(OPCODES.get("br"));
+			WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), 0);
+			currentVector.addByte(OPCODES.get("end"));
+			currentVector.addByte(OPCODES.get("unreachable"));
+			blockDepth--;
+			return;
+		}
+
 		emitNode(whileNode.getConditionNode());
 		currentVector.addByte(OPCODES.get("if"));
 		currentVector.addByte(0x40);
+		blockDepth++;
 		emitNode(whileNode.getStatementBlock());
 		currentVector.addByte(OPCODES.get("br"));
 		WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), 1);
 		currentVector.addByte(OPCODES.get("end"));
 		currentVector.addByte(OPCODES.get("end"));
+		blockDepth -= 2;
+	}
+
+	private void emitTailCallNode(TailCallStatementNode tailCallNode) throws IOException {
+		FunctionCallExpressionNode funcCallNode = tailCallNode.getCall();
+		for (ExpressionNode arg : funcCallNode.getArguments()) {
+			emitNode(arg);
+		}
+
+		if (!tailCallNode.isSelfCall()) {
+			currentVector.addByte(OPCODES.get("return_call"));
+			WASMUtils.WriteUnsignedLeb128(currentVector.getStream(),
+					orderedFunctions.get(funcCallNode.getFunctionName()));
+			return;
+		}
+
+		// the arguments are all on the stack, so the parameters can be overwritten
+		FunctionStatementNode funcNode = funcSymbolTable.get(funcCallNode.getFunctionName());
+		for (int i = funcNode.getArguments().size() - 1; i >= 0; i--) {
+			currentVector.addByte(OPCODES.get("local.set"));
+			WASMUtils.WriteUnsignedLeb128(currentVector.getStream(),
+					orderedLocalVars.get(funcNode.getArguments().get(i).getVarName()));
+		}
+
+		for (VariableDeclarationNode varNode : tailCallNode.getClearedVariables()) {
+			emitZero(getEmittedLiteralType(varNode.getType()));
+			currentVector.addByte(OPCODES.get("local.set"));
+			WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), orderedLocalVars.get(varNode.getVarName()));
+		}
+
+		currentVector.addByte(OPCODES.get("br"));
+		WASMUtils.WriteUnsignedLeb128(currentVector.getStream(),
+				blockDepth - loopDepths.get(tailCallNode.getTargetLoop()));
+	}
+
+	private void emitZero(LiteralType type) throws IOException {
+		currentVector.addByte(OPCODES.get(type + ".const"));
+		if (type == LiteralType.f32)
+			currentVector.getStream().write(new byte[4]);
+		else if (type == LiteralType.f64)
+			currentVector.getStream().write(new byte[8]);
+		else
+			WASMUtils.WriteSignedLeb128(currentVector.getStream(), 0);
 	}
 
 	private void emitIfNode(IfStatementNode ifNode) throws IOException {
@@ -387,19 +872,190 @@ public class WASMEmitter {
 			emitNode(ifNode.getConditions().get(i));
 			currentVector.addByte(OPCODES.get("if"));
 			currentVector.addByte(0x40);
-			emitNode(ifNode.getStatementBlocks().get(i));
+			blockDepth++;
+			emitStatement(ifNode.getStatementBlocks().get(i));
 		}
 
 		// if there is an else block
 		if (ifNode.getStatementBlocks().size() > ifNode.getConditions().size()) {
 			currentVector.addByte(OPCODES.get("else"));
-			emitNode(ifNode.getStatementBlocks().get(ifNode.getStatementBlocks().size() - 1));
+			emitStatement(ifNode.getStatementBlocks().get(ifNode.getStatementBlocks().size() - 1));
 		}
 
 		// close the else blocks
 		for (int i = 0; i < ifNode.getConditions().size(); i++) {
 			currentVector.addByte(OPCODES.get("end"));
 		}
+		blockDepth -= ifNode.getConditions().size();
+	}
+
+	// the blocks of the cases are nested in the order of the cases, the branch
+	// to a case ends its block and the code after the end is the case:
+	//
+	// block          the end of the switch
+	//   block        default
+	//     block      case 1
+	//       block    case 0
+	//         branch to a case
+	//       end
+	//       case 0, br to the end of the switch
+	//     end
+	//     ...
+	private void emitSwitchNode(SwitchStatementNode switchNode) throws IOException {
+		List<StatementBlockNode> statementBlocks = switchNode.getStatementBlocks();
+		if (switchNode.getCases().isEmpty()) {
+			emitNode(switchNode.getExpression());
+			currentVector.addByte(OPCODES.get("drop"));
+			if (switchNode.hasDefault())
+				emitStatement(statementBlocks.get(0));
+			return;
+		}
+
+		for (int i = 0; i <= statementBlocks.size(); i++) {
+			currentVector.addByte(OPCODES.get("block"));
+			currentVector.addByte(0x40);
+		}
+		blockDepth += statementBlocks.size() + 1;
+
+		TreeMap<Long, Integer> targets = getSwitchTargets(switchNode);
+		LiteralType type = switchNode.getExpression().getLiteralType();
+		String valueName = getSwitchValueName(switchNode);
+		if (isSwitchTable(targets)) {
+			emitNode(switchNode.getExpression());
+			emitSwitchTable(targets, type, valueName, switchNode.getCases().size());
+		} else {
+			if (valueName.startsWith(SWITCH_VALUE)) {
+				emitNode(switchNode.getExpression());
+				emitLocal("local.set", valueName);
+			}
+
+			emitSwitchSearch(new ArrayList<>(targets.entrySet()), type, valueName, switchNode.getCases().size(), 0);
+		}
+
+		for (int i = 0; i < statementBlocks.size(); i++) {
+			currentVector.addByte(OPCODES.get("end"));
+			blockDepth--;
+			emitStatement(statementBlocks.get(i));
+
+			List<StatementNode> statements = statementBlocks.get(i).getStatements();
+			StatementNode last = statements.isEmpty() ? null : statements.get(statements.size() - 1);
+			if (i != statementBlocks.size() - 1 && !(last instanceof ReturnStatementNode)
+					&& !(last instanceof TailCallStatementNode)) {
+				currentVector.addByte(OPCODES.get("br"));
+				WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), statementBlocks.size() - 1 - i);
+			}
+		}
+
+		currentVector.addByte(OPCODES.get("end"));
+		blockDepth--;
+	}
+
+	// the value is on the stack, the br_table index is its distance from the
+	// smallest value. An i32 below it wraps to a large index that takes the
+	// default like the ones after the table, an i64 is checked first.
+	private void emitSwitchTable(TreeMap<Long, Integer> targets, LiteralType type, String valueName,
+			int defaultDepth) throws IOException {
+		long min = targets.firstKey();
+		long size = targets.lastKey() - min + 1;
+		if (min != 0) {
+			emitSwitchConst(type, min);
+			currentVector.addByte(OPCODES.get(type + ".sub"));
+		}
+
+		if (type == LiteralType.i64) {
+			emitLocal("local.tee", valueName);
+			emitSwitchConst(type, size);
+			currentVector.addByte(OPCODES.get("i64.ge_u"));
+			currentVector.addByte(OPCODES.get("br_if"));
+			WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), defaultDepth);
+			emitLocal("local.get", valueName);
+			currentVector.addByte(OPCODES.get("i32.wrap_i64"));
+		}
+
+		currentVector.addByte(OPCODES.get("br_table"));
+		WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), (int) size);
+		for (long value = min; value < min + size; value++)
+			WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), targets.getOrDefault(value, defaultDepth));
+		WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), defaultDepth);
+	}
+
+	// the values are ordered, the ones below the middle are searched in an if
+	// that always branches, so the ones after it are only searched otherwise.
+	// The depth is the number of the ifs around the search.
+	private void emitSwitchSearch(List<Map.Entry<Long, Integer>> targets, LiteralType type, String valueName,
+			int defaultDepth, int depth) throws IOException {
+		if (targets.size() <= LINEAR_SEARCH_VALUES) {
+			for (Map.Entry<Long, Integer> target : targets) {
+				emitLocal("local.get", valueName);
+				emitSwitchConst(type, target.getKey());
+				currentVector.addByte(OPCODES.get(type + ".eq"));
+				currentVector.addByte(OPCODES.get("br_if"));
+				WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), target.getValue() + depth);
+			}
+
+			currentVector.addByte(OPCODES.get("br"));
+			WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), defaultDepth + depth);
+			return;
+		}
+
+		int middle = targets.size() / 2;
+		emitLocal("local.get", valueName);
+		emitSwitchConst(type, targets.get(middle).getKey());
+		currentVector.addByte(OPCODES.get(type + ".lt_s"));
+		currentVector.addByte(OPCODES.get("if"));
+		currentVector.addByte(0x40);
+		emitSwitchSearch(targets.subList(0, middle), type, valueName, defaultDepth, depth + 1);
+		currentVector.addByte(OPCODES.get("end"));
+
+		emitSwitchSearch(targets.subList(middle, targets.size()), type, valueName, defaultDepth, depth);
+	}
+
+	private void emitSwitchConst(LiteralType type, long value) throws IOException {
+		currentVector.addByte(OPCODES.get(type + ".const"));
+		WASMUtils.WriteSignedLeb128(currentVector.getStream(), type == LiteralType.i32 ? (int) value : value);
+	}
+
+	// the values of the cases and the index of their case, ordered by value
+	private TreeMap<Long, Integer> getSwitchTargets(SwitchStatementNode switchNode) {
+		TreeMap<Long, Integer> targets = new TreeMap<>();
+		for (int i = 0; i < switchNode.getCases().size(); i++) {
+			for (ExpressionNode value : switchNode.getCases().get(i))
+				targets.put(((NumberExpressionNode) value).getNumber().longValue(), i);
+		}
+
+		return targets;
+	}
+
+	private boolean isSwitchTable(TreeMap<Long, Integer> targets) {
+		long range = targets.lastKey() - targets.firstKey();
+		return targets.size() >= MIN_TABLE_VALUES && range < (long) targets.size() * TABLE_FILL;
+	}
+
+	// the local the search reads the value from, a temporary unless the value
+	// is already a local. An i64 table keeps the index in the temporary.
+	private String getSwitchValueName(SwitchStatementNode switchNode) {
+		LiteralType type = switchNode.getExpression().getLiteralType();
+		if (isSwitchTable(getSwitchTargets(switchNode)))
+			return type == LiteralType.i64 ? SWITCH_VALUE + type : null;
+
+		if (switchNode.getExpression() instanceof IdentifierExpressionNode)
+			return ((IdentifierExpressionNode) switchNode.getExpression()).getName();
+
+		return SWITCH_VALUE + type;
+	}
+
+	// the types of the temporaries the switches of a function use
+	private Set<LiteralType> getSwitchTemporaries(Node node, Set<LiteralType> types) {
+		if (node instanceof SwitchStatementNode && !((SwitchStatementNode) node).getCases().isEmpty()) {
+			String valueName = getSwitchValueName((SwitchStatementNode) node);
+			if (valueName != null && valueName.startsWith(SWITCH_VALUE))
+				types.add(((SwitchStatementNode) node).getExpression().getLiteralType());
+		}
+
+		for (Node child : OptimizerUtils.GetChildren(node))
+			getSwitchTemporaries(child, types);
+
+		return types;
 	}
 
 	private LiteralType emitFunctionCallNode(FunctionCallExpressionNode funcCallNode) throws IOException {
@@ -408,12 +1064,22 @@ public class WASMEmitter {
 		}
 
 		String funcName = funcCallNode.getFunctionName();
-		currentVector.addByte(OPCODES.get("call"));
-		WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), orderedFunctions.get(funcName));
-
 		FunctionStatementNode funcNode = funcSymbolTable.get(funcName);
 		assert (funcNode != null);
 
+		MemoryAccess access = memoryAccesses.get(funcName);
+		String globalName = getAccessedGlobal(funcName);
+		if (access != null)
+			emitMemoryAccess(access.getOpcode(), access.getAlign(), access.getOffset());
+		else if (globalName != null) {
+			currentVector.addByte(OPCODES.get(funcName.startsWith(StandardLibrary.GLOBAL_GET) ? "global.get"
+					: "global.set"));
+			WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), orderedGlobals.get(globalName));
+		} else {
+			currentVector.addByte(OPCODES.get("call"));
+			WASMUtils.WriteUnsignedLeb128(currentVector.getStream(), orderedFunctions.get(funcName));
+		}
+
 		return getEmittedLiteralType(funcNode.getType());
 	}
 
@@ -425,21 +1091,52 @@ public class WASMEmitter {
 	}
 
 	private LiteralType emitUnaryOperationNode(UnaryOperationNode unaryNode) throws IOException {
+		// integers are negated with 0 - x, so the zero goes first
+		LiteralType type = unaryNode.getLiteralType();
+		boolean isInteger = type != LiteralType.f32 && type != LiteralType.f64;
+		if (unaryNode.getUnaryOperationType() == UnaryOperationType.MINUS && isInteger)
+			emitZero(type);
+
 		LiteralType exprType = emitNode(unaryNode.getExpression());
 
 		switch (unaryNode.getUnaryOperationType()) {
 		case PLUS:
 			break;
 		case MINUS:
-			currentVector.addByte(OPCODES.get("i32.const"));
-			WASMUtils.WriteSignedLeb128(currentVector.getStream(), -1);
-			currentVector.addByte(OPCODES.get("i32.mul"));
+			currentVector.addByte(OPCODES.get(exprType + (isInteger ? ".sub" : ".neg")));
 			break;
 		case COMPLEMENT:
 			// toggle 0 to 1 or 1 to 0
 			currentVector.addByte(OPCODES.get("i32.const"));
 			WASMUtils.WriteSignedLeb128(currentVector.getStream(), 1);
 			currentVector.addByte(OPCODES.get("i32.xor"));
+			break;
+		case POPCNT:
+			currentVector.addByte(OPCODES.get(exprType + ".popcnt"));
+			break;
+		case CLZ:
+			currentVector.addByte(OPCODES.get(exprType + ".clz"));
+			break;
+		case CTZ:
+			currentVector.addByte(OPCODES.get(exprType + ".ctz"));
+			break;
+		case SQRT:
+			currentVector.addByte(OPCODES.get(exprType + ".sqrt"));
+			break;
+		case ABS:
+			currentVector.addByte(OPCODES.get(exprType + ".abs"));
+			break;
+		case FLOOR:
+			currentVector.addByte(OPCODES.get(exprType + ".floor"));
+			break;
+		case CEIL:
+			currentVector.addByte(OPCODES.get(exprType + ".ceil"));
+			break;
+		case TRUNC:
+			currentVector.addByte(OPCODES.get(exprType + ".trunc"));
+			break;
+		case NEAREST:
+			currentVector.addByte(OPCODES.get(exprType + ".nearest"));
 		}
 
 		return exprType;
@@ -466,6 +1163,9 @@ public class WASMEmitter {
 		case DIVISION:
 			currentVector.addByte(OPCODES.get(literalType + ".div"));
 			break;
+		case MODULO:
+			currentVector.addByte(OPCODES.get(literalType + ".rem"));
+			break;
 		case BIT_AND:
 			currentVector.addByte(OPCODES.get(literalType + ".and"));
 			break;
@@ -475,6 +1175,30 @@ public class WASMEmitter {
 		case BIT_XOR:
 			currentVector.addByte(OPCODES.get(literalType + ".xor"));
 			break;
+		case SHIFT_LEFT:
+			currentVector.addByte(OPCODES.get(literalType + ".shl"));
+			break;
+		case SHIFT_RIGHT:
+			currentVector.addByte(OPCODES.get(literalType + ".shr_s"));
+			break;
+		case SHIFT_RIGHT_UNSIGNED:
+			currentVector.addByte(OPCODES.get(literalType + ".shr_u"));
+			break;
+		case ROTATE_LEFT:
+			currentVector.addByte(OPCODES.get(literalType + ".rotl"));
+			break;
+		case ROTATE_RIGHT:
+			currentVector.addByte(OPCODES.get(literalType + ".rotr"));
+			break;
+		case MIN:
+			currentVector.addByte(OPCODES.get(literalType + ".min"));
+			break;
+		case MAX:
+			currentVector.addByte(OPCODES.get(literalType + ".max"));
+			break;
+		case COPYSIGN:
+			currentVector.addByte(OPCODES.get(literalType + ".copysign"));
+			break;
 		case LESS_THAN:
 			currentVector.addByte(OPCODES.get(literalType + ".lt"
 					+ ((literalType == LiteralType.i32 || literalType == LiteralType.i64) ? "_s" : "")));
@@ -505,9 +1229,23 @@ public class WASMEmitter {
 			break;
 		}
 
+		// the comparisons of any type leave an i32
+		if (binaryNode.getLiteralType() == LiteralType.bool)
+			return LiteralType.i32;
+
 		return literalType;
 	}
 
+	public void setCoalesceLocals(boolean coalesceLocals) {
+		this.coalesceLocals = coalesceLocals;
+	}
+
+	// the conversions of floats to integers clamp the values out of range
+	// instead of trapping
+	public void setSaturatingCasts(boolean saturatingCasts) {
+		this.saturatingCasts = saturatingCasts;
+	}
+
 	private LiteralType getEmittedLiteralType(String type) {
 		if (type.equals("bool"))
 			return LiteralType.i32;
@@ -518,28 +1256,45 @@ public class WASMEmitter {
 	private void loadOPCodes() {
 		OPCODES = new HashMap<>();
 
+		OPCODES.put("unreachable", 0x00);
+		OPCODES.put("block", 0x02);
 		OPCODES.put("loop", 0x03);
 		OPCODES.put("if", 0x04);
 		OPCODES.put("else", 0x05);
 		OPCODES.put("end", 0x0B);
 		OPCODES.put("br", 0X0C);
+		OPCODES.put("br_if", 0X0D);
+		OPCODES.put("br_table", 0X0E);
 		OPCODES.put("return", 0X0F);
 		OPCODES.put("call", 0x10);
+		OPCODES.put("return_call", 0x12);
+		OPCODES.put("drop", 0x1A);
 
 		OPCODES.put("local.get", 0x20);
 		OPCODES.put("local.set", 0x21);
+		OPCODES.put("local.tee", 0x22);
+		OPCODES.put("global.get", 0x23);
+		OPCODES.put("global.set", 0x24);
 
 		OPCODES.put("i32.load", 0x28);
+		OPCODES.put("i64.load", 0x29);
 		OPCODES.put("f32.load", 0x2A);
+		OPCODES.put("f64.load", 0x2B);
 		OPCODES.put("i32.load8_s", 0x2C);
 		OPCODES.put("i32.load16_s", 0x2E);
 		OPCODES.put("i32.store", 0x36);
+		OPCODES.put("i64.store", 0x37);
 		OPCODES.put("f32.store", 0x38);
+		OPCODES.put("f64.store", 0x39);
 		OPCODES.put("i32.store8", 0x3A);
 		OPCODES.put("i32.store16", 0x3B);
+		OPCODES.put("memory.size", 0x3F);
+		OPCODES.put("memory.grow", 0x40);
 
 		OPCODES.put("i32.const", 0x41);
+		OPCODES.put("i64.const", 0x42);
 		OPCODES.put("f32.const", 0x43);
+		OPCODES.put("f64.const", 0x44);
 
 		OPCODES.put("i32.eq", 0x46);
 		OPCODES.put("i32.ne", 0x47);
@@ -553,6 +1308,7 @@ public class WASMEmitter {
 		OPCODES.put("i64.lt_s", 0x53);
 		OPCODES.put("i64.gt_s", 0x55);
 		OPCODES.put("i64.le_s", 0x57);
+		OPCODES.put("i64.ge_u", 0x5A);
 		OPCODES.put("i64.ge_s", 0x59);
 
 		OPCODES.put("f32.eq", 0x5B);
@@ -562,30 +1318,101 @@ public class WASMEmitter {
 		OPCODES.put("f32.le", 0x5F);
 		OPCODES.put("f32.ge", 0x60);
 
+		OPCODES.put("f64.eq", 0x61);
+		OPCODES.put("f64.ne", 0x62);
+		OPCODES.put("f64.lt", 0x63);
+		OPCODES.put("f64.gt", 0x64);
+		OPCODES.put("f64.le", 0x65);
+		OPCODES.put("f64.ge", 0x66);
+
+		OPCODES.put("i32.clz", 0x67);
+		OPCODES.put("i32.ctz", 0x68);
+		OPCODES.put("i32.popcnt", 0x69);
 		OPCODES.put("i32.add", 0x6A);
 		OPCODES.put("i32.sub", 0x6B);
 		OPCODES.put("i32.mul", 0x6C);
 		OPCODES.put("i32.div", 0x6D); // signed
+		OPCODES.put("i32.rem", 0x6F); // signed
 		OPCODES.put("i32.and", 0x71);
 		OPCODES.put("i32.or", 0x72);
 		OPCODES.put("i32.xor", 0x73);
-
+		OPCODES.put("i32.shl", 0x74);
+		OPCODES.put("i32.shr_s", 0x75);
+		OPCODES.put("i32.shr_u", 0x76);
+		OPCODES.put("i32.rotl", 0x77);
+		OPCODES.put("i32.rotr", 0x78);
+
+		OPCODES.put("i64.clz", 0x79);
+		OPCODES.put("i64.ctz", 0x7A);
+		OPCODES.put("i64.popcnt", 0x7B);
 		OPCODES.put("i64.add", 0x7C);
 		OPCODES.put("i64.sub", 0x7D);
 		OPCODES.put("i64.mul", 0x7E);
 		OPCODES.put("i64.div", 0x7F); // signed
+		OPCODES.put("i64.rem", 0x81); // signed
 		OPCODES.put("i64.and", 0x83);
 		OPCODES.put("i64.or", 0x84);
 		OPCODES.put("i64.xor", 0x85);
-
+		OPCODES.put("i64.shl", 0x86);
+		OPCODES.put("i64.shr_s", 0x87);
+		OPCODES.put("i64.shr_u", 0x88);
+		OPCODES.put("i64.rotl", 0x89);
+		OPCODES.put("i64.rotr", 0x8A);
+
+		OPCODES.put("f32.abs", 0x8B);
+		OPCODES.put("f32.neg", 0x8C);
+		OPCODES.put("f32.ceil", 0x8D);
+		OPCODES.put("f32.floor", 0x8E);
+		OPCODES.put("f32.trunc", 0x8F);
+		OPCODES.put("f32.nearest", 0x90);
+		OPCODES.put("f32.sqrt", 0x91);
 		OPCODES.put("f32.add", 0x92);
 		OPCODES.put("f32.sub", 0x93);
 		OPCODES.put("f32.mul", 0x94);
 		OPCODES.put("f32.div", 0x95);
+		OPCODES.put("f32.min", 0x96);
+		OPCODES.put("f32.max", 0x97);
+		OPCODES.put("f32.copysign", 0x98);
+
+		OPCODES.put("f64.abs", 0x99);
+		OPCODES.put("f64.neg", 0x9A);
+		OPCODES.put("f64.ceil", 0x9B);
+		OPCODES.put("f64.floor", 0x9C);
+		OPCODES.put("f64.trunc", 0x9D);
+		OPCODES.put("f64.nearest", 0x9E);
+		OPCODES.put("f64.sqrt", 0x9F);
+		OPCODES.put("f64.add", 0xA0);
+		OPCODES.put("f64.sub", 0xA1);
+		OPCODES.put("f64.mul", 0xA2);
+		OPCODES.put("f64.div", 0xA3);
+		OPCODES.put("f64.min", 0xA4);
+		OPCODES.put("f64.max", 0xA5);
+		OPCODES.put("f64.copysign", 0xA6);
 
 		OPCODES.put("i32.wrap_i64", 0xA7);
 		OPCODES.put("i32.trunc_f32_s", 0xA8);
+		OPCODES.put("i32.trunc_f64_s", 0xAA);
 		OPCODES.put("i64.extend_i32_s", 0xAC);
-		OPCODES.put("f32.convert_i32_s", 0xB3);
+		OPCODES.put("i64.extend_i32_u", 0xAD);
+		OPCODES.put("i64.trunc_f32_s", 0xAE);
+		OPCODES.put("i64.trunc_f64_s", 0xB0);
+		OPCODES.put("f32.convert_i32_s", 0xB2);
+		OPCODES.put("f32.convert_i32_u", 0xB3);
+		OPCODES.put("f32.convert_i64_s", 0xB4);
+		OPCODES.put("f32.demote_f64", 0xB6);
+		OPCODES.put("f64.convert_i32_s", 0xB7);
+		OPCODES.put("f64.convert_i32_u", 0xB8);
+		OPCODES.put("f64.convert_i64_s", 0xB9);
+		OPCODES.put("f64.promote_f32", 0xBB);
+		OPCODES.put("i32.reinterpret_f32", 0xBC);
+		OPCODES.put("i64.reinterpret_f64", 0xBD);
+		OPCODES.put("f32.reinterpret_i32", 0xBE);
+		OPCODES.put("f64.reinterpret_i64", 0xBF);
+
+		PREFIXED_OPCODES = new HashMap<>();
+		PREFIXED_OPCODES.put("i32.trunc_sat_f32_s", 0);
+		PREFIXED_OPCODES.put("i32.trunc_sat_f64_s", 2);
+		PREFIXED_OPCODES.put("i64.trunc_sat_f32_s", 4);
+		PREFIXED_OPCODES.put("i64.trunc_sat_f64_s", 6);
 	}
 }
@@ -31,9 +31,13 @@ public class WASMUtils {
 	}
 
 	public static void WriteSignedLeb128(OutputStream out, int value) throws IOException {
-		int remaining = value >> 7;
+		WriteSignedLeb128(out, (long) value);
+	}
+
+	public static void WriteSignedLeb128(OutputStream out, long value) throws IOException {
+		long remaining = value >> 7;
 		boolean hasMore = true;
-		int end = ((value & Integer.MIN_VALUE) == 0) ? 0 : -1;
+		long end = ((value & Long.MIN_VALUE) == 0) ? 0 : -1;
 
 		while (hasMore) {
 			hasMore = (remaining != end) || ((remaining & 1) != ((value >> 6) & 1));
@@ -44,8 +48,21 @@ public class WASMUtils {
 		}
 	}
 
+	// the floats are written in little endian
+	public static void WriteFloat(OutputStream out, float value) throws IOException {
+		int bits = Float.floatToRawIntBits(value);
+		for (int i = 0; i < 4; i++)
+			out.write((byte) (bits >>> (8 * i)));
+	}
+
+	public static void WriteDouble(OutputStream out, double value) throws IOException {
+		long bits = Double.doubleToRawLongBits(value);
+		for (int i = 0; i < 8; i++)
+			out.write((byte) (bits >>> (8 * i)));
+	}
+
 	public static byte GetValType(String name) {
-		if (name.equalsIgnoreCase("i32")) {
+		if (name.equalsIgnoreCase("i32") || name.equalsIgnoreCase("bool")) {
 			return 0x7F;
 		} else if (name.equalsIgnoreCase("i64")) {
 			return 0x7E;
@@ -207,7 +207,7 @@ public class WATEmitter {
 
 	private LiteralType emitNumberNode(NumberExpressionNode numberNode) {
 		if (!numberNode.isFloat()) {
-			instructions.add("i32.const " + (int) numberNode.getNumber());
+			instructions.add("i32.const " + numberNode.getNumber().intValue());
 			return LiteralType.i32;
 		}
 
@@ -303,6 +303,33 @@ public class WATEmitter {
 			// toggle 0 to 1 or 1 to 0
 			instructions.add(exprType + ".const 1");
 			instructions.add(exprType + ".xor");
+			break;
+		case POPCNT:
+			instructions.add(exprType + ".popcnt");
+			break;
+		case CLZ:
+			instructions.add(exprType + ".clz");
+			break;
+		case CTZ:
+			instructions.add(exprType + ".ctz");
+			break;
+		case SQRT:
+			instructions.add(exprType + ".sqrt");
+			break;
+		case ABS:
+			instructions.add(exprType + ".abs");
+			break;
+		case FLOOR:
+			instructions.add(exprType + ".floor");
+			break;
+		case CEIL:
+			instructions.add(exprType + ".ceil");
+			break;
+		case TRUNC:
+			instructions.add(exprType + ".trunc");
+			break;
+		case NEAREST:
+			instructions.add(exprType + ".nearest");
 		}
 
 		return exprType;
@@ -329,6 +356,9 @@ public class WATEmitter {
 		case DIVISION:
 			instructions.add(literalType + ".div");
 			break;
+		case MODULO:
+			instructions.add(literalType + ".rem_s");
+			break;
 		case BIT_AND:
 			instructions.add(literalType + ".and");
 			break;
@@ -338,6 +368,30 @@ public class WATEmitter {
 		case BIT_XOR:
 			instructions.add(literalType + ".xor");
 			break;
+		case SHIFT_LEFT:
+			instructions.add(literalType + ".shl");
+			break;
+		case SHIFT_RIGHT:
+			instructions.add(literalType + ".shr_s");
+			break;
+		case SHIFT_RIGHT_UNSIGNED:
+			instructions.add(literalType + ".shr_u");
+			break;
+		case ROTATE_LEFT:
+			instructions.add(literalType + ".rotl");
+			break;
+		case ROTATE_RIGHT:
+			instructions.add(literalType + ".rotr");
+			break;
+		case MIN:
+			instructions.add(literalType + ".min");
+			break;
+		case MAX:
+			instructions.add(literalType + ".max");
+			break;
+		case COPYSIGN:
+			instructions.add(literalType + ".copysign");
+			break;
 		case LESS_THAN:
 			instructions.add(literalType + ".lt" + ((literalType == LiteralType.i32) ? "_s" : ""));
 			break;
@@ -0,0 +1,28 @@
+// Times the loops of allocbench.txt, compiled and run from the test folder with
+//   java -cp ../target/classes compiler.MainCompiler -i allocbench.txt -o allocbench.wasm
+//   node allocbench.js allocbench.wasm
+const fs = require("fs");
+
+const file = process.argv[2] || "allocbench.wasm";
+const wasmModule = new WebAssembly.Module(fs.readFileSync(file));
+
+// the fastest of a few runs on a new instance, in nanoseconds per operation (an
+// alloc and free pair, or a realloc)
+function time(name, operations, run) {
+	let best = Infinity;
+	for (let i = 0; i < 5; i++) {
+		const instance = new WebAssembly.Instance(wasmModule);
+		const start = process.hrtime.bigint();
+		run(instance.exports);
+		best = Math.min(best, Number(process.hrtime.bigint() - start));
+	}
+	console.log(name.padEnd(28) + (best / operations).toFixed(1).padStart(8) + " ns/op"
+		+ (operations * 1e3 / best).toFixed(1).padStart(10) + " M ops/s");
+}
+
+const n = 1000000;
+time("alloc/free 16 bytes", n, e => e.allocFree(n, 16));
+time("alloc/free 2048 bytes", n, e => e.allocFree(n, 2048));
+time("alloc/free 8192 bytes", n, e => e.allocFree(n, 8192));
+time("alloc/free batches of 64", n, e => e.allocBatch(n / 64, 64));
+time("realloc 16 to 2048 bytes", n * 7, e => e.reallocGrow(n, 2048));